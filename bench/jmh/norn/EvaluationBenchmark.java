@@ -0,0 +1,123 @@
+package norn;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures recipients() of the list "top" in environments of three shapes:
+ *  WIDE: top is the union of size lists of 10 recipients each;
+ *  DEEP: a chain of size lists, each adding one recipient to the previous one;
+ *  DAG:  DAG_DEPTH layers of size / DAG_DEPTH lists, each list the union of two lists of
+ *        the layer below, so lists are shared by several parents and evaluated once per
+ *        path that reaches them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EvaluationBenchmark {
+    /** Number of layers of the DAG shape. */
+    static final int DAG_DEPTH = 8;
+    private static final int WIDE_LIST_SIZE = 10;
+
+    /** Shape of the environment. */
+    public enum Shape { WIDE, DEEP, DAG }
+
+    /** Shape of the environment. */
+    @Param({ "WIDE", "DEEP", "DAG" })
+    public Shape shape;
+
+    /** Number of lists in the environment. */
+    @Param({ "16", "256", "1024" })
+    public int size;
+
+    private Environment environment;
+    private final Name top = new Name("top");
+
+    /**
+     * Builds the environment.
+     */
+    @Setup
+    public void setUp() {
+        environment = build(shape, size);
+    }
+
+    /**
+     * @param shape the shape of the environment
+     * @param size the number of lists
+     * @return an environment of the given shape that defines the list "top"
+     */
+    static Environment build(Shape shape, int size) {
+        final Environment environment = new Environment();
+        switch (shape) {
+        case WIDE: {
+            ListExpression union = new Empty();
+            for (int i = 0; i < size; i++) {
+                ListExpression list = new Empty();
+                for (int j = 0; j < WIDE_LIST_SIZE; j++) {
+                    list = new Union(list, new Recipient("user" + j + "@list" + i + ".example.com"));
+                }
+                environment.reassign(new Name("list" + i), list);
+                union = new Union(union, new Name("list" + i));
+            }
+            environment.reassign(new Name("top"), union);
+            break;
+        }
+        case DEEP: {
+            environment.reassign(new Name("list0"), new Recipient("user0@example.com"));
+            for (int i = 1; i < size; i++) {
+                environment.reassign(new Name("list" + i),
+                        new Union(new Name("list" + (i - 1)), new Recipient("user" + i + "@example.com")));
+            }
+            environment.reassign(new Name("top"), new Name("list" + (size - 1)));
+            break;
+        }
+        case DAG: {
+            final int width = Math.max(2, size / DAG_DEPTH);
+            for (int i = 0; i < width; i++) {
+                environment.reassign(new Name("node0_" + i), new Recipient("user" + i + "@example.com"));
+            }
+            for (int layer = 1; layer < DAG_DEPTH; layer++) {
+                for (int i = 0; i < width; i++) {
+                    environment.reassign(new Name("node" + layer + "_" + i), new Union(
+                            new Name("node" + (layer - 1) + "_" + i),
+                            new Name("node" + (layer - 1) + "_" + ((i + 1) % width))));
+                }
+            }
+            ListExpression union = new Empty();
+            for (int i = 0; i < width; i++) {
+                union = new Union(union, new Name("node" + (DAG_DEPTH - 1) + "_" + i));
+            }
+            environment.reassign(new Name("top"), union);
+            break;
+        }
+        default:
+            throw new AssertionError("unknown shape " + shape);
+        }
+        return environment;
+    }
+
+    /**
+     * @return the recipients of top
+     */
+    @Benchmark
+    public Set<Recipient> evaluate() {
+        synchronized (environment) {
+            return top.recipients(environment);
+        }
+    }
+}
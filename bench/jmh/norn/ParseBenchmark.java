@@ -0,0 +1,67 @@
+package norn;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures ListExpression.parse() on inputs of growing size: a flat union of recipients,
+ * as produced by !save, and a sequence of definitions that reference each other, as in a
+ * saved environment.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+    /** Number of recipients or definitions in the input. */
+    @Param({ "1", "100", "1000" })
+    public int size;
+
+    private String union;
+    private String definitions;
+
+    /**
+     * Builds the inputs.
+     */
+    @Setup
+    public void setUp() {
+        final StringBuilder union = new StringBuilder();
+        final StringBuilder definitions = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            union.append(i == 0 ? "" : ", ").append("user").append(i).append("@example.com");
+            definitions.append("list").append(i).append(" = (user").append(i).append("@example.com, ")
+                    .append(i == 0 ? "" : "list" + (i - 1)).append(" ! admin@example.com); ");
+        }
+        this.union = union.toString();
+        this.definitions = definitions.toString();
+    }
+
+    /**
+     * @return the parsed flat union
+     */
+    @Benchmark
+    public ListExpression parseUnion() {
+        return ListExpression.parse(union);
+    }
+
+    /**
+     * @return the parsed sequence of definitions
+     */
+    @Benchmark
+    public ListExpression parseDefinitions() {
+        return ListExpression.parse(definitions);
+    }
+}
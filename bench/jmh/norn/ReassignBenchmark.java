@@ -0,0 +1,59 @@
+package norn;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures Environment.reassign(), including its mail loop check, as the environment grows:
+ * one list among size lists, each of which references the previous one, is redefined over
+ * and over, alternating between two definitions. The mail loop check is part of the rep
+ * invariant check of Environment, so the benchmark runs with assertions enabled.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-ea")
+public class ReassignBenchmark {
+    /** Number of lists in the environment. */
+    @Param({ "10", "100", "1000" })
+    public int size;
+
+    private Environment environment;
+    private Name name;
+    private ListExpression first;
+    private ListExpression second;
+    private boolean flip = false;
+
+    /**
+     * Builds the environment and the two definitions of the redefined list.
+     */
+    @Setup
+    public void setUp() {
+        environment = EvaluationBenchmark.build(EvaluationBenchmark.Shape.DEEP, size);
+        name = new Name("list" + (size / 2));
+        first = environment.getExpression(name);
+        second = new Union(first, new Recipient("extra@example.com"));
+    }
+
+    /**
+     * @return the previous definition of the redefined list
+     */
+    @Benchmark
+    public ListExpression reassign() {
+        flip = !flip;
+        return environment.reassign(name, flip ? second : first);
+    }
+}
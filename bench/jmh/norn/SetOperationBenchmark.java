@@ -0,0 +1,143 @@
+package norn;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the time and, when run with -prof gc, the allocation (gc.alloc.rate.norm, bytes
+ * per operation) of the set operations of the evaluator, on two lists of size recipients that
+ * share half of their recipients:
+ *  hashSet*:    the operations on HashSets of recipients that Union, Intersect and Difference
+ *               used before they evaluated their operands as ids;
+ *  intHashSet*: the same operations on IntHashSets of interned ids;
+ *  evaluate:    recipients() of (a ! b) * a, b, whose intermediate sets are IntHashSets of
+ *               the ids of the environment.
+ * Each operation starts from new copies of its operands, as evaluation does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SetOperationBenchmark {
+    /** Number of recipients in each list. */
+    @Param({ "100", "10000" })
+    public int size;
+
+    private Set<Recipient> left;
+    private Set<Recipient> right;
+    private IntHashSet leftIds;
+    private IntHashSet rightIds;
+    private IntHashSet leftCopy;
+    private IntHashSet rightCopy;
+    private Environment environment;
+    private ListExpression expression;
+
+    /**
+     * Builds the lists, their id sets and an environment that defines them as a and b.
+     */
+    @Setup
+    public void setUp() {
+        final List<Recipient> a = new ArrayList<>();
+        final List<Recipient> b = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            a.add(new Recipient("user" + i + "@example.com"));
+            b.add(new Recipient("user" + (i + size / 2) + "@example.com"));
+        }
+        left = new HashSet<>(a);
+        right = new HashSet<>(b);
+        final Set<Recipient> both = new HashSet<>(left);
+        both.addAll(right);
+        final RecipientIds table = RecipientIds.of(both);
+        leftIds = table.idsOf(left);
+        rightIds = table.idsOf(right);
+        leftCopy = new IntHashSet(size * 2);
+        rightCopy = new IntHashSet(size * 2);
+        environment = new Environment();
+        environment.reassign(new Name("a"), new RecipientSet(a));
+        environment.reassign(new Name("b"), new RecipientSet(b));
+        expression = ListExpression.parse("(a ! b) * a, b");
+    }
+
+    /**
+     * @return the union of copies of the lists, as HashSets
+     */
+    @Benchmark
+    public Set<Recipient> hashSetUnion() {
+        final Set<Recipient> union = new HashSet<>(left);
+        union.addAll(new HashSet<>(right));
+        return union;
+    }
+
+    /**
+     * @return the intersection of copies of the lists, as HashSets
+     */
+    @Benchmark
+    public Set<Recipient> hashSetIntersect() {
+        final Set<Recipient> copy = new HashSet<>(right);
+        final Set<Recipient> intersection = new HashSet<>();
+        for (Recipient recipient : new HashSet<>(left)) {
+            if (copy.contains(recipient)) {
+                intersection.add(recipient);
+            }
+        }
+        return intersection;
+    }
+
+    /**
+     * @return the union of copies of the lists, as IntHashSets whose tables are reused
+     */
+    @Benchmark
+    public IntHashSet intHashSetUnion() {
+        copy(leftIds, leftCopy);
+        copy(rightIds, rightCopy);
+        leftCopy.addAll(rightCopy);
+        return leftCopy;
+    }
+
+    /**
+     * @return the intersection of copies of the lists, as IntHashSets whose tables are reused
+     */
+    @Benchmark
+    public IntHashSet intHashSetIntersect() {
+        copy(leftIds, leftCopy);
+        copy(rightIds, rightCopy);
+        leftCopy.retainAll(rightCopy);
+        return leftCopy;
+    }
+
+    /**
+     * @return the recipients of (a ! b) * a, b, whose operands are evaluated as sets of the
+     *  ids of the environment
+     */
+    @Benchmark
+    public Set<Recipient> evaluate() {
+        return expression.recipients(environment);
+    }
+
+    /**
+     * Replaces the values of one set by those of another without allocating.
+     * @param from the set to copy
+     * @param to the set to overwrite, with room for all values of from
+     */
+    private static void copy(IntHashSet from, IntHashSet to) {
+        to.clear();
+        to.addAll(from);
+    }
+}
@@ -0,0 +1,87 @@
+package norn;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures end-to-end /eval/ requests to WebServer over loopback with keep-alive
+ * connections, for a list of size recipients, with the result cache enabled (repeated
+ * query) and disabled (evaluated every time).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class WebServerBenchmark {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** Number of recipients of the requested list. */
+    @Param({ "10", "1000" })
+    public int size;
+
+    /** Whether the result cache is enabled. */
+    @Param({ "true", "false" })
+    public boolean cached;
+
+    private WebServer server;
+    private URL url;
+
+    /**
+     * Starts the server.
+     * @throws IOException if the server cannot be started
+     */
+    @Setup
+    public void setUp() throws IOException {
+        final Environment environment = new Environment();
+        environment.reassign(new Name("team"), CompressionBenchmark.balancedUnion(size));
+        server = new WebServer(environment);
+        server.setAdmission(Integer.MAX_VALUE, 0, 0);
+        server.setResultCache(cached ? EvalEndpoint.DEFAULT_RESULT_CACHE_ENTRIES : 0, EvalEndpoint.DEFAULT_RESULT_CACHE_BYTES);
+        url = new URL("http://localhost:" + server.port() + "/eval/team");
+    }
+
+    /**
+     * Stops the server.
+     */
+    @TearDown
+    public void tearDown() {
+        server.stop();
+    }
+
+    /**
+     * @return the number of response bytes read
+     * @throws IOException if the request fails
+     */
+    @Benchmark
+    public long request() throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        long length = 0;
+        try (InputStream body = connection.getInputStream()) {
+            for (int n = body.read(buffer); n >= 0; n = body.read(buffer)) {
+                length += n;
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,149 @@
+package norn;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Measures the effect of gzip compression on /eval/ response time over a loopback
+ * connection, for a list of many recipients that share a few domains.
+ * 
+ * Usage: CompressionBenchmark [recipients] [iterations]
+ * (defaults: 500000 recipients, 10 timed iterations after 3 warmup requests).
+ * Run with -Xmx2g or more for the default size.
+ */
+public class CompressionBenchmark {
+    private static final String[] DOMAINS = { "mit.edu", "example.com", "lists.example.org", "csail.mit.edu" };
+    private static final int WARMUP = 3;
+
+    /**
+     * Runs the benchmark and prints the median response time and transferred bytes for an
+     * uncompressed response and for gzip at several compression levels.
+     * @param args optional number of recipients and number of timed iterations
+     * @throws IOException if the server cannot be started or a request fails
+     */
+    public static void main(String[] args) throws IOException {
+        final int size = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        final int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        final Environment environment = new Environment();
+        environment.reassign(new Name("big"), balancedUnion(size));
+        final WebServer server = new WebServer(environment);
+        final URL url = new URL("http://localhost:" + server.port() + "/eval/big");
+        try {
+            System.out.printf("%d recipients, median of %d requests%n", size, iterations);
+            server.setCompression(-1, Deflater.DEFAULT_COMPRESSION);
+            report("identity", url, false, iterations);
+            for (int level : new int[] { Deflater.BEST_SPEED, Deflater.DEFAULT_COMPRESSION, Deflater.BEST_COMPRESSION }) {
+                server.setCompression(0, level);
+                report("gzip level " + level, url, true, iterations);
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * @param size number of recipients
+     * @return a union of size distinct recipients, nested as a balanced tree so that
+     *  evaluating it does not recurse deeply
+     */
+    static ListExpression balancedUnion(int size) {
+        List<ListExpression> level = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            level.add(new Recipient("user" + i + "@" + DOMAINS[i % DOMAINS.length]));
+        }
+        while (level.size() > 1) {
+            final List<ListExpression> next = new ArrayList<>();
+            for (int i = 0; i + 1 < level.size(); i += 2) {
+                next.add(new Union(level.get(i), level.get(i + 1)));
+            }
+            if (level.size() % 2 == 1) {
+                next.add(level.get(level.size() - 1));
+            }
+            level = next;
+        }
+        return level.isEmpty() ? new Empty() : level.get(0);
+    }
+
+    /**
+     * Times requests to url and prints the median time and the bytes on the wire.
+     * @param label description of the configuration
+     * @param url the URL to request
+     * @param gzip whether to ask for a gzip response
+     * @param iterations number of timed requests
+     * @throws IOException if a request fails
+     */
+    private static void report(String label, URL url, boolean gzip, int iterations) throws IOException {
+        for (int i = 0; i < WARMUP; i++) {
+            request(url, gzip);
+        }
+        final long[] nanos = new long[iterations];
+        long wireBytes = 0;
+        for (int i = 0; i < iterations; i++) {
+            final long start = System.nanoTime();
+            wireBytes = request(url, gzip);
+            nanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+        System.out.printf("%-16s %8.1f ms %12d bytes%n", label, nanos[iterations / 2] / 1e6, wireBytes);
+    }
+
+    /**
+     * Requests url and reads (and, for gzip, decompresses) the whole body.
+     * @param url the URL to request
+     * @param gzip whether to ask for a gzip response
+     * @return number of body bytes transferred
+     * @throws IOException if the request fails
+     */
+    private static long request(URL url, boolean gzip) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        if (gzip) {
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+        }
+        final CountingInputStream wire = new CountingInputStream(connection.getInputStream());
+        final InputStream body = "gzip".equals(connection.getContentEncoding()) ? new GZIPInputStream(wire, 1 << 16) : wire;
+        final byte[] buffer = new byte[1 << 16];
+        while (body.read(buffer) >= 0) {
+            // discard
+        }
+        body.close();
+        return wire.count;
+    }
+
+    /**
+     * Input stream that counts the bytes read through it.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package norn;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compares the throughput and latency of the two web front ends, WebServer and NioWebServer,
+ * for small /eval/ requests over loopback connections, where the cost of the front end
+ * rather than evaluation dominates.
+ *
+ * Each client thread sends requests back to back over one persistent connection
+ * (HttpURLConnection keep-alive). NioWebServer is additionally measured with raw socket
+ * clients that pipeline a batch of requests before reading the responses.
+ *
+ * Usage: FrontEndBenchmark [clients] [seconds]
+ * (defaults: 16 client threads, 10 seconds per configuration after 2 seconds of warmup).
+ */
+public class FrontEndBenchmark {
+    private static final String EXPRESSION = "/eval/team";
+    private static final int TEAM_SIZE = 10;
+    private static final int WARMUP_SECONDS = 2;
+    private static final int PIPELINE_DEPTH = 16;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * A client loop that sends requests until its deadline.
+     */
+    private interface Client {
+        /**
+         * Sends requests until deadline and records their latencies.
+         * @param deadline System.nanoTime() at which to stop
+         * @param latencies histogram of request latencies in nanoseconds
+         * @throws IOException if a request fails
+         */
+        void run(long deadline, Histogram latencies) throws IOException;
+    }
+
+    /**
+     * Runs the benchmark and prints throughput and latency percentiles per configuration.
+     * @param args optional number of client threads and seconds per configuration
+     * @throws Exception if a server cannot be started or a request fails
+     */
+    public static void main(String[] args) throws Exception {
+        final int clients = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        final Environment environment = new Environment();
+        environment.reassign(new Name("team"), CompressionBenchmark.balancedUnion(TEAM_SIZE));
+        final URL url = new URL("http://localhost:" + WebServer.PORT + EXPRESSION);
+        System.out.printf("%d clients, %d s per configuration%n", clients, seconds);
+
+        final WebServer webServer = new WebServer(environment);
+        webServer.setAdmission(Integer.MAX_VALUE, 0, 0);
+        try {
+            report("httpserver keep-alive", clients, seconds, (deadline, latencies) -> keepAlive(url, deadline, latencies));
+        } finally {
+            webServer.stop();
+        }
+
+        final NioWebServer nioServer = new NioWebServer(environment, WebServer.PORT);
+        nioServer.setAdmission(Integer.MAX_VALUE, 0, 0);
+        try {
+            report("nio keep-alive", clients, seconds, (deadline, latencies) -> keepAlive(url, deadline, latencies));
+            report("nio pipelined x" + PIPELINE_DEPTH, clients, seconds,
+                    (deadline, latencies) -> pipelined(nioServer.port(), deadline, latencies));
+        } finally {
+            nioServer.stop();
+        }
+    }
+
+    /**
+     * Runs clients concurrently, first for the warmup and then for the measurement, and prints
+     * the measured requests per second and latency percentiles.
+     * @param label description of the configuration
+     * @param clients number of client threads
+     * @param seconds duration of the measurement
+     * @param client the client loop of each thread
+     * @throws InterruptedException if interrupted while waiting for the clients
+     */
+    private static void report(String label, int clients, int seconds, Client client) throws InterruptedException {
+        run(clients, WARMUP_SECONDS, client);
+        final Histogram latencies = run(clients, seconds, client);
+        System.out.printf("%-24s %10.0f req/s   p50 %7.1f us   p99 %7.1f us   p99.9 %7.1f us%n", label,
+                latencies.count() / (double) seconds,
+                latencies.valueAtQuantile(0.5) / 1e3, latencies.valueAtQuantile(0.99) / 1e3,
+                latencies.valueAtQuantile(0.999) / 1e3);
+    }
+
+    /**
+     * @param clients number of client threads
+     * @param seconds how long to run
+     * @param client the client loop of each thread
+     * @return the latencies of all requests
+     * @throws InterruptedException if interrupted while waiting for the clients
+     */
+    private static Histogram run(int clients, int seconds, Client client) throws InterruptedException {
+        final Histogram latencies = new Histogram();
+        final LongAdder failures = new LongAdder();
+        final long deadline = System.nanoTime() + seconds * 1000000000L;
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            final Thread thread = new Thread(() -> {
+                try {
+                    client.run(deadline, latencies);
+                } catch (IOException e) {
+                    failures.increment();
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failures.sum() > 0) {
+            System.out.println(failures.sum() + " clients failed");
+        }
+        return latencies;
+    }
+
+    /**
+     * Requests url back to back through the HttpURLConnection keep-alive cache.
+     * @param url the URL to request
+     * @param deadline System.nanoTime() at which to stop
+     * @param latencies histogram of request latencies in nanoseconds
+     * @throws IOException if a request fails
+     */
+    private static void keepAlive(URL url, long deadline, Histogram latencies) throws IOException {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        while (System.nanoTime() < deadline) {
+            final long start = System.nanoTime();
+            final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            final InputStream body = connection.getInputStream();
+            while (body.read(buffer) >= 0) {
+                // discard
+            }
+            body.close();
+            latencies.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Sends batches of PIPELINE_DEPTH requests over one raw socket, then reads all their
+     * responses. The latency of a request is measured from sending its batch.
+     * @param port the port of the server
+     * @param deadline System.nanoTime() at which to stop
+     * @param latencies histogram of request latencies in nanoseconds
+     * @throws IOException if a request fails
+     */
+    private static void pipelined(int port, long deadline, Histogram latencies) throws IOException {
+        final StringBuilder batch = new StringBuilder();
+        for (int i = 0; i < PIPELINE_DEPTH; i++) {
+            batch.append("GET ").append(EXPRESSION).append(" HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        }
+        final byte[] requests = batch.toString().getBytes(StandardCharsets.US_ASCII);
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setTcpNoDelay(true);
+            final OutputStream out = socket.getOutputStream();
+            final ResponseReader in = new ResponseReader(socket.getInputStream());
+            while (System.nanoTime() < deadline) {
+                final long start = System.nanoTime();
+                out.write(requests);
+                out.flush();
+                for (int i = 0; i < PIPELINE_DEPTH; i++) {
+                    in.skipResponse();
+                    latencies.record(System.nanoTime() - start);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads HTTP responses with a Content-Length from a stream.
+     */
+    private static class ResponseReader {
+        private final InputStream in;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int position = 0;
+        private int limit = 0;
+
+        ResponseReader(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * Reads and discards one response.
+         * @throws IOException if the stream ends or fails
+         */
+        void skipResponse() throws IOException {
+            long contentLength = 0;
+            for (String line = readLine(); !line.isEmpty(); line = readLine()) {
+                if (line.regionMatches(true, 0, "Content-Length:", 0, "Content-Length:".length())) {
+                    contentLength = Long.parseLong(line.substring("Content-Length:".length()).trim());
+                }
+            }
+            while (contentLength > 0) {
+                if (position == limit) {
+                    fill();
+                }
+                final int skipped = (int) Math.min(contentLength, limit - position);
+                position += skipped;
+                contentLength -= skipped;
+            }
+        }
+
+        /**
+         * @return the next line, without its CRLF
+         * @throws IOException if the stream ends or fails
+         */
+        private String readLine() throws IOException {
+            final StringBuilder line = new StringBuilder();
+            while (true) {
+                if (position == limit) {
+                    fill();
+                }
+                final char c = (char) (buffer[position++] & 0xff);
+                if (c == '\n') {
+                    return line.toString();
+                } else if (c != '\r') {
+                    line.append(c);
+                }
+            }
+        }
+
+        /**
+         * Reads more bytes into the empty buffer.
+         * @throws IOException if the stream ends or fails
+         */
+        private void fill() throws IOException {
+            limit = in.read(buffer);
+            position = 0;
+            if (limit < 0) {
+                throw new IOException("connection closed");
+            }
+        }
+    }
+}
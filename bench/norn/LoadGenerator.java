@@ -0,0 +1,366 @@
+package norn;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a running web server (WebServer or NioWebServer) with a mix of requests from a
+ * corpus of expressions, and reports throughput and latency percentiles.
+ *
+ * Each client thread sends one request at a time over a persistent connection
+ * (HttpURLConnection keep-alive), choosing the kind of request at random by the weights of
+ * the mix: GET /eval/expression, GET /api/eval/expression, or POST /api/define with a
+ * definition of a scratch list loadgenC_K = expression, which never replaces lists of the
+ * environment under test.
+ *
+ * Latencies are corrected for coordinated omission: a client that waits for a slow response
+ * does not send the requests it would have sent meanwhile, so their latencies would
+ * otherwise be missing. With a target rate, every client sends on a fixed schedule and the
+ * latency of a request is measured from its intended send time rather than from when it was
+ * actually sent. Without a rate, clients send back to back, and every latency is recorded
+ * with the requests it held up, assuming one request per median service time of the warmup
+ * (see Histogram.recordCorrected()). Both the plain service times and the corrected
+ * latencies are reported.
+ *
+ * Usage: LoadGenerator [key=value ...] with keys url (default http://localhost:5021),
+ * clients (default 16), seconds (default 30), warmup (seconds, default 5), rate (target
+ * requests per second of all clients together, default 0 for back to back), mix
+ * (eval:api:define weights, default 95:4:1), corpus (file with one expression per line;
+ * by default, expressions over the lists of the default EnvironmentGenerator environment)
+ * and seed (default 0).
+ */
+public class LoadGenerator {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int SCRATCH_LISTS = 16;
+    private static final int CORPUS_NAMES = 64;
+    private static final int IO_ERROR = -1;
+
+    private final String url;
+    private final int clients;
+    private final double rate;
+    private final double[] mix;
+    private final List<String> corpus;
+    private final long seed;
+
+    /**
+     * The requests of one phase of a run, and their latencies in nanoseconds.
+     */
+    private static class Result {
+        private final Histogram serviceTimes = new Histogram();
+        private final Histogram corrected = new Histogram();
+        private final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+        private final long seconds;
+
+        // AF(serviceTimes, corrected, statuses, seconds) = the requests sent in seconds
+        //      seconds, which took serviceTimes from sending to response and corrected from
+        //      their intended send time, counted by statuses per HTTP status or IO_ERROR
+        // Thread safety: all fields are threadsafe counters shared by the client threads.
+
+        Result(long seconds) {
+            this.seconds = seconds;
+        }
+    }
+
+    /**
+     * Create a load generator.
+     * @param url the base URL of the server, without trailing slash
+     * @param clients number of client threads
+     * @param rate target requests per second of all clients together, or 0 to send back to back
+     * @param mix weights of eval, api and define requests
+     * @param corpus the expressions to request, nonempty
+     * @param seed seed of the random choices of requests
+     */
+    LoadGenerator(String url, int clients, double rate, double[] mix, List<String> corpus, long seed) {
+        this.url = url;
+        this.clients = clients;
+        this.rate = rate;
+        this.mix = mix.clone();
+        this.corpus = new ArrayList<>(corpus);
+        this.seed = seed;
+    }
+
+    /**
+     * Runs the load generator and prints its results.
+     * @param args key=value arguments, see LoadGenerator
+     * @throws Exception if the corpus cannot be read or an argument is invalid
+     */
+    public static void main(String[] args) throws Exception {
+        String url = "http://localhost:" + WebServer.PORT;
+        int clients = 16;
+        int seconds = 30;
+        int warmup = 5;
+        double rate = 0;
+        double[] mix = { 95, 4, 1 };
+        List<String> corpus = defaultCorpus();
+        long seed = 0;
+        for (String arg : args) {
+            final int equals = arg.indexOf('=');
+            if (equals < 0) {
+                throw new IllegalArgumentException("expected key=value: " + arg);
+            }
+            final String key = arg.substring(0, equals);
+            final String value = arg.substring(equals + 1);
+            switch (key) {
+            case "url": url = value.replaceAll("/+$", ""); break;
+            case "clients": clients = Integer.parseInt(value); break;
+            case "seconds": seconds = Integer.parseInt(value); break;
+            case "warmup": warmup = Integer.parseInt(value); break;
+            case "rate": rate = Double.parseDouble(value); break;
+            case "mix": mix = parseMix(value); break;
+            case "corpus": corpus = readCorpus(value); break;
+            case "seed": seed = Long.parseLong(value); break;
+            default: throw new IllegalArgumentException("unknown argument: " + key);
+            }
+        }
+        final LoadGenerator generator = new LoadGenerator(url, clients, rate, mix, corpus, seed);
+        System.out.printf("%s, %d clients, %s, mix eval:api:define %s, %d expressions%n", url, clients,
+                rate > 0 ? String.format("%.0f req/s", rate) : "back to back", formatMix(mix), corpus.size());
+        final Result warmupResult = generator.run(warmup, 0);
+        final long expectedInterval = warmupResult.serviceTimes.valueAtQuantile(0.5);
+        generator.report(generator.run(seconds, expectedInterval), expectedInterval);
+    }
+
+    /**
+     * @param mix colon-separated weights of eval, api and define requests
+     * @return the weights
+     * @throws IllegalArgumentException if mix is not three non-negative weights with a positive sum
+     */
+    private static double[] parseMix(String mix) {
+        final String[] parts = mix.split(":");
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("mix must be eval:api:define weights: " + mix);
+        }
+        final double[] weights = new double[3];
+        double sum = 0;
+        for (int i = 0; i < 3; i++) {
+            weights[i] = Double.parseDouble(parts[i]);
+            if (weights[i] < 0) {
+                throw new IllegalArgumentException("negative weight in mix: " + mix);
+            }
+            sum += weights[i];
+        }
+        if (sum <= 0) {
+            throw new IllegalArgumentException("mix has no positive weight: " + mix);
+        }
+        return weights;
+    }
+
+    /**
+     * @param mix weights of eval, api and define requests
+     * @return the weights separated by colons
+     */
+    private static String formatMix(double[] mix) {
+        return String.format("%s:%s:%s", format(mix[0]), format(mix[1]), format(mix[2]));
+    }
+
+    /**
+     * @param weight a weight
+     * @return weight without a fraction if it is whole
+     */
+    private static String format(double weight) {
+        return weight == Math.rint(weight) ? Long.toString((long) weight) : Double.toString(weight);
+    }
+
+    /**
+     * @param fileName a file with one expression per line
+     * @return the nonblank lines of the file, trimmed
+     * @throws IOException if the file cannot be read
+     * @throws IllegalArgumentException if the file has no expressions
+     */
+    private static List<String> readCorpus(String fileName) throws IOException {
+        final List<String> corpus = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(fileName), StandardCharsets.UTF_8)) {
+            if (!line.trim().isEmpty()) {
+                corpus.add(line.trim());
+            }
+        }
+        if (corpus.isEmpty()) {
+            throw new IllegalArgumentException("corpus has no expressions: " + fileName);
+        }
+        return corpus;
+    }
+
+    /**
+     * @return expressions over the lists of the environment written by EnvironmentGenerator
+     *  with default parameters: names from the top levels down, and unions, intersections and
+     *  differences of neighboring names
+     */
+    static List<String> defaultCorpus() {
+        final List<String> names = new ArrayList<>();
+        final int[] sizes = new EnvironmentGenerator().levelSizes();
+        for (int level = 0; level < sizes.length && names.size() < CORPUS_NAMES; level++) {
+            for (int i = 0; i < sizes[level] && names.size() < CORPUS_NAMES; i++) {
+                names.add(EnvironmentGenerator.listName(level, i));
+            }
+        }
+        final List<String> corpus = new ArrayList<>(names);
+        for (int i = 1; i < names.size(); i++) {
+            corpus.add(names.get(i - 1) + ", " + names.get(i));
+            corpus.add(names.get(i - 1) + " * " + names.get(i));
+            corpus.add(names.get(i - 1) + " ! " + names.get(i));
+        }
+        return corpus;
+    }
+
+    /**
+     * Runs all clients for a number of seconds.
+     * @param seconds how long to run
+     * @param expectedInterval median service time in nanoseconds, used to correct the
+     *  latencies of back-to-back clients; 0 to not correct them
+     * @return the requests sent
+     * @throws InterruptedException if interrupted while waiting for the clients
+     */
+    Result run(int seconds, long expectedInterval) throws InterruptedException {
+        final Result result = new Result(seconds);
+        final long start = System.nanoTime();
+        final long deadline = start + seconds * 1000000000L;
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            final int client = i;
+            final Thread thread = new Thread(() -> runClient(client, start, deadline, expectedInterval, result),
+                    "loadgen-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return result;
+    }
+
+    /**
+     * Sends requests of one client until deadline.
+     * @param client the index of the client
+     * @param start System.nanoTime() at which the run started
+     * @param deadline System.nanoTime() at which to stop
+     * @param expectedInterval see run()
+     * @param result the requests sent, updated with the requests of this client
+     */
+    private void runClient(int client, long start, long deadline, long expectedInterval, Result result) {
+        final Random random = new Random(seed * 31 + client);
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        final long interval = rate > 0 ? (long) (clients * 1e9 / rate) : 0;
+        // spread the schedules of the clients over one interval
+        long intended = start + interval * client / Math.max(1, clients);
+        for (long n = 0; intended < deadline; n++) {
+            if (interval > 0) {
+                for (long wait = intended - System.nanoTime(); wait > 0; wait = intended - System.nanoTime()) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            final long sent = System.nanoTime();
+            if (sent >= deadline) {
+                break;
+            }
+            final int status = send(random, client, n, buffer);
+            final long done = System.nanoTime();
+            result.statuses.computeIfAbsent(status, s -> new LongAdder()).increment();
+            result.serviceTimes.record(done - sent);
+            if (interval > 0) {
+                result.corrected.record(done - intended);
+                intended += interval;
+            } else {
+                result.corrected.recordCorrected(done - sent, expectedInterval);
+                intended = done;
+            }
+        }
+    }
+
+    /**
+     * Sends one request chosen at random by the mix, and reads its response.
+     * @param random the random choices of the client
+     * @param client the index of the client
+     * @param n the number of requests the client sent before
+     * @param buffer buffer for discarding the response
+     * @return the HTTP status of the response, or IO_ERROR if the request failed
+     */
+    private int send(Random random, int client, long n, byte[] buffer) {
+        final String expression = corpus.get(random.nextInt(corpus.size()));
+        final double choice = random.nextDouble() * (mix[0] + mix[1] + mix[2]);
+        HttpURLConnection connection = null;
+        try {
+            if (choice < mix[0] + mix[1]) {
+                final String path = (choice < mix[0] ? "/eval/" : "/api/eval/") + expression;
+                connection = (HttpURLConnection) new URL(url + new URI(null, null, path, null).toASCIIString())
+                        .openConnection();
+            } else {
+                connection = (HttpURLConnection) new URL(url + "/api/define").openConnection();
+                connection.setRequestMethod("POST");
+                connection.setDoOutput(true);
+                final String definition = "loadgen" + client + "_" + (n % SCRATCH_LISTS) + " = " + expression + "\n";
+                try (OutputStream out = connection.getOutputStream()) {
+                    out.write(definition.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            final int status = connection.getResponseCode();
+            final InputStream body = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (body != null) {
+                // read the body to the end so that the connection can be reused
+                while (body.read(buffer) >= 0) {
+                    // discard
+                }
+                body.close();
+            }
+            return status;
+        } catch (IOException | URISyntaxException e) {
+            if (connection != null) {
+                connection.disconnect();
+            }
+            return IO_ERROR;
+        }
+    }
+
+    /**
+     * Prints the throughput, responses by status and latency percentiles of a run.
+     * @param result the requests of the run
+     * @param expectedInterval the expected interval used to correct back-to-back latencies
+     */
+    private void report(Result result, long expectedInterval) {
+        final long requests = result.serviceTimes.count();
+        final double throughput = requests / (double) result.seconds;
+        System.out.printf("%d requests in %d s, %.0f req/s%n", requests, result.seconds, throughput);
+        final StringBuilder statuses = new StringBuilder();
+        for (Map.Entry<Integer, LongAdder> status : new TreeMap<>(result.statuses).entrySet()) {
+            statuses.append(statuses.length() == 0 ? "" : ", ")
+                    .append(status.getKey() == IO_ERROR ? "failed" : status.getKey().toString())
+                    .append(": ").append(status.getValue().sum());
+        }
+        System.out.println("responses " + statuses);
+        if (rate > 0 && throughput < rate * 0.95) {
+            System.out.printf("target rate of %.0f req/s not reached: the server is saturated%n", rate);
+        }
+        System.out.printf("%-16s %10s %10s %10s %10s%n", "latency (ms)", "p50", "p99", "p99.9", "max");
+        printPercentiles("service time", result.serviceTimes);
+        printPercentiles("corrected", result.corrected);
+        System.out.println(rate > 0 ? "corrected latencies are measured from the intended send times"
+                : String.format("corrected latencies assume one request per %.3f ms per client",
+                        expectedInterval / 1e6));
+    }
+
+    /**
+     * Prints one row of latency percentiles.
+     * @param label the name of the row
+     * @param latencies latencies in nanoseconds
+     */
+    private static void printPercentiles(String label, Histogram latencies) {
+        System.out.printf("%-16s %10.3f %10.3f %10.3f %10.3f%n", label, latencies.valueAtQuantile(0.5) / 1e6,
+                latencies.valueAtQuantile(0.99) / 1e6, latencies.valueAtQuantile(0.999) / 1e6,
+                latencies.valueAtQuantile(1) / 1e6);
+    }
+}
@@ -0,0 +1,271 @@
+package norn;
+
+import java.util.Collection;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Records the events of Tracing as Java Flight Recorder events, in the category Norn. Every
+ * event has a threshold, so that recordings with the default settings only keep the slow
+ * operations; thresholds can be changed in the recording settings like for JDK events.
+ *
+ * Compiled separately from the rest of norn because it needs the jdk.jfr module (Java 11 or
+ * later); Tracing loads it by name if it is on the classpath.
+ */
+public class JfrRecorder implements Tracing.Recorder {
+    private static final String CATEGORY = "Norn";
+
+    // Thread safety: stateless; every event is confined to the thread that began it.
+
+    @Name("norn.Parse")
+    @Label("Parse")
+    @Category(CATEGORY)
+    @Description("Parsing of a list expression")
+    @Threshold("1 ms")
+    @StackTrace(false)
+    static class ParseEvent extends Event {
+        @Label("Expression")
+        String expression;
+        @Label("Length")
+        @DataAmount(DataAmount.BYTES)
+        int length;
+        @Label("Valid")
+        boolean valid;
+    }
+
+    @Name("norn.Evaluation")
+    @Label("Evaluation")
+    @Category(CATEGORY)
+    @Description("Evaluation of a top-level list expression")
+    @Threshold("10 ms")
+    @StackTrace(false)
+    static class EvaluationEvent extends Event {
+        @Label("Expression")
+        String expression;
+        @Label("Expression Nodes")
+        int nodes;
+        @Label("Recipients")
+        @Description("Number of recipients of the expression, or -1 if evaluation failed")
+        int recipients;
+    }
+
+    @Name("norn.Reassign")
+    @Label("Reassign")
+    @Category(CATEGORY)
+    @Description("Redefinition of one or more lists, including the mail loop check")
+    @Threshold("1 ms")
+    @StackTrace(false)
+    static class ReassignEvent extends Event {
+        @Label("Lists")
+        String lists;
+        @Label("List Count")
+        int count;
+        @Label("Mail Loop")
+        boolean mailLoop;
+    }
+
+    @Name("norn.MailLoopCheck")
+    @Label("Mail Loop Check")
+    @Category(CATEGORY)
+    @Description("Search of an environment for mutually recursive definitions")
+    @Threshold("1 ms")
+    @StackTrace(false)
+    static class MailLoopCheckEvent extends Event {
+        @Label("Lists")
+        int lists;
+        @Label("Mail Loop")
+        boolean mailLoop;
+    }
+
+    @Name("norn.LockWait")
+    @Label("Environment Lock Wait")
+    @Category(CATEGORY)
+    @Description("Wait to acquire the lock on the shared environment")
+    @Threshold("1 ms")
+    static class LockWaitEvent extends Event {
+        @Label("Operation")
+        String operation;
+    }
+
+    @Name("norn.Request")
+    @Label("Web Request")
+    @Category(CATEGORY)
+    @Description("Handling of a web request")
+    @Threshold("10 ms")
+    @StackTrace(false)
+    static class RequestEvent extends Event {
+        @Label("Method")
+        String method;
+        @Label("Path")
+        String path;
+        @Label("Status")
+        int status;
+    }
+
+    @Name("norn.Save")
+    @Label("Save")
+    @Category(CATEGORY)
+    @Description("Saving lists to a file, including checkpoints")
+    @StackTrace(false)
+    static class SaveEvent extends Event {
+        @Label("File")
+        String file;
+        @Label("Lists")
+        int lists;
+        @Label("Succeeded")
+        boolean succeeded;
+    }
+
+    @Name("norn.Load")
+    @Label("Load")
+    @Category(CATEGORY)
+    @Description("Loading lists from a file, including checkpoints")
+    @StackTrace(false)
+    static class LoadEvent extends Event {
+        @Label("File")
+        String file;
+        @Label("Lists")
+        @Description("Number of lists in the environment after loading")
+        int lists;
+        @Label("Succeeded")
+        boolean succeeded;
+    }
+
+    private static final ParseEvent PARSE = new ParseEvent();
+    private static final EvaluationEvent EVALUATION = new EvaluationEvent();
+    private static final ReassignEvent REASSIGN = new ReassignEvent();
+    private static final MailLoopCheckEvent MAIL_LOOP_CHECK = new MailLoopCheckEvent();
+    private static final LockWaitEvent LOCK_WAIT = new LockWaitEvent();
+    private static final RequestEvent REQUEST = new RequestEvent();
+    private static final SaveEvent SAVE = new SaveEvent();
+    private static final LoadEvent LOAD = new LoadEvent();
+
+    @Override
+    public Object begin(Tracing.Kind kind) {
+        final Event event;
+        switch (kind) {
+        case PARSE: event = PARSE.isEnabled() ? new ParseEvent() : null; break;
+        case EVALUATION: event = EVALUATION.isEnabled() ? new EvaluationEvent() : null; break;
+        case REASSIGN: event = REASSIGN.isEnabled() ? new ReassignEvent() : null; break;
+        case MAIL_LOOP_CHECK: event = MAIL_LOOP_CHECK.isEnabled() ? new MailLoopCheckEvent() : null; break;
+        case LOCK_WAIT: event = LOCK_WAIT.isEnabled() ? new LockWaitEvent() : null; break;
+        case REQUEST: event = REQUEST.isEnabled() ? new RequestEvent() : null; break;
+        case SAVE: event = SAVE.isEnabled() ? new SaveEvent() : null; break;
+        case LOAD: event = LOAD.isEnabled() ? new LoadEvent() : null; break;
+        default: throw new AssertionError("unknown kind " + kind);
+        }
+        if (event != null) {
+            event.begin();
+        }
+        return event;
+    }
+
+    @Override
+    public void endParse(Object event, String input, boolean valid) {
+        final ParseEvent parse = (ParseEvent) event;
+        parse.end();
+        if (parse.shouldCommit()) {
+            parse.expression = input == null ? null : Tracing.truncate(input);
+            parse.length = input == null ? 0 : input.length();
+            parse.valid = valid;
+            parse.commit();
+        }
+    }
+
+    @Override
+    public void endEvaluation(Object event, ListExpression expression, int recipients) {
+        final EvaluationEvent evaluation = (EvaluationEvent) event;
+        evaluation.end();
+        if (evaluation.shouldCommit()) {
+            evaluation.expression = Tracing.truncate(expression.toString());
+            evaluation.nodes = Tracing.size(expression);
+            evaluation.recipients = recipients;
+            evaluation.commit();
+        }
+    }
+
+    @Override
+    public void endReassign(Object event, Collection<norn.Name> names, boolean mailLoop) {
+        final ReassignEvent reassign = (ReassignEvent) event;
+        reassign.end();
+        if (reassign.shouldCommit()) {
+            final StringBuilder lists = new StringBuilder();
+            for (norn.Name name : names) {
+                if (lists.length() > 0) {
+                    lists.append(", ");
+                }
+                lists.append(name);
+                if (lists.length() > Tracing.MAX_EXPRESSION_CHARS) {
+                    break;
+                }
+            }
+            reassign.lists = Tracing.truncate(lists.toString());
+            reassign.count = names.size();
+            reassign.mailLoop = mailLoop;
+            reassign.commit();
+        }
+    }
+
+    @Override
+    public void endMailLoopCheck(Object event, int lists, boolean mailLoop) {
+        final MailLoopCheckEvent check = (MailLoopCheckEvent) event;
+        check.end();
+        if (check.shouldCommit()) {
+            check.lists = lists;
+            check.mailLoop = mailLoop;
+            check.commit();
+        }
+    }
+
+    @Override
+    public void endLockWait(Object event, String operation) {
+        final LockWaitEvent wait = (LockWaitEvent) event;
+        wait.end();
+        if (wait.shouldCommit()) {
+            wait.operation = operation;
+            wait.commit();
+        }
+    }
+
+    @Override
+    public void endRequest(Object event, String method, String path, int status) {
+        final RequestEvent request = (RequestEvent) event;
+        request.end();
+        if (request.shouldCommit()) {
+            request.method = method;
+            request.path = Tracing.truncate(path);
+            request.status = status;
+            request.commit();
+        }
+    }
+
+    @Override
+    public void endPersist(Object event, String file, int lists, boolean succeeded) {
+        if (event instanceof SaveEvent) {
+            final SaveEvent save = (SaveEvent) event;
+            save.end();
+            if (save.shouldCommit()) {
+                save.file = file;
+                save.lists = lists;
+                save.succeeded = succeeded;
+                save.commit();
+            }
+        } else {
+            final LoadEvent load = (LoadEvent) event;
+            load.end();
+            if (load.shouldCommit()) {
+                load.file = file;
+                load.lists = lists;
+                load.succeeded = succeeded;
+                load.commit();
+            }
+        }
+    }
+}
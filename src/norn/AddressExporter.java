@@ -0,0 +1,73 @@
+package norn;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes recipients to plain address files, with one email address per line, in the format
+ * read by AddressImporter.
+ *
+ * Addresses are encoded directly into a direct buffer that is written to a file channel
+ * whenever it fills up, so the memory used does not depend on the number of recipients.
+ */
+public class AddressExporter {
+    /** Size of the output buffer in bytes. */
+    static final int BUFFER_BYTES = 1 << 16;
+    private static final byte LINE_TERMINATOR = '\n';
+
+    // Thread safety: there is no shared mutable state; each call uses its own buffer and channel.
+
+    private AddressExporter() {
+        // static methods only
+    }
+
+    /**
+     * Writes recipients to a file, one address per line, replacing the file if it exists.
+     * @param recipients the recipients to write; must not be modified while they are written
+     * @param file the file to write
+     * @return the number of addresses written
+     * @throws IOException if file cannot be written
+     */
+    public static long write(Iterable<Recipient> recipients, File file) throws IOException {
+        long count = 0;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+            for (Recipient recipient : recipients) {
+                // addresses consist of ASCII characters only, see Recipient
+                final String address = recipient.toString();
+                if (buffer.remaining() < address.length() + 1) {
+                    drain(buffer, channel);
+                }
+                if (address.length() + 1 > buffer.capacity()) {
+                    channel.write(ByteBuffer.wrap((address + (char) LINE_TERMINATOR).getBytes("US-ASCII")));
+                } else {
+                    for (int i = 0; i < address.length(); i++) {
+                        buffer.put((byte) address.charAt(i));
+                    }
+                    buffer.put(LINE_TERMINATOR);
+                }
+                count++;
+            }
+            drain(buffer, channel);
+        }
+        return count;
+    }
+
+    /**
+     * Writes the contents of a buffer to a channel and clears the buffer.
+     * @param buffer the buffer, in fill mode
+     * @param channel the channel to write to
+     * @throws IOException if the channel cannot be written
+     */
+    private static void drain(ByteBuffer buffer, FileChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,215 @@
+package norn;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Reads plain address files, with one email address per line, into RecipientSets.
+ *
+ * The file is memory-mapped and split into chunks that are validated and normalized in
+ * parallel: surrounding whitespace is trimmed, addresses are lowercased, and blank lines
+ * are skipped. An address is valid if it is a valid Recipient, that is a nonempty username
+ * and domain name of letters, digits, underscores, dashes and periods separated by '@'.
+ */
+public class AddressImporter {
+    /** Nominal number of bytes per chunk; a chunk owns the lines that start inside it. */
+    static final int CHUNK_BYTES = 8 << 20;
+    /** Longest line that is read, in bytes; longer lines are invalid. */
+    static final int MAX_LINE_BYTES = 4096;
+    private static final int MAX_REPORTED_ERRORS = 3;
+    private static final boolean[] ADDRESS_BYTES = new boolean[256];
+    static {
+        for (char c = 'a'; c <= 'z'; c++) {
+            ADDRESS_BYTES[c] = true;
+            ADDRESS_BYTES[Character.toUpperCase(c)] = true;
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            ADDRESS_BYTES[c] = true;
+        }
+        ADDRESS_BYTES['_'] = true;
+        ADDRESS_BYTES['-'] = true;
+        ADDRESS_BYTES['.'] = true;
+    }
+
+    // Thread safety: there is no shared mutable state; each chunk is read by one thread
+    // through its own mapping, and chunk results are only combined after all chunks are done.
+
+    private AddressImporter() {
+        // static methods only
+    }
+
+    /**
+     * The addresses and invalid lines of one chunk of a file.
+     */
+    private static class Chunk {
+        private final List<Recipient> recipients = new ArrayList<>();
+        private final List<Integer> invalidLines = new ArrayList<>();
+        private final List<String> invalidText = new ArrayList<>();
+        private int lines = 0;
+
+        // AF(recipients, invalidLines, invalidText, lines) = a chunk of lines lines, which
+        //      contain the valid addresses recipients, and invalid lines at the 1-based
+        //      positions invalidLines within the chunk with the contents invalidText
+        // RI: invalidLines.size() == invalidText.size()
+        // Thread safety: confined to the thread that reads the chunk until it is returned.
+    }
+
+    /**
+     * Reads an address file.
+     * @param file the file to read
+     * @return the distinct addresses in file
+     * @throws IOException if file cannot be read
+     * @throws IllegalArgumentException if a nonblank line of file is not a valid address;
+     *  the message gives the first invalid lines and their number
+     */
+    public static RecipientSet read(File file) throws IOException {
+        final List<Chunk> chunks;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long size = channel.size();
+            final int count = (int) ((size + CHUNK_BYTES - 1) / CHUNK_BYTES);
+            try {
+                chunks = IntStream.range(0, count).parallel()
+                        .mapToObj(i -> readChunk(channel, size, (long) i * CHUNK_BYTES))
+                        .collect(Collectors.toList());
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+        int total = 0;
+        int firstLine = 1;
+        final List<String> errors = new ArrayList<>();
+        int invalid = 0;
+        for (Chunk chunk : chunks) {
+            for (int i = 0; i < chunk.invalidLines.size(); i++, invalid++) {
+                if (errors.size() < MAX_REPORTED_ERRORS) {
+                    errors.add("line " + (firstLine + chunk.invalidLines.get(i) - 1) + ": \"" + chunk.invalidText.get(i) + "\"");
+                }
+            }
+            firstLine += chunk.lines;
+            total += chunk.recipients.size();
+        }
+        if (invalid > 0) {
+            throw new IllegalArgumentException(invalid + " invalid address" + (invalid == 1 ? "" : "es")
+                    + " in " + file + ", " + String.join(", ", errors) + (invalid > errors.size() ? ", ..." : ""));
+        }
+        final Recipient[] recipients = new Recipient[total];
+        int position = 0;
+        for (Chunk chunk : chunks) {
+            for (Recipient recipient : chunk.recipients) {
+                recipients[position++] = recipient;
+            }
+        }
+        return RecipientSet.of(recipients);
+    }
+
+    /**
+     * Reads the lines that start in one chunk of a file.
+     * @param channel the open file
+     * @param size the size of the file
+     * @param start the offset of the chunk, a multiple of CHUNK_BYTES less than size
+     * @return the addresses and invalid lines of the chunk
+     * @throws UncheckedIOException if the chunk cannot be mapped
+     */
+    private static Chunk readChunk(FileChannel channel, long size, long start) {
+        final long end = Math.min(size, start + CHUNK_BYTES);
+        // map one byte before the chunk, to see whether a line starts at start, and enough
+        // bytes after it to finish the last line that starts inside it
+        final long mapStart = Math.max(0, start - 1);
+        final MappedByteBuffer buffer;
+        try {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, Math.min(size, end + MAX_LINE_BYTES) - mapStart);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        final Chunk chunk = new Chunk();
+        final int limit = (int) (end - mapStart);
+        int position = (int) (start - mapStart);
+        if (start > 0 && buffer.get(position - 1) != '\n') {
+            // the line that contains start belongs to the previous chunk
+            while (position < buffer.limit() && buffer.get(position++) != '\n') {
+                // skip
+            }
+        }
+        final byte[] line = new byte[MAX_LINE_BYTES];
+        while (position < limit) {
+            int length = 0;
+            boolean tooLong = false;
+            while (position < buffer.limit()) {
+                final byte b = buffer.get(position++);
+                if (b == '\n') {
+                    break;
+                } else if (length < line.length) {
+                    line[length++] = b;
+                } else {
+                    tooLong = true;
+                }
+            }
+            if (!tooLong && length == line.length && position == buffer.limit() && buffer.limit() + mapStart < size) {
+                tooLong = true; // the line continues beyond the mapping
+            }
+            chunk.lines++;
+            addLine(chunk, line, length, tooLong);
+        }
+        return chunk;
+    }
+
+    /**
+     * Validates and normalizes one line and adds it to a chunk.
+     * @param chunk the chunk that the line belongs to
+     * @param line buffer that holds the line, without its line terminator
+     * @param length the length of the line in the buffer
+     * @param tooLong true if the line was longer than the buffer
+     */
+    private static void addLine(Chunk chunk, byte[] line, int length, boolean tooLong) {
+        int from = 0;
+        int to = length;
+        while (from < to && isWhitespace(line[from])) {
+            from++;
+        }
+        while (to > from && isWhitespace(line[to - 1])) {
+            to--;
+        }
+        if (from == to && !tooLong) {
+            return;
+        }
+        int at = -1;
+        boolean valid = !tooLong;
+        for (int i = from; i < to && valid; i++) {
+            final byte b = line[i];
+            if (b == '@') {
+                valid = at < 0;
+                at = i;
+            } else if (ADDRESS_BYTES[b & 0xff]) {
+                if (b >= 'A' && b <= 'Z') {
+                    line[i] = (byte) (b + ('a' - 'A'));
+                }
+            } else {
+                valid = false;
+            }
+        }
+        final String address = new String(line, from, to - from, StandardCharsets.ISO_8859_1);
+        if (valid && at > from && at < to - 1) {
+            chunk.recipients.add(new Recipient(address));
+        } else {
+            chunk.invalidLines.add(chunk.lines);
+            chunk.invalidText.add(tooLong ? address + "..." : address);
+        }
+    }
+
+    /**
+     * @param b a byte of a line
+     * @return true if b is a space, tab or carriage return
+     */
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+}
@@ -0,0 +1,78 @@
+package norn;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A mutable, threadsafe limit on the number of requests that evaluate list expressions at
+ * the same time. Requests beyond the limit wait in a bounded queue for a limited time;
+ * requests that find the queue full, or that wait too long, are rejected so that the
+ * server can shed load instead of piling up work.
+ */
+public class AdmissionControl {
+    private final Semaphore permits;
+    private final int maxQueued;
+    private final long maxWaitNanos;
+    private final AtomicInteger queued = new AtomicInteger(0);
+
+    // AF(permits, maxQueued, maxWaitNanos, queued) = an admission limit with permits.availablePermits()
+    //      free evaluation slots, where queued requests (at most maxQueued) are waiting at most
+    //      maxWaitNanos for a slot
+    // RI: maxQueued >= 0, maxWaitNanos >= 0, queued >= 0
+    // Rep exposure: all fields are private and final and never returned.
+    // Thread safety: permits and queued are threadsafe; the other fields are immutable.
+
+    /**
+     * Create a new admission limit.
+     * @param maxConcurrent maximum number of admitted requests at a time, must be positive
+     * @param maxQueued maximum number of requests waiting for admission, must be non-negative
+     * @param maxWaitMillis maximum time a request waits for admission in milliseconds,
+     *  must be non-negative
+     */
+    public AdmissionControl(int maxConcurrent, int maxQueued, long maxWaitMillis) {
+        this.permits = new Semaphore(maxConcurrent, true);
+        this.maxQueued = maxQueued;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        checkRep();
+    }
+
+    /**
+     * Check that the rep invariant is maintained.
+     */
+    private void checkRep() {
+        assert maxQueued >= 0;
+        assert maxWaitNanos >= 0;
+        assert queued.get() >= 0;
+    }
+
+    /**
+     * Try to admit a request, waiting in the queue if no slot is free.
+     * Every successful call must be followed by exactly one call to release().
+     * @return true if the request was admitted; false if it should be rejected
+     */
+    public boolean tryAcquire() {
+        if (permits.tryAcquire()) {
+            return true;
+        }
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            return false;
+        }
+        try {
+            return permits.tryAcquire(maxWaitNanos, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            queued.decrementAndGet();
+        }
+    }
+
+    /**
+     * Release the slot of a request admitted by tryAcquire().
+     */
+    public void release() {
+        permits.release();
+    }
+}
@@ -0,0 +1,103 @@
+package norn;
+
+import java.util.Set;
+
+/**
+ * An immutable Bloom filter of a set of recipients: mightContain() is true for every
+ * recipient in the set, and false for most others, so a false answer proves that a
+ * recipient is not in the set without looking at it. With BITS_PER_RECIPIENT bits per
+ * recipient and HASHES hash functions about 1% of the recipients not in the set are
+ * reported as possibly in it.
+ */
+final class BloomFilter {
+    static final int BITS_PER_RECIPIENT = 10;
+    static final int HASHES = 7;
+    private static final int MIN_BITS = 64;
+
+    private final long[] bits;
+    private final int mask;
+
+    // AF(bits, mask) = the filter whose bit i, for 0 <= i <= mask, is bit i % 64 of
+    //      bits[i / 64]; a recipient might be in the set if its HASHES bits are all set
+    // RI: mask + 1 is a power of two, at least MIN_BITS, and equals 64 * bits.length
+    // Rep exposure: bits is private and never returned.
+    // Thread safety: bits is only written in the constructor, so a filter can be shared
+    //                between threads once it is safely published.
+
+    /**
+     * Create a filter of a set of recipients.
+     * @param recipients the recipients in the set
+     */
+    BloomFilter(Set<Recipient> recipients) {
+        long size = MIN_BITS;
+        while (size < (long) BITS_PER_RECIPIENT * recipients.size() && size < (1L << 30)) {
+            size <<= 1;
+        }
+        bits = new long[(int) (size / 64)];
+        mask = (int) size - 1;
+        for (Recipient recipient : recipients) {
+            final int hash = recipient.hashCode();
+            int h = first(hash);
+            final int step = second(hash);
+            for (int i = 0; i < HASHES; i++, h += step) {
+                bits[(h & mask) >>> 6] |= 1L << h;
+            }
+        }
+        checkRep();
+    }
+
+    /**
+     * Check that the rep invariant is maintained.
+     */
+    private void checkRep() {
+        assert Integer.bitCount(mask + 1) == 1 && mask + 1 >= MIN_BITS;
+        assert (long) bits.length * 64 == mask + 1;
+    }
+
+    /**
+     * @param recipient any recipient
+     * @return false if recipient is definitely not in the set of this filter; true if it
+     *  is in the set, or, rarely, if it is not
+     */
+    boolean mightContain(Recipient recipient) {
+        final int hash = recipient.hashCode();
+        int h = first(hash);
+        final int step = second(hash);
+        for (int i = 0; i < HASHES; i++, h += step) {
+            if ((bits[(h & mask) >>> 6] & (1L << h)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of bits of this filter
+     */
+    int size() {
+        return mask + 1;
+    }
+
+    /**
+     * @param hash a hash code
+     * @return the first bit index derived from hash, before masking
+     */
+    private static int first(int hash) {
+        // finalizer of MurmurHash3, so that similar addresses set unrelated bits
+        int h = hash;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * @param hash a hash code
+     * @return the odd distance between the bit indexes derived from hash
+     */
+    private static int second(int hash) {
+        return first(hash * 0x9E3779B9 + 0x7F4A7C15) | 1;
+    }
+}
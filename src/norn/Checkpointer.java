@@ -0,0 +1,305 @@
+package norn;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Writes checkpoints of an environment to a directory in the background, at a fixed
+ * interval or after a number of changes, whichever comes first, but only if the environment
+ * changed since the last checkpoint. Only the newest checkpoints are kept.
+ *
+ * A checkpoint holds one definition per line, so that it can be loaded without parsing one
+ * huge expression: "define name expression", or, for lists imported as RecipientSets,
+ * "import name count" followed by count addresses, one per line. The first line is a header
+ * and the last line, "end count", gives the number of definitions, so that incomplete files
+ * are recognized. Checkpoints are written atomically like saves, and named checkpoint-N.norn
+ * where N increases with every checkpoint (it is based on the time it was written).
+ */
+public class Checkpointer {
+    /** Default time between checks for changes, in seconds. */
+    public static final long DEFAULT_INTERVAL_SECONDS = 60;
+    /** Default number of changes after which a checkpoint is written without waiting. */
+    public static final long DEFAULT_CHANGES = 1000;
+    /** Default number of checkpoints to keep. */
+    public static final int DEFAULT_KEEP = 3;
+
+    private static final String HEADER = "norn checkpoint 1";
+    private static final String DEFINE = "define";
+    private static final String IMPORT = "import";
+    private static final String END = "end";
+    private static final Pattern FILE_NAME = Pattern.compile("checkpoint-(\\d{20})\\.norn");
+    private static final String FILE_NAME_FORMAT = "checkpoint-%020d.norn";
+    private static final Pattern ADDRESS = Pattern.compile("[a-z0-9_.-]+@[a-z0-9_.-]+");
+
+    private final Environment environment;
+    private final File directory;
+    private final long changes;
+    private final int keep;
+    private final ScheduledExecutorService scheduler;
+    private final EnvironmentListener listener;
+    private final AtomicBoolean triggered = new AtomicBoolean(false);
+    private volatile long checkpointedVersion;
+    private long sequence;
+
+    // AF(environment, directory, changes, keep, scheduler, checkpointedVersion, sequence) =
+    //      a checkpointer that writes the state of environment into directory every time
+    //      scheduler runs it, or once environment.version() exceeds checkpointedVersion, the
+    //      version of the last checkpoint, by changes; sequence is the number of the newest
+    //      checkpoint file
+    // RI: changes >= 0, keep >= 1, checkpointedVersion <= environment.version()
+    // Rep exposure: all fields are private and never returned; the environment is shared
+    //               with the caller on purpose.
+    // Thread safety: checkpoints are written in synchronized checkpoint(), which guards
+    //                sequence and the files in directory; checkpointedVersion is volatile so
+    //                that the listener can read it under the lock on environment without the
+    //                lock on this; triggered ensures that at most one checkpoint is queued by
+    //                the listener at a time.
+
+    /**
+     * Create a checkpointer and start its background thread, which does not keep the JVM
+     * alive. The current state of environment is assumed to be checkpointed already, for
+     * example because it was just loaded with loadNewest().
+     * @param environment the environment to checkpoint
+     * @param directory the directory to write checkpoints into; created if it does not exist
+     * @param intervalMillis time between checks for changes in milliseconds, or 0 to check
+     *  only after changes
+     * @param changes number of changes after which to write a checkpoint without waiting
+     *  for the interval, or 0 to write checkpoints only at the interval
+     * @param keep number of checkpoints to keep, at least 1
+     * @throws IOException if directory cannot be created
+     */
+    public Checkpointer(Environment environment, File directory, long intervalMillis, long changes, int keep)
+            throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create checkpoint directory " + directory);
+        }
+        this.environment = environment;
+        this.directory = directory;
+        this.changes = changes;
+        this.keep = keep;
+        this.checkpointedVersion = environment.version();
+        final List<File> existing = checkpoints(directory);
+        this.sequence = existing.isEmpty() ? 0 : sequence(existing.get(0));
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "norn-checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (intervalMillis > 0) {
+            scheduler.scheduleWithFixedDelay(this::checkpointInBackground, intervalMillis, intervalMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+        this.listener = (changed, names) -> {
+            if (changes > 0 && changed.version() - checkpointedVersion >= changes && triggered.compareAndSet(false, true)) {
+                scheduler.execute(() -> {
+                    triggered.set(false);
+                    checkpointInBackground();
+                });
+            }
+        };
+        environment.addListener(listener);
+        checkRep();
+    }
+
+    /**
+     * Check that the rep invariant is maintained.
+     */
+    private void checkRep() {
+        assert changes >= 0;
+        assert keep >= 1;
+        assert checkpointedVersion <= environment.version();
+    }
+
+    /**
+     * Writes a checkpoint on the background thread, reporting failures on standard error.
+     */
+    private void checkpointInBackground() {
+        try {
+            checkpoint();
+        } catch (IOException e) {
+            System.err.println("Could not write checkpoint: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes a checkpoint of the environment now if it changed since the last checkpoint,
+     * and deletes all but the newest checkpoints.
+     * @return the checkpoint written, or null if the environment did not change
+     * @throws IOException if the checkpoint cannot be written
+     */
+    public synchronized File checkpoint() throws IOException {
+        // read the version first: the snapshot may include later changes, which are then
+        // written again by the next checkpoint
+        final long version = environment.version();
+        if (version == checkpointedVersion) {
+            return null;
+        }
+        final long start = System.nanoTime();
+        final Object event = Tracing.begin(Tracing.Kind.SAVE);
+        final Map<Name, ListExpression> definitions = environment.definitions();
+        sequence = Math.max(sequence + 1, System.currentTimeMillis());
+        final File file = new File(directory, String.format(FILE_NAME_FORMAT, sequence));
+        try {
+            EnvironmentSaver.writeAtomically(file, out -> {
+                out.write(HEADER + "\n");
+                for (Map.Entry<Name, ListExpression> definition : definitions.entrySet()) {
+                    final ListExpression expression = definition.getValue();
+                    if (expression instanceof RecipientSet) {
+                        final RecipientSet recipients = (RecipientSet) expression;
+                        out.write(IMPORT + " " + definition.getKey() + " " + recipients.size() + "\n");
+                        for (Recipient recipient : recipients.recipients(environment)) {
+                            out.write(recipient + "\n");
+                        }
+                    } else {
+                        out.write(DEFINE + " " + definition.getKey() + " " + expression + "\n");
+                    }
+                }
+                out.write(END + " " + definitions.size() + "\n");
+            });
+        } catch (IOException e) {
+            Metrics.CHECKPOINT_FAILURES.increment();
+            Tracing.endPersist(event, file.getPath(), definitions.size(), false);
+            throw e;
+        }
+        Tracing.endPersist(event, file.getPath(), definitions.size(), true);
+        checkpointedVersion = version;
+        final List<File> checkpoints = checkpoints(directory);
+        for (File old : checkpoints.subList(Math.min(keep, checkpoints.size()), checkpoints.size())) {
+            old.delete();
+        }
+        Metrics.CHECKPOINT_NANOS.record(System.nanoTime() - start);
+        checkRep();
+        return file;
+    }
+
+    /**
+     * Stops writing checkpoints in the background, and writes a last checkpoint if the
+     * environment changed since the last one.
+     * @throws IOException if the last checkpoint cannot be written
+     * @throws InterruptedException if interrupted while waiting for a background checkpoint
+     */
+    public void stop() throws IOException, InterruptedException {
+        environment.removeListener(listener);
+        scheduler.shutdown();
+        scheduler.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        checkpoint();
+    }
+
+    /**
+     * @param directory a checkpoint directory
+     * @return the checkpoints in directory, newest first
+     */
+    static List<File> checkpoints(File directory) {
+        final File[] files = directory.listFiles((dir, name) -> FILE_NAME.matcher(name).matches());
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        final List<File> checkpoints = new ArrayList<>(Arrays.asList(files));
+        checkpoints.sort((a, b) -> b.getName().compareTo(a.getName()));
+        return checkpoints;
+    }
+
+    /**
+     * @param checkpoint a checkpoint file
+     * @return the sequence number in the name of checkpoint
+     */
+    private static long sequence(File checkpoint) {
+        final Matcher matcher = FILE_NAME.matcher(checkpoint.getName());
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("not a checkpoint: " + checkpoint);
+        }
+        return Long.parseLong(matcher.group(1));
+    }
+
+    /**
+     * Loads the newest valid checkpoint in a directory into an environment, as one atomic
+     * reassignAll(). Checkpoints that cannot be read or are incomplete are skipped.
+     * @param environment the environment to define the lists of the checkpoint in
+     * @param directory the checkpoint directory
+     * @return the checkpoint loaded, or null if directory contains no valid checkpoint
+     */
+    public static File loadNewest(Environment environment, File directory) {
+        for (File checkpoint : checkpoints(directory)) {
+            final Object event = Tracing.begin(Tracing.Kind.LOAD);
+            try {
+                environment.reassignAll(read(checkpoint));
+                Tracing.endPersist(event, checkpoint.getPath(), environment.getNames().size(), true);
+                return checkpoint;
+            } catch (IOException | IllegalArgumentException e) {
+                Tracing.endPersist(event, checkpoint.getPath(), environment.getNames().size(), false);
+                System.err.println("Skipping checkpoint " + checkpoint + ": " + e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the definitions in a checkpoint.
+     * @param checkpoint a checkpoint file
+     * @return the definitions in checkpoint
+     * @throws IOException if checkpoint cannot be read
+     * @throws IllegalArgumentException if checkpoint is not a complete checkpoint
+     */
+    static Map<Name, ListExpression> read(File checkpoint) throws IOException {
+        final Map<Name, ListExpression> definitions = new HashMap<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(checkpoint), StandardCharsets.UTF_8))) {
+            if (!HEADER.equals(in.readLine())) {
+                throw new IllegalArgumentException("missing header");
+            }
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                final String[] fields = line.split(" ", 3);
+                if (fields.length == 2 && fields[0].equals(END)) {
+                    if (Integer.parseInt(fields[1]) != definitions.size() || in.readLine() != null) {
+                        throw new IllegalArgumentException("wrong number of definitions");
+                    }
+                    return definitions;
+                } else if (fields.length == 3 && fields[0].equals(DEFINE)) {
+                    definitions.put(name(fields[1]), ListExpression.parse(fields[2]));
+                } else if (fields.length == 3 && fields[0].equals(IMPORT)) {
+                    final Recipient[] recipients = new Recipient[Integer.parseInt(fields[2])];
+                    for (int i = 0; i < recipients.length; i++) {
+                        final String address = in.readLine();
+                        if (address == null || !ADDRESS.matcher(address).matches()) {
+                            throw new IllegalArgumentException("invalid address in list " + fields[1]);
+                        }
+                        recipients[i] = new Recipient(address);
+                    }
+                    definitions.put(name(fields[1]), RecipientSet.of(recipients));
+                } else {
+                    throw new IllegalArgumentException("invalid line: " + line);
+                }
+            }
+        }
+        throw new IllegalArgumentException("incomplete checkpoint");
+    }
+
+    /**
+     * @param name a list name read from a checkpoint
+     * @return the Name
+     * @throws IllegalArgumentException if name is not a valid list name
+     */
+    private static Name name(String name) {
+        final ListExpression parsed = ListExpression.parse(name);
+        if (!(parsed instanceof Name)) {
+            throw new IllegalArgumentException("invalid list name: " + name);
+        }
+        return (Name) parsed;
+    }
+}
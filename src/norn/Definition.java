@@ -35,8 +35,23 @@ public class Definition implements ListExpression {
         assert expression != null;
     }
     
+    /**
+     * @return the name defined by this Definition
+     */
+    public Name getName() {
+        return name;
+    }
+    
+    /**
+     * @return the expression that this Definition links to its name
+     */
+    public ListExpression getExpression() {
+        return expression;
+    }
+    
     @Override
     public Set<Recipient> recipients(Environment environment) {
+        EvaluationBudget.visit();
         Set<Recipient> oldRecipients;
         synchronized (environment) {
             oldRecipients = expression.recipients(environment);
@@ -38,8 +38,32 @@ public class Difference implements ListExpression {
         assert right != null;
     }
 
+    /**
+     * @return the left operand of this Difference
+     */
+    public ListExpression getLeft() {
+        return left;
+    }
+
+    /**
+     * @return the right operand of this Difference
+     */
+    public ListExpression getRight() {
+        return right;
+    }
+
     @Override
     public Set<Recipient> recipients(Environment environment) {
+        return RecipientIds.evaluate(this, environment, () -> hashSetRecipients(environment));
+    }
+
+    /**
+     * Evaluates the recipients of this Difference from the recipients() of its operands.
+     * @param environment the list definitions used to evaluate this Difference
+     * @return the recipients of this Difference
+     */
+    private Set<Recipient> hashSetRecipients(Environment environment) {
+        EvaluationBudget.visit();
         Set<Recipient> difference = new HashSet<>();
         synchronized (environment) {
             Set<Recipient> rightRecipients = right.recipients(environment);
@@ -49,6 +73,20 @@ public class Difference implements ListExpression {
                 }
             }
         }
+        EvaluationBudget.produced(difference.size());
+        return difference;
+    }
+
+    @Override
+    public IntHashSet recipientIds(Environment environment) {
+        EvaluationBudget.visit();
+        IntHashSet difference;
+        synchronized (environment) {
+            IntHashSet rightRecipients = right.recipientIds(environment);
+            difference = left.recipientIds(environment);
+            difference.removeAll(rightRecipients);
+        }
+        EvaluationBudget.produced(difference.size());
         return difference;
     }
 
@@ -0,0 +1,88 @@
+package norn;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Immutable representation of all known email addresses at one domain: the addresses at
+ * that domain that appear in any list defined in the environment, written *@domain.
+ * Evaluation looks the domain up in the environment's domain index instead of scanning the
+ * lists, so intersecting a list with a domain only costs the list and the domain's
+ * addresses.
+ */
+public class Domain implements ListExpression {
+    private final String domain;
+
+    // Abstraction Function
+    //  AF(domain) = the email addresses whose domain name is domain among the addresses in
+    //  the definitions of the environment it is evaluated in
+    // Rep Invariant
+    //  domain is a nonempty lowercase string of letters, digits, underscores, dashes, and
+    //  periods
+    // Rep Safety
+    //  All fields are private, final and immutable.
+
+    /**
+     * Create a new Domain object.
+     * @param domain the domain name, after the @ of an email address
+     */
+    public Domain(String domain) {
+        this.domain = domain.toLowerCase();
+        checkRep();
+    }
+
+    /**
+     * Check that the rep invariant is maintained.
+     */
+    private void checkRep() {
+        assert domain.matches("[a-z0-9_.-]+");
+    }
+
+    /**
+     * @return the domain name of this Domain
+     */
+    public String getDomain() {
+        return domain;
+    }
+
+    @Override
+    public Set<Recipient> recipients(Environment environment) {
+        EvaluationBudget.visit();
+        final Set<Recipient> recipients;
+        synchronized (environment) {
+            recipients = environment.recipientsAt(domain);
+        }
+        EvaluationBudget.produced(recipients.size());
+        return recipients;
+    }
+
+    @Override
+    public Set<ListExpression> getChildren() {
+        return Collections.emptySet();
+    }
+
+    @Override
+    public Set<ListExpression> getDependents(Environment environment) {
+        return Collections.emptySet();
+    }
+
+    /**
+     * The returned String has the format *@domain
+     */
+    @Override
+    public String toString() {
+        return "*@" + domain;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof Domain)) return false;
+        Domain that = (Domain) obj;
+        return domain.equals(that.domain);
+    }
+
+    @Override
+    public int hashCode() {
+        return domain.hashCode() + 1;
+    }
+}
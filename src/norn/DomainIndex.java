@@ -0,0 +1,213 @@
+package norn;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A mutable index from domain names to the email addresses at each domain that appear in a
+ * collection of list definitions. The index is kept up to date incrementally: when a list is
+ * redefined, the addresses of its old definition are removed and those of its new
+ * definition added, so the work is proportional to the definitions that changed.
+ *
+ * Every occurrence of an address in a definition is counted, and an address is indexed as
+ * long as its count is positive, so an address that appears in several lists stays indexed
+ * until it has been removed from all of them.
+ *
+ * An index may also assign a RecipientIds id to every address it indexes. Ids of addresses
+ * that are no longer indexed are only reclaimed when they outnumber the indexed addresses:
+ * the table is then replaced by a new one of the indexed addresses, and the old table is
+ * no longer added to.
+ */
+class DomainIndex {
+    // the smallest table that is replaced when most of its addresses are no longer indexed
+    static final int MIN_COMPACTED_IDS = 1024;
+
+    private final Map<String, Map<Recipient, Integer>> domains = new HashMap<>();
+    private final boolean assignIds;
+    private RecipientIds ids;
+    private int addresses = 0;
+
+    // AF(domains, ids) = the index in which the addresses at domain d are the keys of
+    //      domains.get(d), each occurring as many times as its value in the indexed
+    //      definitions, and ids, if not null, is the table of their ids
+    // RI: no map in domains is empty; every count is positive; every address in
+    //     domains.get(d) has domain d; addresses is the number of indexed addresses;
+    //     ids is null if and only if !assignIds, and otherwise has an id for every indexed
+    //     address and at most max(MIN_COMPACTED_IDS, 2 * addresses) ids
+    // Rep exposure: domains is private and never returned; recipientsAt() returns a copy.
+    //               ids is shared with overlays, which only look up ids in it.
+    // Thread safety: not threadsafe; an Environment only uses its index under its lock, and
+    //                an index shared by overlays is not modified after it is built. ids is
+    //                threadsafe, so overlays may read it while the index adds to it.
+
+    /**
+     * Create an empty index.
+     * @param assignIds true to assign a RecipientIds id to every indexed address
+     */
+    DomainIndex(boolean assignIds) {
+        this.assignIds = assignIds;
+        this.ids = assignIds ? new RecipientIds() : null;
+        checkRep();
+    }
+
+    /**
+     * @param definitions the definitions to index
+     * @return a new index of the addresses in definitions
+     */
+    static DomainIndex of(Collection<ListExpression> definitions) {
+        final DomainIndex index = new DomainIndex(false);
+        for (ListExpression definition : definitions) {
+            index.add(definition);
+        }
+        return index;
+    }
+
+    /**
+     * Check that the rep invariant is maintained.
+     */
+    private void checkRep() {
+        for (Map.Entry<String, Map<Recipient, Integer>> domain : domains.entrySet()) {
+            assert !domain.getValue().isEmpty();
+        }
+        assert assignIds == (ids != null);
+        assert ids == null || ids.size() <= Math.max(MIN_COMPACTED_IDS, 2 * addresses);
+    }
+
+    /**
+     * Adds the addresses in a definition to the index.
+     * @param definition a list definition, not expanding list names
+     */
+    void add(ListExpression definition) {
+        update(definition, 1);
+        compactIds();
+        checkRep();
+    }
+
+    /**
+     * Removes the addresses in a definition, which was added before, from the index.
+     * @param definition a list definition that was added with add()
+     */
+    void remove(ListExpression definition) {
+        update(definition, -1);
+        compactIds();
+        checkRep();
+    }
+
+    /**
+     * Replaces the addresses of one definition by those of another.
+     * @param previous the old definition, which was added before, or null if there was none
+     * @param definition the new definition
+     */
+    void replace(ListExpression previous, ListExpression definition) {
+        if (previous != null) {
+            update(previous, -1);
+        }
+        update(definition, 1);
+        compactIds();
+        checkRep();
+    }
+
+    /**
+     * @param domain a lowercase domain name
+     * @return a new set of the indexed addresses at domain
+     */
+    Set<Recipient> recipientsAt(String domain) {
+        final Map<Recipient, Integer> recipients = domains.get(domain);
+        return recipients == null ? new HashSet<Recipient>() : new HashSet<>(recipients.keySet());
+    }
+
+    /**
+     * @param recipient any recipient
+     * @return true if recipient is indexed
+     */
+    boolean contains(Recipient recipient) {
+        final Map<Recipient, Integer> recipients = domains.get(recipient.getDomain());
+        return recipients != null && recipients.containsKey(recipient);
+    }
+
+    /**
+     * @return the table of the ids of the indexed addresses, which may also have ids of
+     *  addresses that are no longer indexed, or null if this index does not assign ids
+     */
+    RecipientIds recipientIds() {
+        return ids;
+    }
+
+    /**
+     * @return the number of domains with indexed addresses
+     */
+    int domains() {
+        return domains.size();
+    }
+
+    /**
+     * Adds delta to the count of every occurrence of an address in an expression.
+     * @param expression the expression whose addresses to count, not expanding list names
+     * @param delta 1 to add the addresses, -1 to remove them
+     */
+    private void update(ListExpression expression, int delta) {
+        if (expression instanceof Recipient) {
+            count((Recipient) expression, delta);
+        } else if (expression instanceof RecipientSet) {
+            for (Recipient recipient : ((RecipientSet) expression).view()) {
+                count(recipient, delta);
+            }
+        } else {
+            for (ListExpression child : expression.getChildren()) {
+                update(child, delta);
+            }
+        }
+    }
+
+    /**
+     * Adds delta to the count of one address, dropping it once its count is 0.
+     * @param recipient the address
+     * @param delta 1 or -1
+     */
+    private void count(Recipient recipient, int delta) {
+        final String domain = recipient.getDomain();
+        final Map<Recipient, Integer> recipients = domains.computeIfAbsent(domain, d -> new HashMap<>());
+        final int count = recipients.getOrDefault(recipient, 0) + delta;
+        if (count > 0) {
+            if (recipients.put(recipient, count) == null) {
+                addresses++;
+                if (ids != null) {
+                    ids.intern(recipient);
+                }
+            }
+        } else {
+            if (recipients.remove(recipient) != null) {
+                addresses--;
+            }
+            if (recipients.isEmpty()) {
+                domains.remove(domain);
+            }
+        }
+    }
+
+    /**
+     * Replaces the table of ids by a new one of the indexed addresses, if most of its ids
+     * belong to addresses that are no longer indexed.
+     */
+    private void compactIds() {
+        if (ids == null || ids.size() <= Math.max(MIN_COMPACTED_IDS, 2 * addresses)) {
+            return;
+        }
+        final List<Recipient> indexed = new ArrayList<>(addresses);
+        for (Map<Recipient, Integer> recipients : domains.values()) {
+            indexed.addAll(recipients.keySet());
+        }
+        ids = RecipientIds.of(indexed);
+    }
+
+    @Override
+    public String toString() {
+        return Collections.unmodifiableMap(domains).toString();
+    }
+}
@@ -17,6 +17,7 @@ public class Empty implements ListExpression {
     
     @Override
     public Set<Recipient> recipients(Environment environment) {
+        EvaluationBudget.visit();
         return Collections.emptySet();
     }
     
@@ -1,11 +1,12 @@
 package norn;
 
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * A mutable, threadsafe representation of currently defined list names in a 
@@ -13,21 +14,104 @@ import java.util.Set;
  */
 public class Environment {
     private final Map<Name, ListExpression> definitions;
+    private final Map<Name, Long> versions;
+    private final List<EnvironmentListener> listeners = new CopyOnWriteArrayList<>();
+    private final Environment parent;
+    private final Snapshot base;
+    private volatile Snapshot snapshot = null;
+    private DomainIndex index;
+    private final Membership membership = new Membership(this);
+    private long version;
     
-    // AF(definitions) = a list expression execution environment where the keys in definitions
-    //                   comprise the lists that have been defined and the values are the corresponding
-    //                   list expressions. Any name not in definitions is defined as the empty expression.
+    // AF(definitions, versions, version, parent, base) = a list expression execution environment where
+    //                   the keys in definitions and base.definitions comprise the lists that have been
+    //                   defined and the values are the corresponding list expressions, a definition in
+    //                   definitions taking precedence over one in base. Any name not defined in either is
+    //                   defined as the empty expression. version counts the changes made to the
+    //                   environment, and versions (or else base.versions) maps each defined name to the
+    //                   value of version right after it was last defined. If parent is not null, this
+    //                   environment is an overlay of parent, and base is the state of parent when the
+    //                   overlay was created; otherwise base is empty.
     // RI: there are no mail loops (mutually recursive list definitions).
+    //     versions.keySet() equals definitions.keySet(), and every value in versions is
+    //     positive, greater than base.version and at most version.
+    //     base is empty if parent is null.
+    // listeners are notified of every successful redefinition and are not part of the
+    // abstract value. snapshot is either null or the current state of this environment,
+    // cached for overlays, and is not part of the abstract value either. index is null or
+    // indexes the addresses in all definitions of this environment; it is never null if
+    // parent is null, and is kept up to date by every redefinition; if parent is null, it also
+    // assigns the RecipientIds ids that operators evaluate with. membership caches Bloom
+    // filters of lists for contains(), drops and rebuilds them in the background when their
+    // lists are redefined, and is not part of the abstract value.
     // Rep exposure: the definitions map is private, final, and never returned through any of the methods.
+    //               Snapshots are immutable and only shared with overlays.
     // Thread safety: definitions is a synchronized map, which means that any actions to modify it are atomic.
     //                Additionally, all public methods are synchronized, so any multi-step modification
-    //                to definitions is atomic as well. 
+    //                to definitions is atomic as well. listeners is a threadsafe list, so
+    //                listeners can be added and removed without the lock. snapshot is volatile
+    //                and immutable, so overlays are created from it without the lock.
+    
+    /**
+     * An immutable state of an environment.
+     */
+    private static class Snapshot {
+        private static final Snapshot EMPTY = new Snapshot(
+                Collections.<Name, ListExpression>emptyMap(), Collections.<Name, Long>emptyMap(), 0, null);
+        
+        private final Map<Name, ListExpression> definitions;
+        private final Map<Name, Long> versions;
+        private final long version;
+        private final RecipientIds ids;
+        private volatile DomainIndex index = null;
+        
+        // AF(definitions, versions, version) = an environment with the given definitions, the
+        //                                      versions of the defined names and overall version
+        // RI: versions.keySet() equals definitions.keySet(); both maps are unmodifiable
+        // ids is null or has an id for every address in definitions, and is not part of the
+        // abstract value. index is null or indexes the addresses in definitions, and is never
+        // modified once it is set; two threads may both build it, which only wastes work.
+        
+        private Snapshot(Map<Name, ListExpression> definitions, Map<Name, Long> versions, long version,
+                RecipientIds ids) {
+            this.definitions = definitions;
+            this.versions = versions;
+            this.version = version;
+            this.ids = ids;
+        }
+        
+        /**
+         * @return the domain index of this state, built on first use
+         */
+        private DomainIndex domainIndex() {
+            DomainIndex current = index;
+            if (current == null) {
+                current = DomainIndex.of(definitions.values());
+                index = current;
+            }
+            return current;
+        }
+    }
     
     /**
      * Create a new Environment.
      */
     public Environment() {
+        this(null, Snapshot.EMPTY);
+    }
+    
+    /**
+     * Create an overlay of an environment, or a new environment if parent is null.
+     * @param parent the environment to overlay, or null
+     * @param base the state of parent, or Snapshot.EMPTY if parent is null
+     */
+    private Environment(Environment parent, Snapshot base) {
+        this.parent = parent;
+        this.base = base;
+        this.version = base.version;
         definitions = Collections.synchronizedMap(new HashMap<Name, ListExpression>());
+        versions = new HashMap<>();
+        index = parent == null ? new DomainIndex(true) : null;
         checkRep();
     }
 
@@ -35,60 +119,80 @@ public class Environment {
      * Checks that representation invariant is maintained.
      */
     private void checkRep() {
-        synchronized (definitions) {
-            assert definitions != null;
-            for (Name name : definitions.keySet()) {
-                ListExpression expression = definitions.get(name);
-                Set<ListExpression> visited = new HashSet<>(Arrays.asList(name));
-                Set<ListExpression> flattened = flatten(expression, new HashSet<>());
-                if (flattened.contains(name)) flattened.remove(name);
-                boolean hasLoop = findCycle(flattened, visited);
-    
-                assert !hasLoop : "Oops! You have created a mail loop.";
-            }
+        assert definitions != null;
+        assert versions.keySet().equals(definitions.keySet());
+        for (long v : versions.values()) {
+            assert v > 0 && v > base.version && v <= version;
         }
+        assert parent != null || base == Snapshot.EMPTY;
+        assert !hasMailLoop() : "Oops! You have created a mail loop.";
     }
     
     /**
-     * Returns a flattened set of elements in the specified ListExpression (no element
-     * in the returned set has children). 
-     * @param e the expression to flatten
-     * @param elements the set of elements to add to
-     * @return the set of elements in e
+     * Detects whether any definition in this environment is part of a mail loop.
+     * @return true if there is a mail loop; false otherwise
      */
-    private Set<ListExpression> flatten(ListExpression e, Set<ListExpression> elements) {
-        if (e.getChildren().isEmpty()) {
-            return new HashSet<>(Arrays.asList(e));
-        }
-        for (ListExpression c : e.getChildren()) {
-            elements = flatten(c, elements);
+    private boolean hasMailLoop() {
+        final Object event = Tracing.begin(Tracing.Kind.MAIL_LOOP_CHECK);
+        final Map<Name, Boolean> finished = new HashMap<>();
+        synchronized (definitions) {
+            for (Name name : getNames()) {
+                if (reachesCycle(name, finished)) {
+                    Tracing.endMailLoopCheck(event, finished.size(), true);
+                    return true;
+                }
+            }
         }
-        return elements;
+        Tracing.endMailLoopCheck(event, finished.size(), false);
+        return false;
     }
     
     /**
-     * Detects mail loops (mutually recursive definitions) in the current state of the environment.
-     * A definition that includes its own name is not necessarily mutually recursive (e.g. a=a should
-     * return false). 
-     * @param toVisit the Set of ListExpressions to examine
-     * @param visited the Set of ListExpressions that have already been examined
+     * Detects mail loops (mutually recursive definitions) reachable from a list name, by a
+     * depth-first search of the names that definitions refer to. Lists may share other lists
+     * and recipients, so a name may be reached on several paths; only reaching a name again
+     * while its own definition is still being searched is a loop. A definition that refers to
+     * its own name directly is not necessarily mutually recursive (e.g. a=a should return
+     * false), so such references are ignored.
+     * @param name the name to search from
+     * @param finished map from the names searched so far to false while their definitions are
+     *  being searched and true afterwards
      * @return true if there is a mail loop; false otherwise
      */
-    private boolean findCycle(Set<ListExpression> toVisit, Set<ListExpression> visited) {
-        boolean cycle = false;
-        for (ListExpression c : toVisit) {
-            if (visited.contains(c)) {
-                return true;
-            } else {
-                visited.add(c);
-                Set<ListExpression> children = new HashSet<>(c.getChildren());
-                for (ListExpression d : c.getDependents(this)) {
-                    children.add(d);
+    private boolean reachesCycle(Name name, Map<Name, Boolean> finished) {
+        final Boolean done = finished.get(name);
+        if (done != null) {
+            return !done;
+        }
+        finished.put(name, false);
+        final ListExpression expression = definitionOf(name);
+        if (expression != null) {
+            final Set<Name> referenced = new HashSet<>();
+            addNames(expression, referenced);
+            referenced.remove(name);
+            for (Name next : referenced) {
+                if (reachesCycle(next, finished)) {
+                    return true;
                 }
-                cycle = cycle || findCycle(children, visited);
             }
         }
-        return cycle;
+        finished.put(name, true);
+        return false;
+    }
+    
+    /**
+     * Adds the names that appear in an expression to a set.
+     * @param expression the expression to search
+     * @param names the set to add to
+     */
+    private static void addNames(ListExpression expression, Set<Name> names) {
+        if (expression instanceof Name) {
+            names.add((Name) expression);
+            return;
+        }
+        for (ListExpression child : expression.getChildren()) {
+            addNames(child, names);
+        }
     }
     
     /**
@@ -98,10 +202,25 @@ public class Environment {
      *  returns empty expression otherwise (i.e., name has not been defined).
      */
     public synchronized ListExpression getExpression(Name name) {
-        if (definitions.containsKey(name)) {
-            return definitions.get(name);
-        }
-        return new Empty();
+        final ListExpression expression = definitionOf(name);
+        return expression == null ? new Empty() : expression;
+    }
+    
+    /**
+     * @param name any list name
+     * @return the expression that name is defined as, or null if name is not defined
+     */
+    private ListExpression definitionOf(Name name) {
+        final ListExpression local = definitions.get(name);
+        return local != null ? local : base.definitions.get(name);
+    }
+    
+    /**
+     * @param name any list name
+     * @return true if name is defined in this environment
+     */
+    public synchronized boolean isDefined(Name name) {
+        return definitions.containsKey(name) || base.definitions.containsKey(name);
     }
     
     /**
@@ -109,7 +228,14 @@ public class Environment {
      * @return a set containing all names in this environment
      */
     public Set<Name> getNames() {
-        return definitions.keySet();
+        if (base.definitions.isEmpty()) {
+            return definitions.keySet();
+        }
+        synchronized (definitions) {
+            final Set<Name> names = new HashSet<>(base.definitions.keySet());
+            names.addAll(definitions.keySet());
+            return names;
+        }
     }
     
     /**
@@ -121,10 +247,357 @@ public class Environment {
      * @return the previous expression linked to this name (empty if none).
      */
     public synchronized ListExpression reassign(Name name, ListExpression expression) {
-        ListExpression exp = getExpression(name);
-        definitions.put(name, expression);
+        final long start = System.nanoTime();
+        final Object event = Tracing.begin(Tracing.Kind.REASSIGN);
+        boolean mailLoop = true;
+        try {
+            ListExpression exp = getExpression(name);
+            definitions.put(name, expression);
+            if (index != null) {
+                index.replace(exp, expression);
+            }
+            membership.invalidate(Collections.singleton(name));
+            versions.put(name, ++version);
+            snapshot = null;
+            checkRep();
+            mailLoop = false;
+            notifyListeners(Collections.singleton(name));
+            return exp;
+        } finally {
+            Metrics.REASSIGN_NANOS.record(System.nanoTime() - start);
+            Tracing.endReassign(event, Collections.singleton(name), mailLoop);
+        }
+    }
+    
+    /**
+     * Reassign every name in the specified definitions as one atomic step. Either all of
+     * the definitions are applied, or, if together they would create a mail loop, none are.
+     * @param batch map from each name to define to the expression to link to it
+     * @throws AssertionError if applying the definitions would create a mail loop;
+     *  the environment is left unchanged in that case
+     */
+    public synchronized void reassignAll(Map<Name, ListExpression> batch) {
+        final long start = System.nanoTime();
+        final Object event = Tracing.begin(Tracing.Kind.REASSIGN);
+        boolean mailLoop = true;
+        try {
+            applyAll(batch);
+            mailLoop = false;
+        } finally {
+            Metrics.REASSIGN_NANOS.record(System.nanoTime() - start);
+            Tracing.endReassign(event, batch.keySet(), mailLoop);
+        }
+    }
+    
+    /**
+     * Applies a batch of definitions as specified by reassignAll(). Requires the lock on this.
+     * @param batch map from each name to define to the expression to link to it
+     * @throws AssertionError if applying the definitions would create a mail loop
+     */
+    private void applyAll(Map<Name, ListExpression> batch) {
+        final Map<Name, ListExpression> previous = new HashMap<>();
+        for (Map.Entry<Name, ListExpression> definition : batch.entrySet()) {
+            if (!previous.containsKey(definition.getKey())) {
+                previous.put(definition.getKey(), definitions.get(definition.getKey()));
+            }
+            definitions.put(definition.getKey(), definition.getValue());
+        }
+        if (hasMailLoop()) {
+            for (Map.Entry<Name, ListExpression> old : previous.entrySet()) {
+                if (old.getValue() == null) {
+                    definitions.remove(old.getKey());
+                } else {
+                    definitions.put(old.getKey(), old.getValue());
+                }
+            }
+            throw new AssertionError("Oops! You have created a mail loop.");
+        }
+        version++;
+        for (Map.Entry<Name, ListExpression> definition : batch.entrySet()) {
+            versions.put(definition.getKey(), version);
+            if (index != null) {
+                final ListExpression old = previous.get(definition.getKey());
+                index.replace(old != null ? old : base.definitions.get(definition.getKey()),
+                        definition.getValue());
+            }
+        }
+        membership.invalidate(batch.keySet());
+        snapshot = null;
         checkRep();
-        return exp;
+        notifyListeners(Collections.unmodifiableSet(batch.keySet()));
+    }
+    
+    /**
+     * Register a listener to be notified whenever names in this environment are redefined.
+     * @param listener the listener to add
+     */
+    public void addListener(EnvironmentListener listener) {
+        listeners.add(listener);
+    }
+    
+    /**
+     * Stop notifying a listener registered with addListener().
+     * @param listener the listener to remove
+     */
+    public void removeListener(EnvironmentListener listener) {
+        listeners.remove(listener);
+    }
+    
+    /**
+     * Notify all listeners that names were redefined. Requires the lock on this.
+     * @param names the names that were redefined
+     */
+    private void notifyListeners(Set<Name> names) {
+        for (EnvironmentListener listener : listeners) {
+            listener.definitionsChanged(this, names);
+        }
+    }
+    
+    /**
+     * @return the number of changes made to this environment so far; the value
+     *  increases every time a name is (re)defined
+     */
+    public synchronized long version() {
+        return version;
+    }
+    
+    /**
+     * @param name any list name
+     * @return the value of version() right after name was last defined, or 0 if
+     *  name has never been defined
+     */
+    public synchronized long version(Name name) {
+        Long v = versions.get(name);
+        if (v == null) {
+            v = base.versions.get(name);
+        }
+        return v == null ? 0 : v;
+    }
+    
+    /**
+     * Create a copy-on-write overlay of this environment. The overlay starts out with the
+     * current definitions of this environment, which it reads without taking the lock on
+     * this environment; definitions made in the overlay only change the overlay, until they
+     * are applied to this environment with commit(). Later changes to this environment are
+     * not visible in the overlay. An overlay is meant to be used by a single thread.
+     * @return a new overlay of this environment
+     */
+    public Environment overlay() {
+        Snapshot current = snapshot;
+        if (current == null) {
+            current = takeSnapshot();
+        }
+        return new Environment(this, current);
+    }
+    
+    /**
+     * Get a point-in-time copy of all definitions in this environment. Like overlay(), it
+     * reuses the state cached since the last change, so it is cheap when this environment
+     * has not changed, and later changes to this environment are not visible in it.
+     * @return an unmodifiable map from every defined name to its definition
+     */
+    public Map<Name, ListExpression> definitions() {
+        Snapshot current = snapshot;
+        if (current == null) {
+            current = takeSnapshot();
+        }
+        return current.definitions;
+    }
+    
+    /**
+     * @return the current state of this environment, which is also cached in snapshot
+     */
+    private synchronized Snapshot takeSnapshot() {
+        if (snapshot == null) {
+            final Map<Name, ListExpression> allDefinitions = new HashMap<>(base.definitions);
+            final Map<Name, Long> allVersions = new HashMap<>(base.versions);
+            synchronized (definitions) {
+                allDefinitions.putAll(definitions);
+            }
+            allVersions.putAll(versions);
+            snapshot = new Snapshot(Collections.unmodifiableMap(allDefinitions),
+                    Collections.unmodifiableMap(allVersions), version, recipientIdTable());
+        }
+        return snapshot;
+    }
+    
+    /**
+     * Apply the definitions made in this overlay to the environment it overlays, as one
+     * atomic reassignAll(). Names redefined in the other environment since the overlay was
+     * created are overwritten. The overlay should not be used afterwards.
+     * @throws IllegalStateException if this environment is not an overlay
+     * @throws AssertionError if the definitions would create a mail loop in the other
+     *  environment; it is left unchanged in that case
+     */
+    public synchronized void commit() {
+        if (parent == null) {
+            throw new IllegalStateException("not an overlay");
+        }
+        if (definitions.isEmpty()) {
+            return;
+        }
+        final Map<Name, ListExpression> batch;
+        synchronized (definitions) {
+            batch = new HashMap<>(definitions);
+        }
+        parent.reassignAll(batch);
+    }
+    
+    /**
+     * Get the addresses at a domain that appear in any definition in this environment,
+     * without expanding list names. The environment keeps an index from domains to their
+     * addresses, so this only costs the number of addresses returned. An overlay uses the
+     * index of the environment it overlays as long as neither has changed, and otherwise
+     * builds an index of its own on first use.
+     * @param domain a lowercase domain name
+     * @return a new set of the addresses at domain in the definitions of this environment
+     */
+    public synchronized Set<Recipient> recipientsAt(String domain) {
+        if (index == null && definitions.isEmpty() && parent != null) {
+            final Set<Recipient> current = parent.recipientsAt(domain, base.version);
+            if (current != null) {
+                return current;
+            }
+        }
+        return domainIndex().recipientsAt(domain);
+    }
+    
+    /**
+     * @param recipient any recipient
+     * @return true if recipient appears in a definition in this environment, without
+     *  expanding list names; that is, if it is in recipientsAt(recipient.getDomain())
+     */
+    synchronized boolean appearsInDefinitions(Recipient recipient) {
+        if (index == null && definitions.isEmpty() && parent != null) {
+            return recipientsAt(recipient.getDomain()).contains(recipient);
+        }
+        return domainIndex().contains(recipient);
+    }
+    
+    /**
+     * Determine whether an address is a recipient of a list, without evaluating the whole
+     * list: the definition of the list is walked only as far as needed (a union stops at the
+     * first operand that contains the address, a difference only looks at its right operand
+     * if its left one contains it), and every list reached is first checked against a Bloom
+     * filter of its recipients, if it has one, which rejects most addresses that are not in
+     * it. The filter of a list is built in the background, from a snapshot of this
+     * environment, after the list is first reached and again after the list or a list it
+     * depends on is redefined. Every node walked is charged to the evaluation budget of the
+     * current thread, if any.
+     * @param list any list name
+     * @param recipient any recipient
+     * @return true if recipient is in list.recipients(this); false if it is not, or if list
+     *  is not defined
+     * @throws EvaluationBudget.BudgetExceededException if the walk exceeds the evaluation
+     *  budget of the current thread
+     * @throws AssertionError if the walk reaches a mail loop, which a failed redefinition
+     *  may have left in this environment
+     */
+    public synchronized boolean contains(Name list, Recipient recipient) {
+        Metrics.MEMBERSHIP_QUERIES.increment();
+        return membership.contains(list, recipient);
+    }
+    
+    /**
+     * @param domain a lowercase domain name
+     * @param expectedVersion a value of version()
+     * @return the same as recipientsAt(domain) if this environment has not changed since
+     *  version() was expectedVersion, or null otherwise
+     */
+    private synchronized Set<Recipient> recipientsAt(String domain, long expectedVersion) {
+        return version == expectedVersion ? recipientsAt(domain) : null;
+    }
+    
+    /**
+     * @return a table with an id for every address that appears in a definition in this
+     *  environment, or null if there is none: an environment has the table of its domain
+     *  index, and an overlay the table of the environment it overlays, until definitions are
+     *  made in the overlay. Requires the lock on this.
+     */
+    RecipientIds recipientIdTable() {
+        if (parent == null) {
+            return index.recipientIds();
+        }
+        return definitions.isEmpty() ? base.ids : null;
+    }
+    
+    /**
+     * @return the domain index of all definitions in this environment; requires the lock on this
+     */
+    private DomainIndex domainIndex() {
+        if (index != null) {
+            return index;
+        }
+        if (definitions.isEmpty()) {
+            return base.domainIndex();
+        }
+        index = DomainIndex.of(takeSnapshot().definitions.values());
+        return index;
+    }
+    
+    /**
+     * Determine whether the recipients of an expression may depend on every definition in
+     * this environment, because it contains a domain (*@domain), directly or through the
+     * definitions of the names in it.
+     * @param expression any list expression
+     * @return true if expression or a definition it references contains a Domain
+     */
+    public synchronized boolean referencesDomain(ListExpression expression) {
+        return containsDomain(expression, new HashSet<Name>());
+    }
+    
+    /**
+     * @param expression the expression to examine
+     * @param visited the names examined so far, which are not examined again
+     * @return true if expression contains a Domain, directly or through names not in visited
+     */
+    private boolean containsDomain(ListExpression expression, Set<Name> visited) {
+        if (expression instanceof Domain) {
+            return true;
+        }
+        if (expression instanceof Name) {
+            final Name name = (Name) expression;
+            final ListExpression definition = definitionOf(name);
+            return visited.add(name) && definition != null && containsDomain(definition, visited);
+        }
+        for (ListExpression child : expression.getChildren()) {
+            if (containsDomain(child, visited)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Get the names whose definitions the recipients of an expression may depend on:
+     * the names in the expression, and, transitively, the names in their definitions.
+     * @param expression any list expression
+     * @return the set of names referenced by expression, directly or through the
+     *  definitions in this environment
+     */
+    public synchronized Set<Name> referencedNames(ListExpression expression) {
+        final Set<Name> names = new HashSet<>();
+        collectNames(expression, names);
+        return names;
+    }
+    
+    /**
+     * Adds every name referenced by expression, directly or transitively, to names.
+     * @param expression the expression to examine
+     * @param names the set of names found so far; names already in it are not examined again
+     */
+    private void collectNames(ListExpression expression, Set<Name> names) {
+        if (expression instanceof Name) {
+            final Name name = (Name) expression;
+            final ListExpression definition = definitionOf(name);
+            if (names.add(name) && definition != null) {
+                collectNames(definition, names);
+            }
+            return;
+        }
+        for (ListExpression child : expression.getChildren()) {
+            collectNames(child, names);
+        }
     }
 
 }
@@ -0,0 +1,343 @@
+package norn;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * Generates synthetic environments for scale tests and benchmarks, in the format read by
+ * !load: one line with a sequence of list definitions.
+ *
+ * The lists form a hierarchy like an organization: depth levels, from one or a few lists at
+ * the top (level 0) down to the team lists at the bottom, which contain addresses. Every list
+ * above the bottom combines fanOut lists of the level below with operators chosen at random
+ * according to the operator mix (mostly unions, like departments made of teams, and some
+ * intersections and differences). On average every list is used by fanIn lists of the level
+ * above, so fanIn greater than 1 shares lists between several parents (a DAG rather than a
+ * tree). Each team has about addressesPerList members, drawn mostly from a contiguous range
+ * of people so that neighboring teams overlap. Every person has one address, in a domain
+ * drawn from a Zipf distribution with exponent domainSkew, so a few domains are much more
+ * common than the others.
+ *
+ * The output depends only on the parameters: the same seed and parameters always give the
+ * same environment.
+ *
+ * Usage: EnvironmentGenerator [key=value ...] [out=file]
+ * where the keys are seed, lists, addresses, people, domains, skew, depth, fanout, fanin and
+ * mix (union:intersect:difference weights, such as 8:1:1); the output is written to standard
+ * output unless out is given.
+ */
+public class EnvironmentGenerator {
+    private long seed = 1;
+    private int lists = 100;
+    private int addressesPerList = 20;
+    private int people = 0;
+    private int domains = 10;
+    private double domainSkew = 1.0;
+    private int depth = 3;
+    private int fanOut = 4;
+    private double fanIn = 1.0;
+    private int[] operatorMix = { 8, 1, 1 };
+
+    // Abstraction function
+    //  AF(seed, lists, ..., operatorMix) = the generator of the environment described in the
+    //      class specification for these parameters; people == 0 stands for
+    //      lists * addressesPerList / 2
+    // Rep invariant
+    //  lists >= depth >= 1, addressesPerList >= 1, people >= 0, domains >= 1, domainSkew >= 0,
+    //  fanOut >= 1, fanIn >= 1, operatorMix has 3 non-negative weights with a positive sum
+    // Rep exposure
+    //  All fields are private; operatorMix is copied in and never returned.
+    // Thread safety
+    //  Not threadsafe; a generator must be configured and used by one thread.
+
+    /**
+     * Create a generator with the default parameters: seed 1, 100 lists in 3 levels, 20
+     * addresses per team, 1000 people in 10 domains with skew 1, fan-out 4, fan-in 1, and
+     * operators mixed 8:1:1.
+     */
+    public EnvironmentGenerator() {
+        checkRep();
+    }
+
+    /**
+     * Check that the rep invariant is maintained.
+     */
+    private void checkRep() {
+        assert lists >= depth && depth >= 1;
+        assert addressesPerList >= 1 && people >= 0 && domains >= 1 && domainSkew >= 0;
+        assert fanOut >= 1 && fanIn >= 1;
+        assert operatorMix.length == 3 && operatorMix[0] >= 0 && operatorMix[1] >= 0 && operatorMix[2] >= 0
+                && operatorMix[0] + operatorMix[1] + operatorMix[2] > 0;
+    }
+
+    /**
+     * @param seed the seed of the random choices
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * @param lists the total number of lists, at least the depth
+     * @param depth the number of levels of the hierarchy, at least 1
+     * @throws IllegalArgumentException if the values are out of range
+     */
+    public void setShape(int lists, int depth) {
+        if (depth < 1 || lists < depth) {
+            throw new IllegalArgumentException("need at least 1 level and 1 list per level");
+        }
+        this.lists = lists;
+        this.depth = depth;
+        checkRep();
+    }
+
+    /**
+     * @param addressesPerList the average number of addresses of a team list, at least 1
+     * @param people the number of distinct people, or 0 for half the number of team slots
+     *  (lists times addressesPerList)
+     * @throws IllegalArgumentException if the values are out of range
+     */
+    public void setAddresses(int addressesPerList, int people) {
+        if (addressesPerList < 1 || people < 0) {
+            throw new IllegalArgumentException("need at least 1 address per list");
+        }
+        this.addressesPerList = addressesPerList;
+        this.people = people;
+        checkRep();
+    }
+
+    /**
+     * @param domains the number of domains, at least 1
+     * @param domainSkew the exponent of the Zipf distribution of domains: 0 for uniform,
+     *  larger for more skew
+     * @throws IllegalArgumentException if the values are out of range
+     */
+    public void setDomains(int domains, double domainSkew) {
+        if (domains < 1 || domainSkew < 0) {
+            throw new IllegalArgumentException("need at least 1 domain and a non-negative skew");
+        }
+        this.domains = domains;
+        this.domainSkew = domainSkew;
+        checkRep();
+    }
+
+    /**
+     * @param fanOut the number of lower-level lists that a list combines, at least 1
+     * @param fanIn the average number of higher-level lists that use a list, at least 1
+     * @throws IllegalArgumentException if the values are out of range
+     */
+    public void setFan(int fanOut, double fanIn) {
+        if (fanOut < 1 || fanIn < 1) {
+            throw new IllegalArgumentException("fan-out and fan-in must be at least 1");
+        }
+        this.fanOut = fanOut;
+        this.fanIn = fanIn;
+        checkRep();
+    }
+
+    /**
+     * @param union relative weight of the union operator
+     * @param intersect relative weight of the intersection operator
+     * @param difference relative weight of the difference operator
+     * @throws IllegalArgumentException if a weight is negative or all are 0
+     */
+    public void setOperatorMix(int union, int intersect, int difference) {
+        if (union < 0 || intersect < 0 || difference < 0 || union + intersect + difference == 0) {
+            throw new IllegalArgumentException("weights must be non-negative and not all 0");
+        }
+        this.operatorMix = new int[] { union, intersect, difference };
+        checkRep();
+    }
+
+    /**
+     * @param level a level of the hierarchy
+     * @param index the index of a list within level
+     * @return the name of the list
+     */
+    static String listName(int level, int index) {
+        return "level" + level + "_" + index;
+    }
+
+    /**
+     * @return the number of lists on each level, from the top: growing by fanOut / fanIn per
+     *  level (or equal if that is less than 1), each at least 1 and adding up to the total
+     */
+    int[] levelSizes() {
+        final double ratio = Math.max(1.0, fanOut / fanIn);
+        final double[] weights = new double[depth];
+        double sum = 0;
+        for (int level = 0; level < depth; level++) {
+            weights[level] = Math.pow(ratio, level);
+            sum += weights[level];
+        }
+        final int[] sizes = new int[depth];
+        int assigned = 0;
+        for (int level = 0; level < depth; level++) {
+            sizes[level] = Math.max(1, (int) Math.floor((lists - depth) * weights[level] / sum) + 1);
+            assigned += sizes[level];
+        }
+        sizes[depth - 1] += lists - assigned;
+        return sizes;
+    }
+
+    /**
+     * Writes the generated environment.
+     * @param out the writer to write the !load line to
+     * @throws IOException if out cannot be written to
+     */
+    public void write(Writer out) throws IOException {
+        final Random random = new Random(seed);
+        final int[] sizes = levelSizes();
+        final int population = people > 0 ? people : Math.max(1, lists * addressesPerList / 2);
+
+        final double[] cumulative = new double[domains];
+        double total = 0;
+        for (int k = 0; k < domains; k++) {
+            total += 1 / Math.pow(k + 1, domainSkew);
+            cumulative[k] = total;
+        }
+        final String[] addresses = new String[population];
+        for (int person = 0; person < population; person++) {
+            int domain = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+            domain = domain >= 0 ? domain : Math.min(domains - 1, -domain - 1);
+            addresses[person] = "user" + person + "@domain" + domain + ".example.com";
+        }
+
+        // teams at the bottom level, defined first
+        final int teams = sizes[depth - 1];
+        for (int team = 0; team < teams; team++) {
+            final int size = Math.max(1, addressesPerList / 2 + random.nextInt(addressesPerList + 1));
+            final int start = (int) ((long) team * population / teams);
+            final TreeSet<Integer> members = new TreeSet<>();
+            for (int i = 0; i < size; i++) {
+                // mostly colleagues from the team's own range, sometimes anyone
+                members.add(random.nextInt(10) == 0 ? random.nextInt(population)
+                        : (start + random.nextInt(Math.max(1, 2 * addressesPerList))) % population);
+            }
+            final StringBuilder expression = new StringBuilder();
+            for (int member : members) {
+                expression.append(expression.length() == 0 ? "" : ", ").append(addresses[member]);
+            }
+            define(out, listName(depth - 1, team), expression.toString());
+        }
+
+        // higher levels, bottom up, so every list is defined after the lists it combines
+        final int operatorTotal = operatorMix[0] + operatorMix[1] + operatorMix[2];
+        for (int level = depth - 2; level >= 0; level--) {
+            final int below = sizes[level + 1];
+            final List<Integer> order = new ArrayList<>();
+            for (int i = 0; i < below; i++) {
+                order.add(i);
+            }
+            Collections.shuffle(order, random);
+            for (int list = 0; list < sizes[level]; list++) {
+                final int start = (int) ((long) list * below / sizes[level]);
+                final StringBuilder expression = new StringBuilder();
+                final int children = Math.min(fanOut, below);
+                for (int child = 0; child < children; child++) {
+                    final String name = listName(level + 1, order.get((start + child) % below));
+                    if (child == 0) {
+                        expression.append(name);
+                        continue;
+                    }
+                    final int operator = random.nextInt(operatorTotal);
+                    final String symbol = operator < operatorMix[0] ? ", "
+                            : operator < operatorMix[0] + operatorMix[1] ? " * " : " ! ";
+                    expression.insert(0, "(").append(")").append(symbol).append(name);
+                }
+                define(out, listName(level, list), expression.toString());
+            }
+        }
+    }
+
+    /**
+     * Writes one definition in the !load format.
+     * @param out the writer to write to
+     * @param name the list name
+     * @param expression the list expression
+     * @throws IOException if out cannot be written to
+     */
+    private static void define(Writer out, String name, String expression) throws IOException {
+        out.write(name + " = (" + expression + "); ");
+    }
+
+    /**
+     * @return the generated environment as one !load line
+     */
+    public String generate() {
+        final StringWriter out = new StringWriter();
+        try {
+            write(out);
+        } catch (IOException e) {
+            throw new AssertionError("StringWriter does not fail", e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Writes a generated environment to standard output or a file.
+     * @param args key=value parameters, as described in the class specification
+     * @throws IOException if the output cannot be written
+     */
+    public static void main(String[] args) throws IOException {
+        final EnvironmentGenerator generator = new EnvironmentGenerator();
+        int lists = generator.lists;
+        int depth = generator.depth;
+        int addresses = generator.addressesPerList;
+        int people = generator.people;
+        int domains = generator.domains;
+        double skew = generator.domainSkew;
+        int fanOut = generator.fanOut;
+        double fanIn = generator.fanIn;
+        String out = null;
+        for (String arg : args) {
+            final String[] keyValue = arg.split("=", 2);
+            if (keyValue.length != 2) {
+                throw new IllegalArgumentException("expected key=value: " + arg);
+            }
+            final String value = keyValue[1];
+            switch (keyValue[0]) {
+            case "seed": generator.setSeed(Long.parseLong(value)); break;
+            case "lists": lists = Integer.parseInt(value); break;
+            case "depth": depth = Integer.parseInt(value); break;
+            case "addresses": addresses = Integer.parseInt(value); break;
+            case "people": people = Integer.parseInt(value); break;
+            case "domains": domains = Integer.parseInt(value); break;
+            case "skew": skew = Double.parseDouble(value); break;
+            case "fanout": fanOut = Integer.parseInt(value); break;
+            case "fanin": fanIn = Double.parseDouble(value); break;
+            case "mix": {
+                final String[] weights = value.split(":");
+                if (weights.length != 3) {
+                    throw new IllegalArgumentException("expected union:intersect:difference weights: " + value);
+                }
+                generator.setOperatorMix(Integer.parseInt(weights[0]), Integer.parseInt(weights[1]),
+                        Integer.parseInt(weights[2]));
+                break;
+            }
+            case "out": out = value; break;
+            default: throw new IllegalArgumentException("unknown parameter: " + keyValue[0]);
+            }
+        }
+        generator.setShape(lists, depth);
+        generator.setAddresses(addresses, people);
+        generator.setDomains(domains, skew);
+        generator.setFan(fanOut, fanIn);
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                out == null ? System.out : new FileOutputStream(out), StandardCharsets.UTF_8))) {
+            generator.write(writer);
+            writer.write(System.lineSeparator());
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package norn;
+
+import java.util.Set;
+
+/**
+ * A listener that is notified whenever list names in an Environment are redefined.
+ */
+public interface EnvironmentListener {
+    
+    /**
+     * Called after names have been redefined in environment. It is called while the caller
+     * holds the lock on environment, so it must be quick and must not block on other threads
+     * that may be waiting for that lock. Redefinitions that fail (because they would create
+     * a mail loop) are not reported.
+     * @param environment the environment that changed
+     * @param names the names that were redefined
+     */
+    public void definitionsChanged(Environment environment, Set<Name> names);
+}
@@ -0,0 +1,154 @@
+package norn;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Saves the definitions of environments to files in the background.
+ *
+ * A save takes a point-in-time copy of the definitions with Environment.definitions(),
+ * which holds the lock on the environment only briefly, and then formats and writes them on
+ * the saver's own thread, so the environment can be queried and changed meanwhile. The
+ * file is written as a temporary file in the same directory, forced to disk and then
+ * renamed over the target, so the target always holds either the previous or the complete
+ * new contents. Saves are written one at a time, in the order they were requested.
+ *
+ * Saved files contain a single list expression, a sequence of one definition per list,
+ * which restores the definitions when it is loaded with !load.
+ */
+public class EnvironmentSaver {
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final ExecutorService writer;
+
+    // AF(writer) = a saver whose pending saves are the tasks queued on writer
+    // RI: writer is a single-threaded executor
+    // Rep exposure: writer is private and never returned.
+    // Thread safety: writer is threadsafe and runs one save at a time; the definitions a save
+    //                writes are an immutable snapshot, and every save writes its own
+    //                temporary file.
+
+    /**
+     * Create a new saver with its own background thread, which does not keep the JVM alive.
+     */
+    public EnvironmentSaver() {
+        this.writer = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "norn-save");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Saves the current definitions of an environment in the background.
+     * @param environment the environment to save; later changes to it are not saved
+     * @param file the file to write
+     * @return a future that completes with the number of definitions saved once file has been
+     *  replaced, or exceptionally with an UncheckedIOException if file cannot be written
+     */
+    public CompletableFuture<Integer> save(Environment environment, File file) {
+        final Map<Name, ListExpression> definitions = environment.definitions();
+        return CompletableFuture.supplyAsync(() -> {
+            final Object event = Tracing.begin(Tracing.Kind.SAVE);
+            boolean saved = false;
+            try {
+                write(definitions, file);
+                saved = true;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                Tracing.endPersist(event, file.getPath(), definitions.size(), saved);
+            }
+            return definitions.size();
+        }, writer);
+    }
+
+    /**
+     * Waits until all saves requested so far have finished, successfully or not.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void awaitPending() throws InterruptedException {
+        try {
+            writer.submit(() -> { }).get();
+        } catch (ExecutionException e) {
+            throw new AssertionError("empty task failed", e);
+        }
+    }
+
+    /**
+     * Stops the background thread after the saves requested so far have finished.
+     */
+    public void shutdown() {
+        writer.shutdown();
+    }
+
+    /**
+     * The contents of a file to be written.
+     */
+    interface Contents {
+        /**
+         * Writes the contents.
+         * @param out the writer to write to
+         * @throws IOException if out cannot be written to
+         */
+        void writeTo(Writer out) throws IOException;
+    }
+
+    /**
+     * Writes definitions to a file atomically, in the format read by !load.
+     * @param definitions the definitions to write
+     * @param file the file to write
+     * @throws IOException if file cannot be written; it is left unchanged in that case
+     */
+    public static void write(Map<Name, ListExpression> definitions, File file) throws IOException {
+        writeAtomically(file, out -> {
+            for (Map.Entry<Name, ListExpression> definition : definitions.entrySet()) {
+                out.write(definition.getKey() + " = (" + definition.getValue() + ")");
+                out.write("; ");
+            }
+        });
+    }
+
+    /**
+     * Writes a file atomically: through a temporary file in the same directory that is
+     * renamed over file once it has been written and forced to disk.
+     * @param file the file to write
+     * @param contents the contents to write, as UTF-8
+     * @throws IOException if file cannot be written; it is left unchanged in that case
+     */
+    static void writeAtomically(File file, Contents contents) throws IOException {
+        final File directory = file.getAbsoluteFile().getParentFile();
+        final File temporary = File.createTempFile("." + file.getName() + ".", TEMPORARY_SUFFIX, directory);
+        try {
+            try (FileOutputStream stream = new FileOutputStream(temporary);
+                    Writer out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), BUFFER_SIZE)) {
+                contents.writeTo(out);
+                out.flush();
+                stream.getFD().sync();
+            }
+            try {
+                Files.move(temporary.toPath(), file.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temporary.toPath());
+        }
+    }
+}
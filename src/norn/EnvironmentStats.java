@@ -0,0 +1,498 @@
+package norn;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Statistics of the lists defined in an environment at one point in time: for every list,
+ * the size and depth of its definition, how many lists it depends on and how many depend on
+ * it, directly and transitively, its number of recipients and an estimate of the heap its
+ * definition retains; and the totals over all lists.
+ *
+ * The statistics are computed from a copy-on-write overlay of the environment, so the lock
+ * on the environment is only held while the overlay is created, and the lists can be
+ * queried and redefined meanwhile. Every list is evaluated in the overlay, within its own
+ * budget if one is given.
+ *
+ * Retained bytes are estimated from the expression nodes of a definition, counting each node
+ * object once, with the sizes of a 64-bit JVM with compressed references and compact
+ * strings, plus the entries of the environment's maps. Nodes shared with other definitions
+ * are counted for every definition, and the definitions of lists that a definition refers to
+ * are not counted.
+ */
+public class EnvironmentStats {
+    /** Maximum number of lists printed by toString(). */
+    static final int MAX_PRINTED_LISTS = 1000;
+
+    private static final int OBJECT_HEADER_BYTES = 12;
+    private static final int REFERENCE_BYTES = 4;
+    private static final int ARRAY_HEADER_BYTES = 16;
+    private static final int STRING_BYTES = 24;
+    private static final int OPERATOR_BYTES = align(OBJECT_HEADER_BYTES + 2 * REFERENCE_BYTES);
+    private static final int LEAF_BYTES = align(OBJECT_HEADER_BYTES + REFERENCE_BYTES);
+    private static final int RECIPIENT_SET_BYTES = align(OBJECT_HEADER_BYTES + 2 * REFERENCE_BYTES + Integer.BYTES)
+            + align(OBJECT_HEADER_BYTES + REFERENCE_BYTES);
+    /** Estimated bytes of the entries of one list in the definitions and versions maps. */
+    private static final int ENTRY_BYTES = 2 * 32 + 16;
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    private final List<ListStats> lists;
+    private final long nanos;
+
+    // AF(lists, nanos) = the statistics of the lists of an environment, one element of lists
+    //      per defined list, which took nanos nanoseconds to compute
+    // RI: lists is sorted by retained bytes, largest first, and then by name; nanos >= 0
+    // Rep exposure: all fields are private and final; lists is unmodifiable and its
+    //               elements are immutable.
+    // Thread safety: immutable.
+
+    /**
+     * Immutable statistics of one list.
+     */
+    public static class ListStats {
+        private final Name name;
+        private final int nodes;
+        private final int depth;
+        private final int dependencies;
+        private final int transitiveDependencies;
+        private final int dependents;
+        private final int transitiveDependents;
+        private final int recipients;
+        private final long bytes;
+
+        // AF(...) = the statistics of list name, as returned by the accessors
+        // RI: all counts are non-negative, except recipients, which is -1 if the list
+        //     could not be evaluated within its budget
+        // Thread safety: immutable.
+
+        private ListStats(Name name, int nodes, int depth, int dependencies, int transitiveDependencies,
+                int dependents, int transitiveDependents, int recipients, long bytes) {
+            this.name = name;
+            this.nodes = nodes;
+            this.depth = depth;
+            this.dependencies = dependencies;
+            this.transitiveDependencies = transitiveDependencies;
+            this.dependents = dependents;
+            this.transitiveDependents = transitiveDependents;
+            this.recipients = recipients;
+            this.bytes = bytes;
+        }
+
+        /**
+         * @return the name of the list
+         */
+        public Name name() {
+            return name;
+        }
+
+        /**
+         * @return the number of expression nodes of the list's definition, not expanding
+         *  list names
+         */
+        public int nodes() {
+            return nodes;
+        }
+
+        /**
+         * @return the height of the list's definition with list names expanded into their
+         *  definitions, i.e. how deep its evaluation recurses; 1 for a single address
+         */
+        public int depth() {
+            return depth;
+        }
+
+        /**
+         * @return the number of distinct list names in the list's definition
+         */
+        public int dependencies() {
+            return dependencies;
+        }
+
+        /**
+         * @return the number of lists that the list depends on directly or through other
+         *  lists
+         */
+        public int transitiveDependencies() {
+            return transitiveDependencies;
+        }
+
+        /**
+         * @return the number of lists whose definitions contain the list's name
+         */
+        public int dependents() {
+            return dependents;
+        }
+
+        /**
+         * @return the number of lists that depend on the list directly or through other lists
+         */
+        public int transitiveDependents() {
+            return transitiveDependents;
+        }
+
+        /**
+         * @return the number of recipients of the list, or -1 if it exceeded its budget
+         */
+        public int recipients() {
+            return recipients;
+        }
+
+        /**
+         * @return the estimated number of heap bytes retained by the list's definition
+         */
+        public long bytes() {
+            return bytes;
+        }
+    }
+
+    /**
+     * Create the statistics of an environment.
+     * @param lists the statistics of every list, sorted as in the rep invariant
+     * @param nanos the time taken to compute them, in nanoseconds
+     */
+    private EnvironmentStats(List<ListStats> lists, long nanos) {
+        this.lists = Collections.unmodifiableList(lists);
+        this.nanos = nanos;
+        checkRep();
+    }
+
+    /**
+     * Check that the rep invariant is maintained.
+     */
+    private void checkRep() {
+        assert nanos >= 0;
+        for (int i = 1; i < lists.size(); i++) {
+            assert lists.get(i - 1).bytes >= lists.get(i).bytes;
+        }
+    }
+
+    /**
+     * Computes the statistics of the lists currently defined in an environment, holding the
+     * lock on environment only while taking a snapshot of it.
+     * @param environment the environment to examine
+     * @param budgets creates the budget of the evaluation of each list, or null to evaluate
+     *  the lists without a budget
+     * @return the statistics of environment
+     */
+    public static EnvironmentStats compute(Environment environment, Supplier<EvaluationBudget> budgets) {
+        final long start = System.nanoTime();
+        final Environment overlay = environment.overlay();
+        final Map<Name, ListExpression> definitions = overlay.definitions();
+
+        // the dependency graph, in both directions
+        final Map<Name, Set<Name>> dependencies = new HashMap<>();
+        final Map<Name, Set<Name>> dependents = new HashMap<>();
+        for (Map.Entry<Name, ListExpression> definition : definitions.entrySet()) {
+            final Set<Name> names = names(definition.getValue(), new HashSet<>());
+            dependencies.put(definition.getKey(), names);
+            for (Name name : names) {
+                dependents.computeIfAbsent(name, n -> new HashSet<>()).add(definition.getKey());
+            }
+        }
+
+        final Map<Name, Integer> depths = new HashMap<>();
+        final List<ListStats> lists = new ArrayList<>(definitions.size());
+        for (Map.Entry<Name, ListExpression> definition : definitions.entrySet()) {
+            final Name name = definition.getKey();
+            final ListExpression expression = definition.getValue();
+            final Set<Name> direct = dependencies.get(name);
+            final Set<Name> directDependents = dependents.getOrDefault(name, Collections.<Name>emptySet());
+            lists.add(new ListStats(name, nodes(expression), height(expression, definitions, depths),
+                    direct.size(), reachable(name, dependencies), directDependents.size(),
+                    reachable(name, dependents), cardinality(name, overlay, budgets),
+                    ENTRY_BYTES + bytes(expression, Collections.newSetFromMap(new IdentityHashMap<>()))));
+        }
+        Collections.sort(lists, Comparator.comparingLong((ListStats list) -> -list.bytes)
+                .thenComparing(list -> list.name.toString()));
+        return new EnvironmentStats(lists, System.nanoTime() - start);
+    }
+
+    /**
+     * @return the statistics of every defined list, largest estimated retained bytes first
+     */
+    public List<ListStats> lists() {
+        return lists;
+    }
+
+    /**
+     * @return the time taken to compute the statistics, in nanoseconds
+     */
+    public long nanos() {
+        return nanos;
+    }
+
+    /**
+     * @return the total number of expression nodes of all definitions
+     */
+    public long totalNodes() {
+        long total = 0;
+        for (ListStats list : lists) {
+            total += list.nodes;
+        }
+        return total;
+    }
+
+    /**
+     * @return the total estimated bytes retained by all definitions
+     */
+    public long totalBytes() {
+        long total = 0;
+        for (ListStats list : lists) {
+            total += list.bytes;
+        }
+        return total;
+    }
+
+    /**
+     * @return the largest depth of any list, 0 if no list is defined
+     */
+    public int maxDepth() {
+        int max = 0;
+        for (ListStats list : lists) {
+            max = Math.max(max, list.depth);
+        }
+        return max;
+    }
+
+    /**
+     * @return the number of lists that could not be evaluated within their budget
+     */
+    public int overBudget() {
+        int count = 0;
+        for (ListStats list : lists) {
+            count += list.recipients < 0 ? 1 : 0;
+        }
+        return count;
+    }
+
+    /**
+     * The returned String has a header line and then one line per list, largest estimated
+     * retained bytes first, with the columns
+     *      bytes  nodes  depth  deps  deps*  users  users*  recipients  name
+     * where deps and users count the lists that the list depends on and that depend on it,
+     * directly and, marked by *, transitively, and recipients is "over budget" for lists
+     * that exceeded their budget. At most MAX_PRINTED_LISTS lists are printed. The last
+     * line gives the totals.
+     */
+    @Override
+    public String toString() {
+        final StringBuilder out = new StringBuilder(String.format("%12s %8s %6s %6s %6s %6s %6s %12s  %s%n",
+                "bytes", "nodes", "depth", "deps", "deps*", "users", "users*", "recipients", "name"));
+        for (ListStats list : lists.subList(0, Math.min(lists.size(), MAX_PRINTED_LISTS))) {
+            out.append(String.format("%12d %8d %6d %6d %6d %6d %6d %12s  %s%n", list.bytes, list.nodes, list.depth,
+                    list.dependencies, list.transitiveDependencies, list.dependents, list.transitiveDependents,
+                    list.recipients < 0 ? "over budget" : Integer.toString(list.recipients), list.name));
+        }
+        if (lists.size() > MAX_PRINTED_LISTS) {
+            out.append("... ").append(lists.size() - MAX_PRINTED_LISTS).append(" more lists\n");
+        }
+        out.append(String.format("total %d lists, %d nodes, %d bytes, max depth %d, %d over budget, in %.1f ms",
+                lists.size(), totalNodes(), totalBytes(), maxDepth(), overBudget(), nanos / NANOS_PER_MILLI));
+        return out.toString();
+    }
+
+    /**
+     * @param limit the maximum number of lists to include, must be non-negative
+     * @return the statistics as a JSON object with the totals and an array "lists" of the
+     *  first limit lists, largest estimated retained bytes first; recipients is -1 for lists
+     *  that exceeded their budget
+     */
+    public String toJson(int limit) {
+        final StringBuilder out = new StringBuilder(String.format(Locale.ROOT,
+                "{\"lists\":%d,\"nodes\":%d,\"bytes\":%d,\"maxDepth\":%d,\"overBudget\":%d,\"millis\":%.3f,\"top\":[",
+                lists.size(), totalNodes(), totalBytes(), maxDepth(), overBudget(), nanos / NANOS_PER_MILLI));
+        for (int i = 0; i < lists.size() && i < limit; i++) {
+            final ListStats list = lists.get(i);
+            out.append(i == 0 ? "" : ",")
+                    .append("{\"name\":").append(WebServer.jsonString(list.name.toString()))
+                    .append(",\"bytes\":").append(list.bytes)
+                    .append(",\"nodes\":").append(list.nodes)
+                    .append(",\"depth\":").append(list.depth)
+                    .append(",\"dependencies\":").append(list.dependencies)
+                    .append(",\"transitiveDependencies\":").append(list.transitiveDependencies)
+                    .append(",\"dependents\":").append(list.dependents)
+                    .append(",\"transitiveDependents\":").append(list.transitiveDependents)
+                    .append(",\"recipients\":").append(list.recipients)
+                    .append('}');
+        }
+        return out.append("]}").toString();
+    }
+
+    /**
+     * @param expression a list expression
+     * @return the operands of expression, in order for binary operators
+     */
+    private static List<ListExpression> operands(ListExpression expression) {
+        if (expression instanceof Union) {
+            return Arrays.asList(((Union) expression).getLeft(), ((Union) expression).getRight());
+        } else if (expression instanceof Intersect) {
+            return Arrays.asList(((Intersect) expression).getLeft(), ((Intersect) expression).getRight());
+        } else if (expression instanceof Difference) {
+            return Arrays.asList(((Difference) expression).getLeft(), ((Difference) expression).getRight());
+        } else if (expression instanceof Definition) {
+            return Arrays.asList(((Definition) expression).getName(), ((Definition) expression).getExpression());
+        } else {
+            return new ArrayList<>(expression.getChildren());
+        }
+    }
+
+    /**
+     * Adds the list names that appear in an expression to a set, without expanding them.
+     * @param expression a list expression
+     * @param names the set to add to
+     * @return names
+     */
+    private static Set<Name> names(ListExpression expression, Set<Name> names) {
+        if (expression instanceof Name) {
+            names.add((Name) expression);
+        }
+        for (ListExpression operand : operands(expression)) {
+            names(operand, names);
+        }
+        return names;
+    }
+
+    /**
+     * @param expression a list expression
+     * @return the number of nodes of expression, not expanding list names
+     */
+    private static int nodes(ListExpression expression) {
+        int nodes = 1;
+        for (ListExpression operand : operands(expression)) {
+            nodes += nodes(operand);
+        }
+        return nodes;
+    }
+
+    /**
+     * @param expression a list expression
+     * @param definitions the definitions to expand list names with
+     * @param depths the depths of the lists computed so far, updated
+     * @return the height of expression with list names expanded into their definitions
+     */
+    private static int height(ListExpression expression, Map<Name, ListExpression> definitions,
+            Map<Name, Integer> depths) {
+        if (expression instanceof Name) {
+            final Name name = (Name) expression;
+            final ListExpression definition = definitions.get(name);
+            if (definition == null) {
+                return 1;
+            }
+            Integer depth = depths.get(name);
+            if (depth == null) {
+                depth = height(definition, definitions, depths);
+                depths.put(name, depth);
+            }
+            return 1 + depth;
+        }
+        int height = 0;
+        for (ListExpression operand : operands(expression)) {
+            height = Math.max(height, height(operand, definitions, depths));
+        }
+        return 1 + height;
+    }
+
+    /**
+     * @param start a list name
+     * @param edges the lists adjacent to each list
+     * @return the number of lists reachable from start along edges, not counting start
+     */
+    private static int reachable(Name start, Map<Name, Set<Name>> edges) {
+        final Set<Name> seen = new HashSet<>();
+        final Deque<Name> pending = new ArrayDeque<>();
+        pending.add(start);
+        while (!pending.isEmpty()) {
+            for (Name next : edges.getOrDefault(pending.remove(), Collections.<Name>emptySet())) {
+                if (seen.add(next)) {
+                    pending.add(next);
+                }
+            }
+        }
+        seen.remove(start);
+        return seen.size();
+    }
+
+    /**
+     * @param name a list name
+     * @param overlay the overlay to evaluate name in
+     * @param budgets creates the budget of the evaluation, or null for no budget
+     * @return the number of recipients of name, or -1 if it exceeded its budget
+     */
+    private static int cardinality(Name name, Environment overlay, Supplier<EvaluationBudget> budgets) {
+        synchronized (overlay) {
+            try {
+                return budgets == null ? EvaluationBudget.evaluateUnlimited(name, overlay).size()
+                        : budgets.get().evaluate(name, overlay).size();
+            } catch (EvaluationBudget.BudgetExceededException e) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * @param expression a list expression
+     * @param counted the nodes counted so far, updated; a node in it is not counted again
+     * @return the estimated heap bytes of the nodes of expression not in counted, not
+     *  expanding list names
+     */
+    private static long bytes(ListExpression expression, Set<ListExpression> counted) {
+        if (!counted.add(expression)) {
+            return 0;
+        }
+        if (expression instanceof RecipientSet) {
+            // a RecipientSet evaluates to its own addresses without reading the environment
+            final Set<Recipient> recipients = expression.recipients(null);
+            long bytes = RECIPIENT_SET_BYTES + align(ARRAY_HEADER_BYTES + (long) REFERENCE_BYTES * recipients.size());
+            for (Recipient recipient : recipients) {
+                bytes += LEAF_BYTES + stringBytes(recipient.toString());
+            }
+            return bytes;
+        } else if (expression instanceof Recipient || expression instanceof Name
+                || expression instanceof Domain) {
+            return LEAF_BYTES + stringBytes(expression.toString());
+        } else if (expression instanceof Empty) {
+            return align(OBJECT_HEADER_BYTES);
+        }
+        long bytes = OPERATOR_BYTES;
+        for (ListExpression operand : operands(expression)) {
+            bytes += bytes(operand, counted);
+        }
+        return bytes;
+    }
+
+    /**
+     * @param value a string of Latin-1 characters
+     * @return the estimated heap bytes of value and its character array
+     */
+    private static long stringBytes(String value) {
+        return STRING_BYTES + align(ARRAY_HEADER_BYTES + (long) value.length());
+    }
+
+    /**
+     * @param bytes a size in bytes
+     * @return bytes rounded up to the 8-byte alignment of objects
+     */
+    private static int align(int bytes) {
+        return (bytes + 7) & ~7;
+    }
+
+    /**
+     * @param bytes a size in bytes
+     * @return bytes rounded up to the 8-byte alignment of objects
+     */
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+}
@@ -0,0 +1,591 @@
+package norn;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * The /eval/ web endpoint, independent of the HTTP implementation that serves it: evaluates
+ * a list expression taken from a request path against a shared environment and produces the
+ * HTML response, applying admission control, evaluation budgets and entity tags.
+ * Both WebServer and NioWebServer serve /eval/ through this class, so they answer every
+ * request identically.
+ */
+public class EvalEndpoint {
+    public static final int DEFAULT_MAX_CONCURRENT_EVALUATIONS = Runtime.getRuntime().availableProcessors();
+    public static final int DEFAULT_MAX_QUEUED_EVALUATIONS = 64;
+    public static final long DEFAULT_MAX_QUEUE_WAIT_MILLIS = 1000;
+    public static final long DEFAULT_MAX_NODE_VISITS = 10000000;
+    public static final long DEFAULT_MAX_RECIPIENTS = 200000000;
+    public static final long DEFAULT_MAX_EVALUATION_MILLIS = 10000;
+    public static final int DEFAULT_RESULT_CACHE_ENTRIES = 1024;
+    public static final long DEFAULT_RESULT_CACHE_BYTES = 64L * 1024 * 1024;
+    /** Value of the Retry-After header of responses to requests that were shed. */
+    public static final String RETRY_AFTER_SECONDS = "1";
+
+    private static final String MAIL_TO_DELIMITER = ",";
+    private static final String RECIPIENT_LIST_DELIMITER = ", ";
+    private static final String LINE_BREAK = "<br>";
+    private static final int MAIL_TO_OVERHEAD = 64;
+    private static final int EPOCH_BYTES = 8;
+    private static final int ENTITY_TAG_BYTES = 16;
+    private static final byte[] NO_BODY = new byte[0];
+
+    private final Environment environment;
+    private final byte[] epoch = new byte[EPOCH_BYTES];
+    private volatile AdmissionControl admission = new AdmissionControl(
+            DEFAULT_MAX_CONCURRENT_EVALUATIONS, DEFAULT_MAX_QUEUED_EVALUATIONS, DEFAULT_MAX_QUEUE_WAIT_MILLIS);
+    private volatile long maxNodeVisits = DEFAULT_MAX_NODE_VISITS;
+    private volatile long maxRecipients = DEFAULT_MAX_RECIPIENTS;
+    private volatile long maxEvaluationMillis = DEFAULT_MAX_EVALUATION_MILLIS;
+    private volatile Mode mode = Mode.LOCKED;
+    private volatile ResultCache resultCache = new ResultCache(DEFAULT_RESULT_CACHE_ENTRIES, DEFAULT_RESULT_CACHE_BYTES);
+    private volatile SlowQueryLog slowQueryLog = null;
+
+    // AF(environment, epoch, admission, maxNodeVisits, maxRecipients, maxEvaluationMillis,
+    //    mode, resultCache, slowQueryLog) =
+    //      the /eval/ endpoint over environment, where epoch is a random value that keeps entity
+    //      tags of different server runs apart. Evaluating requests are admitted by admission, and
+    //      each evaluation may visit at most maxNodeVisits nodes, produce at most maxRecipients
+    //      recipients and take at most maxEvaluationMillis. Requests are evaluated in mode.
+    //      resultCache holds the rendered
+    //      responses to recent expressions without definitions. Slow evaluations are logged
+    //      to slowQueryLog unless it is null.
+    // RI: true
+    // Rep exposure: all fields are private; environment is shared on purpose with the server
+    //               that owns this endpoint, and the other fields are never returned.
+    // Thread safety: in LOCKED mode, all accesses to environment acquire the lock on the
+    //                environment object. Otherwise each request reads environment through its own
+    //                overlay, which is confined to the request's thread, and only commit() takes
+    //                the lock.
+    //                admission, resultCache and slowQueryLog are threadsafe and the configuration fields
+    //                are volatile.
+
+    /**
+     * How the definitions in a request affect the shared environment.
+     */
+    public enum Mode {
+        /** Evaluate in the shared environment while holding its lock; definitions persist. */
+        LOCKED,
+        /** Evaluate in a private overlay without holding the lock; definitions are discarded. */
+        READ_ONLY,
+        /** Evaluate in a private overlay without holding the lock; definitions are then applied
+         *  to the shared environment as one atomic batch, unless they create a mail loop. */
+        COMMIT
+    }
+
+    /**
+     * An immutable response of the /eval/ endpoint.
+     */
+    public static class Response {
+        private final int status;
+        private final String entityTag;
+        private final boolean shed;
+        private final byte[] body;
+
+        // AF(status, entityTag, shed, body) = an HTTP response with status code status and the
+        //      UTF-8 encoded HTML body, carrying an ETag header if entityTag is not null and a Retry-After
+        //      header if the request was shed
+        // RI: body is empty if status is 304
+        // Rep exposure: body may be shared with a ResultCache entry, and is only returned to
+        //               callers that promise not to modify it.
+
+        private Response(int status, String entityTag, boolean shed, byte[] body) {
+            this.status = status;
+            this.entityTag = entityTag;
+            this.shed = shed;
+            this.body = body;
+        }
+
+        /**
+         * @return the HTTP status code of the response
+         */
+        public int status() {
+            return status;
+        }
+
+        /**
+         * @return the value of the ETag header, or null if the response has none
+         */
+        public String entityTag() {
+            return entityTag;
+        }
+
+        /**
+         * @return the value of the Retry-After header, or null if the response has none
+         */
+        public String retryAfter() {
+            return shed ? RETRY_AFTER_SECONDS : null;
+        }
+
+        /**
+         * @return the HTML body of the response in UTF-8, empty for 304 responses; must not
+         *  be modified
+         */
+        public byte[] body() {
+            return body;
+        }
+    }
+
+    /**
+     * Create the /eval/ endpoint of an environment.
+     * @param environment the shared environment that requests are evaluated in
+     */
+    public EvalEndpoint(Environment environment) {
+        this.environment = environment;
+        new SecureRandom().nextBytes(epoch);
+    }
+
+    /**
+     * Configures admission control of requests that evaluate list expressions. Requests
+     * that find maxQueued requests already waiting, or that wait longer than maxWaitMillis,
+     * are rejected with status 503.
+     * @param maxConcurrent maximum number of evaluating requests at a time, must be positive
+     * @param maxQueued maximum number of requests waiting to evaluate, must be non-negative
+     * @param maxWaitMillis maximum time a request waits to evaluate, must be non-negative
+     */
+    public void setAdmission(int maxConcurrent, int maxQueued, long maxWaitMillis) {
+        admission = new AdmissionControl(maxConcurrent, maxQueued, maxWaitMillis);
+    }
+
+    /**
+     * Configures the budget of each evaluation of a list expression. Evaluations that exceed
+     * it are stopped and answered with status 422.
+     * @param maxNodeVisits maximum number of expression nodes visited, must be positive
+     * @param maxRecipients maximum number of recipients produced by all nodes, must be positive
+     * @param maxMillis maximum wall time of an evaluation in milliseconds, must be positive
+     */
+    public void setEvaluationBudget(long maxNodeVisits, long maxRecipients, long maxMillis) {
+        this.maxNodeVisits = maxNodeVisits;
+        this.maxRecipients = maxRecipients;
+        this.maxEvaluationMillis = maxMillis;
+    }
+
+    /**
+     * Configures the cache of rendered responses to expressions without definitions, and
+     * empties it. A cached response is served without evaluating or formatting the expression
+     * again for as long as no list that the expression depends on is redefined.
+     * @param maxEntries maximum number of cached responses, or 0 to disable the cache
+     * @param maxBytes maximum total size of the cached responses in bytes, must be non-negative
+     */
+    public void setResultCache(int maxEntries, long maxBytes) {
+        resultCache = new ResultCache(maxEntries, maxBytes);
+    }
+
+    /**
+     * Configures how definitions in /eval/ requests affect the shared environment.
+     * @param mode the evaluation mode of /eval/ requests
+     */
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * Configures the log of slow evaluations of /eval/ and /api/eval/ requests. Requests
+     * served from the result cache are not evaluated and therefore never logged.
+     * @param log the log to record evaluations in, or null to log nothing
+     */
+    public void setSlowQueryLog(SlowQueryLog log) {
+        this.slowQueryLog = log;
+    }
+
+    /**
+     * @return the admission control that evaluating requests must pass
+     */
+    public AdmissionControl admission() {
+        return admission;
+    }
+
+    /**
+     * Answers an /eval/ request.
+     * @param expression the list expression from the request path, already URL-decoded
+     * @param ifNoneMatch the value of the If-None-Match request header, or null if there is none
+     * @return the response to the request
+     */
+    public Response respond(String expression, String ifNoneMatch) {
+        final AdmissionControl admitted = admission;
+        if (!admitted.tryAcquire()) {
+            Metrics.SHED_REQUESTS.increment();
+            return new Response(503, null, true, (
+                    "<p>The server is busy evaluating other list expressions. Please try again later.</p>"
+                    + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+        }
+        final ResultCache cache = resultCache;
+        int status = 200;
+        String response = null;
+        String entityTag = null;
+        String cacheKey = null;
+        Map<Name, Long> versions = null;
+        long environmentVersion = 0;
+        final long start = System.nanoTime();
+        ListExpression parsed = null;
+        Set<Recipient> recipients = null;
+        String outcome = SlowQueryLog.OK;
+        long parseNanos = 0;
+        long lockWaitNanos = 0;
+        // Get recipients of list expression from this GET request
+        try {
+            parsed = ListExpression.parse(expression);
+            final Mode evaluationMode = mode;
+            final Environment target = target(evaluationMode);
+            final long waitStart = System.nanoTime();
+            parseNanos = waitStart - start;
+            final Object waitEvent = target == environment ? Tracing.begin(Tracing.Kind.LOCK_WAIT) : null;
+            synchronized (target) {
+                lockWaitNanos = System.nanoTime() - waitStart;
+                if (target == environment) {
+                    Metrics.LOCK_WAIT_NANOS.record(lockWaitNanos);
+                    Tracing.endLockWait(waitEvent, "eval");
+                }
+                // expressions without definitions leave the environment unchanged, so their
+                // result only changes when a list they depend on is redefined
+                if (!containsDefinition(parsed)) {
+                    // names are case-insensitive and addresses are already lower case
+                    cacheKey = parsed.toString().toLowerCase(Locale.ROOT);
+                    final ResultCache.Entry cached = cache.get(cacheKey, target);
+                    if (cached != null) {
+                        Metrics.RESULT_CACHE_HITS.increment();
+                        if (entityTagMatches(ifNoneMatch, cached.entityTag())) {
+                            return new Response(304, cached.entityTag(), false, NO_BODY);
+                        }
+                        return new Response(200, cached.entityTag(), false, cached.body());
+                    }
+                    Metrics.RESULT_CACHE_MISSES.increment();
+                    if (target.referencesDomain(parsed)) {
+                        // a domain depends on every list, so its result is neither cached
+                        // nor tagged
+                        cacheKey = null;
+                    } else {
+                        final Set<Name> names = target.referencedNames(parsed);
+                        entityTag = entityTag(parsed, target, names);
+                        if (entityTagMatches(ifNoneMatch, entityTag)) {
+                            return new Response(304, entityTag, false, NO_BODY);
+                        }
+                        versions = ResultCache.versions(target, names);
+                        environmentVersion = target.version();
+                    }
+                }
+                recipients = evaluateLocked(parsed, target);
+                if (evaluationMode == Mode.COMMIT) {
+                    target.commit();
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            outcome = SlowQueryLog.INVALID;
+            cacheKey = null;
+            response = "<p>Invalid list expression (after http://localhost ... eval/). Please change to a valid list expression."
+                + " For valid list expressions, see specifications for Norn1 and Norn2.</p>";
+        } catch (AssertionError e) {
+            outcome = SlowQueryLog.MAIL_LOOP;
+            cacheKey = null;
+            Metrics.MAIL_LOOPS.increment();
+            response = "<p>Oops! You created a mail loop. Mutually recursive definitions are not allowed."
+                    + " For valid list expressions, see specifications for Norn1 and Norn2.</p>";
+        } catch (EvaluationBudget.BudgetExceededException e) {
+            outcome = SlowQueryLog.BUDGET_EXCEEDED;
+            status = 422;
+            entityTag = null;
+            cacheKey = null;
+            response = "<p>This list expression is too expensive to evaluate: " + e.getMessage() + "."
+                    + " Please simplify it or split it into smaller expressions.</p>";
+        } finally {
+            admitted.release();
+        }
+        logSlowQuery("eval", outcome, expression, parsed, recipients, start, parseNanos, lockWaitNanos);
+        if (recipients != null) {
+            response = formatRecipients(recipients);
+        }
+        final byte[] body = (response + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+        if (cacheKey != null) {
+            cache.put(cacheKey, versions, environmentVersion, body, entityTag);
+        }
+        return new Response(status, entityTag, false, body);
+    }
+
+    /**
+     * Parses and evaluates a list expression within a new evaluation budget. The caller is
+     * responsible for admission control.
+     * @param expression a list expression as defined in Norn2
+     * @param evaluationMode how definitions in expression affect the environment
+     * @return the recipients of expression
+     * @throws IllegalArgumentException if expression is not a valid list expression
+     * @throws AssertionError if expression creates a mail loop
+     * @throws EvaluationBudget.BudgetExceededException if the evaluation exceeds its budget
+     */
+    public Set<Recipient> evaluate(String expression, Mode evaluationMode) {
+        final long start = System.nanoTime();
+        ListExpression parsed = null;
+        Set<Recipient> recipients = null;
+        String outcome = SlowQueryLog.OK;
+        long parseNanos = 0;
+        long lockWaitNanos = 0;
+        try {
+            parsed = ListExpression.parse(expression);
+            final Environment target = target(evaluationMode);
+            final long waitStart = System.nanoTime();
+            parseNanos = waitStart - start;
+            final Object waitEvent = target == environment ? Tracing.begin(Tracing.Kind.LOCK_WAIT) : null;
+            synchronized (target) {
+                lockWaitNanos = System.nanoTime() - waitStart;
+                if (target == environment) {
+                    Metrics.LOCK_WAIT_NANOS.record(lockWaitNanos);
+                    Tracing.endLockWait(waitEvent, "api");
+                }
+                recipients = evaluateLocked(parsed, target);
+                if (evaluationMode == Mode.COMMIT) {
+                    target.commit();
+                }
+                return recipients;
+            }
+        } catch (RuntimeException | AssertionError e) {
+            outcome = SlowQueryLog.outcome(e);
+            throw e;
+        } finally {
+            logSlowQuery("api", outcome, expression, parsed, recipients, start, parseNanos, lockWaitNanos);
+        }
+    }
+
+    /**
+     * Records an evaluation in the slow query log, if there is one. Must be called without
+     * the lock on the environment.
+     * @param source where the expression came from
+     * @param outcome how the evaluation ended, as in SlowQueryLog.record()
+     * @param input the expression as requested
+     * @param parsed input parsed, or null if it could not be parsed
+     * @param recipients the recipients of parsed, or null if evaluation failed
+     * @param start the value of System.nanoTime() before input was parsed
+     * @param parseNanos the time spent parsing input, if it was parsed
+     * @param lockWaitNanos the time spent waiting for the lock, if it was acquired
+     */
+    private void logSlowQuery(String source, String outcome, String input, ListExpression parsed,
+            Set<Recipient> recipients, long start, long parseNanos, long lockWaitNanos) {
+        final SlowQueryLog log = slowQueryLog;
+        if (log == null) {
+            return;
+        }
+        final long total = System.nanoTime() - start;
+        if (parsed == null) {
+            log.record(source, outcome, input, null, -1, total, 0, 0);
+        } else {
+            log.record(source, outcome, input, parsed, recipients == null ? -1 : recipients.size(),
+                    parseNanos, lockWaitNanos, total - parseNanos - lockWaitNanos);
+        }
+    }
+
+    /**
+     * Evaluates a list expression without definitions with instrumentation, within a new
+     * evaluation budget and in the environment or overlay of the configured mode. The caller
+     * is responsible for admission control.
+     * @param expression a list expression as defined in Norn2, without definitions
+     * @return the measurements and result of the evaluation
+     * @throws IllegalArgumentException if expression is not a valid list expression or
+     *  contains definitions or sequences
+     * @throws EvaluationBudget.BudgetExceededException if the evaluation exceeds its budget
+     */
+    public Explain explain(String expression) {
+        final ListExpression parsed = ListExpression.parse(expression);
+        final Environment target = target(mode);
+        final long waitStart = System.nanoTime();
+        final Object waitEvent = target == environment ? Tracing.begin(Tracing.Kind.LOCK_WAIT) : null;
+        synchronized (target) {
+            if (target == environment) {
+                Metrics.LOCK_WAIT_NANOS.record(System.nanoTime() - waitStart);
+                Tracing.endLockWait(waitEvent, "explain");
+            }
+            try {
+                return Explain.analyze(parsed, target, new EvaluationBudget(maxNodeVisits, maxRecipients, maxEvaluationMillis));
+            } catch (EvaluationBudget.BudgetExceededException e) {
+                Metrics.BUDGET_EXCEEDED.increment();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Determines whether an address is a recipient of a list in the shared environment, as
+     * Environment.contains(), within a new evaluation budget as configured by
+     * setEvaluationBudget(). The caller is responsible for admission control.
+     * @param list any list name
+     * @param recipient any recipient
+     * @return true if recipient is a recipient of list
+     * @throws EvaluationBudget.BudgetExceededException if walking the list exceeds its budget
+     * @throws AssertionError if walking the list reaches a mail loop
+     */
+    public boolean contains(Name list, Recipient recipient) {
+        try {
+            return new EvaluationBudget(maxNodeVisits, maxRecipients, maxEvaluationMillis)
+                    .contains(list, recipient, environment);
+        } catch (EvaluationBudget.BudgetExceededException e) {
+            Metrics.BUDGET_EXCEEDED.increment();
+            throw e;
+        }
+    }
+
+    /**
+     * Subscribes to the changes in the membership of a list in the shared environment, as
+     * ListWatcher.subscribe(), evaluating the list, if it is not watched yet, within a new
+     * evaluation budget as configured by setEvaluationBudget(). The caller is responsible
+     * for admission control.
+     * @param watcher the watcher of the shared environment
+     * @param list the list to watch
+     * @return the queue of events for the new subscriber
+     * @throws EvaluationBudget.BudgetExceededException if evaluating the list exceeds its budget
+     * @throws AssertionError if the environment has a mail loop
+     */
+    public BlockingQueue<String> subscribe(ListWatcher watcher, Name list) {
+        try {
+            return watcher.subscribe(list, new EvaluationBudget(maxNodeVisits, maxRecipients, maxEvaluationMillis));
+        } catch (EvaluationBudget.BudgetExceededException e) {
+            Metrics.BUDGET_EXCEEDED.increment();
+            throw e;
+        }
+    }
+
+    /**
+     * Computes the statistics of the lists in the shared environment, evaluating each list
+     * within its own evaluation budget, without holding the lock on the environment except
+     * to take a snapshot. The caller is responsible for admission control.
+     * @return the statistics of the environment
+     */
+    public EnvironmentStats stats() {
+        final long visits = maxNodeVisits;
+        final long recipients = maxRecipients;
+        final long millis = maxEvaluationMillis;
+        return EnvironmentStats.compute(environment, () -> new EvaluationBudget(visits, recipients, millis));
+    }
+
+    /**
+     * @param evaluationMode how definitions in a request affect the environment
+     * @return the environment to evaluate a request in: environment itself in LOCKED mode,
+     *  and a new overlay of environment otherwise
+     */
+    private Environment target(Mode evaluationMode) {
+        return evaluationMode == Mode.LOCKED ? environment : environment.overlay();
+    }
+
+    /**
+     * Evaluates a parsed expression within a new evaluation budget, as configured by
+     * setEvaluationBudget(). Requires the lock on target.
+     * @param parsed the expression to evaluate
+     * @param target the environment or overlay to evaluate parsed in
+     * @return the recipients of parsed
+     * @throws EvaluationBudget.BudgetExceededException if the evaluation exceeds its budget
+     */
+    private Set<Recipient> evaluateLocked(ListExpression parsed, Environment target) {
+        final long start = System.nanoTime();
+        final Object event = Tracing.begin(Tracing.Kind.EVALUATION);
+        int size = -1;
+        try {
+            final Set<Recipient> recipients = new EvaluationBudget(maxNodeVisits, maxRecipients, maxEvaluationMillis)
+                    .evaluate(parsed, target);
+            size = recipients.size();
+            return recipients;
+        } catch (EvaluationBudget.BudgetExceededException e) {
+            Metrics.BUDGET_EXCEEDED.increment();
+            throw e;
+        } finally {
+            Metrics.EVALUATION_NANOS.record(System.nanoTime() - start);
+            Tracing.endEvaluation(event, parsed, size);
+        }
+    }
+
+    /**
+     * Formats the recipients of a list expression as the HTML body of an /eval/ response:
+     * a mailto link addressed to all recipients, followed by the list of recipients.
+     * @param recipients the recipients to format
+     * @return the HTML response body for recipients
+     */
+    static String formatRecipients(Set<Recipient> recipients) {
+        if (recipients.isEmpty()) {
+            return "<a href=\"mailto:\">email these recipients</a>" + LINE_BREAK + Main.EMPTY_LIST;
+        }
+        // Create mailto and recipient lists for output
+        final StringBuilder mailToList = new StringBuilder();
+        final StringBuilder recipientList = new StringBuilder();
+        for (Recipient r : recipients) {
+            if (recipientList.length() > 0) {
+                mailToList.append(MAIL_TO_DELIMITER);
+                recipientList.append(RECIPIENT_LIST_DELIMITER);
+            }
+            mailToList.append(r);
+            recipientList.append(r);
+        }
+        // Create mailto message and full response message
+        return new StringBuilder(mailToList.length() + recipientList.length() + MAIL_TO_OVERHEAD)
+                .append("<a href=\"mailto:").append(mailToList).append("\">email these recipients</a>")
+                .append(LINE_BREAK).append(recipientList)
+                .toString();
+    }
+
+    /**
+     * Computes the entity tag of the response to an expression without definitions. The tag
+     * is derived from the expression and the versions of all lists it depends on, so it
+     * changes exactly when one of those lists is redefined. Requires the lock on target.
+     * @param parsed a list expression that contains no definitions
+     * @param target the environment or overlay that parsed is evaluated in
+     * @param referencedNames the names that parsed depends on, as returned by
+     *  target.referencedNames()
+     * @return a strong HTTP entity tag for the response to parsed
+     */
+    private String entityTag(ListExpression parsed, Environment target, Set<Name> referencedNames) {
+        final List<Name> names = new ArrayList<>(referencedNames);
+        Collections.sort(names, Comparator.comparing(Name::toString));
+        final StringBuilder state = new StringBuilder(parsed.toString());
+        for (Name name : names) {
+            state.append('\n').append(name).append('=').append(target.version(name));
+        }
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(epoch);
+            final byte[] hash = digest.digest(state.toString().getBytes(StandardCharsets.UTF_8));
+            return "\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(hash, ENTITY_TAG_BYTES)) + "\"";
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-256 is always supported", e);
+        }
+    }
+
+    /**
+     * @param ifNoneMatch the value of an If-None-Match request header, or null if there is none
+     * @param entityTag the entity tag of the current response
+     * @return true if ifNoneMatch matches entityTag, i.e. the client's copy is current
+     */
+    private static boolean entityTagMatches(String ifNoneMatch, String entityTag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            final String trimmed = tag.trim();
+            if (trimmed.equals("*") || trimmed.equals(entityTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param expression any list expression
+     * @return true if expression contains a Definition or Sequence, false otherwise
+     */
+    static boolean containsDefinition(ListExpression expression) {
+        if (expression instanceof Definition || expression instanceof Sequence) {
+            return true;
+        }
+        for (ListExpression child : expression.getChildren()) {
+            if (containsDefinition(child)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,178 @@
+package norn;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A limit on the work that one evaluation of a list expression may do: the number of
+ * expression nodes visited, the number of recipients produced by all nodes together, and
+ * the wall time. The budget is enforced cooperatively: while an expression is evaluated
+ * with evaluate(), every node charges the budget of the current thread and evaluation
+ * stops with a BudgetExceededException as soon as a limit is exceeded or the budget is
+ * cancelled from another thread.
+ * 
+ * Definitions made by the expression before the budget ran out remain in the environment.
+ */
+public class EvaluationBudget {
+    private static final ThreadLocal<EvaluationBudget> CURRENT = new ThreadLocal<>();
+
+    private final long maxVisits;
+    private final long maxRecipients;
+    private final long maxNanos;
+    private long start;
+    private long visits = 0;
+    private long recipients = 0;
+    private volatile boolean cancelled = false;
+
+    // AF(maxVisits, maxRecipients, maxNanos, start, visits, recipients, cancelled) = a budget of
+    //      maxVisits node visits, maxRecipients produced recipients and maxNanos nanoseconds since
+    //      start, of which visits visits and recipients recipients have been used, and which may
+    //      no longer be used at all if cancelled
+    // RI: maxVisits, maxRecipients, maxNanos > 0; visits, recipients >= 0
+    // Rep exposure: all fields are private primitives.
+    // Thread safety: start, visits and recipients are only accessed by the thread that runs
+    //                evaluate() or contains(); cancelled is volatile so that cancel() may be called from any thread.
+
+    /**
+     * Thrown when an evaluation exceeds its budget or its budget is cancelled.
+     */
+    public static class BudgetExceededException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * @param message which limit was exceeded
+         */
+        public BudgetExceededException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Create a new budget.
+     * @param maxVisits maximum number of expression nodes visited, must be positive
+     * @param maxRecipients maximum number of recipients produced by all nodes, must be positive
+     * @param maxMillis maximum wall time of the evaluation in milliseconds, must be positive
+     */
+    public EvaluationBudget(long maxVisits, long maxRecipients, long maxMillis) {
+        this.maxVisits = maxVisits;
+        this.maxRecipients = maxRecipients;
+        this.maxNanos = TimeUnit.MILLISECONDS.toNanos(maxMillis);
+        checkRep();
+    }
+
+    /**
+     * Check that the rep invariant is maintained.
+     */
+    private void checkRep() {
+        assert maxVisits > 0;
+        assert maxRecipients > 0;
+        assert maxNanos > 0;
+        assert visits >= 0;
+        assert recipients >= 0;
+    }
+
+    /**
+     * Evaluate an expression within this budget. The wall time limit counts from this call.
+     * Requires the lock on environment, like ListExpression.recipients().
+     * @param expression the expression to evaluate
+     * @param environment the environment to evaluate it in
+     * @return the recipients of expression
+     * @throws BudgetExceededException if the evaluation exceeds this budget or it is cancelled
+     */
+    public Set<Recipient> evaluate(ListExpression expression, Environment environment) {
+        final EvaluationBudget previous = CURRENT.get();
+        CURRENT.set(this);
+        start = System.nanoTime();
+        try {
+            return expression.recipients(environment);
+        } finally {
+            CURRENT.set(previous);
+        }
+    }
+
+    /**
+     * Determine within this budget whether an address is a recipient of a list, as
+     * Environment.contains() does: the nodes of the list that are walked are charged to
+     * this budget. The wall time limit counts from this call.
+     * @param list any list name
+     * @param recipient any recipient
+     * @param environment the environment list is defined in
+     * @return environment.contains(list, recipient)
+     * @throws BudgetExceededException if the walk exceeds this budget or it is cancelled
+     * @throws AssertionError if the walk reaches a mail loop
+     */
+    public boolean contains(Name list, Recipient recipient, Environment environment) {
+        final EvaluationBudget previous = CURRENT.get();
+        CURRENT.set(this);
+        start = System.nanoTime();
+        try {
+            return environment.contains(list, recipient);
+        } finally {
+            CURRENT.set(previous);
+        }
+    }
+
+    /**
+     * Evaluate an expression without any budget, even if the current thread is running an
+     * evaluation with a budget. Used for work done on behalf of the environment rather than
+     * of the current request.
+     * @param expression the expression to evaluate
+     * @param environment the environment to evaluate it in
+     * @return the recipients of expression
+     */
+    public static Set<Recipient> evaluateUnlimited(ListExpression expression, Environment environment) {
+        final EvaluationBudget previous = CURRENT.get();
+        CURRENT.remove();
+        try {
+            return expression.recipients(environment);
+        } finally {
+            CURRENT.set(previous);
+        }
+    }
+
+    /**
+     * Stop the evaluation using this budget at the next node it visits.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Charge one node visit to the budget of the current thread, if any.
+     * Called by every node at the start of recipients().
+     * @throws BudgetExceededException if the budget is exhausted or cancelled
+     */
+    public static void visit() {
+        final EvaluationBudget budget = CURRENT.get();
+        if (budget == null) {
+            return;
+        }
+        if (budget.cancelled) {
+            throw new BudgetExceededException("evaluation cancelled");
+        }
+        if (++budget.visits > budget.maxVisits) {
+            throw new BudgetExceededException("evaluation visited more than " + budget.maxVisits + " nodes");
+        }
+        if (System.nanoTime() - budget.start > budget.maxNanos) {
+            throw new BudgetExceededException("evaluation took longer than "
+                    + TimeUnit.NANOSECONDS.toMillis(budget.maxNanos) + " ms");
+        }
+    }
+
+    /**
+     * Charge produced recipients to the budget of the current thread, if any.
+     * Called by every node that builds a new set of recipients.
+     * @param count the number of recipients produced
+     * @throws BudgetExceededException if the budget is exhausted
+     */
+    public static void produced(int count) {
+        final EvaluationBudget budget = CURRENT.get();
+        if (budget == null) {
+            return;
+        }
+        budget.recipients += count;
+        if (budget.recipients > budget.maxRecipients) {
+            throw new BudgetExceededException("evaluation produced more than " + budget.maxRecipients + " recipients");
+        }
+    }
+}
@@ -0,0 +1,369 @@
+package norn;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The result of evaluating a list expression with instrumentation, like EXPLAIN ANALYZE in
+ * SQL databases: the expression tree, with every list name expanded into its definition,
+ * where each node is annotated with the wall time spent in it and its subtree, the sizes of
+ * the sets its operands produced and of the set it produced, and the number of list names
+ * resolved in its subtree.
+ *
+ * Evaluation has no cache of intermediate results, so a list that is referenced several
+ * times in one expression is evaluated every time. Such repeated resolutions are counted
+ * separately: they are what a cache of list results would save, and often the first place
+ * to restructure. The subtree of a repeated list is evaluated and timed, but only printed
+ * the first time.
+ *
+ * The expression is evaluated by a copy of its tree in which every node is wrapped in a
+ * probe that measures it, so evaluating without EXPLAIN is not slowed down. Expressions
+ * with definitions or sequences cannot be explained, since the probes would be stored in
+ * the environment.
+ */
+public class Explain {
+    /** Maximum number of nodes printed by toString(). */
+    static final int MAX_PRINTED_NODES = 1000;
+    private static final String INDENT = "  ";
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    private final Probe root;
+    private final Set<Recipient> recipients;
+    private final long nanos;
+
+    // AF(root, recipients, nanos) = the evaluation of the expression that root probes, which
+    //      took nanos nanoseconds and resulted in recipients, where root and its descendants
+    //      give the measurements of the nodes of the expression tree
+    // RI: root has been evaluated; nanos >= 0
+    // Rep exposure: all fields are private and final; recipients is returned unmodifiable
+    //               and the probes are never returned.
+    // Thread safety: an Explain is built by one thread and immutable afterwards.
+
+    /**
+     * A node of the instrumented copy of an expression: evaluates its node of the original
+     * expression, with probes as operands, and records the measurements of that evaluation.
+     */
+    private static class Probe implements ListExpression {
+        private final ListExpression original;
+        private final ListExpression instrumented;
+        private final List<Probe> operands = new ArrayList<>();
+        private final Set<Name> resolved;
+        private boolean evaluated = false;
+        private boolean repeated = false;
+        private long nanos = 0;
+        private int size = 0;
+
+        // AF(original, instrumented, operands, resolved, evaluated, repeated, nanos, size) =
+        //      a probe of the node original, which evaluates it as instrumented, a copy with
+        //      operands as its operands, or, for a list name, by resolving it into a probe
+        //      of its definition, the only operand; once evaluated, the evaluation took nanos
+        //      and produced size recipients, and if original is a name that was already in
+        //      resolved, the names resolved so far in the whole evaluation, it is repeated
+        // RI: operands.size() <= 2; nanos, size >= 0
+        // Rep exposure: all fields are private, and probes are only shared with the Explain
+        //               that created them.
+        // Thread safety: confined to the thread that evaluates the expression.
+
+        /**
+         * Create a probe of an expression and, except for list names, of its operands.
+         * @param original the expression to probe, which contains no definitions or sequences
+         * @param resolved the names resolved so far in the evaluation, shared by all probes
+         */
+        Probe(ListExpression original, Set<Name> resolved) {
+            this.original = original;
+            this.resolved = resolved;
+            if (original instanceof Union) {
+                final Union union = (Union) original;
+                this.instrumented = new Union(operand(union.getLeft()), operand(union.getRight()));
+            } else if (original instanceof Intersect) {
+                final Intersect intersect = (Intersect) original;
+                this.instrumented = new Intersect(operand(intersect.getLeft()), operand(intersect.getRight()));
+            } else if (original instanceof Difference) {
+                final Difference difference = (Difference) original;
+                this.instrumented = new Difference(operand(difference.getLeft()), operand(difference.getRight()));
+            } else {
+                // list names are resolved when they are evaluated; the other nodes are leaves
+                this.instrumented = original;
+            }
+        }
+
+        /**
+         * @param expression an operand of original
+         * @return a new probe of expression, added to operands
+         */
+        private Probe operand(ListExpression expression) {
+            final Probe probe = new Probe(expression, resolved);
+            operands.add(probe);
+            return probe;
+        }
+
+        @Override
+        public Set<Recipient> recipients(Environment environment) {
+            final long start = System.nanoTime();
+            final Set<Recipient> result;
+            if (original instanceof Name) {
+                EvaluationBudget.visit();
+                repeated = !resolved.add((Name) original);
+                synchronized (environment) {
+                    final ListExpression definition = environment.getExpression((Name) original);
+                    result = original.equals(definition) ? Collections.<Recipient>emptySet()
+                            : operand(definition).recipients(environment);
+                }
+            } else {
+                result = instrumented.recipients(environment);
+            }
+            nanos = System.nanoTime() - start;
+            size = result.size();
+            evaluated = true;
+            return result;
+        }
+
+        @Override
+        public Set<ListExpression> getChildren() {
+            return original.getChildren();
+        }
+
+        @Override
+        public Set<ListExpression> getDependents(Environment environment) {
+            return original.getDependents(environment);
+        }
+
+        @Override
+        public String toString() {
+            return original.toString();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return this == obj;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(this);
+        }
+
+        /**
+         * @return the wall time of the operands of this probe, in nanoseconds
+         */
+        long operandNanos() {
+            long total = 0;
+            for (Probe operand : operands) {
+                total += operand.nanos;
+            }
+            return total;
+        }
+
+        /**
+         * @return the number of list names resolved in the subtree of this probe, including
+         *  repeated resolutions
+         */
+        int resolutions() {
+            int total = original instanceof Name && evaluated ? 1 : 0;
+            for (Probe operand : operands) {
+                total += operand.resolutions();
+            }
+            return total;
+        }
+
+        /**
+         * @return the number of repeated list name resolutions in the subtree of this probe
+         */
+        int repeats() {
+            int total = repeated ? 1 : 0;
+            for (Probe operand : operands) {
+                total += operand.repeats();
+            }
+            return total;
+        }
+
+        /**
+         * @return the number of probes in the subtree of this probe, including this one
+         */
+        int nodes() {
+            int total = 1;
+            for (Probe operand : operands) {
+                total += operand.nodes();
+            }
+            return total;
+        }
+
+        /**
+         * @return a short description of the node, without its operands
+         */
+        String label() {
+            if (original instanceof Union) {
+                return "union";
+            } else if (original instanceof Intersect) {
+                return "intersect";
+            } else if (original instanceof Difference) {
+                return "difference";
+            } else if (original instanceof Name) {
+                return "list " + original;
+            } else if (original instanceof RecipientSet) {
+                return "address set";
+            } else if (original instanceof Domain) {
+                return "domain " + original;
+            } else if (original instanceof Empty) {
+                return "empty";
+            } else {
+                return "recipient " + original;
+            }
+        }
+    }
+
+    /**
+     * Create the result of an instrumented evaluation.
+     * @param root the evaluated probe of the expression
+     * @param recipients the recipients of the expression
+     * @param nanos the wall time of the evaluation in nanoseconds
+     */
+    private Explain(Probe root, Set<Recipient> recipients, long nanos) {
+        this.root = root;
+        this.recipients = recipients;
+        this.nanos = nanos;
+        checkRep();
+    }
+
+    /**
+     * Check that the rep invariant is maintained.
+     */
+    private void checkRep() {
+        assert root.evaluated;
+        assert nanos >= 0;
+    }
+
+    /**
+     * Evaluates an expression with instrumentation, under the lock on environment.
+     * @param expression the expression to evaluate; must not contain definitions or sequences
+     * @param environment the environment to evaluate expression in
+     * @param budget the budget of the evaluation, or null to evaluate with the budget of the
+     *  current thread, if any
+     * @return the measurements and result of the evaluation
+     * @throws IllegalArgumentException if expression contains a definition or sequence
+     * @throws EvaluationBudget.BudgetExceededException if the evaluation exceeds its budget
+     */
+    public static Explain analyze(ListExpression expression, Environment environment, EvaluationBudget budget) {
+        if (EvalEndpoint.containsDefinition(expression)) {
+            throw new IllegalArgumentException("expressions with definitions or sequences cannot be explained");
+        }
+        final Probe root = new Probe(expression, new HashSet<>());
+        synchronized (environment) {
+            final long start = System.nanoTime();
+            final Set<Recipient> recipients = budget == null ? root.recipients(environment)
+                    : budget.evaluate(root, environment);
+            return new Explain(root, recipients, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return the recipients of the expression; must not be modified
+     */
+    public Set<Recipient> recipients() {
+        return Collections.unmodifiableSet(recipients);
+    }
+
+    /**
+     * @return the wall time of the evaluation in nanoseconds
+     */
+    public long nanos() {
+        return nanos;
+    }
+
+    /**
+     * @return the number of list names resolved by the evaluation, including repeated ones
+     */
+    public int resolutions() {
+        return root.resolutions();
+    }
+
+    /**
+     * @return the number of times the evaluation resolved a list name that it had already
+     *  resolved before
+     */
+    public int repeats() {
+        return root.repeats();
+    }
+
+    /**
+     * @return the number of nodes evaluated, counting the nodes of the definition of a list
+     *  every time the list is resolved
+     */
+    public int nodes() {
+        return root.nodes();
+    }
+
+    /**
+     * The returned String has one line per node of the expression tree, indented by its
+     * depth, with the format
+     *      label  time T ms (self S ms)  in A, B  out N  lists L (R repeated)
+     * where label describes the node (union, intersect, difference, list name,
+     * recipient address, address set, domain or empty), time is the wall time of its subtree and
+     * self that time minus the time of its operands, in gives the numbers of recipients of
+     * its operands, out the number of recipients of the node, and lists the number of list
+     * names resolved in its subtree. Repeated lists are marked as such and their subtrees
+     * are not printed again. The last line summarizes the whole evaluation. At most
+     * MAX_PRINTED_NODES nodes are printed.
+     */
+    @Override
+    public String toString() {
+        final StringBuilder out = new StringBuilder();
+        final int[] lines = { 0 };
+        final int shown = print(root, 0, out, lines);
+        final int nodes = nodes();
+        if (shown < nodes) {
+            out.append("... ").append(nodes - shown).append(" more nodes\n");
+        }
+        out.append(String.format("total %.3f ms, %d nodes, %d list resolutions (%d repeated), %d recipients",
+                nanos / NANOS_PER_MILLI, nodes, resolutions(), repeats(), recipients.size()));
+        return out.toString();
+    }
+
+    /**
+     * Appends the lines of an evaluated probe and its subtree, unless MAX_PRINTED_NODES
+     * lines have been appended already.
+     * @param probe the probe to print
+     * @param depth the depth of probe in the tree
+     * @param out the text to append to
+     * @param lines one-element array with the number of lines appended so far, updated
+     * @return the number of nodes in the subtree of probe that were printed or that belong
+     *  to a repeated list printed before
+     */
+    private static int print(Probe probe, int depth, StringBuilder out, int[] lines) {
+        if (lines[0] >= MAX_PRINTED_NODES) {
+            return 0;
+        }
+        lines[0]++;
+        for (int i = 0; i < depth; i++) {
+            out.append(INDENT);
+        }
+        out.append(probe.label());
+        out.append(String.format("  time %.3f ms (self %.3f ms)", probe.nanos / NANOS_PER_MILLI,
+                (probe.nanos - probe.operandNanos()) / NANOS_PER_MILLI));
+        if (!probe.operands.isEmpty() && !probe.repeated) {
+            out.append("  in ");
+            for (int i = 0; i < probe.operands.size(); i++) {
+                out.append(i == 0 ? "" : ", ").append(probe.operands.get(i).size);
+            }
+        }
+        out.append("  out ").append(probe.size);
+        final int resolutions = probe.resolutions();
+        if (resolutions > 0) {
+            final int repeats = probe.repeats();
+            out.append("  lists ").append(resolutions).append(repeats > 0 ? " (" + repeats + " repeated)" : "");
+        }
+        if (probe.repeated) {
+            out.append("  repeated, see above\n");
+            return probe.nodes();
+        }
+        out.append('\n');
+        int shown = 1;
+        for (Probe operand : probe.operands) {
+            shown += print(operand, depth + 1, out, lines);
+        }
+        return shown;
+    }
+}
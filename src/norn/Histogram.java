@@ -0,0 +1,147 @@
+package norn;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A mutable, threadsafe, lock-free histogram of non-negative long values, such as
+ * latencies in nanoseconds or sizes in bytes. Like an HDR histogram, values are counted
+ * in log-linear buckets: every power-of-two range is split into SUB_BUCKETS equal
+ * buckets, so any recorded value is known to within 1/SUB_BUCKETS (12.5%) of its size
+ * while the whole long range fits in a few hundred counters.
+ */
+public class Histogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = SUB_BUCKETS + (Long.SIZE - 1 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    // AF(counts, count, sum) = a multiset of count recorded values adding up to sum, where
+    //                          counts[i] values lie in [lowerBound(i), upperBound(i))
+    // RI: all counts are non-negative; once all record() calls have returned,
+    //     count equals the sum of counts
+    // Rep exposure: all fields are private and final, and never returned.
+    // Thread safety: every field is an atomic counter that is only ever incremented, so
+    //                concurrent record() calls never lose a value. Readers may observe a
+    //                value that is counted in its bucket but not yet in count and sum.
+
+    /**
+     * Record one value.
+     * @param value the value to record; negative values are recorded as 0
+     */
+    public void record(long value) {
+        final long v = Math.max(value, 0);
+        counts.incrementAndGet(bucket(v));
+        count.increment();
+        sum.add(v);
+    }
+
+    /**
+     * Record one latency measured by a client that sends its next request only after the
+     * previous one completed, correcting for coordinated omission like HDR histograms: if
+     * value exceeds expectedInterval, the requests that the client would have sent in the
+     * meantime are recorded too, with latencies value - expectedInterval,
+     * value - 2 * expectedInterval, ... down to expectedInterval.
+     * @param value the latency to record
+     * @param expectedInterval the expected time between requests of the client, in the
+     *  same unit as value; if it is not positive, only value is recorded
+     */
+    public void recordCorrected(long value, long expectedInterval) {
+        record(value);
+        if (expectedInterval <= 0) {
+            return;
+        }
+        for (long missed = value - expectedInterval; missed >= expectedInterval; missed -= expectedInterval) {
+            record(missed);
+        }
+    }
+
+    /**
+     * @return the number of values recorded so far
+     */
+    public long count() {
+        return count.sum();
+    }
+
+    /**
+     * @return the sum of all values recorded so far
+     */
+    public long sum() {
+        return sum.sum();
+    }
+
+    /**
+     * @param bound any non-negative value
+     * @return the number of recorded values less than bound, exact when bound is a power of two
+     *  and otherwise approximate to within one bucket
+     */
+    public long countBelow(long bound) {
+        long below = 0;
+        for (int i = 0; i < BUCKETS && upperBound(i) <= bound; i++) {
+            below += counts.get(i);
+        }
+        return below;
+    }
+
+    /**
+     * @param quantile a fraction between 0 and 1
+     * @return the smallest value v such that at least quantile of the recorded values are at
+     *  most v, to within the bucket precision; 0 if nothing has been recorded
+     */
+    public long valueAtQuantile(double quantile) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return upperBound(i) - 1;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * @param value a non-negative value
+     * @return the index of the bucket that counts value
+     */
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+        return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @param bucket a bucket index
+     * @return the smallest value counted in bucket
+     */
+    static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        final int subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + subBucket) << shift;
+    }
+
+    /**
+     * @param bucket a bucket index
+     * @return the smallest value greater than every value counted in bucket, or
+     *  Long.MAX_VALUE for the last bucket
+     */
+    static long upperBound(int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : lowerBound(bucket + 1);
+    }
+}
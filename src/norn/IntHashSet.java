@@ -0,0 +1,322 @@
+package norn;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A mutable set of positive ints, such as interned recipient ids, stored in one int array
+ * with open addressing and linear probing. Unlike a HashSet of boxed values it allocates no
+ * object per element: add(), contains(), remove(), retainAll() and removeAll() never
+ * allocate, and addAll() and add() only allocate when the table grows.
+ */
+public final class IntHashSet {
+    private static final int EMPTY = 0;
+    private static final int REMOVED = -1;
+    private static final int MIN_CAPACITY = 8;
+
+    private int[] slots;
+    private int size = 0;
+    private int used = 0;
+
+    // AF(slots, size) = the set of the positive values in slots
+    // RI: slots.length is a power of two and at least MIN_CAPACITY;
+    //     every value in slots is positive, EMPTY or REMOVED, and no positive value occurs twice;
+    //     size is the number of positive values and used the number of values other than EMPTY;
+    //     2 * used <= slots.length, so every probe sequence reaches an EMPTY slot;
+    //     every positive value v is reachable from slot index(v) without passing an EMPTY slot
+    // Rep exposure: slots is private and never returned.
+    // Thread safety: not threadsafe; a set is confined to the evaluation that creates it.
+    // checkRep() scans the whole table, so it is only called by operations that do anyway.
+
+    /**
+     * Create an empty set.
+     */
+    public IntHashSet() {
+        this(0);
+    }
+
+    /**
+     * Create an empty set with room for some values before it grows.
+     * @param expectedSize the number of values the set is expected to hold, >= 0
+     */
+    public IntHashSet(int expectedSize) {
+        slots = new int[capacityFor(expectedSize)];
+        checkRep();
+    }
+
+    /**
+     * Check that the rep invariant is maintained.
+     */
+    private void checkRep() {
+        assert slots.length >= MIN_CAPACITY && Integer.bitCount(slots.length) == 1;
+        assert 2 * used <= slots.length;
+        int positive = 0;
+        int nonEmpty = 0;
+        for (int value : slots) {
+            assert value > 0 || value == EMPTY || value == REMOVED;
+            if (value > 0) {
+                positive++;
+                assert find(value) >= 0;
+            }
+            if (value != EMPTY) {
+                nonEmpty++;
+            }
+        }
+        assert positive == size && nonEmpty == used;
+    }
+
+    /**
+     * @param expectedSize a number of values
+     * @return the smallest capacity that holds expectedSize values within the load factor
+     */
+    private static int capacityFor(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < 2 * (long) expectedSize) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /**
+     * @param value a positive value
+     * @return the first slot to probe for value
+     */
+    private int index(int value) {
+        // Fibonacci hashing spreads consecutive ids over the table
+        return (value * 0x9E3779B9) >>> (Integer.numberOfLeadingZeros(slots.length) + 1);
+    }
+
+    /**
+     * @param value a positive value
+     * @return the slot holding value, or -1 if it is not in this set
+     */
+    private int find(int value) {
+        final int mask = slots.length - 1;
+        for (int i = index(value); ; i = (i + 1) & mask) {
+            final int slot = slots[i];
+            if (slot == value) {
+                return i;
+            } else if (slot == EMPTY) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * @return the number of values in this set
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return true if this set has no values
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @param value any int
+     * @return true if value is in this set
+     */
+    public boolean contains(int value) {
+        return value > 0 && find(value) >= 0;
+    }
+
+    /**
+     * Add a value to this set.
+     * @param value a positive value
+     * @return true if value was not in this set before
+     * @throws IllegalArgumentException if value is not positive
+     */
+    public boolean add(int value) {
+        if (value <= 0) {
+            throw new IllegalArgumentException("not a positive value: " + value);
+        }
+        final int mask = slots.length - 1;
+        int free = -1;
+        for (int i = index(value); ; i = (i + 1) & mask) {
+            final int slot = slots[i];
+            if (slot == value) {
+                return false;
+            } else if (slot == REMOVED && free < 0) {
+                free = i;
+            } else if (slot == EMPTY) {
+                if (free < 0) {
+                    free = i;
+                    used++;
+                }
+                break;
+            }
+        }
+        slots[free] = value;
+        size++;
+        if (2 * used > slots.length) {
+            rehash(capacityFor(size));
+        }
+        return true;
+    }
+
+    /**
+     * Remove a value from this set.
+     * @param value any int
+     * @return true if value was in this set before
+     */
+    public boolean remove(int value) {
+        final int i = value > 0 ? find(value) : -1;
+        if (i < 0) {
+            return false;
+        }
+        slots[i] = REMOVED;
+        size--;
+        if (size == 0) {
+            clear();
+        }
+        return true;
+    }
+
+    /**
+     * Remove all values from this set, keeping its capacity.
+     */
+    public void clear() {
+        Arrays.fill(slots, EMPTY);
+        size = 0;
+        used = 0;
+    }
+
+    /**
+     * Add all values of another set to this set.
+     * @param other the set whose values to add; not modified
+     */
+    public void addAll(IntHashSet other) {
+        if (2 * ((long) used + other.size) > slots.length) {
+            rehash(capacityFor(size + other.size));
+        }
+        for (int value : other.slots) {
+            if (value > 0) {
+                add(value);
+            }
+        }
+        checkRep();
+    }
+
+    /**
+     * Remove the values of this set that are not in another set.
+     * @param other the set of values to keep; not modified
+     */
+    public void retainAll(IntHashSet other) {
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i] > 0 && !other.contains(slots[i])) {
+                slots[i] = REMOVED;
+                size--;
+            }
+        }
+        if (size == 0) {
+            clear();
+        }
+        checkRep();
+    }
+
+    /**
+     * Remove the values of another set from this set.
+     * @param other the set of values to remove; not modified
+     */
+    public void removeAll(IntHashSet other) {
+        if (other.size < size) {
+            for (int value : other.slots) {
+                if (value > 0) {
+                    remove(value);
+                }
+            }
+        } else {
+            for (int i = 0; i < slots.length; i++) {
+                if (slots[i] > 0 && other.contains(slots[i])) {
+                    slots[i] = REMOVED;
+                    size--;
+                }
+            }
+            if (size == 0) {
+                clear();
+            }
+        }
+        checkRep();
+    }
+
+    /**
+     * Call an action for every value of this set, in no particular order. The action must
+     * not modify this set.
+     * @param action the action to call with each value
+     */
+    public void forEach(IntConsumer action) {
+        for (int value : slots) {
+            if (value > 0) {
+                action.accept(value);
+            }
+        }
+    }
+
+    /**
+     * Move all values into a new table, dropping removed slots.
+     * @param capacity the capacity of the new table, a power of two that holds size values
+     */
+    private void rehash(int capacity) {
+        final int[] old = slots;
+        slots = new int[capacity];
+        used = size;
+        final int mask = capacity - 1;
+        for (int value : old) {
+            if (value > 0) {
+                int i = index(value);
+                while (slots[i] != EMPTY) {
+                    i = (i + 1) & mask;
+                }
+                slots[i] = value;
+            }
+        }
+    }
+
+    /**
+     * Two IntHashSets are equal if they have the same values.
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof IntHashSet)) return false;
+        final IntHashSet that = (IntHashSet) obj;
+        if (size != that.size) return false;
+        for (int value : slots) {
+            if (value > 0 && !that.contains(value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 0;
+        for (int value : slots) {
+            if (value > 0) {
+                hash += value;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * The returned String has the values of this set in increasing order, in the format
+     * [v1, v2, ...]
+     */
+    @Override
+    public String toString() {
+        final int[] values = new int[size];
+        int n = 0;
+        for (int value : slots) {
+            if (value > 0) {
+                values[n++] = value;
+            }
+        }
+        Arrays.sort(values);
+        return Arrays.toString(values);
+    }
+}
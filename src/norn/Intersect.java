@@ -37,17 +37,61 @@ public class Intersect implements ListExpression {
         assert right != null;
     }
 
+    /**
+     * @return the left operand of this Intersect
+     */
+    public ListExpression getLeft() {
+        return left;
+    }
+
+    /**
+     * @return the right operand of this Intersect
+     */
+    public ListExpression getRight() {
+        return right;
+    }
+
     @Override
     public Set<Recipient> recipients(Environment environment) {
+        return RecipientIds.evaluate(this, environment, () -> hashSetRecipients(environment));
+    }
+
+    /**
+     * Evaluates the recipients of this Intersect from the recipients() of its operands.
+     * @param environment the list definitions used to evaluate this Intersect
+     * @return the recipients of this Intersect
+     */
+    private Set<Recipient> hashSetRecipients(Environment environment) {
+        EvaluationBudget.visit();
         Set<Recipient> intersection = new HashSet<>();
         synchronized (environment) {
             Set<Recipient> rightRecipients = right.recipients(environment);
-            for (Recipient l : left.recipients(environment)) {
-                if (rightRecipients.contains(l)) {
-                    intersection.add(l);
+            Set<Recipient> leftRecipients = left.recipients(environment);
+            // iterate the smaller operand and probe the larger one
+            Set<Recipient> smaller = leftRecipients.size() <= rightRecipients.size() ? leftRecipients : rightRecipients;
+            Set<Recipient> larger = smaller == leftRecipients ? rightRecipients : leftRecipients;
+            for (Recipient r : smaller) {
+                if (larger.contains(r)) {
+                    intersection.add(r);
                 }
             }
         }
+        EvaluationBudget.produced(intersection.size());
+        return intersection;
+    }
+
+    @Override
+    public IntHashSet recipientIds(Environment environment) {
+        EvaluationBudget.visit();
+        IntHashSet intersection;
+        synchronized (environment) {
+            IntHashSet rightRecipients = right.recipientIds(environment);
+            IntHashSet leftRecipients = left.recipientIds(environment);
+            // iterate the smaller operand and probe the larger one
+            intersection = leftRecipients.size() <= rightRecipients.size() ? leftRecipients : rightRecipients;
+            intersection.retainAll(intersection == leftRecipients ? rightRecipients : leftRecipients);
+        }
+        EvaluationBudget.produced(intersection.size());
         return intersection;
     }
     
@@ -9,8 +9,9 @@
     union ::= difference (',' difference)*;
     difference ::= intersection ('!' intersection)*;
     intersection ::= primary ('*' primary)*;
-    primary ::= listname | address | '(' sequence ')';
+    primary ::= domain | listname | address | '(' sequence ')';
 }
 address ::= ([A-Za-z0-9_\-\.]+[@][A-Za-z0-9_\-\.]+)?;
+domain ::= [*][@][A-Za-z0-9_\-\.]+;
 whitespace ::= [ \t\r\n]+; 
 listname ::= [A-Za-z0-9_\-\.]+;
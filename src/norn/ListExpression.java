@@ -12,10 +12,12 @@ public interface ListExpression {
     // Datatype Definition
     // ListExpression = Empty() 
     //                  + Recipient(emailAddress: String)
+    //                  + RecipientSet(recipients: Set<Recipient>)
     //                  + Union(left: ListExpression, right: ListExpression)
     //                  + Difference(left: ListExpression, right: ListExpression)
     //                  + Intersect(left: ListExpression, right: ListExpression)
     //                  + Sequence(left: ListExpression, right: ListExpression)
+    //                  + Domain(domain: String)
     //                  + Name(name: String)
     //                  + Definition(name: Name, expression: ListExpression)
     
@@ -26,11 +28,20 @@ public interface ListExpression {
      * @throws IllegalArgumentException if the expression is invalid
      */
     public static ListExpression parse(String input) {
+        final long start = System.nanoTime();
+        final Object event = Tracing.begin(Tracing.Kind.PARSE);
+        boolean valid = false;
         try {
-            return ListExpressionParser.parse(input);
+            final ListExpression parsed = ListExpressionParser.parse(input);
+            valid = true;
+            return parsed;
         } catch (UnableToParseException e) {
+            Metrics.PARSE_ERRORS.increment();
             throw new IllegalArgumentException("expression invalid");
-        }   
+        } finally {
+            Metrics.PARSE_NANOS.record(System.nanoTime() - start);
+            Tracing.endParse(event, input, valid);
+        }
     }
     
     /**
@@ -43,6 +54,22 @@ public interface ListExpression {
      */
     public Set<Recipient> recipients(Environment environment);
     
+    /**
+     * Determines the same recipients as recipients(), as a set of their ids in the
+     * RecipientIds table that the current thread evaluates with. Union, Intersect and
+     * Difference evaluate their operands this way when the table of the environment has ids
+     * for all of their addresses, so that the intermediate sets of an expression hold ints
+     * instead of boxed hash set entries; the default implementation converts the result of
+     * recipients().
+     * @param environment the list definitions used to evaluate this ListExpression
+     * @return a new set of the ids of the recipients represented, owned by the caller
+     * @throws IllegalStateException if the current thread is not evaluating with a
+     *  RecipientIds table, or a recipient has no id in it
+     */
+    public default IntHashSet recipientIds(Environment environment) {
+        return RecipientIds.current().idsOf(recipients(environment));
+    }
+    
     
     /**
      * For the current ListExpression, get the set of ListExpressions that it depends on.
@@ -13,7 +13,7 @@ public class ListExpressionParser {
     public static final String ILLEGAL_INPUT_MESSAGE = "Illegal input; could not parse.";
     // Expression grammar nonterminals
     private enum ListExpressionGrammar {
-        ROOT, SEQUENCE, DEFINITION, UNION, DIFFERENCE, INTERSECTION, PRIMARY, ADDRESS, WHITESPACE, LISTNAME
+        ROOT, SEQUENCE, DEFINITION, UNION, DIFFERENCE, INTERSECTION, PRIMARY, ADDRESS, DOMAIN, WHITESPACE, LISTNAME
     };
 
     private static Parser<ListExpressionGrammar> parser = makeParser();
@@ -126,7 +126,7 @@ public class ListExpressionParser {
             return expression;
         }
         
-        case PRIMARY: // primary ::= listname | address | '(' union ')';
+        case PRIMARY: // primary ::= domain | listname | address | '(' sequence ')';
         {
             final ParseTree<ListExpressionGrammar> child = parseTree.children().get(0);
             return makeAbstractSyntaxTree(child);
@@ -140,6 +140,11 @@ public class ListExpressionParser {
             return new Recipient(address);
         }
         
+        case DOMAIN: // domain ::= [*][@][A-Za-z0-9_\-\.]+;
+        {
+            return new Domain(parseTree.text().substring("*@".length()));
+        }
+        
         case LISTNAME: // listname ::= [A-Za-z0-9_\-\.]+;
         {
             return new Name(parseTree.text());
@@ -0,0 +1,363 @@
+package norn;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A mutable, threadsafe hub that tracks the membership of watched lists in an Environment
+ * and delivers changes to subscribers as Server-Sent Events. When a redefinition changes
+ * the effective membership of a watched list, directly or through a list it depends on,
+ * the added and removed recipients are computed once and the resulting event is queued
+ * for every subscriber of that list.
+ *
+ * The environment only tells the watcher which names were redefined. A background thread
+ * re-evaluates the watched lists that depend on them in an overlay of the environment, so
+ * redefinitions never wait for watched lists to be evaluated. Redefinitions made while the
+ * watcher is busy are handled together afterwards, so a subscriber may receive one event for
+ * several changes.
+ */
+public class ListWatcher implements EnvironmentListener {
+    /** Event that is queued for every subscriber when the watcher is closed. */
+    public static final String CLOSED = "";
+
+    private static final int SUBSCRIBER_QUEUE_CAPACITY = 1024;
+
+    private final Environment environment;
+    private final Map<Name, Watch> watches = new HashMap<>();
+    private final Set<Name> pending = new LinkedHashSet<>();
+    private final Set<Name> retry = new HashSet<>();
+    private final Thread updater;
+    private boolean updating = false;
+    private boolean closed = false;
+
+    // AF(environment, watches, pending, retry, updater, updating, closed) = the watched lists
+    //      of environment, where watches maps each watched name to its membership at some
+    //      version of environment and the event queues of its subscribers. The names in
+    //      pending were redefined since then and are yet to be handled by updater, which is
+    //      handling earlier redefinitions while updating. The names in retry could not be
+    //      handled by updater and are handled again with the next redefinition. Once closed,
+    //      no events are delivered.
+    // RI: every Watch in watches has at least one subscriber
+    // Rep exposure: all fields are private and final or immutable; subscriber queues are handed out
+    //               to subscribers, which only take from them.
+    // Thread safety: watches, pending, retry, updating and closed are only accessed while holding the lock
+    //                on this watcher, which is acquired after the lock on environment (by
+    //                definitionsChanged()) and never held while taking the lock on environment or
+    //                evaluating a list.
+
+    /**
+     * The last known membership and the subscribers of one watched list.
+     */
+    private static class Watch {
+        private Set<Recipient> members;
+        private long version;
+        private final List<BlockingQueue<String>> subscribers = new ArrayList<>();
+
+        /**
+         * @param members the members of the list
+         * @param version the environment version at which the list has these members
+         */
+        private Watch(Set<Recipient> members, long version) {
+            this.members = members;
+            this.version = version;
+        }
+    }
+
+    /**
+     * Create a watcher for an environment and register it as a listener of the environment.
+     * @param environment the environment whose lists to watch
+     */
+    public ListWatcher(Environment environment) {
+        this.environment = environment;
+        this.updater = new Thread(this::run, "norn-list-watcher");
+        this.updater.setDaemon(true);
+        this.updater.start();
+        environment.addListener(this);
+    }
+
+    /**
+     * Subscribe to changes in the membership of a list. The first event in the returned queue
+     * adds all current members of the list, so applying the events in order to an empty set
+     * always yields the current membership. Each event is a complete Server-Sent Event,
+     * including the blank line that terminates it. The queue receives CLOSED when the watcher
+     * is closed or when the subscriber falls too far behind.
+     * @param name the list to watch
+     * @param budget the budget to evaluate the list within, if it is not watched yet, or null
+     *  for no limit; later re-evaluations are not limited
+     * @return the queue of events for the new subscriber
+     * @throws EvaluationBudget.BudgetExceededException if evaluating the list exceeds budget
+     * @throws AssertionError if the environment has a mail loop, which a failed redefinition
+     *  may have left in it
+     */
+    public BlockingQueue<String> subscribe(Name name, EvaluationBudget budget) {
+        final BlockingQueue<String> queue = new ArrayBlockingQueue<>(SUBSCRIBER_QUEUE_CAPACITY);
+        Watch watch;
+        synchronized (this) {
+            watch = watches.get(name);
+        }
+        if (watch == null) {
+            final Environment snapshot = environment.overlay();
+            // definitions in the list may change the version of the overlay while it is evaluated
+            final long version = snapshot.version();
+            final Set<Recipient> members;
+            synchronized (snapshot) {
+                members = budget == null ? EvaluationBudget.evaluateUnlimited(name, snapshot)
+                        : budget.evaluate(name, snapshot);
+            }
+            watch = new Watch(members, version);
+        }
+        synchronized (this) {
+            if (closed) {
+                queue.add(CLOSED);
+                return queue;
+            }
+            final Watch existing = watches.get(name);
+            if (existing != null) {
+                watch = existing;
+            } else {
+                watches.put(name, watch);
+                // the list may have been redefined since the snapshot was taken
+                pending.add(name);
+                notifyAll();
+            }
+            watch.subscribers.add(queue);
+            queue.add(event(watch.version, watch.members, Collections.<Recipient>emptySet()));
+        }
+        return queue;
+    }
+
+    /**
+     * Stop delivering events to a subscriber; the list is no longer watched once it has no
+     * subscribers.
+     * @param name the watched list
+     * @param queue the queue returned by subscribe(name)
+     */
+    public synchronized void unsubscribe(Name name, BlockingQueue<String> queue) {
+        final Watch watch = watches.get(name);
+        if (watch != null) {
+            watch.subscribers.remove(queue);
+            if (watch.subscribers.isEmpty()) {
+                watches.remove(name);
+            }
+        }
+    }
+
+    /**
+     * Stop watching: queue CLOSED for every subscriber, stop listening to the environment and
+     * stop the background thread.
+     */
+    public void close() {
+        environment.removeListener(this);
+        synchronized (this) {
+            closed = true;
+            for (Watch watch : watches.values()) {
+                for (BlockingQueue<String> queue : watch.subscribers) {
+                    queue.clear();
+                    queue.offer(CLOSED);
+                }
+            }
+            watches.clear();
+            pending.clear();
+            retry.clear();
+            notifyAll();
+        }
+    }
+
+    /**
+     * Wait until the redefinitions made so far have been handled, and the events they cause
+     * have been queued for the subscribers.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    synchronized void awaitUpdates() throws InterruptedException {
+        while (!closed && (updating || !pending.isEmpty())) {
+            wait();
+        }
+    }
+
+    @Override
+    public synchronized void definitionsChanged(Environment changed, Set<Name> names) {
+        assert changed == environment;
+        if (closed) {
+            return;
+        }
+        pending.addAll(names);
+        notifyAll();
+    }
+
+    /**
+     * Handles redefinitions until the watcher is closed. Runs on updater.
+     */
+    private void run() {
+        try {
+            while (true) {
+                final Set<Name> redefined;
+                final Map<Name, Watch> watched;
+                synchronized (this) {
+                    updating = false;
+                    notifyAll();
+                    while (!closed && pending.isEmpty()) {
+                        wait();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    redefined = new HashSet<>(pending);
+                    redefined.addAll(retry);
+                    pending.clear();
+                    retry.clear();
+                    watched = new HashMap<>(watches);
+                    updating = true;
+                }
+                update(redefined, watched);
+            }
+        } catch (InterruptedException e) {
+            // stop watching
+        }
+    }
+
+    /**
+     * Re-evaluates the watched lists that depend on redefined names, in an overlay of
+     * environment, and queues an event for their subscribers if their membership changed.
+     * A watched list that cannot be evaluated, or all of them if environment cannot be
+     * overlaid, for example because a failed redefinition left a mail loop in it, is counted
+     * in Metrics and added to retry, so that it is evaluated again with the next redefinition.
+     * @param redefined names that were redefined
+     * @param watched the watches at the time the names were taken from pending
+     */
+    private void update(Set<Name> redefined, Map<Name, Watch> watched) {
+        final Map<Name, Set<Recipient>> evaluated = new HashMap<>();
+        final Set<Name> failed = new HashSet<>();
+        long version = 0;
+        try {
+            final Environment snapshot = environment.overlay();
+            version = snapshot.version();
+            synchronized (snapshot) {
+                for (Name name : watched.keySet()) {
+                    try {
+                        if (dependsOnAny(snapshot, name, redefined)) {
+                            evaluated.put(name, EvaluationBudget.evaluateUnlimited(name, snapshot));
+                        }
+                    } catch (RuntimeException | AssertionError e) {
+                        Metrics.WATCH_UPDATE_FAILURES.increment();
+                        failed.add(name);
+                    }
+                }
+            }
+        } catch (RuntimeException | AssertionError e) {
+            Metrics.WATCH_UPDATE_FAILURES.increment();
+            failed.addAll(redefined);
+        }
+        synchronized (this) {
+            if (!closed) {
+                retry.addAll(failed);
+            }
+            for (Map.Entry<Name, Set<Recipient>> entry : evaluated.entrySet()) {
+                final Watch watch = watches.get(entry.getKey());
+                if (watch != null && watch.version < version) {
+                    publish(entry.getKey(), watch, entry.getValue(), version);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param snapshot an overlay of environment; requires the lock on it
+     * @param name a watched list
+     * @param redefined names that were redefined
+     * @return true if the membership of name may depend on a name in redefined; always true
+     *  if it contains a domain (*@domain)
+     */
+    private static boolean dependsOnAny(Environment snapshot, Name name, Set<Name> redefined) {
+        if (redefined.contains(name)) {
+            return true;
+        }
+        if (snapshot.referencesDomain(name)) {
+            // a domain contains the addresses of every list
+            return true;
+        }
+        for (Name dependency : snapshot.referencedNames(snapshot.getExpression(name))) {
+            if (redefined.contains(dependency)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Records the new membership of a watched list and queues an event for its subscribers if
+     * it changed. Requires the lock on this watcher.
+     * @param name the watched list
+     * @param watch the watch of name
+     * @param members the members of name at version
+     * @param version a version of environment later than watch.version
+     */
+    private void publish(Name name, Watch watch, Set<Recipient> members, long version) {
+        final Set<Recipient> added = new HashSet<>(members);
+        added.removeAll(watch.members);
+        final Set<Recipient> removed = new HashSet<>(watch.members);
+        removed.removeAll(members);
+        watch.members = members;
+        watch.version = version;
+        if (added.isEmpty() && removed.isEmpty()) {
+            return;
+        }
+        final String event = event(version, added, removed);
+        for (BlockingQueue<String> queue : new ArrayList<>(watch.subscribers)) {
+            if (!queue.offer(event)) {
+                // the subscriber fell too far behind; drop it rather than hold up the others
+                watch.subscribers.remove(queue);
+                queue.clear();
+                queue.offer(CLOSED);
+            }
+        }
+        if (watch.subscribers.isEmpty()) {
+            watches.remove(name);
+        }
+    }
+
+    /**
+     * @param version the environment version the event describes
+     * @param added recipients added to the list
+     * @param removed recipients removed from the list
+     * @return a Server-Sent Event of type "change" with a JSON payload listing added and removed
+     *  recipients in ascending address order
+     */
+    private static String event(long version, Set<Recipient> added, Set<Recipient> removed) {
+        final StringBuilder event = new StringBuilder();
+        event.append("id: ").append(version).append('\n');
+        event.append("event: change\n");
+        event.append("data: {\"added\":");
+        appendAddresses(event, added);
+        event.append(",\"removed\":");
+        appendAddresses(event, removed);
+        event.append("}\n\n");
+        return event.toString();
+    }
+
+    /**
+     * Appends a JSON array of the addresses of recipients, in ascending order.
+     * @param event the builder to append to
+     * @param recipients the recipients to list
+     */
+    private static void appendAddresses(StringBuilder event, Set<Recipient> recipients) {
+        final List<Recipient> sorted = new ArrayList<>(recipients);
+        Collections.sort(sorted, Comparator.comparing(Recipient::toString));
+        event.append('[');
+        for (int i = 0; i < sorted.size(); i++) {
+            if (i > 0) {
+                event.append(',');
+            }
+            event.append(WebServer.jsonString(sorted.get(i).toString()));
+        }
+        event.append(']');
+    }
+}
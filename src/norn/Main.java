@@ -1,13 +1,18 @@
 package norn;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
 import java.util.Set;
+import java.util.concurrent.CompletionException;
 
 import lib6005.parser.UnableToParseException;
 
@@ -38,13 +43,39 @@ import lib6005.parser.UnableToParseException;
  * of the expression, this expression is equivalent to (a@mit.edu,b@mit.edu) * b@mit.edu, 
  * which represents the single recipient b@mit.edu.
  *
+ * A domain *@domain is the set of addresses at domain that appear in any list definition,
+ * without expanding list names. It is looked up in an index that is kept up to date as lists
+ * are redefined, so staff * *@mit.edu costs the size of the smaller operand instead of a
+ * scan of all lists.
+ *
  * The output of this console is an order-independent view of the emails specified in an email
  * list expression.
  * 
  * Lastly, the user can use the commands !save or !load to save currently defined named lists
  * to a file or load a saved file. Saved files contain a single valid list expression (a sequence
  * of list definitions). A user can specify multiple files in the same !load command but must
- * separate the files by a comma.
+ * separate the files by a comma. !save takes a snapshot of the definitions and writes it in the
+ * background, replacing the file atomically once it is complete, so the console and the web
+ * server can continue meanwhile; a message reports when the save has finished or failed.
+ * !load first waits for the saves started before it.
+ * 
+ * The command !import listname filename defines listname as the addresses in a plain address
+ * file, with one email address per line. Addresses are trimmed and lowercased and blank lines
+ * are skipped; if any other line is not a valid email address, nothing is defined. filename
+ * is relative to the same directory as for !load unless it is an absolute path.
+ * 
+ * The command !export expression filename evaluates a list expression and writes its
+ * recipients to a file with one address per line, in the format read by !import, instead of
+ * printing them. filename, the last word of the command, is resolved like for !import.
+ * 
+ * The command !explain expression evaluates a list expression without definitions and prints
+ * its tree, with list names expanded into their definitions, annotated with the wall time,
+ * operand and result sizes and list resolutions of every node (see Explain).
+ * 
+ * The command !stats prints, for every defined list, the estimated heap bytes retained by
+ * its definition, its number of expression nodes and depth, the numbers of lists it depends
+ * on and that depend on it, directly and transitively, and its number of recipients,
+ * largest lists first, followed by the totals (see EnvironmentStats).
  * 
  * If a filename does not contain a valid list expression (during loading), or the file is 
  * unreadable (during saving), then a readable error is returned.
@@ -126,26 +157,123 @@ import lib6005.parser.UnableToParseException;
 
 /* Thread safety argument: The only shared mutable data is the environment, which is 
  * thread safe, and all accesses to environment are protected by a lock on the object,
- * both inside Main and in any other class that handles environment.
+ * both inside Main and in any other class that handles environment. SAVER is threadsafe and
+ * only reads immutable snapshots of the environment. slowQueryLog is volatile, set once at
+ * startup, and threadsafe.
  */
 public class Main {
     public static final String EMPTY_LIST = "{}";
     private static final String LOAD_COMMAND = "!load";
     private static final String SAVE_COMMAND = "!save";
+    private static final String IMPORT_COMMAND = "!import";
+    private static final String EXPORT_COMMAND = "!export";
+    private static final String EXPLAIN_COMMAND = "!explain";
+    private static final String STATS_COMMAND = "!stats";
+    private static final String LIST_NAME = "[A-Za-z0-9_.-]+";
     private static final String DIRECTORY = "src/norn/";
+    private static final String GZIP_THRESHOLD_PROPERTY = "norn.gzip.threshold";
+    private static final String GZIP_LEVEL_PROPERTY = "norn.gzip.level";
+    private static final String MAX_CONCURRENT_PROPERTY = "norn.admission.concurrent";
+    private static final String MAX_QUEUED_PROPERTY = "norn.admission.queued";
+    private static final String MAX_QUEUE_WAIT_PROPERTY = "norn.admission.waitMillis";
+    private static final String MAX_NODE_VISITS_PROPERTY = "norn.budget.visits";
+    private static final String MAX_RECIPIENTS_PROPERTY = "norn.budget.recipients";
+    private static final String MAX_EVALUATION_MILLIS_PROPERTY = "norn.budget.millis";
+    private static final String CACHE_ENTRIES_PROPERTY = "norn.cache.entries";
+    private static final String CACHE_BYTES_PROPERTY = "norn.cache.bytes";
+    private static final String EVAL_MODE_PROPERTY = "norn.mode.eval";
+    private static final String API_MODE_PROPERTY = "norn.mode.api";
+    private static final String FRONT_END_PROPERTY = "norn.frontend";
+    private static final String NIO_FRONT_END = "nio";
+    private static final String CHECKPOINT_DIRECTORY_PROPERTY = "norn.checkpoint.dir";
+    private static final String CHECKPOINT_INTERVAL_PROPERTY = "norn.checkpoint.intervalSeconds";
+    private static final String CHECKPOINT_CHANGES_PROPERTY = "norn.checkpoint.changes";
+    private static final String CHECKPOINT_KEEP_PROPERTY = "norn.checkpoint.keep";
+    private static final String SLOW_LOG_FILE_PROPERTY = "norn.slowlog.file";
+    private static final String SLOW_LOG_THRESHOLD_PROPERTY = "norn.slowlog.thresholdMillis";
+    private static final String SLOW_LOG_MAX_BYTES_PROPERTY = "norn.slowlog.maxBytes";
+    private static final String SLOW_LOG_KEEP_PROPERTY = "norn.slowlog.keep";
+    private static final String SLOW_LOG_QUEUE_PROPERTY = "norn.slowlog.queue";
+    private static final String BATCH_OPTION = "--batch";
+    private static final String COMMENT_PREFIX = "#";
+    private static final String RECIPIENT_DELIMITER = ", ";
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+    private static final double NANOS_PER_MILLI = 1e6;
+    private static final double NANOS_PER_SECOND = 1e9;
+    private static final EnvironmentSaver SAVER = new EnvironmentSaver();
+    private static volatile SlowQueryLog slowQueryLog = null;
+    
+    /**
+     * Mutable time and work counters of the commands executed by one console session.
+     */
+    private static class Timings {
+        private long parseNanos = 0;
+        private long evaluateNanos = 0;
+        private long formatNanos = 0;
+        private long expressions = 0;
+        private long commands = 0;
+        private long recipients = 0;
+        
+        // AF(parseNanos, evaluateNanos, formatNanos, expressions, commands, recipients) =
+        //      the time spent parsing, evaluating and formatting list expressions, of
+        //      expressions evaluated and commands run, which output recipients in total
+        // RI: all fields are non-negative
+        // Thread safety: only used by the thread that runs the session.
+    }
 
     /**
      * Reads expressions as command inputs from the console and outputs results
      * as defined in the class specification.
      *
-     * @param args unused
+     * The web server compresses responses as configured by the system properties
+     * norn.gzip.threshold (minimum body length to compress, negative to disable) and
+     * norn.gzip.level (gzip level from 1 to 9). Web evaluations are limited by
+     * norn.admission.concurrent, norn.admission.queued and norn.admission.waitMillis
+     * (concurrent evaluations, waiting requests, and how long a request may wait), and
+     * by norn.budget.visits, norn.budget.recipients and norn.budget.millis (work and time
+     * allowed for one evaluation). Rendered responses are cached as configured by
+     * norn.cache.entries and norn.cache.bytes (0 entries disables the cache). norn.mode.eval
+     * and norn.mode.api choose how definitions in /eval/ and /api/eval/ requests are
+     * evaluated: locked (in the shared environment, the default), read-only (in a private
+     * overlay that is discarded) or commit (in a private overlay that is committed atomically).
+     * Setting norn.frontend to nio serves /eval/ from the
+     * NIO front end (keep-alive and pipelining, no compression) instead of WebServer.
+     *
+     * If norn.checkpoint.dir is set, the newest valid checkpoint in that directory is loaded
+     * on startup, and checkpoints of the lists are written there in the background: whenever
+     * the lists changed, every norn.checkpoint.intervalSeconds seconds (default 60, 0 for
+     * never) or as soon as norn.checkpoint.changes lists were redefined (default 1000, 0 for
+     * never), and on exit. Only the newest norn.checkpoint.keep checkpoints are kept (default 3).
+     *
+     * If norn.slowlog.file is set, evaluations from the console, batch scripts, /eval/ and
+     * /api/eval/ that take at least norn.slowlog.thresholdMillis milliseconds (default 100)
+     * are logged to that file as lines of JSON (see SlowQueryLog). The file is rotated when
+     * it reaches norn.slowlog.maxBytes bytes (default 10 MiB), keeping norn.slowlog.keep old
+     * files (default 5), and at most norn.slowlog.queue slow evaluations wait to be written
+     * (default 1024); more are dropped.
+     *
+     * With the arguments --batch scriptfile, no prompt is shown and no web server is started:
+     * the expressions and commands in scriptfile, one per line, are executed in order and
+     * their results are written to standard output. Blank lines and lines starting with #
+     * are skipped. At the end, the time spent parsing, evaluating and formatting and the
+     * overall throughput are reported on standard error, and the process exits with status 1
+     * if any line failed.
+     *
+     * @param args empty, or --batch followed by the name of a script file
      * @throws IOException if there is an error in reading the input
      * @throws UnableToParseException
      */
     public static void main(String[] args) throws IOException {
+        startSlowQueryLog();
+        if (args.length == 2 && args[0].equals(BATCH_OPTION)) {
+            final boolean succeeded = runBatch(new File(args[1]));
+            System.exit(succeeded ? 0 : 1);
+        }
         final BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
         Environment environment = new Environment();
-        WebServer server = new WebServer(environment);
+        startCheckpoints(environment);
+        startWebServer(environment);
+        final Timings timings = new Timings();
 
         while (true) {
             System.out.print("> ");
@@ -155,60 +283,402 @@ public class Main {
                 System.out.println(EMPTY_LIST);
                 continue; // Gives nothing back to user and waits for further input.
             }
-            final int prefixLength = "!load".length();
             try{
-                // handle !load for one or more comma-separated file names
-                if (input.startsWith(LOAD_COMMAND)) {
-                    String[] fileNames = input.substring(prefixLength).replaceAll("\\s", "").split(",");
-                    for(String fileName : fileNames){
-                        File loadFile = new File(DIRECTORY + fileName);
-                        if ( ! loadFile.isFile()){
-                            throw new IllegalArgumentException("file not found: \"" + loadFile + "\"");
-                        }
-                        load(loadFile, server.getEnvironment());
-                    }
-                    
-                } else if (input.startsWith(SAVE_COMMAND)) {
-                    // handle !save
-                    save(input.substring(prefixLength).replaceAll("\\s", ""), environment);
-                    
-                } else {
-                    // handle all list expressions
-                    Set<Recipient> parsed;
-                    synchronized (environment) {
-                        parsed = ListExpression.parse(input).recipients(environment); 
-                    }
-                    System.out.println(parsed.toString().replaceAll("[\\[\\]]", ""));
-                }
+                execute(input, environment, System.out, timings);
             } catch(IllegalArgumentException e){
                 System.out.println(e);
+            } catch (IOException e) {
+                System.out.println(fileError(e));
+            }
+        }
+    }
+    
+    /**
+     * @param e the failure of a !load, !import or !export command to read or write a file
+     * @return a message describing e, to be printed instead of a result
+     */
+    private static String fileError(IOException e) {
+        return "Could not read or write file: " + e.getMessage();
+    }
+    
+    /**
+     * Executes one console input: a !load, !save, !import, !export, !explain or !stats command, or a list
+     * expression whose recipients are printed.
+     * @param input a nonempty line of console input
+     * @param environment the environment to evaluate input in
+     * @param out the stream to print results to
+     * @param timings counters to add the time and work of input to
+     * @throws IOException if a file cannot be read or written
+     * @throws IllegalArgumentException if input is not a valid command or list expression
+     */
+    private static void execute(String input, Environment environment, PrintStream out, Timings timings)
+            throws IOException {
+        final int prefixLength = "!load".length();
+        // handle !load for one or more comma-separated file names
+        if (input.startsWith(LOAD_COMMAND)) {
+            timings.commands++;
+            String[] fileNames = input.substring(prefixLength).replaceAll("\\s", "").split(",");
+            awaitSaves();
+            for(String fileName : fileNames){
+                File loadFile = new File(DIRECTORY + fileName);
+                if ( ! loadFile.isFile()){
+                    throw new IllegalArgumentException("file not found: \"" + loadFile + "\"");
+                }
+                load(loadFile, environment, timings);
+            }
+            
+        } else if (input.startsWith(SAVE_COMMAND)) {
+            // handle !save
+            timings.commands++;
+            save(input.substring(prefixLength).replaceAll("\\s", ""), environment, out);
+            
+        } else if (input.startsWith(IMPORT_COMMAND)) {
+            // handle !import of one address file into one list
+            timings.commands++;
+            final String[] arguments = input.substring(IMPORT_COMMAND.length()).trim().split("\\s+", 2);
+            if (arguments.length != 2 || !arguments[0].matches(LIST_NAME)) {
+                throw new IllegalArgumentException("usage: " + IMPORT_COMMAND + " listname filename");
+            }
+            out.println(importAddresses(new Name(arguments[0].toLowerCase()), arguments[1], environment));
+            
+        } else if (input.startsWith(EXPORT_COMMAND)) {
+            // handle !export of the recipients of an expression; the file name is the last word
+            timings.commands++;
+            final String arguments = input.substring(EXPORT_COMMAND.length()).trim();
+            final int split = Math.max(arguments.lastIndexOf(' '), arguments.lastIndexOf('\t'));
+            if (split < 0) {
+                throw new IllegalArgumentException("usage: " + EXPORT_COMMAND + " expression filename");
             }
+            final long start = System.nanoTime();
+            final Set<Recipient> recipients = evaluate(arguments.substring(0, split), environment, timings);
+            final long count = AddressExporter.write(recipients, resolve(arguments.substring(split + 1)));
+            timings.recipients += count;
+            out.println(String.format("exported %d addresses in %.1f ms", count, (System.nanoTime() - start) / NANOS_PER_MILLI));
+            
+        } else if (input.startsWith(EXPLAIN_COMMAND)) {
+            // handle !explain of an expression: print its tree annotated with the cost of every node
+            timings.commands++;
+            final ListExpression expression = ListExpression.parse(input.substring(EXPLAIN_COMMAND.length()));
+            final Explain explain = Explain.analyze(expression, environment, null);
+            timings.evaluateNanos += explain.nanos();
+            out.println(explain);
+            
+        } else if (input.equals(STATS_COMMAND)) {
+            // handle !stats: print the size, dependencies and recipients of every list
+            timings.commands++;
+            out.println(EnvironmentStats.compute(environment, null));
+            
+        } else {
+            // handle all list expressions
+            final Set<Recipient> parsed = evaluate(input, environment, timings);
+            final long formatStart = System.nanoTime();
+            final String formatted = formatRecipients(parsed);
+            timings.formatNanos += System.nanoTime() - formatStart;
+            timings.expressions++;
+            timings.recipients += parsed.size();
+            out.println(formatted);
         }
     }
+    
+    /**
+     * Parses and evaluates a list expression under the lock on environment.
+     * @param input a list expression
+     * @param environment the environment to evaluate input in
+     * @param timings counters to add the time spent parsing and evaluating input to
+     * @return the recipients of input
+     * @throws IllegalArgumentException if input is not a valid list expression
+     */
+    private static Set<Recipient> evaluate(String input, Environment environment, Timings timings) {
+        final long parseStart = System.nanoTime();
+        ListExpression expression = null;
+        long parseNanos = 0;
+        long lockWaitNanos = 0;
+        long evaluateNanos = 0;
+        int size = -1;
+        String outcome = SlowQueryLog.OK;
+        try {
+            expression = ListExpression.parse(input);
+            final long waitStart = System.nanoTime();
+            parseNanos = waitStart - parseStart;
+            timings.parseNanos += parseNanos;
+            final Object waitEvent = Tracing.begin(Tracing.Kind.LOCK_WAIT);
+            synchronized (environment) {
+                final long start = System.nanoTime();
+                lockWaitNanos = start - waitStart;
+                Metrics.LOCK_WAIT_NANOS.record(lockWaitNanos);
+                Tracing.endLockWait(waitEvent, "console");
+                final Object event = Tracing.begin(Tracing.Kind.EVALUATION);
+                try {
+                    final Set<Recipient> recipients = expression.recipients(environment);
+                    size = recipients.size();
+                    return recipients;
+                } finally {
+                    evaluateNanos = System.nanoTime() - start;
+                    Metrics.EVALUATION_NANOS.record(evaluateNanos);
+                    timings.evaluateNanos += evaluateNanos;
+                    Tracing.endEvaluation(event, expression, size);
+                }
+            }
+        } catch (RuntimeException | AssertionError e) {
+            outcome = SlowQueryLog.outcome(e);
+            throw e;
+        } finally {
+            final SlowQueryLog log = slowQueryLog;
+            if (log != null) {
+                log.record("console", outcome, input, expression, size,
+                        expression == null ? System.nanoTime() - parseStart : parseNanos, lockWaitNanos, evaluateNanos);
+            }
+        }
+    }
+    
+    /**
+     * @param recipients the recipients of a list expression
+     * @return the recipients separated by commas, as printed by the console
+     */
+    static String formatRecipients(Set<Recipient> recipients) {
+        final StringBuilder formatted = new StringBuilder();
+        for (Recipient recipient : recipients) {
+            if (formatted.length() > 0) {
+                formatted.append(RECIPIENT_DELIMITER);
+            }
+            formatted.append(recipient);
+        }
+        return formatted.toString();
+    }
+    
+    /**
+     * Executes the lines of a script file as console inputs, as specified by main(), with
+     * buffered output, and reports timings and throughput on standard error.
+     * @param script the script file to execute
+     * @return true if every line was executed successfully; a line that fails, including
+     *  a command that cannot read or write its file, is reported with its line number and
+     *  the script goes on with the next line
+     * @throws IOException if script cannot be read
+     */
+    private static boolean runBatch(File script) throws IOException {
+        final Environment environment = new Environment();
+        final Timings timings = new Timings();
+        final PrintStream out = new PrintStream(new BufferedOutputStream(
+                new FileOutputStream(FileDescriptor.out), OUTPUT_BUFFER_SIZE), false);
+        long lines = 0;
+        long errors = 0;
+        final long start = System.nanoTime();
+        try (BufferedReader in = new BufferedReader(new FileReader(script))) {
+            int lineNumber = 0;
+            for (String input = in.readLine(); input != null; input = in.readLine()) {
+                lineNumber++;
+                final String trimmed = input.trim();
+                if (trimmed.isEmpty() || trimmed.startsWith(COMMENT_PREFIX)) {
+                    continue;
+                }
+                lines++;
+                try {
+                    execute(trimmed, environment, out, timings);
+                } catch (IllegalArgumentException e) {
+                    errors++;
+                    out.println("line " + lineNumber + ": " + e);
+                } catch (AssertionError e) {
+                    errors++;
+                    out.println("line " + lineNumber + ": mail loop: mutually recursive definitions are not allowed");
+                } catch (IOException e) {
+                    errors++;
+                    out.println("line " + lineNumber + ": " + fileError(e));
+                } catch (UncheckedIOException e) {
+                    errors++;
+                    out.println("line " + lineNumber + ": " + fileError(e.getCause()));
+                }
+            }
+        } finally {
+            awaitSaves();
+            out.flush();
+        }
+        final long total = System.nanoTime() - start;
+        final long other = total - timings.parseNanos - timings.evaluateNanos - timings.formatNanos;
+        System.err.printf("batch: %d lines (%d expressions, %d commands, %d errors) in %.1f ms%n",
+                lines, timings.expressions, timings.commands, errors, total / NANOS_PER_MILLI);
+        System.err.printf("  parse     %10.1f ms%n", timings.parseNanos / NANOS_PER_MILLI);
+        System.err.printf("  evaluate  %10.1f ms%n", timings.evaluateNanos / NANOS_PER_MILLI);
+        System.err.printf("  format    %10.1f ms%n", timings.formatNanos / NANOS_PER_MILLI);
+        System.err.printf("  other     %10.1f ms (reading, output, commands)%n", other / NANOS_PER_MILLI);
+        System.err.printf("  throughput: %.0f lines/s, %.0f recipients/s%n",
+                lines * NANOS_PER_SECOND / total, timings.recipients * NANOS_PER_SECOND / total);
+        return errors == 0;
+    }
    
     /**
-     * Saves all definitions in this Environment to a file.
+     * Loads the newest checkpoint and starts writing checkpoints, if the system property
+     * norn.checkpoint.dir is set, as described in main(). A last checkpoint is written when
+     * the JVM shuts down.
+     * @param environment the environment to restore and checkpoint
+     * @throws IOException if the checkpoint directory cannot be created
+     */
+    private static void startCheckpoints(Environment environment) throws IOException {
+        final String directoryName = System.getProperty(CHECKPOINT_DIRECTORY_PROPERTY);
+        if (directoryName == null) {
+            return;
+        }
+        final File directory = new File(directoryName);
+        final long start = System.nanoTime();
+        final File loaded = Checkpointer.loadNewest(environment, directory);
+        if (loaded != null) {
+            System.out.println(String.format("loaded %d definitions from %s in %.1f ms",
+                    environment.definitions().size(), loaded, (System.nanoTime() - start) / NANOS_PER_MILLI));
+        }
+        final Checkpointer checkpointer = new Checkpointer(environment, directory,
+                Long.getLong(CHECKPOINT_INTERVAL_PROPERTY, Checkpointer.DEFAULT_INTERVAL_SECONDS) * 1000,
+                Long.getLong(CHECKPOINT_CHANGES_PROPERTY, Checkpointer.DEFAULT_CHANGES),
+                Integer.getInteger(CHECKPOINT_KEEP_PROPERTY, Checkpointer.DEFAULT_KEEP));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                checkpointer.stop();
+            } catch (IOException e) {
+                System.err.println("Could not write checkpoint: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "norn-checkpoint-shutdown"));
+    }
+    
+    /**
+     * Starts the slow query log, if the system property norn.slowlog.file is set, as
+     * described in main(). The queued evaluations are written when the JVM shuts down.
+     */
+    private static void startSlowQueryLog() {
+        final String fileName = System.getProperty(SLOW_LOG_FILE_PROPERTY);
+        if (fileName == null) {
+            return;
+        }
+        final SlowQueryLog log = new SlowQueryLog(new File(fileName),
+                Long.getLong(SLOW_LOG_THRESHOLD_PROPERTY, SlowQueryLog.DEFAULT_THRESHOLD_MILLIS),
+                Long.getLong(SLOW_LOG_MAX_BYTES_PROPERTY, SlowQueryLog.DEFAULT_MAX_FILE_BYTES),
+                Integer.getInteger(SLOW_LOG_KEEP_PROPERTY, SlowQueryLog.DEFAULT_KEEP),
+                Integer.getInteger(SLOW_LOG_QUEUE_PROPERTY, SlowQueryLog.DEFAULT_QUEUE_CAPACITY));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                log.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "norn-slow-query-log-shutdown"));
+        slowQueryLog = log;
+    }
+    
+    /**
+     * Starts the web front end selected by the system property norn.frontend, configured
+     * by the system properties described in main().
+     * @param environment the environment that web requests are evaluated in
+     * @throws IOException if the web server cannot be started
+     */
+    private static void startWebServer(Environment environment) throws IOException {
+        final int maxConcurrent = Integer.getInteger(MAX_CONCURRENT_PROPERTY, EvalEndpoint.DEFAULT_MAX_CONCURRENT_EVALUATIONS);
+        final int maxQueued = Integer.getInteger(MAX_QUEUED_PROPERTY, EvalEndpoint.DEFAULT_MAX_QUEUED_EVALUATIONS);
+        final long maxWaitMillis = Long.getLong(MAX_QUEUE_WAIT_PROPERTY, EvalEndpoint.DEFAULT_MAX_QUEUE_WAIT_MILLIS);
+        final long maxNodeVisits = Long.getLong(MAX_NODE_VISITS_PROPERTY, EvalEndpoint.DEFAULT_MAX_NODE_VISITS);
+        final long maxRecipients = Long.getLong(MAX_RECIPIENTS_PROPERTY, EvalEndpoint.DEFAULT_MAX_RECIPIENTS);
+        final long maxMillis = Long.getLong(MAX_EVALUATION_MILLIS_PROPERTY, EvalEndpoint.DEFAULT_MAX_EVALUATION_MILLIS);
+        final int cacheEntries = Integer.getInteger(CACHE_ENTRIES_PROPERTY, EvalEndpoint.DEFAULT_RESULT_CACHE_ENTRIES);
+        final long cacheBytes = Long.getLong(CACHE_BYTES_PROPERTY, EvalEndpoint.DEFAULT_RESULT_CACHE_BYTES);
+        final EvalEndpoint.Mode evalMode = evaluationMode(System.getProperty(EVAL_MODE_PROPERTY));
+        if (NIO_FRONT_END.equals(System.getProperty(FRONT_END_PROPERTY))) {
+            final NioWebServer server = new NioWebServer(environment, WebServer.PORT);
+            server.setAdmission(maxConcurrent, maxQueued, maxWaitMillis);
+            server.setEvaluationBudget(maxNodeVisits, maxRecipients, maxMillis);
+            server.setResultCache(cacheEntries, cacheBytes);
+            server.setEvaluationMode(evalMode);
+            server.setSlowQueryLog(slowQueryLog);
+        } else {
+            final WebServer server = new WebServer(environment);
+            server.setCompression(Integer.getInteger(GZIP_THRESHOLD_PROPERTY, WebServer.DEFAULT_COMPRESSION_THRESHOLD),
+                    Integer.getInteger(GZIP_LEVEL_PROPERTY, WebServer.DEFAULT_COMPRESSION_LEVEL));
+            server.setAdmission(maxConcurrent, maxQueued, maxWaitMillis);
+            server.setEvaluationBudget(maxNodeVisits, maxRecipients, maxMillis);
+            server.setResultCache(cacheEntries, cacheBytes);
+            server.setEvaluationMode("/eval/", evalMode);
+            server.setEvaluationMode("/api/eval/", evaluationMode(System.getProperty(API_MODE_PROPERTY)));
+            server.setSlowQueryLog(slowQueryLog);
+        }
+    }
+    
+    /**
+     * @param property the value of an evaluation mode property: locked, read-only or commit,
+     *  or null if the property is not set
+     * @return the evaluation mode named by property, LOCKED if property is null
+     * @throws IllegalArgumentException if property does not name an evaluation mode
+     */
+    private static EvalEndpoint.Mode evaluationMode(String property) {
+        if (property == null) {
+            return EvalEndpoint.Mode.LOCKED;
+        }
+        return EvalEndpoint.Mode.valueOf(property.trim().toUpperCase().replace('-', '_'));
+    }
+    
+    /**
+     * Saves all definitions in this Environment to a file in the background, with SAVER.
+     * Only a snapshot of the definitions is taken before returning; a message is printed
+     * to out when the file has been written or could not be written.
      * @param filename the name of the file to be written
      * @param env environment whose definitions are to be saved
-     * @return true if definitions were successfully saved to fileName
+     * @param out the stream to print the outcome of the save to
      */
-    private static boolean save(String filename, Environment env) {
-        synchronized(env){
-            try {
-                BufferedWriter writer = new BufferedWriter(new FileWriter(DIRECTORY + filename));
-                Set<Name> names = env.getNames();
-                for (Name n : names) {
-                    writer.write(n.toString() + " = (" + env.getExpression(n).toString() + ")"); 
-                    writer.write("; ");
+    private static void save(String filename, Environment env, PrintStream out) {
+        final File file = new File(DIRECTORY + filename);
+        final long start = System.nanoTime();
+        SAVER.save(env, file).whenComplete((count, e) -> {
+            if (e == null) {
+                out.println(String.format("saved %d definitions to %s in %.1f ms",
+                        count, file, (System.nanoTime() - start) / NANOS_PER_MILLI));
+            } else {
+                Throwable cause = e;
+                while ((cause instanceof CompletionException || cause instanceof UncheckedIOException)
+                        && cause.getCause() != null) {
+                    cause = cause.getCause();
                 }
-                writer.flush();
-                writer.close();
-                return true;
-            } catch (IOException e) {
-                System.out.println("Could not open file to write: " + e.getMessage());
+                out.println("Could not open file to write: " + cause.getMessage());
             }
-            return false;
+        });
+    }
+    
+    /**
+     * Waits until the saves started so far have finished, so that their files can be read.
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    private static void awaitSaves() throws InterruptedIOException {
+        try {
+            SAVER.awaitPending();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for saves");
+        }
+    }
+    
+    /**
+     * @param fileName the name of a file given to !import or !export
+     * @return the file, relative to DIRECTORY unless fileName is absolute
+     */
+    private static File resolve(String fileName) {
+        final File file = new File(fileName);
+        return file.isAbsolute() ? file : new File(DIRECTORY + fileName);
+    }
+    
+    /**
+     * Defines a list as the addresses in a plain address file, read by AddressImporter.
+     * @param name the list to define
+     * @param fileName the address file, relative to DIRECTORY unless it is absolute
+     * @param env the environment to define name in
+     * @return a summary of the import, to be printed
+     * @throws IOException if the file cannot be read
+     * @throws IllegalArgumentException if the file does not exist or contains an invalid address
+     */
+    private static String importAddresses(Name name, String fileName, Environment env) throws IOException {
+        final File file = resolve(fileName);
+        if ( ! file.isFile()) {
+            throw new IllegalArgumentException("file not found: \"" + file + "\"");
         }
+        final long start = System.nanoTime();
+        final RecipientSet recipients = AddressImporter.read(file);
+        env.reassign(name, recipients);
+        return String.format("imported %d addresses into %s in %.1f ms",
+                recipients.size(), name, (System.nanoTime() - start) / NANOS_PER_MILLI);
     }
     
     /**
@@ -216,17 +686,25 @@ public class Main {
      * Adds all definitions in the file to this Environment.
      * @param file the file to be loaded. Cannot contain newlines. 
      *  The contents of the file should be a single valid list expression. 
+     * @param timings counters to add the time spent parsing and evaluating the file to
      * @return true if the contents of the file were successfully loaded,
      *  false otherwise.
      * @throws IOException 
      */
-    private static boolean load(File file, Environment env) throws IOException {
+    private static boolean load(File file, Environment env, Timings timings) throws IOException {
         synchronized(env) {
+            final Object event = Tracing.begin(Tracing.Kind.LOAD);
+            boolean loaded = false;
             BufferedReader reader = new BufferedReader(new FileReader(file));
             try {
                 String toParse = reader.readLine();
+                final long parseStart = System.nanoTime();
                 ListExpression parsed = ListExpression.parse(toParse);
+                final long evaluateStart = System.nanoTime();
                 parsed.recipients(env);
+                timings.parseNanos += evaluateStart - parseStart;
+                timings.evaluateNanos += System.nanoTime() - evaluateStart;
+                loaded = true;
                 return true;
             } catch (IOException e) {
                 System.out.println("Invalid input, could not parse: " + e.getMessage());
@@ -234,6 +712,7 @@ public class Main {
             }
             finally{
                 reader.close();
+                Tracing.endPersist(event, file.getPath(), env.getNames().size(), loaded);
             }
         }
     }
@@ -0,0 +1,268 @@
+package norn;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Answers whether an address is a recipient of a list expression without evaluating the whole
+ * expression. The expression tree is walked with short-circuiting: a union stops at the first
+ * operand that contains the address, an intersection at the first that does not, and a
+ * difference only looks at its right operand if its left one contains the address. Every node
+ * walked is charged to the evaluation budget of the current thread, if any.
+ *
+ * A list name reached may have a Bloom filter of its recipients, so that an address that is not
+ * in the list is usually rejected without walking its definition at all. Filters are built by a
+ * background thread, which evaluates the list in an overlay of the environment without holding
+ * the lock on the environment, the first time a query reaches the list and again whenever the
+ * list or a list it depends on is redefined. Until its filter is built, the definition of a list
+ * is walked.
+ */
+class Membership {
+    private static final ExecutorService BUILDER = Executors.newSingleThreadExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "norn-membership");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Environment environment;
+    private final Map<Name, Filter> filters = new HashMap<>();
+    private final Set<Name> building = new HashSet<>();
+
+    // AF(environment, filters, building) = a cache of the Bloom filter of the recipients of
+    //      each list name in filters, valid for the definitions in environment of the lists it
+    //      depends on, where the filters of the names in building are being built
+    // RI: every filter in filters was built from the current definitions of its dependencies
+    // Rep exposure: filters and building are private and never returned.
+    // Thread safety: filters and building are only accessed while holding the lock on
+    //                environment. Filters are built by BUILDER without the lock, from an
+    //                overlay of environment, and only added to filters, with the lock, if none
+    //                of their dependencies was redefined since the overlay was created.
+
+    /**
+     * The Bloom filter of one list, with the names whose redefinition invalidates it.
+     */
+    private static class Filter {
+        private final BloomFilter bloom;
+        private final Set<Name> dependencies;
+        private final boolean allLists;
+
+        /**
+         * @param bloom the filter of the recipients of the list
+         * @param dependencies the list and the names it references, directly or transitively
+         * @param allLists true if the list contains a domain, which depends on every list
+         */
+        private Filter(BloomFilter bloom, Set<Name> dependencies, boolean allLists) {
+            this.bloom = bloom;
+            this.dependencies = dependencies;
+            this.allLists = allLists;
+        }
+    }
+
+    /**
+     * Create an empty cache of the filters of the lists in an environment.
+     * @param environment the environment whose lists to filter
+     */
+    Membership(Environment environment) {
+        this.environment = environment;
+    }
+
+    /**
+     * Determine whether an address is a recipient of an expression. Requires the lock on
+     * environment. Definitions and sequences in the expression are evaluated, which makes
+     * their definitions in environment as recipients() would.
+     * @param expression any list expression
+     * @param recipient any recipient
+     * @return true if recipient is in expression.recipients(environment)
+     * @throws EvaluationBudget.BudgetExceededException if the walk exceeds the evaluation
+     *  budget of the current thread
+     * @throws AssertionError if the walk reaches a mail loop, which a failed redefinition
+     *  may have left in environment
+     */
+    boolean contains(ListExpression expression, Recipient recipient) {
+        return contains(expression, recipient, new HashSet<Name>());
+    }
+
+    /**
+     * Determine whether an address is a recipient of an expression, as contains(expression,
+     * recipient). Requires the lock on environment.
+     * @param expression any list expression
+     * @param recipient any recipient
+     * @param path the names whose definitions are being walked, which expression is part of
+     * @return true if recipient is in expression.recipients(environment)
+     * @throws EvaluationBudget.BudgetExceededException if the walk exceeds the evaluation
+     *  budget of the current thread
+     * @throws AssertionError if expression reaches a name in path
+     */
+    private boolean contains(ListExpression expression, Recipient recipient, Set<Name> path) {
+        if (expression instanceof Recipient) {
+            EvaluationBudget.visit();
+            return expression.equals(recipient);
+        } else if (expression instanceof RecipientSet) {
+            EvaluationBudget.visit();
+            return ((RecipientSet) expression).view().contains(recipient);
+        } else if (expression instanceof Empty) {
+            EvaluationBudget.visit();
+            return false;
+        } else if (expression instanceof Union) {
+            EvaluationBudget.visit();
+            final Union union = (Union) expression;
+            return contains(union.getLeft(), recipient, path) || contains(union.getRight(), recipient, path);
+        } else if (expression instanceof Intersect) {
+            EvaluationBudget.visit();
+            final Intersect intersect = (Intersect) expression;
+            return contains(intersect.getLeft(), recipient, path) && contains(intersect.getRight(), recipient, path);
+        } else if (expression instanceof Difference) {
+            EvaluationBudget.visit();
+            final Difference difference = (Difference) expression;
+            return contains(difference.getLeft(), recipient, path) && !contains(difference.getRight(), recipient, path);
+        } else if (expression instanceof Domain) {
+            EvaluationBudget.visit();
+            return recipient.getDomain().equals(((Domain) expression).getDomain())
+                    && environment.appearsInDefinitions(recipient);
+        } else if (expression instanceof Name) {
+            EvaluationBudget.visit();
+            final Name name = (Name) expression;
+            if (!environment.isDefined(name)) {
+                return false;
+            }
+            final ListExpression definition = environment.getExpression(name);
+            if (name.equals(definition)) {
+                return false;
+            }
+            if (!path.add(name)) {
+                throw new AssertionError("Oops! You have created a mail loop.");
+            }
+            final Filter filter = filters.get(name);
+            if (filter == null) {
+                build(name);
+            } else if (!filter.bloom.mightContain(recipient)) {
+                Metrics.MEMBERSHIP_REJECTIONS.increment();
+                return false;
+            }
+            final boolean member = contains(definition, recipient, path);
+            path.remove(name);
+            return member;
+        }
+        // definitions and sequences change the environment, so they are evaluated
+        return expression.recipients(environment).contains(recipient);
+    }
+
+    /**
+     * Start building the filter of a list in the background, unless it is already being
+     * built. Requires the lock on environment.
+     * @param name a defined list name
+     */
+    private void build(Name name) {
+        if (building.add(name)) {
+            BUILDER.execute(() -> buildFilter(name));
+        }
+    }
+
+    /**
+     * Builds the filter of a list from an overlay of environment and adds it to filters, or
+     * starts over if a dependency was redefined in the meantime. If the list cannot be
+     * evaluated, the failure is counted and the filter is built again the next time a query
+     * reaches the list. Runs on BUILDER, without the lock on environment.
+     * @param name a list name
+     */
+    private void buildFilter(Name name) {
+        Filter filter = null;
+        long version = 0;
+        try {
+            final Environment snapshot = environment.overlay();
+            // definitions in the list may change the version of the overlay while it is evaluated
+            version = snapshot.version();
+            synchronized (snapshot) {
+                filter = new Filter(new BloomFilter(EvaluationBudget.evaluateUnlimited(name, snapshot)),
+                        snapshot.referencedNames(name), snapshot.referencesDomain(name));
+            }
+        } catch (RuntimeException | AssertionError e) {
+            // e.g. a failed redefinition left a mail loop in environment
+            Metrics.MEMBERSHIP_FILTER_FAILURES.increment();
+        } finally {
+            synchronized (environment) {
+                building.remove(name);
+                if (filter != null && environment.isDefined(name)) {
+                    if (redefinedSince(filter, version)) {
+                        build(name);
+                    } else {
+                        filters.put(name, filter);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param filter a filter built from an overlay of environment; requires the lock on environment
+     * @param version the version of environment that the overlay was created at
+     * @return true if a dependency of filter has been redefined in environment since version
+     */
+    private boolean redefinedSince(Filter filter, long version) {
+        if (filter.allLists) {
+            return environment.version() > version;
+        }
+        for (Name dependency : filter.dependencies) {
+            if (environment.version(dependency) > version) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drop the filters of the lists that depend on redefined names, and start building them
+     * again from the new definitions. Requires the lock on environment.
+     * @param redefined the names that were redefined
+     */
+    void invalidate(Set<Name> redefined) {
+        for (Iterator<Map.Entry<Name, Filter>> it = filters.entrySet().iterator(); it.hasNext(); ) {
+            final Map.Entry<Name, Filter> entry = it.next();
+            final Filter filter = entry.getValue();
+            if (filter.allLists || dependsOnAny(filter, redefined)) {
+                it.remove();
+                build(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * @param filter a cached filter
+     * @param redefined names that were redefined
+     * @return true if a name in redefined is a dependency of filter
+     */
+    private static boolean dependsOnAny(Filter filter, Set<Name> redefined) {
+        for (Name name : redefined) {
+            if (filter.dependencies.contains(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of cached filters; requires the lock on environment
+     */
+    int size() {
+        return filters.size();
+    }
+
+    /**
+     * Wait until the filters whose building has been started so far, in any environment,
+     * have been built.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    static void awaitBuilds() throws InterruptedException {
+        try {
+            BUILDER.submit(() -> { }).get();
+        } catch (ExecutionException e) {
+            throw new AssertionError("an empty task cannot fail", e);
+        }
+    }
+}
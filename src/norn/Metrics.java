@@ -0,0 +1,148 @@
+package norn;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide, threadsafe instrumentation of parsing, evaluation, environment changes and
+ * web responses. Recording a measurement only increments lock-free counters, so it is cheap
+ * enough to do on every request. The measurements can be written in the Prometheus text
+ * exposition format.
+ */
+public final class Metrics {
+
+    /** Time to parse a list expression, in nanoseconds. */
+    public static final Histogram PARSE_NANOS = new Histogram();
+    /** Time to evaluate a top-level list expression, in nanoseconds. */
+    public static final Histogram EVALUATION_NANOS = new Histogram();
+    /** Time spent waiting for the lock on the environment before evaluating, in nanoseconds. */
+    public static final Histogram LOCK_WAIT_NANOS = new Histogram();
+    /** Time to redefine names in the environment, including the mail loop check, in nanoseconds. */
+    public static final Histogram REASSIGN_NANOS = new Histogram();
+    /** Time to write a web response body, in nanoseconds. */
+    public static final Histogram RESPONSE_WRITE_NANOS = new Histogram();
+    /** Size of a web response body as sent, in bytes. */
+    public static final Histogram RESPONSE_BYTES = new Histogram();
+    /** Time to write a checkpoint of the environment, in nanoseconds. */
+    public static final Histogram CHECKPOINT_NANOS = new Histogram();
+
+    /** Number of web requests handled. */
+    public static final LongAdder REQUESTS = new LongAdder();
+    /** Number of inputs that could not be parsed as list expressions. */
+    public static final LongAdder PARSE_ERRORS = new LongAdder();
+    /** Number of evaluations rejected because they would create a mail loop. */
+    public static final LongAdder MAIL_LOOPS = new LongAdder();
+    /** Number of web requests rejected by admission control. */
+    public static final LongAdder SHED_REQUESTS = new LongAdder();
+    /** Number of evaluations stopped because they exceeded their budget. */
+    public static final LongAdder BUDGET_EXCEEDED = new LongAdder();
+    /** Number of /eval/ responses served from the result cache. */
+    public static final LongAdder RESULT_CACHE_HITS = new LongAdder();
+    /** Number of /eval/ requests without definitions that missed the result cache. */
+    public static final LongAdder RESULT_CACHE_MISSES = new LongAdder();
+    /** Number of checkpoints of the environment that could not be written. */
+    public static final LongAdder CHECKPOINT_FAILURES = new LongAdder();
+    /** Number of evaluations that took longer than the threshold of the slow query log. */
+    public static final LongAdder SLOW_QUERIES = new LongAdder();
+    /** Number of slow evaluations not logged because the queue of the slow query log was full. */
+    public static final LongAdder SLOW_QUERIES_DROPPED = new LongAdder();
+
+    /** Number of membership queries answered by Environment.contains(). */
+    public static final LongAdder MEMBERSHIP_QUERIES = new LongAdder();
+    /** Number of lists that a Bloom filter ruled out during membership queries. */
+    public static final LongAdder MEMBERSHIP_REJECTIONS = new LongAdder();
+    /** Number of Bloom filters of lists that could not be built, for example because of a mail loop. */
+    public static final LongAdder MEMBERSHIP_FILTER_FAILURES = new LongAdder();
+    /** Number of times watched lists could not be re-evaluated after a redefinition. */
+    public static final LongAdder WATCH_UPDATE_FAILURES = new LongAdder();
+
+    private static final double NANOS_PER_SECOND = 1e9;
+    private static final int MIN_BOUND_EXPONENT = 10; // about 1 microsecond, or 1 KiB
+    private static final int MAX_BOUND_EXPONENT = 36; // about 69 seconds, or 64 GiB
+
+    private Metrics() {
+        throw new AssertionError("Metrics is not instantiable");
+    }
+
+    /**
+     * Writes all measurements in the Prometheus text exposition format (version 0.0.4).
+     * @param out the writer to write to
+     * @throws IOException if out cannot be written to
+     */
+    public static void writePrometheus(Writer out) throws IOException {
+        writeHistogram(out, "norn_parse_seconds", "Time to parse a list expression.", PARSE_NANOS, NANOS_PER_SECOND);
+        writeHistogram(out, "norn_evaluation_seconds", "Time to evaluate a top-level list expression.",
+                EVALUATION_NANOS, NANOS_PER_SECOND);
+        writeHistogram(out, "norn_environment_lock_wait_seconds", "Time spent waiting for the environment lock.",
+                LOCK_WAIT_NANOS, NANOS_PER_SECOND);
+        writeHistogram(out, "norn_reassign_seconds", "Time to redefine list names, including the mail loop check.",
+                REASSIGN_NANOS, NANOS_PER_SECOND);
+        writeHistogram(out, "norn_response_write_seconds", "Time to write a web response body.",
+                RESPONSE_WRITE_NANOS, NANOS_PER_SECOND);
+        writeHistogram(out, "norn_response_bytes", "Size of a web response body as sent.", RESPONSE_BYTES, 1);
+        writeHistogram(out, "norn_checkpoint_seconds", "Time to write a checkpoint of the environment.",
+                CHECKPOINT_NANOS, NANOS_PER_SECOND);
+        writeCounter(out, "norn_requests_total", "Web requests handled.", REQUESTS);
+        writeCounter(out, "norn_parse_errors_total", "Inputs that could not be parsed as list expressions.", PARSE_ERRORS);
+        writeCounter(out, "norn_mail_loops_total", "Evaluations rejected because they would create a mail loop.", MAIL_LOOPS);
+        writeCounter(out, "norn_shed_requests_total", "Web requests rejected by admission control.", SHED_REQUESTS);
+        writeCounter(out, "norn_budget_exceeded_total", "Evaluations stopped because they exceeded their budget.",
+                BUDGET_EXCEEDED);
+        writeCounter(out, "norn_result_cache_hits_total", "Responses served from the result cache.", RESULT_CACHE_HITS);
+        writeCounter(out, "norn_result_cache_misses_total", "Requests without definitions that missed the result cache.",
+                RESULT_CACHE_MISSES);
+        writeCounter(out, "norn_checkpoint_failures_total", "Checkpoints of the environment that could not be written.",
+                CHECKPOINT_FAILURES);
+        writeCounter(out, "norn_slow_queries_total", "Evaluations that took longer than the slow query threshold.",
+                SLOW_QUERIES);
+        writeCounter(out, "norn_slow_queries_dropped_total", "Slow evaluations not logged because the log queue was full.",
+                SLOW_QUERIES_DROPPED);
+        writeCounter(out, "norn_membership_queries_total", "Membership queries of a list.", MEMBERSHIP_QUERIES);
+        writeCounter(out, "norn_membership_rejections_total", "Lists ruled out by a Bloom filter in membership queries.",
+                MEMBERSHIP_REJECTIONS);
+        writeCounter(out, "norn_membership_filter_failures_total", "Bloom filters of lists that could not be built.",
+                MEMBERSHIP_FILTER_FAILURES);
+        writeCounter(out, "norn_watch_update_failures_total", "Failed re-evaluations of watched lists.",
+                WATCH_UPDATE_FAILURES);
+    }
+
+    /**
+     * Writes a histogram with cumulative buckets just below powers of two. Every exported bucket
+     * counts the values less than a power of two 2^k, which, since values are whole numbers, are
+     * exactly the values at most 2^k - 1, so its inclusive upper bound le is 2^k - 1 units.
+     * @param out the writer to write to
+     * @param name the metric name
+     * @param help description of the metric
+     * @param histogram the recorded values
+     * @param unit the number of recorded units per exported unit
+     * @throws IOException if out cannot be written to
+     */
+    static void writeHistogram(Writer out, String name, String help, Histogram histogram, double unit)
+            throws IOException {
+        out.write("# HELP " + name + " " + help + "\n");
+        out.write("# TYPE " + name + " histogram\n");
+        for (int exponent = MIN_BOUND_EXPONENT; exponent <= MAX_BOUND_EXPONENT; exponent++) {
+            final long bound = 1L << exponent;
+            out.write(name + "_bucket{le=\"" + ((bound - 1) / unit) + "\"} " + histogram.countBelow(bound) + "\n");
+        }
+        final long count = histogram.count();
+        out.write(name + "_bucket{le=\"+Inf\"} " + count + "\n");
+        out.write(name + "_sum " + (histogram.sum() / unit) + "\n");
+        out.write(name + "_count " + count + "\n");
+    }
+
+    /**
+     * Writes a counter.
+     * @param out the writer to write to
+     * @param name the metric name
+     * @param help description of the metric
+     * @param counter the counter
+     * @throws IOException if out cannot be written to
+     */
+    private static void writeCounter(Writer out, String name, String help, LongAdder counter) throws IOException {
+        out.write("# HELP " + name + " " + help + "\n");
+        out.write("# TYPE " + name + " counter\n");
+        out.write(name + " " + counter.sum() + "\n");
+    }
+}
@@ -37,6 +37,7 @@ public class Name implements ListExpression {
 
     @Override
     public Set<Recipient> recipients(Environment environment) {
+        EvaluationBudget.visit();
         Set<Recipient> recipients;
         synchronized (environment) {
             ListExpression expr = environment.getExpression(this);
@@ -48,6 +49,18 @@ public class Name implements ListExpression {
         return recipients;
     }
 
+    @Override
+    public IntHashSet recipientIds(Environment environment) {
+        EvaluationBudget.visit();
+        synchronized (environment) {
+            ListExpression expr = environment.getExpression(this);
+            if (this.equals(expr)) {
+                return new IntHashSet();
+            }
+            return expr.recipientIds(environment);
+        }
+    }
+
     @Override
     public Set<ListExpression> getChildren() {
         return Collections.emptySet();
@@ -56,7 +69,7 @@ public class Name implements ListExpression {
     @Override
     public Set<ListExpression> getDependents(Environment environment) {
         synchronized (environment) {
-            if (environment.getNames().contains(this))
+            if (environment.isDefined(this))
                 return new HashSet<ListExpression>(Arrays.asList(environment.getExpression(this)));
         }
         return Collections.emptySet();
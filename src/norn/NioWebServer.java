@@ -0,0 +1,695 @@
+package norn;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Alternative web front end that serves /eval/ requests over non-blocking NIO channels.
+ * A single selector thread accepts connections, parses requests and writes responses,
+ * while list expressions are evaluated on worker threads. Connections are persistent
+ * (HTTP/1.1 keep-alive) and may pipeline several requests; responses are sent in request
+ * order through a reusable direct buffer per connection. Responses are identical to those
+ * of WebServer's /eval/, except that they are never compressed. Other WebServer endpoints
+ * are not served.
+ */
+public class NioWebServer {
+    /** Maximum size of a request line and its headers, in bytes. */
+    public static final int MAX_HEADER_BYTES = 16 * 1024;
+    /** Maximum number of requests of one connection that are waiting for their response. */
+    public static final int MAX_PIPELINED_REQUESTS = 16;
+    /** Time after which a connection without outstanding requests is closed. */
+    public static final long IDLE_TIMEOUT_MILLIS = 60000;
+
+    private static final String EVAL_PATH = "/eval/";
+    private static final int READ_BUFFER_SIZE = 4 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final long SELECT_TIMEOUT_MILLIS = 1000;
+    private static final byte[] END_OF_HEADERS = { '\r', '\n', '\r', '\n' };
+
+    private final int port;
+    private final Environment environment;
+    private final EvalEndpoint evalEndpoint;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final ExecutorService workers = Executors.newCachedThreadPool();
+    private final Queue<Connection> completed = new ConcurrentLinkedQueue<>();
+    private final Thread selectorThread;
+    private volatile boolean running = true;
+
+    // AF(port, environment, evalEndpoint, selector, serverChannel, workers, completed, selectorThread,
+    //    running) = a web server that accepts connections on serverChannel at port number port
+    //               and answers /eval/ requests with evalEndpoint over the list definitions in
+    //               environment. selectorThread services all connections registered with
+    //               selector until running is false; workers evaluate requests, and completed
+    //               holds the connections whose oldest outstanding response may have become ready.
+    // RI: true
+    // Rep exposure: all fields are private; environment is shared on purpose with the console,
+    //               and connections only exchange HTTP messages with clients.
+    // Thread safety: connections, selector keys and their buffers are only accessed by
+    //                selectorThread. Workers hand a finished response to selectorThread through
+    //                the volatile PendingResponse.bytes and the threadsafe completed queue, and
+    //                then wake up selector. evalEndpoint is threadsafe.
+
+    /**
+     * One HTTP connection, only accessed by the selector thread.
+     */
+    private static class Connection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final ByteBuffer out = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        private final ArrayDeque<PendingResponse> responses = new ArrayDeque<>();
+        private long bodyToSkip = 0;
+        private boolean closing = false;
+        private boolean inputClosed = false;
+        private boolean draining = false;
+        private long lastActive = System.currentTimeMillis();
+
+        // AF(channel, key, in, out, responses, bodyToSkip, closing, inputClosed, draining, lastActive) =
+        //      the connection channel registered with key, where in holds received bytes that
+        //      are not yet parsed (in write mode), out holds response bytes not yet sent (in read
+        //      mode), and responses are the outstanding responses in request order. The next
+        //      bodyToSkip received bytes belong to the body of the last request. No further
+        //      requests are parsed once closing, and no further bytes are read once inputClosed.
+        //      Once draining, the output is shut down and received bytes are discarded until the
+        //      client closes its side, so that unread requests do not reset the connection before
+        //      the client has read the last response. lastActive is the last time the connection made progress.
+        // RI: responses.size() <= MAX_PIPELINED_REQUESTS, in.capacity() <= MAX_HEADER_BYTES
+
+        private Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+            out.flip();
+        }
+    }
+
+    /**
+     * The response to one request, filled in by a worker or by the selector thread.
+     */
+    private static class PendingResponse {
+        private volatile byte[] bytes = null;
+        private boolean close = false;
+        private int bodyLength = 0;
+        private int sent = 0;
+        private long start = 0;
+
+        // AF(bytes, close, bodyLength, sent, start) = the response bytes, which end with a
+        //      body of bodyLength bytes, or a response that is still being evaluated if bytes is
+        //      null. The connection is closed after the response if close. The first sent bytes
+        //      have been copied to the connection's output buffer since time start.
+        // RI: 0 <= sent <= bytes.length if bytes is not null, sent is 0 otherwise
+    }
+
+    /**
+     * An immutable parsed HTTP request head.
+     */
+    private static class Request {
+        private final String method;
+        private final String target;
+        private final String version;
+        private final Map<String, String> headers;
+
+        // AF(method, target, version, headers) = a request for target with method, in HTTP
+        //      version version, with the given header values by lower-case header name
+        // RI: true
+
+        private Request(String method, String target, String version, Map<String, String> headers) {
+            this.method = method;
+            this.target = target;
+            this.version = version;
+            this.headers = headers;
+        }
+
+        /**
+         * @param token a connection option, in lower case
+         * @return true if the Connection header of this request lists token
+         */
+        private boolean hasConnectionOption(String token) {
+            final String connection = headers.get("connection");
+            if (connection == null) {
+                return false;
+            }
+            for (String option : connection.split(",")) {
+                if (option.trim().toLowerCase().equals(token)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Creates a web server and starts serving /eval/ requests.
+     * @param environment the shared environment that requests are evaluated in
+     * @param port the port number to accept connections at
+     * @throws IOException if the port cannot be bound
+     */
+    public NioWebServer(Environment environment, int port) throws IOException {
+        this.port = port;
+        this.environment = environment;
+        this.evalEndpoint = new EvalEndpoint(environment);
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        this.selectorThread = new Thread(this::serve, "norn-nio-selector");
+        selectorThread.start();
+    }
+
+    /**
+     * Configures admission control of requests that evaluate list expressions, as in
+     * WebServer.setAdmission().
+     * @param maxConcurrent maximum number of evaluating requests at a time, must be positive
+     * @param maxQueued maximum number of requests waiting to evaluate, must be non-negative
+     * @param maxWaitMillis maximum time a request waits to evaluate, must be non-negative
+     */
+    public void setAdmission(int maxConcurrent, int maxQueued, long maxWaitMillis) {
+        evalEndpoint.setAdmission(maxConcurrent, maxQueued, maxWaitMillis);
+    }
+
+    /**
+     * Configures how definitions in /eval/ requests affect the environment, as in
+     * WebServer.setEvaluationMode().
+     * @param mode the evaluation mode of /eval/ requests
+     */
+    public void setEvaluationMode(EvalEndpoint.Mode mode) {
+        evalEndpoint.setMode(mode);
+    }
+
+    /**
+     * Configures the cache of rendered /eval/ responses, as in EvalEndpoint.setResultCache().
+     * @param maxEntries maximum number of cached responses, or 0 to disable the cache
+     * @param maxBytes maximum total size of the cached responses in bytes, must be non-negative
+     */
+    public void setResultCache(int maxEntries, long maxBytes) {
+        evalEndpoint.setResultCache(maxEntries, maxBytes);
+    }
+
+    /**
+     * Configures the log of slow evaluations of /eval/ requests, as in EvalEndpoint.setSlowQueryLog().
+     * @param log the log to record evaluations in, or null to log nothing
+     */
+    public void setSlowQueryLog(SlowQueryLog log) {
+        evalEndpoint.setSlowQueryLog(log);
+    }
+
+    /**
+     * Configures the budget of each evaluation of a list expression, as in
+     * WebServer.setEvaluationBudget().
+     * @param maxNodeVisits maximum number of expression nodes visited, must be positive
+     * @param maxRecipients maximum number of recipients produced by all nodes, must be positive
+     * @param maxMillis maximum wall time of an evaluation in milliseconds, must be positive
+     */
+    public void setEvaluationBudget(long maxNodeVisits, long maxRecipients, long maxMillis) {
+        evalEndpoint.setEvaluationBudget(maxNodeVisits, maxRecipients, maxMillis);
+    }
+
+    /**
+     * Services all connections until the server is stopped. Runs on selectorThread.
+     */
+    private void serve() {
+        try {
+            while (running) {
+                selector.select(SELECT_TIMEOUT_MILLIS);
+                final Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    final SelectionKey key = selected.next();
+                    selected.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    final Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            read(connection);
+                        }
+                        service(connection);
+                    } catch (IOException e) {
+                        close(connection);
+                    }
+                }
+                for (Connection connection = completed.poll(); connection != null; connection = completed.poll()) {
+                    if (connection.key.isValid()) {
+                        try {
+                            service(connection);
+                        } catch (IOException e) {
+                            close(connection);
+                        }
+                    }
+                }
+                closeIdleConnections();
+            }
+        } catch (IOException e) {
+            // the selector failed, so no connection can be serviced any more
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    close((Connection) key.attachment());
+                }
+            }
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException e) {
+                // already stopping
+            }
+        }
+    }
+
+    /**
+     * Accepts a pending connection, if there is one.
+     * @throws IOException if the server channel fails
+     */
+    private void accept() throws IOException {
+        final SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        final SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(channel, key));
+    }
+
+    /**
+     * Reads the bytes available on a connection into its input buffer.
+     * @param connection a connection whose channel is readable
+     * @throws IOException if reading fails
+     */
+    private void read(Connection connection) throws IOException {
+        if (connection.draining) {
+            connection.in.clear();
+        } else if (!connection.in.hasRemaining()) {
+            return;
+        }
+        final int read = connection.channel.read(connection.in);
+        if (read < 0) {
+            connection.inputClosed = true;
+        } else if (read > 0) {
+            connection.lastActive = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Parses buffered requests and sends ready responses of a connection until neither makes
+     * progress, then closes the connection or updates the operations it waits for.
+     * @param connection an open connection
+     * @throws IOException if writing fails
+     */
+    private void service(Connection connection) throws IOException {
+        boolean progress;
+        do {
+            parseRequests(connection);
+            progress = write(connection);
+        } while (progress && connection.channel.isOpen());
+        if (!connection.channel.isOpen()) {
+            return;
+        }
+        final boolean done = connection.closing || connection.inputClosed;
+        if (done && connection.responses.isEmpty() && !connection.out.hasRemaining()) {
+            if (connection.inputClosed) {
+                close(connection);
+            } else {
+                if (!connection.draining) {
+                    connection.draining = true;
+                    connection.channel.shutdownOutput();
+                }
+                connection.key.interestOps(SelectionKey.OP_READ);
+            }
+            return;
+        }
+        int interest = 0;
+        if (!done && connection.responses.size() < MAX_PIPELINED_REQUESTS && connection.in.hasRemaining()) {
+            interest |= SelectionKey.OP_READ;
+        }
+        if (connection.out.hasRemaining()) {
+            interest |= SelectionKey.OP_WRITE;
+        }
+        connection.key.interestOps(interest);
+    }
+
+    /**
+     * Parses the complete requests in the input buffer of a connection and starts answering
+     * them, as long as the connection accepts further requests.
+     * @param connection an open connection
+     */
+    private void parseRequests(Connection connection) {
+        final ByteBuffer in = connection.in;
+        in.flip();
+        try {
+            while (!connection.closing && connection.responses.size() < MAX_PIPELINED_REQUESTS) {
+                if (connection.bodyToSkip > 0) {
+                    final int skipped = (int) Math.min(connection.bodyToSkip, in.remaining());
+                    in.position(in.position() + skipped);
+                    connection.bodyToSkip -= skipped;
+                    if (connection.bodyToSkip > 0) {
+                        return;
+                    }
+                }
+                final int end = indexOf(in, END_OF_HEADERS);
+                if (end < 0) {
+                    if (in.position() == 0 && in.limit() == in.capacity()) {
+                        if (in.capacity() < MAX_HEADER_BYTES) {
+                            connection.in = ByteBuffer.allocate(Math.min(in.capacity() * 2, MAX_HEADER_BYTES)).put(in);
+                            connection.in.flip();
+                        } else {
+                            respond(connection, 431, "Request Header Fields Too Large", "request headers are too large", true);
+                        }
+                    }
+                    return;
+                }
+                final byte[] head = new byte[end - in.position()];
+                in.get(head);
+                in.position(in.position() + END_OF_HEADERS.length);
+                dispatch(connection, new String(head, StandardCharsets.ISO_8859_1));
+            }
+        } finally {
+            connection.in.compact();
+        }
+    }
+
+    /**
+     * @param buffer a buffer in read mode
+     * @param pattern a non-empty byte sequence
+     * @return the absolute index of the first occurrence of pattern in the remaining bytes
+     *  of buffer, or -1 if there is none
+     */
+    private static int indexOf(ByteBuffer buffer, byte[] pattern) {
+        for (int i = buffer.position(); i <= buffer.limit() - pattern.length; i++) {
+            int matched = 0;
+            while (matched < pattern.length && buffer.get(i + matched) == pattern[matched]) {
+                matched++;
+            }
+            if (matched == pattern.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Starts answering one request of a connection. Evaluations are handed to a worker;
+     * all other requests are answered right away.
+     * @param connection the connection that sent the request
+     * @param requestHead the request line and headers, without the blank line that ends them
+     */
+    private void dispatch(Connection connection, String requestHead) {
+        final Request request = parseRequest(requestHead);
+        if (request == null) {
+            respond(connection, 400, "Bad Request", "malformed request", true);
+            return;
+        }
+        if (request.headers.containsKey("transfer-encoding")) {
+            respond(connection, 501, "Not Implemented", "request bodies must have a Content-Length", true);
+            return;
+        }
+        try {
+            connection.bodyToSkip = Long.parseLong(request.headers.getOrDefault("content-length", "0").trim());
+        } catch (NumberFormatException e) {
+            connection.bodyToSkip = -1;
+        }
+        if (connection.bodyToSkip < 0) {
+            respond(connection, 400, "Bad Request", "invalid Content-Length", true);
+            return;
+        }
+        final boolean close = request.version.equals("HTTP/1.0")
+                ? !request.hasConnectionOption("keep-alive")
+                : request.hasConnectionOption("close");
+        final String path;
+        try {
+            path = new URI(request.target).getPath();
+        } catch (URISyntaxException e) {
+            respond(connection, 400, "Bad Request", "malformed request target", close);
+            return;
+        }
+        if (path == null || !path.startsWith(EVAL_PATH)) {
+            respond(connection, 404, "Not Found", "no such endpoint", close);
+            return;
+        }
+        final boolean headOnly = request.method.equals("HEAD");
+        if (!request.method.equals("GET") && !headOnly) {
+            respond(connection, 405, "Method Not Allowed", "list expressions must be requested with GET", close);
+            return;
+        }
+        Metrics.REQUESTS.increment();
+        final PendingResponse pending = enqueue(connection, close);
+        final String expression = path.substring(EVAL_PATH.length());
+        final String ifNoneMatch = request.headers.get("if-none-match");
+        workers.execute(new Runnable() {
+            public void run() {
+                final Object event = Tracing.begin(Tracing.Kind.REQUEST);
+                int status = 500;
+                try {
+                    final EvalEndpoint.Response response = evalEndpoint.respond(expression, ifNoneMatch);
+                    status = response.status();
+                    final StringBuilder headers = new StringBuilder();
+                    if (response.entityTag() != null) {
+                        headers.append("ETag: ").append(response.entityTag()).append("\r\n");
+                    }
+                    if (response.retryAfter() != null) {
+                        headers.append("Retry-After: ").append(response.retryAfter()).append("\r\n");
+                    }
+                    complete(pending, response.status(), reasonPhrase(response.status()),
+                            "text/html; charset=utf-8", headers.toString(),
+                            response.body(), headOnly);
+                } finally {
+                    // any failure, including an Error, still answers the request, so that the
+                    // responses pipelined after it on the connection are not held back forever
+                    if (pending.bytes == null) {
+                        status = 500;
+                        complete(pending, 500, "Internal Server Error", "text/plain; charset=utf-8", "",
+                                "internal error\n".getBytes(StandardCharsets.UTF_8), headOnly);
+                    }
+                    Tracing.endRequest(event, request.method, path, status);
+                    completed.add(connection);
+                    selector.wakeup();
+                }
+            }
+        });
+    }
+
+    /**
+     * @param head the request line and headers of a request
+     * @return the parsed request, or null if head is malformed
+     */
+    private static Request parseRequest(String head) {
+        final String[] lines = head.split("\r\n");
+        final String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+            return null;
+        }
+        final Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            final int colon = lines[i].indexOf(':');
+            if (colon <= 0) {
+                return null;
+            }
+            final String name = lines[i].substring(0, colon).trim().toLowerCase();
+            final String value = lines[i].substring(colon + 1).trim();
+            headers.merge(name, value, (first, second) -> first + ", " + second);
+        }
+        return new Request(requestLine[0], requestLine[1], requestLine[2], headers);
+    }
+
+    /**
+     * Answers a request of a connection right away with a plain text message.
+     * @param connection the connection that sent the request
+     * @param status the HTTP status code of the response
+     * @param reason the reason phrase of status
+     * @param message the body of the response
+     * @param close true if the connection is to be closed after the response
+     */
+    private static void respond(Connection connection, int status, String reason, String message, boolean close) {
+        complete(enqueue(connection, close), status, reason, "text/plain; charset=utf-8", "",
+                (message + "\n").getBytes(StandardCharsets.UTF_8), false);
+    }
+
+    /**
+     * Adds an outstanding response to a connection.
+     * @param connection the connection that sent the request
+     * @param close true if the connection is to be closed after the response
+     * @return the new outstanding response, last in the order of the connection's responses
+     */
+    private static PendingResponse enqueue(Connection connection, boolean close) {
+        final PendingResponse pending = new PendingResponse();
+        pending.close = close;
+        connection.closing |= close;
+        connection.responses.add(pending);
+        return pending;
+    }
+
+    /**
+     * Fills in an outstanding response.
+     * @param pending the response to fill in
+     * @param status the HTTP status code of the response
+     * @param reason the reason phrase of status
+     * @param contentType the value of the Content-Type header
+     * @param headers further header lines, each terminated by CRLF
+     * @param body the response body
+     * @param headOnly true if the request was a HEAD request, so the body is not sent
+     */
+    private static void complete(PendingResponse pending, int status, String reason, String contentType,
+            String headers, byte[] body, boolean headOnly) {
+        final StringBuilder head = new StringBuilder("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+        if (status != 304) {
+            head.append("Content-Type: ").append(contentType).append("\r\n")
+                .append("Content-Length: ").append(body.length).append("\r\n");
+        }
+        head.append(headers);
+        if (pending.close) {
+            head.append("Connection: close\r\n");
+        }
+        head.append("\r\n");
+        final byte[] headBytes = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+        final int bodyLength = status == 304 || headOnly ? 0 : body.length;
+        final byte[] bytes = new byte[headBytes.length + bodyLength];
+        System.arraycopy(headBytes, 0, bytes, 0, headBytes.length);
+        System.arraycopy(body, 0, bytes, headBytes.length, bodyLength);
+        pending.bodyLength = bodyLength;
+        pending.bytes = bytes;
+    }
+
+    /**
+     * @param status an HTTP status code produced by EvalEndpoint
+     * @return the reason phrase of status
+     */
+    private static String reasonPhrase(int status) {
+        switch (status) {
+        case 200:
+            return "OK";
+        case 304:
+            return "Not Modified";
+        case 422:
+            return "Unprocessable Entity";
+        case 503:
+            return "Service Unavailable";
+        default:
+            return "Status " + status;
+        }
+    }
+
+    /**
+     * Sends the ready responses of a connection, in request order, through its direct output
+     * buffer, until the channel accepts no more bytes or the oldest response is not ready.
+     * @param connection an open connection
+     * @return true if at least one response was sent completely
+     * @throws IOException if writing fails
+     */
+    private boolean write(Connection connection) throws IOException {
+        final ByteBuffer out = connection.out;
+        boolean sentResponse = false;
+        while (true) {
+            if (out.hasRemaining()) {
+                connection.channel.write(out);
+                if (out.hasRemaining()) {
+                    return sentResponse;
+                }
+                connection.lastActive = System.currentTimeMillis();
+            }
+            final PendingResponse pending = connection.responses.peek();
+            if (pending == null || pending.bytes == null) {
+                return sentResponse;
+            }
+            final byte[] bytes = pending.bytes;
+            if (pending.sent < bytes.length) {
+                if (pending.sent == 0) {
+                    pending.start = System.nanoTime();
+                }
+                final int length = Math.min(out.capacity(), bytes.length - pending.sent);
+                out.clear();
+                out.put(bytes, pending.sent, length);
+                out.flip();
+                pending.sent += length;
+                continue;
+            }
+            connection.responses.remove();
+            sentResponse = true;
+            Metrics.RESPONSE_WRITE_NANOS.record(System.nanoTime() - pending.start);
+            Metrics.RESPONSE_BYTES.record(pending.bodyLength);
+            if (pending.close) {
+                // the connection is shut down by service() once nothing is left to send
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Closes the connections that have been idle for IDLE_TIMEOUT_MILLIS without
+     * outstanding responses.
+     */
+    private void closeIdleConnections() {
+        final long now = System.currentTimeMillis();
+        for (SelectionKey key : selector.keys()) {
+            if (key.isValid() && key.attachment() instanceof Connection) {
+                final Connection connection = (Connection) key.attachment();
+                if (connection.responses.isEmpty() && now - connection.lastActive > IDLE_TIMEOUT_MILLIS) {
+                    close(connection);
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes a connection, dropping its outstanding responses.
+     * @param connection the connection to close
+     */
+    private static void close(Connection connection) {
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            // the connection is gone either way
+        }
+    }
+
+    /**
+     * @return current server environment of list names
+     */
+    public Environment getEnvironment() {
+        return environment;
+    }
+
+    /**
+     * Stops accepting connections, closes all connections and waits until the port is free.
+     */
+    public void stop() {
+        running = false;
+        selector.wakeup();
+        try {
+            selectorThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        workers.shutdownNow();
+    }
+
+    /**
+     * @return port number at which server listens for connections
+     */
+    public int port() {
+        return port;
+    }
+}
@@ -0,0 +1,197 @@
+package norn;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A mutable, threadsafe, bounded store of evaluated recipient lists that lets web clients
+ * read a large result in pages. Each stored result is kept in a stable (sorted) order and
+ * is identified by an opaque cursor, so later pages are served from the stored result
+ * without evaluating the list expression again.
+ */
+public class PagedResults {
+    private final int capacity;
+    private final Map<Long, Result> results;
+    private long nextId = 0;
+
+    private static final String CURSOR_SEPARATOR = ":";
+
+    // AF(capacity, results, nextId) = the at most capacity most recently used evaluated results,
+    //                                 where results maps a result id to the expression that was
+    //                                 evaluated and its recipients in ascending address order
+    // RI: results.size() <= capacity
+    //     every key in results is < nextId
+    // Rep exposure: all fields are private; results is never returned and pages only expose
+    //               unmodifiable views of the immutable stored lists.
+    // Thread safety: all accesses to results and nextId happen in synchronized methods.
+
+    /**
+     * An immutable page of recipients taken from an evaluated list expression.
+     */
+    public static class Page {
+        private final List<Recipient> recipients;
+        private final int total;
+        private final String next;
+
+        // AF(recipients, total, next) = the page recipients of a result with total recipients,
+        //                               where next is the cursor of the following page, or null
+        //                               if this is the last page
+        // RI: recipients.size() <= total
+
+        private Page(List<Recipient> recipients, int total, String next) {
+            this.recipients = Collections.unmodifiableList(recipients);
+            this.total = total;
+            this.next = next;
+        }
+
+        /**
+         * @return the recipients on this page, in ascending address order
+         */
+        public List<Recipient> recipients() {
+            return recipients;
+        }
+
+        /**
+         * @return the number of recipients in the whole result
+         */
+        public int total() {
+            return total;
+        }
+
+        /**
+         * @return the cursor of the following page, or null if this is the last page
+         */
+        public String next() {
+            return next;
+        }
+    }
+
+    /**
+     * An immutable evaluated list expression.
+     */
+    private static class Result {
+        private final String expression;
+        private final List<Recipient> recipients;
+
+        private Result(String expression, List<Recipient> recipients) {
+            this.expression = expression;
+            this.recipients = recipients;
+        }
+    }
+
+    /**
+     * Create a new store of evaluated results.
+     * @param capacity the maximum number of results to keep; the least recently used
+     *  result is dropped when a new one does not fit. Must be positive.
+     */
+    public PagedResults(final int capacity) {
+        this.capacity = capacity;
+        this.results = new LinkedHashMap<Long, Result>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Result> eldest) {
+                return size() > PagedResults.this.capacity;
+            }
+        };
+        checkRep();
+    }
+
+    /**
+     * Checks that the rep invariant is maintained.
+     */
+    private synchronized void checkRep() {
+        assert capacity > 0;
+        assert results.size() <= capacity;
+    }
+
+    /**
+     * Sorts an evaluated expression into a stable order and returns its first page.
+     * The result is only stored if it does not fit on the first page.
+     * @param expression the list expression that was evaluated
+     * @param recipients the recipients of expression
+     * @param limit the maximum number of recipients on the page, must be positive
+     * @return the first page of recipients
+     */
+    public Page first(String expression, Set<Recipient> recipients, int limit) {
+        final List<Recipient> sorted = new ArrayList<>(recipients);
+        Collections.sort(sorted, Comparator.comparing(Recipient::toString));
+        if (sorted.size() <= limit) {
+            return new Page(sorted, sorted.size(), null);
+        }
+        final long id;
+        synchronized (this) {
+            id = nextId++;
+            results.put(id, new Result(expression, Collections.unmodifiableList(sorted)));
+            checkRep();
+        }
+        return page(id, sorted, 0, limit);
+    }
+
+    /**
+     * Returns the page of a stored result that starts at the given cursor.
+     * @param cursor a cursor returned by a previous page
+     * @param expression the list expression that the cursor was obtained for
+     * @param limit the maximum number of recipients on the page, must be positive
+     * @return the page of recipients starting at cursor
+     * @throws IllegalArgumentException if cursor is malformed or belongs to a different expression
+     * @throws NoSuchElementException if the result of cursor is no longer stored
+     */
+    public Page next(String cursor, String expression, int limit) {
+        final long id;
+        final int offset;
+        try {
+            final String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            final String[] parts = decoded.split(CURSOR_SEPARATOR);
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("malformed cursor");
+            }
+            id = Long.parseLong(parts[0]);
+            offset = Integer.parseInt(parts[1]);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("malformed cursor");
+        }
+        final Result result;
+        synchronized (this) {
+            result = results.get(id);
+        }
+        if (result == null) {
+            throw new NoSuchElementException("cursor expired");
+        }
+        if (!result.expression.equals(expression) || offset < 0 || offset > result.recipients.size()) {
+            throw new IllegalArgumentException("cursor does not belong to this expression");
+        }
+        return page(id, result.recipients, offset, limit);
+    }
+
+    /**
+     * @param id the id of the stored result
+     * @param sorted the recipients of the stored result
+     * @param offset the index of the first recipient on the page
+     * @param limit the maximum number of recipients on the page
+     * @return the page of sorted starting at offset
+     */
+    private static Page page(long id, List<Recipient> sorted, int offset, int limit) {
+        final int end = (int) Math.min((long) offset + limit, sorted.size());
+        final String next = end < sorted.size() ? cursor(id, end) : null;
+        return new Page(sorted.subList(offset, end), sorted.size(), next);
+    }
+
+    /**
+     * @param id the id of a stored result
+     * @param offset an index into the stored result
+     * @return an opaque, URL-safe cursor for offset in the stored result
+     */
+    private static String cursor(long id, int offset) {
+        final String plain = id + CURSOR_SEPARATOR + offset;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(plain.getBytes(StandardCharsets.UTF_8));
+    }
+}
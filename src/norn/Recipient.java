@@ -40,11 +40,29 @@ public class Recipient implements ListExpression {
         assert emailAddress.matches("[A-Za-z0-9_.-]+@[A-Za-z0-9_.-]+");
     }
     
+    /**
+     * @return the domain name of this Recipient, the part of its address after the '@'
+     */
+    public String getDomain() {
+        return emailAddress.substring(emailAddress.indexOf('@') + 1);
+    }
+
     @Override
     public Set<Recipient> recipients(Environment environment) {
+        EvaluationBudget.visit();
+        EvaluationBudget.produced(1);
         return new HashSet<Recipient>(Arrays.asList(this));
     }
     
+    @Override
+    public IntHashSet recipientIds(Environment environment) {
+        EvaluationBudget.visit();
+        EvaluationBudget.produced(1);
+        final IntHashSet ids = new IntHashSet(1);
+        ids.add(RecipientIds.current().idOf(this));
+        return ids;
+    }
+    
     @Override
     public Set<ListExpression> getChildren() {
         return Collections.emptySet();
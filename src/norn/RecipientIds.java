@@ -0,0 +1,289 @@
+package norn;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * A table that interns recipients as positive int ids, so that list operators can evaluate
+ * their operands as IntHashSets of ids instead of HashSets of recipients. Each environment
+ * has its own table of the addresses that appear in its definitions, which is maintained by
+ * its DomainIndex and shared with its overlays; addresses are only added to a table, and an
+ * environment replaces its table by a compacted one once most of its addresses have been
+ * removed from the definitions.
+ *
+ * An operator is evaluated with ids only if the table of its environment has an id for every
+ * address written in it and the definitions it reaches: list names and domains only reach
+ * addresses that appear in definitions, while addresses written in a request may have no id,
+ * and definitions and sequences may change the environment while they are evaluated. Any
+ * other operator is evaluated with HashSets, so evaluating a request never adds to a table.
+ */
+final class RecipientIds {
+    private static final int INITIAL_CAPACITY = 16;
+
+    // the table the current thread is evaluating recipientIds() with, if any
+    private static final ThreadLocal<RecipientIds> CURRENT = new ThreadLocal<>();
+    // the operators already found to be evaluated with or without ids, while the current
+    // thread evaluates an operator with HashSets
+    private static final ThreadLocal<Coverage> CHECKED = new ThreadLocal<>();
+
+    private final Map<Recipient, Integer> ids = new ConcurrentHashMap<>();
+    private volatile Recipient[] recipients = new Recipient[INITIAL_CAPACITY];
+    private int next = 1;
+
+    // AF(ids, recipients, next) = the interning that maps recipients[i] to id i, for
+    //      0 < i < next
+    // RI: ids maps recipients[i] to i for 0 < i < next, and has no other entries;
+    //     recipients[0] is null, next < recipients.length
+    // Rep exposure: all fields are private, and ids and recipients are never returned.
+    // Thread safety: new ids are assigned under the lock on this, which writes recipients[i]
+    //                before publishing i in the concurrent map ids; recipient(i) falls back
+    //                to the lock if it races with that write. CURRENT and CHECKED are
+    //                confined to their threads.
+
+    /**
+     * The operators of one expression that are evaluated with or without the ids of a table.
+     */
+    private static class Coverage {
+        private final RecipientIds table;
+        private final Map<ListExpression, Boolean> operators = new IdentityHashMap<>();
+
+        /**
+         * @param table the table of the environment the expression is evaluated in
+         */
+        private Coverage(RecipientIds table) {
+            this.table = table;
+        }
+
+        /**
+         * Determines whether an expression can be evaluated with the ids of table, and
+         * records the answer for every operator in it.
+         * @param expression the expression to examine, not expanding list names
+         * @return true if table has an id for every address in expression, and expression
+         *  contains no definitions or sequences
+         */
+        private boolean covers(ListExpression expression) {
+            final ListExpression left;
+            final ListExpression right;
+            if (expression instanceof Union) {
+                left = ((Union) expression).getLeft();
+                right = ((Union) expression).getRight();
+            } else if (expression instanceof Intersect) {
+                left = ((Intersect) expression).getLeft();
+                right = ((Intersect) expression).getRight();
+            } else if (expression instanceof Difference) {
+                left = ((Difference) expression).getLeft();
+                right = ((Difference) expression).getRight();
+            } else if (expression instanceof Recipient) {
+                return table.id((Recipient) expression) != 0;
+            } else if (expression instanceof RecipientSet) {
+                return ((RecipientSet) expression).ids(table) != null;
+            } else {
+                return expression instanceof Name || expression instanceof Domain || expression instanceof Empty;
+            }
+            // examine both operands, so that each of them has an answer
+            final boolean covered = covers(left) & covers(right);
+            operators.put(expression, covered);
+            return covered;
+        }
+    }
+
+    /**
+     * Create an empty table.
+     */
+    RecipientIds() {
+        checkRep();
+    }
+
+    /**
+     * @param recipients any recipients
+     * @return a new table that has an id for each of recipients
+     */
+    static RecipientIds of(Collection<Recipient> recipients) {
+        final RecipientIds table = new RecipientIds();
+        for (Recipient recipient : recipients) {
+            table.intern(recipient);
+        }
+        return table;
+    }
+
+    /**
+     * Check that the rep invariant is maintained.
+     */
+    private void checkRep() {
+        assert recipients[0] == null;
+        assert next < recipients.length;
+    }
+
+    /**
+     * @param recipient any recipient
+     * @return the id of recipient, which is assigned if it has none yet
+     */
+    synchronized int intern(Recipient recipient) {
+        final Integer existing = ids.get(recipient);
+        if (existing != null) {
+            return existing;
+        }
+        final int id = next++;
+        Recipient[] current = recipients;
+        if (id >= current.length - 1) {
+            final Recipient[] grown = new Recipient[current.length * 2];
+            System.arraycopy(current, 0, grown, 0, current.length);
+            current = grown;
+        }
+        current[id] = recipient;
+        recipients = current;
+        ids.put(recipient, id);
+        checkRep();
+        return id;
+    }
+
+    /**
+     * @param recipient any recipient
+     * @return the id of recipient in this table, or 0 if it has none
+     */
+    int id(Recipient recipient) {
+        final Integer id = ids.get(recipient);
+        return id == null ? 0 : id;
+    }
+
+    /**
+     * @param id an id in this table
+     * @return the recipient with that id
+     */
+    Recipient recipient(int id) {
+        final Recipient[] current = recipients;
+        final Recipient recipient = id < current.length ? current[id] : null;
+        if (recipient != null) {
+            return recipient;
+        }
+        synchronized (this) {
+            return recipients[id];
+        }
+    }
+
+    /**
+     * @return the number of recipients interned in this table so far
+     */
+    int size() {
+        return ids.size();
+    }
+
+    /**
+     * @param recipients recipients that all have ids in this table
+     * @return a new set of the ids of recipients
+     * @throws IllegalStateException if one of recipients has no id
+     */
+    IntHashSet idsOf(Collection<Recipient> recipients) {
+        final IntHashSet ids = new IntHashSet(recipients.size());
+        for (Recipient recipient : recipients) {
+            ids.add(idOf(recipient));
+        }
+        return ids;
+    }
+
+    /**
+     * @param recipient a recipient that has an id in this table
+     * @return the id of recipient
+     * @throws IllegalStateException if recipient has no id
+     */
+    int idOf(Recipient recipient) {
+        final int id = id(recipient);
+        if (id == 0) {
+            throw new IllegalStateException(recipient + " has no id");
+        }
+        return id;
+    }
+
+    /**
+     * @param ids ids in this table
+     * @return a new set of the recipients with those ids
+     */
+    Set<Recipient> recipientsOf(IntHashSet ids) {
+        // sized like a HashSet copied from a collection, as the operators used to return, so
+        // that the order in which the console and web pages list recipients is unchanged
+        final Set<Recipient> recipients = new HashSet<>(Math.max((int) (ids.size() / .75f) + 1, 16));
+        ids.forEach(id -> recipients.add(recipient(id)));
+        return recipients;
+    }
+
+    /**
+     * @return the table that recipientIds() is being evaluated with on the current thread
+     * @throws IllegalStateException if the current thread is not evaluating recipientIds()
+     *  within evaluate()
+     */
+    static RecipientIds current() {
+        final RecipientIds table = CURRENT.get();
+        if (table == null) {
+            throw new IllegalStateException("not evaluating recipient ids");
+        }
+        return table;
+    }
+
+    /**
+     * Evaluates the recipients of an operator, with the ids of the table of environment if
+     * it has ids for all of the addresses the operator reaches, and otherwise with HashSets.
+     * @param operator a Union, Intersect or Difference
+     * @param environment the list definitions used to evaluate operator
+     * @param withHashSets evaluates the recipients of operator from the recipients() of its
+     *  operands
+     * @return the recipients of operator
+     */
+    static Set<Recipient> evaluate(ListExpression operator, Environment environment,
+            Supplier<Set<Recipient>> withHashSets) {
+        synchronized (environment) {
+            final RecipientIds table = environment.recipientIdTable();
+            if (table == null) {
+                return withHashSets.get();
+            }
+            final Coverage previous = CHECKED.get();
+            final Boolean known = previous != null && previous.table == table ? previous.operators.get(operator) : null;
+            if (known != null) {
+                return known ? table.evaluateIds(operator, environment) : withHashSets.get();
+            }
+            final Coverage coverage = new Coverage(table);
+            if (coverage.covers(operator)) {
+                return table.evaluateIds(operator, environment);
+            }
+            // the operands of operator are evaluated with HashSets too, except the ones that
+            // are covered, without examining them again
+            CHECKED.set(coverage);
+            try {
+                return withHashSets.get();
+            } finally {
+                restore(CHECKED, previous);
+            }
+        }
+    }
+
+    /**
+     * @param expression an expression for which this table has ids for every address it reaches
+     * @param environment the list definitions used to evaluate expression; requires the lock on it
+     * @return the recipients of expression, evaluated with expression.recipientIds()
+     */
+    private Set<Recipient> evaluateIds(ListExpression expression, Environment environment) {
+        final RecipientIds previous = CURRENT.get();
+        CURRENT.set(this);
+        try {
+            return recipientsOf(expression.recipientIds(environment));
+        } finally {
+            restore(CURRENT, previous);
+        }
+    }
+
+    /**
+     * @param local a thread-local variable
+     * @param previous the value to restore, or null to remove the value of local
+     */
+    private static <T> void restore(ThreadLocal<T> local, T previous) {
+        if (previous == null) {
+            local.remove();
+        } else {
+            local.set(previous);
+        }
+    }
+}
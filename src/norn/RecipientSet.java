@@ -0,0 +1,235 @@
+package norn;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Immutable representation of a literal set of email addresses, such as a list imported
+ * from an address file. Unlike a Union of Recipients, it is stored as one sorted array and
+ * evaluates to a read-only view of that array without copying.
+ */
+public class RecipientSet implements ListExpression {
+    private static final Comparator<Recipient> ORDER = Comparator.comparing(Recipient::toString);
+
+    private final Recipient[] recipients;
+    private final Set<Recipient> view;
+    private final int hashCode;
+    private volatile Interned interned = null;
+
+    // Abstraction Function
+    //  AF(recipients, view, hashCode) = the list of the email addresses in recipients
+    // Rep Invariant
+    //  recipients contains no nulls and is strictly sorted by ORDER (so has no duplicates)
+    //  view is a read-only view of recipients
+    //  hashCode == Arrays.hashCode(recipients)
+    //  interned is null or caches the ids of recipients in one RecipientIds table; it is
+    //  not part of the abstract value.
+    // Rep Safety
+    //  All fields are private, and all but interned are final. recipients is never returned
+    //  or shared with clients; view does not support modification; the ids in interned are
+    //  never returned either.
+    // Thread safety
+    //  interned is volatile and immutable; threads may race to replace it, which only
+    //  wastes work.
+
+    /**
+     * The ids of the recipients in one table.
+     */
+    private static class Interned {
+        private final RecipientIds table;
+        private final int[] ids;
+
+        /**
+         * @param table the table
+         * @param ids the id of each recipient in table, or null if one of them has none
+         */
+        private Interned(RecipientIds table, int[] ids) {
+            this.table = table;
+            this.ids = ids;
+        }
+    }
+
+    /**
+     * Create a new RecipientSet object.
+     * @param recipients the recipients of the list; duplicates are ignored
+     */
+    public RecipientSet(Collection<Recipient> recipients) {
+        this(sortedDistinct(recipients.toArray(new Recipient[recipients.size()])));
+    }
+
+    /**
+     * Create a new RecipientSet object from a sorted array that is not shared.
+     * @param recipients recipients strictly sorted by address; must not be modified afterwards
+     */
+    private RecipientSet(Recipient[] recipients) {
+        this.recipients = recipients;
+        this.view = new View();
+        this.hashCode = Arrays.hashCode(recipients);
+        checkRep();
+    }
+
+    /**
+     * Creates a RecipientSet that takes ownership of an array of recipients.
+     * @param recipients the recipients of the list, in any order and possibly with
+     *  duplicates; must not be used by the caller afterwards
+     * @return a RecipientSet of the distinct recipients in the array
+     */
+    static RecipientSet of(Recipient[] recipients) {
+        return new RecipientSet(sortedDistinct(recipients));
+    }
+
+    /**
+     * Sorts an array in place and removes duplicates.
+     * @param recipients the array to sort
+     * @return a strictly sorted array of the distinct recipients, which may be recipients itself
+     */
+    private static Recipient[] sortedDistinct(Recipient[] recipients) {
+        Arrays.parallelSort(recipients, ORDER);
+        int distinct = 0;
+        for (int i = 0; i < recipients.length; i++) {
+            if (distinct == 0 || !recipients[i].equals(recipients[distinct - 1])) {
+                recipients[distinct++] = recipients[i];
+            }
+        }
+        return distinct == recipients.length ? recipients : Arrays.copyOf(recipients, distinct);
+    }
+
+    /**
+     * Check that the rep invariant is maintained.
+     */
+    private void checkRep() {
+        for (int i = 0; i < recipients.length; i++) {
+            assert recipients[i] != null;
+            assert i == 0 || ORDER.compare(recipients[i - 1], recipients[i]) < 0;
+        }
+    }
+
+    /**
+     * @return the number of distinct recipients in this list
+     */
+    public int size() {
+        return recipients.length;
+    }
+
+    /**
+     * Unlike recipients(), this does not count against the evaluation budget.
+     * @return a read-only set of the recipients in this list
+     */
+    Set<Recipient> view() {
+        return view;
+    }
+
+    /**
+     * Read-only set view of the recipients array, with lookups by binary search.
+     */
+    private class View extends AbstractSet<Recipient> {
+        @Override
+        public boolean contains(Object obj) {
+            return obj instanceof Recipient && Arrays.binarySearch(recipients, (Recipient) obj, ORDER) >= 0;
+        }
+
+        @Override
+        public Iterator<Recipient> iterator() {
+            return Collections.unmodifiableList(Arrays.asList(recipients)).iterator();
+        }
+
+        @Override
+        public int size() {
+            return recipients.length;
+        }
+    }
+
+    /**
+     * The returned set must not be modified; it does not support modification.
+     */
+    @Override
+    public Set<Recipient> recipients(Environment environment) {
+        EvaluationBudget.visit();
+        return view;
+    }
+
+    @Override
+    public IntHashSet recipientIds(Environment environment) {
+        EvaluationBudget.visit();
+        final RecipientIds table = RecipientIds.current();
+        final int[] interned = ids(table);
+        if (interned == null) {
+            throw new IllegalStateException("recipients without ids in the table");
+        }
+        final IntHashSet ids = new IntHashSet(interned.length);
+        for (int id : interned) {
+            ids.add(id);
+        }
+        return ids;
+    }
+
+    /**
+     * Looks up the ids of the recipients in a table, or reuses them if they were last looked
+     * up in the same table.
+     * @param table a table of recipient ids
+     * @return the ids of the recipients in table, which must not be modified, or null if one
+     *  of the recipients has no id in table
+     */
+    int[] ids(RecipientIds table) {
+        final Interned cached = interned;
+        if (cached != null && cached.table == table) {
+            return cached.ids;
+        }
+        int[] ids = new int[recipients.length];
+        for (int i = 0; i < recipients.length; i++) {
+            ids[i] = table.id(recipients[i]);
+            if (ids[i] == 0) {
+                ids = null;
+                break;
+            }
+        }
+        interned = new Interned(table, ids);
+        return ids;
+    }
+
+    @Override
+    public Set<ListExpression> getChildren() {
+        return Collections.emptySet();
+    }
+
+    @Override
+    public Set<ListExpression> getDependents(Environment environment) {
+        return Collections.emptySet();
+    }
+
+    /**
+     * The returned String has the format
+     *      recipient1, recipient2, ..., recipientN
+     * with the recipients in order of their addresses, or is the empty String if this list
+     * is empty. Parsing it gives an expression with the same recipients (a Union of
+     * Recipients), so this list is saved and loaded like any other.
+     */
+    @Override
+    public String toString() {
+        final StringBuilder string = new StringBuilder();
+        for (Recipient recipient : recipients) {
+            if (string.length() > 0) {
+                string.append(", ");
+            }
+            string.append(recipient);
+        }
+        return string.toString();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof RecipientSet)) return false;
+        RecipientSet that = (RecipientSet) obj;
+        return hashCode == that.hashCode && Arrays.equals(recipients, that.recipients);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+}
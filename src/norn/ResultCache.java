@@ -0,0 +1,180 @@
+package norn;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A mutable, threadsafe, bounded cache of rendered responses to list expressions without
+ * definitions. An entry remembers the versions of all lists its expression depends on, so a
+ * cached response is only returned while none of those lists has been redefined; stale
+ * entries are dropped when they are looked up, and the least recently used entries are
+ * evicted when the cache exceeds its number of entries or total size.
+ */
+public class ResultCache {
+    private final int maxEntries;
+    private final long maxBytes;
+    private final Map<String, Entry> entries;
+    private long bytes = 0;
+
+    // AF(maxEntries, maxBytes, entries, bytes) = the most recently used rendered responses,
+    //      where entries maps a normalized list expression to its response and to the
+    //      versions of the lists the response was computed from
+    // RI: entries.size() <= maxEntries, bytes <= maxBytes,
+    //     bytes is the sum of the body lengths of all entries
+    // Rep exposure: all fields are private; entries is never returned, and cached bodies are
+    //               only returned to callers that promise not to modify them.
+    // Thread safety: all accesses to entries and bytes happen in synchronized methods.
+
+    /**
+     * An immutable rendered response to a list expression.
+     */
+    public static class Entry {
+        private final byte[] body;
+        private final String entityTag;
+        private final Map<Name, Long> versions;
+        private volatile long checkedVersion;
+
+        // AF(body, entityTag, versions, checkedVersion) = the response body with entity tag
+        //      entityTag, computed when each name in versions was at its version; the versions
+        //      were last known to be current when the environment was at checkedVersion
+        // RI: true
+
+        private Entry(byte[] body, String entityTag, Map<Name, Long> versions, long checkedVersion) {
+            this.body = body;
+            this.entityTag = entityTag;
+            this.versions = versions;
+            this.checkedVersion = checkedVersion;
+        }
+
+        /**
+         * @return the rendered response body; must not be modified
+         */
+        public byte[] body() {
+            return body;
+        }
+
+        /**
+         * @return the entity tag of the response
+         */
+        public String entityTag() {
+            return entityTag;
+        }
+    }
+
+    /**
+     * Create a new, empty cache.
+     * @param maxEntries the maximum number of entries, must be non-negative
+     * @param maxBytes the maximum total size of the cached bodies, must be non-negative
+     */
+    public ResultCache(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        checkRep();
+    }
+
+    /**
+     * Checks that the rep invariant is maintained.
+     */
+    private synchronized void checkRep() {
+        assert entries.size() <= maxEntries;
+        assert bytes >= 0 && bytes <= maxBytes;
+    }
+
+    /**
+     * Looks up the cached response to an expression. Requires the lock on environment.
+     * @param expression a normalized list expression without definitions
+     * @param environment the environment that expression is evaluated in
+     * @return the cached response to expression, or null if there is none or if a list it
+     *  depends on has been redefined since it was cached
+     */
+    public Entry get(String expression, Environment environment) {
+        final Entry entry;
+        synchronized (this) {
+            entry = entries.get(expression);
+        }
+        if (entry == null) {
+            return null;
+        }
+        final long current = environment.version();
+        if (entry.checkedVersion == current) {
+            return entry;
+        }
+        for (Map.Entry<Name, Long> version : entry.versions.entrySet()) {
+            if (environment.version(version.getKey()) != version.getValue()) {
+                synchronized (this) {
+                    if (entries.get(expression) == entry) {
+                        remove(expression);
+                    }
+                }
+                return null;
+            }
+        }
+        entry.checkedVersion = current;
+        return entry;
+    }
+
+    /**
+     * Records the state that a response is computed from. Requires the lock on environment,
+     * held since the expression was evaluated.
+     * @param environment the environment that an expression was evaluated in
+     * @param names the names that the expression depends on, as returned by
+     *  environment.referencedNames()
+     * @return map from each name in names to its current version
+     */
+    public static Map<Name, Long> versions(Environment environment, Set<Name> names) {
+        final Map<Name, Long> versions = new HashMap<>();
+        for (Name name : names) {
+            versions.put(name, environment.version(name));
+        }
+        return versions;
+    }
+
+    /**
+     * Caches the response to an expression, unless it is larger than the whole cache.
+     * @param expression a normalized list expression without definitions
+     * @param versions the versions of the lists that expression depends on when it was
+     *  evaluated, as returned by versions()
+     * @param environmentVersion the version of the environment when expression was evaluated
+     * @param body the rendered response body; must not be modified afterwards
+     * @param entityTag the entity tag of the response
+     */
+    public void put(String expression, Map<Name, Long> versions, long environmentVersion, byte[] body, String entityTag) {
+        if (maxEntries == 0 || body.length > maxBytes) {
+            return;
+        }
+        final Entry entry = new Entry(body, entityTag, versions, environmentVersion);
+        synchronized (this) {
+            remove(expression);
+            entries.put(expression, entry);
+            bytes += body.length;
+            final Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+            while (entries.size() > maxEntries || bytes > maxBytes) {
+                bytes -= eldest.next().getValue().body.length;
+                eldest.remove();
+            }
+            checkRep();
+        }
+    }
+
+    /**
+     * Removes an entry. Requires the lock on this.
+     * @param expression the expression of the entry to remove
+     */
+    private void remove(String expression) {
+        final Entry removed = entries.remove(expression);
+        if (removed != null) {
+            bytes -= removed.body.length;
+        }
+    }
+
+    /**
+     * @return the number of cached responses
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+}
@@ -39,6 +39,7 @@ public class Sequence implements ListExpression {
 
     @Override
     public Set<Recipient> recipients(Environment environment) {
+        EvaluationBudget.visit();
         synchronized (environment) {
             left.recipients(environment);
             return right.recipients(environment);
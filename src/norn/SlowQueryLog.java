@@ -0,0 +1,370 @@
+package norn;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Logs evaluations of list expressions that take longer than a threshold, so that the
+ * expensive expressions can be found after the fact.
+ *
+ * Every slow evaluation is written as one line of JSON with the time it finished, where it
+ * came from (console, eval or api), its outcome, the time spent parsing, waiting for the
+ * lock on the environment and evaluating, the number of recipients, the list names that
+ * appear in the expression and the expression itself, truncated to MAX_EXPRESSION_CHARS.
+ *
+ * record() only checks the threshold and offers the evaluation to a bounded queue; the
+ * line is formatted and written by the log's own thread, so logging never waits for the
+ * disk or for a lock. If the queue is full, the evaluation is dropped and counted in
+ * Metrics.SLOW_QUERIES_DROPPED. Once the file would grow beyond its maximum size, it is
+ * renamed to file.1, file.1 to file.2, and so on, keeping the given number of old files.
+ */
+public class SlowQueryLog {
+    /** Default threshold above which an evaluation is logged, in milliseconds. */
+    public static final long DEFAULT_THRESHOLD_MILLIS = 100;
+    /** Default maximum size of the log file before it is rotated, in bytes. */
+    public static final long DEFAULT_MAX_FILE_BYTES = 10L * 1024 * 1024;
+    /** Default number of rotated log files to keep. */
+    public static final int DEFAULT_KEEP = 5;
+    /** Default number of slow evaluations that may wait to be written. */
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    /** Longest expression text written to the log; longer text is truncated. */
+    public static final int MAX_EXPRESSION_CHARS = 1024;
+    /** Outcome of an evaluation that produced its recipients. */
+    public static final String OK = "ok";
+    /** Outcome of an input that is not a valid list expression. */
+    public static final String INVALID = "invalid";
+    /** Outcome of an evaluation that was rejected because it would create a mail loop. */
+    public static final String MAIL_LOOP = "mail loop";
+    /** Outcome of an evaluation that was stopped because it exceeded its budget. */
+    public static final String BUDGET_EXCEEDED = "budget exceeded";
+    /** Outcome of an evaluation that failed for any other reason. */
+    public static final String FAILED = "failed";
+    /** Most list names written for one evaluation. */
+    static final int MAX_LISTS = 64;
+
+    private static final int BATCH_SIZE = 256;
+    private static final long FLUSH_POLL_MILLIS = 100;
+    private static final double NANOS_PER_MILLI = 1e6;
+    private static final String TIME_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'";
+
+    private final File file;
+    private final long thresholdNanos;
+    private final long maxFileBytes;
+    private final int keep;
+    private final BlockingQueue<Object> queue;
+    private final Thread writer;
+    private volatile boolean closed = false;
+
+    // AF(file, thresholdNanos, maxFileBytes, keep, queue, writer, closed) =
+    //      a log of the evaluations that took at least thresholdNanos, written by writer to
+    //      file, whose older parts are file.1 ... file.keep, each at most about maxFileBytes;
+    //      queue holds the entries not yet written and the flush requests of callers
+    //      waiting for them; once closed, nothing more is queued
+    // RI: thresholdNanos >= 0, maxFileBytes > 0, keep >= 0
+    // Rep exposure: all fields are private and never returned.
+    // Thread safety: queue is threadsafe and entries are immutable; the file and its rotated
+    //                copies are only written by writer; closed is volatile.
+
+    /**
+     * One slow evaluation, captured by record() and formatted by the writer.
+     */
+    private static class Entry {
+        private final long time;
+        private final String source;
+        private final String outcome;
+        private final String input;
+        private final ListExpression expression;
+        private final int recipients;
+        private final long parseNanos;
+        private final long lockWaitNanos;
+        private final long evaluationNanos;
+
+        // AF(...) = an evaluation of input, parsed as expression (null if it could not be
+        //      parsed), from source that finished at time (in milliseconds since the epoch)
+        //      with outcome and recipients recipients (-1 if it failed), after spending
+        //      parseNanos parsing, lockWaitNanos waiting for the lock and evaluationNanos
+        //      evaluating
+        // RI: true
+        // Thread safety: immutable; the expression tree is immutable.
+
+        Entry(long time, String source, String outcome, String input, ListExpression expression,
+                int recipients, long parseNanos, long lockWaitNanos, long evaluationNanos) {
+            this.time = time;
+            this.source = source;
+            this.outcome = outcome;
+            this.input = input;
+            this.expression = expression;
+            this.recipients = recipients;
+            this.parseNanos = parseNanos;
+            this.lockWaitNanos = lockWaitNanos;
+            this.evaluationNanos = evaluationNanos;
+        }
+    }
+
+    /**
+     * Create a slow-query log and start its background thread, which does not keep the JVM
+     * alive. Entries are appended to file if it exists already.
+     * @param file the file to write
+     * @param thresholdMillis the time an evaluation must take to be logged, in
+     *  milliseconds, must be non-negative
+     * @param maxFileBytes the size in bytes beyond which file is rotated, must be positive
+     * @param keep the number of rotated files to keep, must be non-negative
+     * @param queueCapacity the number of slow evaluations that may wait to be written,
+     *  must be positive
+     */
+    public SlowQueryLog(File file, long thresholdMillis, long maxFileBytes, int keep, int queueCapacity) {
+        if (thresholdMillis < 0 || maxFileBytes <= 0 || keep < 0 || queueCapacity <= 0) {
+            throw new IllegalArgumentException("invalid slow query log configuration");
+        }
+        this.file = file;
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+        this.maxFileBytes = maxFileBytes;
+        this.keep = keep;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.writer = new Thread(this::run, "norn-slow-query-log");
+        this.writer.setDaemon(true);
+        checkRep();
+        this.writer.start();
+    }
+
+    /**
+     * Check that the rep invariant is maintained.
+     */
+    private void checkRep() {
+        assert thresholdNanos >= 0;
+        assert maxFileBytes > 0;
+        assert keep >= 0;
+    }
+
+    /**
+     * Logs an evaluation if it took at least the threshold, without blocking. The total
+     * time of the evaluation is parseNanos + lockWaitNanos + evaluationNanos.
+     * @param source where the expression came from, such as "console", "eval" or "api"
+     * @param outcome how the evaluation ended: OK, INVALID, MAIL_LOOP, BUDGET_EXCEEDED or FAILED
+     * @param input the expression as entered
+     * @param expression input parsed, or null if it could not be parsed
+     * @param recipients the number of recipients of expression, or -1 if evaluation failed
+     * @param parseNanos the time spent parsing input, in nanoseconds
+     * @param lockWaitNanos the time spent waiting for the lock on the environment
+     * @param evaluationNanos the time spent evaluating expression while holding the lock
+     * @return true if the evaluation was queued to be written
+     */
+    public boolean record(String source, String outcome, String input, ListExpression expression,
+            int recipients, long parseNanos, long lockWaitNanos, long evaluationNanos) {
+        if (closed || parseNanos + lockWaitNanos + evaluationNanos < thresholdNanos) {
+            return false;
+        }
+        Metrics.SLOW_QUERIES.increment();
+        final Entry entry = new Entry(System.currentTimeMillis(), source, outcome, input, expression,
+                recipients, parseNanos, lockWaitNanos, evaluationNanos);
+        if (!queue.offer(entry)) {
+            Metrics.SLOW_QUERIES_DROPPED.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param thrown an exception or error thrown by parsing or evaluating a list expression
+     * @return the outcome of the evaluation that threw it
+     */
+    public static String outcome(Throwable thrown) {
+        if (thrown instanceof IllegalArgumentException) {
+            return INVALID;
+        } else if (thrown instanceof AssertionError) {
+            return MAIL_LOOP;
+        } else if (thrown instanceof EvaluationBudget.BudgetExceededException) {
+            return BUDGET_EXCEEDED;
+        } else {
+            return FAILED;
+        }
+    }
+
+    /**
+     * Waits until the evaluations queued so far have been written and flushed to the file.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void flush() throws InterruptedException {
+        final CountDownLatch written = new CountDownLatch(1);
+        // the writer stops if the file cannot be written, and then nothing is flushed
+        while (!queue.offer(written, FLUSH_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+            if (!writer.isAlive()) {
+                return;
+            }
+        }
+        while (!written.await(FLUSH_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+            if (!writer.isAlive()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes the evaluations queued so far, then stops the background thread and closes
+     * the file. Later evaluations are not logged.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void close() throws InterruptedException {
+        closed = true;
+        flush();
+        writer.interrupt();
+        writer.join();
+    }
+
+    /**
+     * Writes entries from the queue until the writer is interrupted. Runs on writer.
+     */
+    private void run() {
+        final List<Object> batch = new ArrayList<>(BATCH_SIZE);
+        final SimpleDateFormat timeFormat = new SimpleDateFormat(TIME_FORMAT, Locale.ROOT);
+        timeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        Writer out = null;
+        long bytes = file.length();
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch, BATCH_SIZE - 1);
+                for (Object item : batch) {
+                    if (item instanceof Entry) {
+                        final String line = format((Entry) item, timeFormat) + "\n";
+                        final int length = line.getBytes(StandardCharsets.UTF_8).length;
+                        if (bytes > 0 && bytes + length > maxFileBytes) {
+                            if (out != null) {
+                                out.close();
+                                out = null;
+                            }
+                            rotate();
+                            bytes = 0;
+                        }
+                        if (out == null) {
+                            out = new BufferedWriter(new OutputStreamWriter(
+                                    new FileOutputStream(file, true), StandardCharsets.UTF_8));
+                        }
+                        out.write(line);
+                        bytes += length;
+                    }
+                }
+                if (out != null) {
+                    out.flush();
+                }
+                for (Object item : batch) {
+                    if (item instanceof CountDownLatch) {
+                        ((CountDownLatch) item).countDown();
+                    }
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // closed
+        } catch (IOException e) {
+            System.err.println("Could not write slow query log " + file + ": " + e.getMessage());
+            // callers of flush() notice that the writer stopped
+            closed = true;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    System.err.println("Could not close slow query log " + file + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Renames file to file.1, file.1 to file.2 and so on, deleting file.keep, or deletes
+     * file if keep is 0.
+     * @throws IOException if a file cannot be renamed or deleted
+     */
+    private void rotate() throws IOException {
+        if (keep == 0) {
+            Files.deleteIfExists(file.toPath());
+            return;
+        }
+        Files.deleteIfExists(rotated(keep).toPath());
+        for (int i = keep - 1; i >= 1; i--) {
+            final File older = rotated(i);
+            if (older.exists()) {
+                Files.move(older.toPath(), rotated(i + 1).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(file.toPath(), rotated(1).toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @param generation a positive number
+     * @return the rotated log file of that generation, generation 1 being the newest
+     */
+    File rotated(int generation) {
+        return new File(file.getPath() + "." + generation);
+    }
+
+    /**
+     * @param entry a slow evaluation
+     * @param timeFormat the format of the time of entry
+     * @return entry as one line of JSON, without the line terminator
+     */
+    private static String format(Entry entry, SimpleDateFormat timeFormat) {
+        final long total = entry.parseNanos + entry.lockWaitNanos + entry.evaluationNanos;
+        final StringBuilder line = new StringBuilder("{\"time\":")
+                .append(WebServer.jsonString(timeFormat.format(new Date(entry.time))))
+                .append(",\"source\":").append(WebServer.jsonString(entry.source))
+                .append(",\"outcome\":").append(WebServer.jsonString(entry.outcome))
+                .append(String.format(Locale.ROOT, ",\"totalMillis\":%.3f,\"parseMillis\":%.3f"
+                        + ",\"lockWaitMillis\":%.3f,\"evaluationMillis\":%.3f",
+                        total / NANOS_PER_MILLI, entry.parseNanos / NANOS_PER_MILLI,
+                        entry.lockWaitNanos / NANOS_PER_MILLI, entry.evaluationNanos / NANOS_PER_MILLI))
+                .append(",\"recipients\":").append(entry.recipients)
+                .append(",\"lists\":[");
+        if (entry.expression != null) {
+            int count = 0;
+            for (String name : names(entry.expression, new TreeSet<>())) {
+                if (count++ == MAX_LISTS) {
+                    line.append(",\"...\"");
+                    break;
+                }
+                line.append(count == 1 ? "" : ",").append(WebServer.jsonString(name));
+            }
+        }
+        final String input = entry.input.length() <= MAX_EXPRESSION_CHARS ? entry.input
+                : entry.input.substring(0, MAX_EXPRESSION_CHARS) + "...";
+        return line.append("],\"length\":").append(entry.input.length())
+                .append(",\"expression\":").append(WebServer.jsonString(input))
+                .append('}').toString();
+    }
+
+    /**
+     * Adds the list names that appear in an expression to a set, without expanding them.
+     * @param expression a list expression
+     * @param names the set to add to
+     * @return names
+     */
+    private static Set<String> names(ListExpression expression, Set<String> names) {
+        if (expression instanceof Name) {
+            names.add(expression.toString());
+        }
+        for (ListExpression child : expression.getChildren()) {
+            names(child, names);
+        }
+        return names;
+    }
+}
@@ -0,0 +1,274 @@
+package norn;
+
+import java.util.Collection;
+
+/**
+ * Emits Java Flight Recorder events for parsing, top-level evaluation, redefinition, mail
+ * loop checks, waits for the environment lock, web requests, and saving and loading, so that
+ * always-on recordings can relate latency spikes to specific expressions and lists.
+ *
+ * The event types are defined by JfrRecorder in jfr/norn, which needs the jdk.jfr module
+ * (Java 11 or later) and is therefore compiled separately from the rest of norn, which only
+ * needs Java 8. If JfrRecorder is not on the classpath or cannot be loaded, tracing does
+ * nothing. Otherwise events cost little while no recording is running, and their fields,
+ * such as the size of an expression, are only computed for events that a recording keeps.
+ *
+ * An event is begun with begin(), which returns the event, and ended with the end method
+ * of its kind, which accepts the null returned while tracing is off.
+ */
+public class Tracing {
+    /** Longest expression text included in an event; longer text is truncated. */
+    public static final int MAX_EXPRESSION_CHARS = 256;
+    private static final String RECORDER_CLASS = "norn.JfrRecorder";
+
+    private static volatile Recorder recorder = loadRecorder();
+
+    // Thread safety: recorder is volatile and the recorder is threadsafe; events are confined
+    //                to the thread that began them.
+
+    /**
+     * The kinds of events.
+     */
+    public enum Kind {
+        /** Parsing of a list expression by ListExpression.parse(). */
+        PARSE,
+        /** Evaluation of a top-level list expression from the console or a web request. */
+        EVALUATION,
+        /** Redefinition of lists by Environment.reassign() or reassignAll(). */
+        REASSIGN,
+        /** Search of an environment for mail loops. */
+        MAIL_LOOP_CHECK,
+        /** Wait to acquire the lock on the shared environment. */
+        LOCK_WAIT,
+        /** Handling of a web request. */
+        REQUEST,
+        /** Saving an environment to a file, including checkpoints. */
+        SAVE,
+        /** Loading a file into an environment, including checkpoints. */
+        LOAD
+    }
+
+    /**
+     * Creates and commits events. Implementations must be threadsafe.
+     */
+    interface Recorder {
+        /**
+         * @param kind the kind of event to begin
+         * @return a new event of kind, begun now, or null if events of kind are not recorded
+         */
+        Object begin(Kind kind);
+
+        /**
+         * Ends an event of kind PARSE.
+         * @param event the event, not null
+         * @param input the text that was parsed
+         * @param valid true if input was a valid expression
+         */
+        void endParse(Object event, String input, boolean valid);
+
+        /**
+         * Ends an event of kind EVALUATION.
+         * @param event the event, not null
+         * @param expression the expression that was evaluated
+         * @param recipients the number of recipients of expression, or -1 if evaluation failed
+         */
+        void endEvaluation(Object event, ListExpression expression, int recipients);
+
+        /**
+         * Ends an event of kind REASSIGN.
+         * @param event the event, not null
+         * @param names the names that were redefined
+         * @param mailLoop true if the redefinition was rejected because of a mail loop
+         */
+        void endReassign(Object event, Collection<Name> names, boolean mailLoop);
+
+        /**
+         * Ends an event of kind MAIL_LOOP_CHECK.
+         * @param event the event, not null
+         * @param lists the number of lists searched
+         * @param mailLoop true if a mail loop was found
+         */
+        void endMailLoopCheck(Object event, int lists, boolean mailLoop);
+
+        /**
+         * Ends an event of kind LOCK_WAIT.
+         * @param event the event, not null
+         * @param operation what the lock was acquired for
+         */
+        void endLockWait(Object event, String operation);
+
+        /**
+         * Ends an event of kind REQUEST.
+         * @param event the event, not null
+         * @param method the HTTP method of the request
+         * @param path the path of the request
+         * @param status the HTTP status of the response, or -1 if none was sent
+         */
+        void endRequest(Object event, String method, String path, int status);
+
+        /**
+         * Ends an event of kind SAVE or LOAD.
+         * @param event the event, not null
+         * @param file the name of the file that was written or read
+         * @param lists the number of lists saved, or in the environment after loading
+         * @param succeeded true if the file was saved or loaded completely
+         */
+        void endPersist(Object event, String file, int lists, boolean succeeded);
+    }
+
+    private Tracing() {
+        // static methods only
+    }
+
+    /**
+     * @return a new JfrRecorder, or null if it is not available
+     */
+    private static Recorder loadRecorder() {
+        try {
+            return (Recorder) Class.forName(RECORDER_CLASS).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError | ClassCastException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Replaces the recorder, for testing.
+     * @param newRecorder the recorder to use, or null to turn tracing off
+     * @return the recorder used before
+     */
+    static Recorder setRecorder(Recorder newRecorder) {
+        final Recorder previous = recorder;
+        recorder = newRecorder;
+        return previous;
+    }
+
+    /**
+     * @return true if events are emitted to the flight recorder or a test recorder
+     */
+    public static boolean isAvailable() {
+        return recorder != null;
+    }
+
+    /**
+     * @param kind the kind of event to begin
+     * @return a new event of kind, begun now, or null if tracing is off; must be ended by
+     *  the end method of kind
+     */
+    public static Object begin(Kind kind) {
+        final Recorder current = recorder;
+        return current == null ? null : current.begin(kind);
+    }
+
+    /**
+     * Ends an event of kind PARSE; see Recorder.endParse().
+     * @param event an event returned by begin(PARSE), or null
+     * @param input the text that was parsed
+     * @param valid true if input was a valid expression
+     */
+    public static void endParse(Object event, String input, boolean valid) {
+        final Recorder current = recorder;
+        if (event != null && current != null) {
+            current.endParse(event, input, valid);
+        }
+    }
+
+    /**
+     * Ends an event of kind EVALUATION; see Recorder.endEvaluation().
+     * @param event an event returned by begin(EVALUATION), or null
+     * @param expression the expression that was evaluated
+     * @param recipients the number of recipients of expression, or -1 if evaluation failed
+     */
+    public static void endEvaluation(Object event, ListExpression expression, int recipients) {
+        final Recorder current = recorder;
+        if (event != null && current != null) {
+            current.endEvaluation(event, expression, recipients);
+        }
+    }
+
+    /**
+     * Ends an event of kind REASSIGN; see Recorder.endReassign().
+     * @param event an event returned by begin(REASSIGN), or null
+     * @param names the names that were redefined
+     * @param mailLoop true if the redefinition was rejected because of a mail loop
+     */
+    public static void endReassign(Object event, Collection<Name> names, boolean mailLoop) {
+        final Recorder current = recorder;
+        if (event != null && current != null) {
+            current.endReassign(event, names, mailLoop);
+        }
+    }
+
+    /**
+     * Ends an event of kind MAIL_LOOP_CHECK; see Recorder.endMailLoopCheck().
+     * @param event an event returned by begin(MAIL_LOOP_CHECK), or null
+     * @param lists the number of lists searched
+     * @param mailLoop true if a mail loop was found
+     */
+    public static void endMailLoopCheck(Object event, int lists, boolean mailLoop) {
+        final Recorder current = recorder;
+        if (event != null && current != null) {
+            current.endMailLoopCheck(event, lists, mailLoop);
+        }
+    }
+
+    /**
+     * Ends an event of kind LOCK_WAIT; see Recorder.endLockWait().
+     * @param event an event returned by begin(LOCK_WAIT), or null
+     * @param operation what the lock was acquired for
+     */
+    public static void endLockWait(Object event, String operation) {
+        final Recorder current = recorder;
+        if (event != null && current != null) {
+            current.endLockWait(event, operation);
+        }
+    }
+
+    /**
+     * Ends an event of kind REQUEST; see Recorder.endRequest().
+     * @param event an event returned by begin(REQUEST), or null
+     * @param method the HTTP method of the request
+     * @param path the path of the request
+     * @param status the HTTP status of the response, or -1 if none was sent
+     */
+    public static void endRequest(Object event, String method, String path, int status) {
+        final Recorder current = recorder;
+        if (event != null && current != null) {
+            current.endRequest(event, method, path, status);
+        }
+    }
+
+    /**
+     * Ends an event of kind SAVE or LOAD; see Recorder.endPersist().
+     * @param event an event returned by begin(SAVE) or begin(LOAD), or null
+     * @param file the name of the file that was written or read
+     * @param lists the number of lists saved, or in the environment after loading
+     * @param succeeded true if the file was saved or loaded completely
+     */
+    public static void endPersist(Object event, String file, int lists, boolean succeeded) {
+        final Recorder current = recorder;
+        if (event != null && current != null) {
+            current.endPersist(event, file, lists, succeeded);
+        }
+    }
+
+    /**
+     * @param text an expression or other text for an event
+     * @return text, truncated to MAX_EXPRESSION_CHARS characters followed by "..." if it
+     *  is longer
+     */
+    static String truncate(String text) {
+        return text.length() <= MAX_EXPRESSION_CHARS ? text : text.substring(0, MAX_EXPRESSION_CHARS) + "...";
+    }
+
+    /**
+     * @param expression a list expression
+     * @return the number of nodes of expression, not expanding list names
+     */
+    static int size(ListExpression expression) {
+        int size = 1;
+        for (ListExpression child : expression.getChildren()) {
+            size += size(child);
+        }
+        return size;
+    }
+}
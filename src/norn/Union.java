@@ -40,15 +40,59 @@ public class Union implements ListExpression {
         assert right != null;
     }
 
+    /**
+     * @return the left operand of this Union
+     */
+    public ListExpression getLeft() {
+        return left;
+    }
+
+    /**
+     * @return the right operand of this Union
+     */
+    public ListExpression getRight() {
+        return right;
+    }
+
     @Override
     public Set<Recipient> recipients(Environment environment) {
+        return RecipientIds.evaluate(this, environment, () -> hashSetRecipients(environment));
+    }
+
+    /**
+     * Evaluates the recipients of this Union from the recipients() of its operands.
+     * @param environment the list definitions used to evaluate this Union
+     * @return the recipients of this Union
+     */
+    private Set<Recipient> hashSetRecipients(Environment environment) {
+        EvaluationBudget.visit();
         Set<Recipient> allRecipients;
         synchronized (environment) {
             allRecipients = new HashSet<>(left.recipients(environment));
             allRecipients.addAll(right.recipients(environment));
         }
+        EvaluationBudget.produced(allRecipients.size());
         return allRecipients;
+    }
 
+    @Override
+    public IntHashSet recipientIds(Environment environment) {
+        EvaluationBudget.visit();
+        IntHashSet allRecipients;
+        synchronized (environment) {
+            IntHashSet leftRecipients = left.recipientIds(environment);
+            IntHashSet rightRecipients = right.recipientIds(environment);
+            // both sets are new, so the larger one can take the values of the smaller one
+            if (leftRecipients.size() >= rightRecipients.size()) {
+                allRecipients = leftRecipients;
+                allRecipients.addAll(rightRecipients);
+            } else {
+                allRecipients = rightRecipients;
+                allRecipients.addAll(leftRecipients);
+            }
+        }
+        EvaluationBudget.produced(allRecipients.size());
+        return allRecipients;
     }
 
     @Override
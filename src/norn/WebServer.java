@@ -1,10 +1,36 @@
 package norn;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 
+import com.sun.net.httpserver.Filter;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
@@ -14,21 +40,53 @@ import com.sun.net.httpserver.HttpServer;
  */
 public class WebServer {
     public static final int PORT = 5021;
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+    public static final int DEFAULT_COMPRESSION_LEVEL = Deflater.BEST_SPEED;
     private final HttpServer server;
     private final Environment environment;
-    private static final String MAIL_TO_DELIMITER = ",";
-    private static final String RECIPIENT_LIST_DELIMITER = ", ";
-    private static final String LINE_BREAK = "<br>";
+    private final ListWatcher watcher;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final EvalEndpoint evalEndpoint;
+    private volatile EvalEndpoint.Mode apiMode = EvalEndpoint.Mode.LOCKED;
+    private final PagedResults pagedResults = new PagedResults(PAGED_RESULTS_CAPACITY);
+    private volatile int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+    private volatile int compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+    private static final String EVAL_CONTEXT = "/eval/";
+    private static final String API_EVAL_CONTEXT = "/api/eval/";
+    private static final int PAGED_RESULTS_CAPACITY = 64;
+    private static final int DEFAULT_PAGE_SIZE = 1000;
+    private static final int MAX_PAGE_SIZE = 10000;
+    private static final String FORMAT_JSON = "json";
+    private static final String FORMAT_NDJSON = "ndjson";
+    private static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+    private static final int RESPONSE_BUFFER_SIZE = 64 * 1024;
+    private static final int JSON_RECIPIENT_OVERHEAD = 16;
+    private static final Pattern MEMBERSHIP_PATH = Pattern.compile("([A-Za-z0-9_.-]+)/([A-Za-z0-9_.-]+@[A-Za-z0-9_.-]+)");
+    private static final int KEEPALIVE_SECONDS = 15;
+    private static final Filter TRACING_FILTER = new TracingFilter();
     
-    // AF(PORT, server, environment) = a web server connected to HTTP server server
+    // AF(PORT, server, environment, evalEndpoint, pagedResults, compressionThreshold, compressionLevel,
+    //    watcher, executor, apiMode) =
+    //                                 a web server connected to HTTP server server
     //                                 that accepts connections at port number PORT
-    //                                 and maintains list name definitions in environment
+    //                                 and maintains list name definitions in environment,
+    //                                 where evalEndpoint answers /eval/ requests and applies
+    //                                 admission control and evaluation budgets, and pagedResults
+    //                                 holds evaluated results that API clients are still paging through.
+    //                                 /api/eval/ requests are evaluated in apiMode.
+    //                                 Response bodies of at least compressionThreshold characters
+    //                                 are gzip-compressed at compressionLevel. watcher tracks
+    //                                 the lists that /watch/ clients subscribed to, and
+    //                                 executor runs the request handlers.
     // RI: true
     // Protection from rep exposure: all mutable fields are private and final, and PORT is final
     //                               HTTP message-passing only with web clients
     //                               environment passed to backend methods that does not expose to client
     // Thread safety argument: environment is the only shared mutable structure
     //                         all accesses and mutations to environment acquire lock on the environment object.
+    //                         evalEndpoint, pagedResults and watcher are threadsafe types; requests are handled
+    //                         concurrently on executor threads, so long-lived /watch/ streams
+    //                         do not hold up other requests.
     //
     
     
@@ -38,13 +96,58 @@ public class WebServer {
      */
     public WebServer(Environment environment) throws IOException {
         server = HttpServer.create(new InetSocketAddress(PORT), 0);
-        server.createContext("/eval/", new HttpHandler() {
+        server.createContext(EVAL_CONTEXT, new HttpHandler() {
             public void handle(HttpExchange exchange) throws IOException {
+                Metrics.REQUESTS.increment();
                 createResponse(exchange);
             }
-        });
-        server.start();
+        }).getFilters().add(TRACING_FILTER);
+        server.createContext(API_EVAL_CONTEXT, new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                Metrics.REQUESTS.increment();
+                createApiResponse(exchange);
+            }
+        }).getFilters().add(TRACING_FILTER);
+        server.createContext("/api/define", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                Metrics.REQUESTS.increment();
+                createDefineResponse(exchange);
+            }
+        }).getFilters().add(TRACING_FILTER);
+        server.createContext("/explain/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                Metrics.REQUESTS.increment();
+                createExplainResponse(exchange);
+            }
+        }).getFilters().add(TRACING_FILTER);
+        server.createContext("/stats", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                Metrics.REQUESTS.increment();
+                createStatsResponse(exchange);
+            }
+        }).getFilters().add(TRACING_FILTER);
+        server.createContext("/contains/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                Metrics.REQUESTS.increment();
+                createContainsResponse(exchange);
+            }
+        }).getFilters().add(TRACING_FILTER);
+        server.createContext("/metrics", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                createMetricsResponse(exchange);
+            }
+        }).getFilters().add(TRACING_FILTER);
+        server.createContext("/watch/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                Metrics.REQUESTS.increment();
+                createWatchResponse(exchange);
+            }
+        }).getFilters().add(TRACING_FILTER);
         this.environment = environment;
+        this.evalEndpoint = new EvalEndpoint(environment);
+        this.watcher = new ListWatcher(environment);
+        server.setExecutor(executor);
+        server.start();
     }
     
     /**
@@ -56,62 +159,708 @@ public class WebServer {
     private void createResponse(HttpExchange exchange) throws IOException {
         final String path = exchange.getRequestURI().getPath();
         final String expression = path.substring(exchange.getHttpContext().getPath().length());
+        final EvalEndpoint.Response response = evalEndpoint.respond(expression,
+                exchange.getRequestHeaders().getFirst("If-None-Match"));
+        if (response.entityTag() != null) {
+            exchange.getResponseHeaders().add("ETag", response.entityTag());
+        }
+        if (response.status() == 304) {
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+        if (response.retryAfter() != null) {
+            exchange.getResponseHeaders().add("Retry-After", response.retryAfter());
+        }
+        exchange.getResponseHeaders().add("Content-Type", "text/html; charset=utf-8");
+        // Write the message
+        final OutputStream out = responseBody(exchange, response.status(), response.body().length);
+        out.write(response.body());
+        out.close();
+    }
+    
+    /**
+     * Sends the response headers of exchange and opens its response body. The body is
+     * gzip-compressed as it is written if the client accepts gzip and the uncompressed
+     * body is expected to be at least the configured compression threshold.
+     * @param exchange the HttpExchange to respond to
+     * @param status the HTTP status code of the response
+     * @param expectedLength the (estimated) length of the uncompressed body
+     * @return the stream to write the uncompressed response body to; closing it ends the response
+     * @throws IOException
+     */
+    private OutputStream responseBody(HttpExchange exchange, int status, long expectedLength) throws IOException {
+        exchange.getResponseHeaders().add("Vary", "Accept-Encoding");
+        final int threshold = compressionThreshold;
+        if (threshold < 0 || expectedLength < threshold
+                || !acceptsGzip(exchange.getRequestHeaders().get("Accept-Encoding"))) {
+            exchange.sendResponseHeaders(status, 0);
+            return new BufferedOutputStream(new MeteredOutputStream(exchange.getResponseBody()), RESPONSE_BUFFER_SIZE);
+        }
+        exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+        exchange.sendResponseHeaders(status, 0);
+        final int level = compressionLevel;
+        return new GZIPOutputStream(new MeteredOutputStream(exchange.getResponseBody()), RESPONSE_BUFFER_SIZE) {
+            {
+                def.setLevel(level);
+            }
+        };
+    }
+    
+    /**
+     * Filter that emits a Tracing event for the handling of every request.
+     */
+    private static class TracingFilter extends Filter {
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            final Object event = Tracing.begin(Tracing.Kind.REQUEST);
+            try {
+                chain.doFilter(exchange);
+            } finally {
+                Tracing.endRequest(event, exchange.getRequestMethod(), exchange.getRequestURI().getPath(),
+                        exchange.getResponseCode());
+            }
+        }
+
+        @Override
+        public String description() {
+            return "emits a flight recorder event per request";
+        }
+    }
+    
+    /**
+     * Output stream that records the number of bytes written through it and the time from
+     * its creation until it is closed in Metrics.
+     */
+    private static class MeteredOutputStream extends FilterOutputStream {
+        private final long start = System.nanoTime();
+        private long bytes = 0;
+        private boolean closed = false;
+        
+        /**
+         * @param out the stream to write to
+         */
+        MeteredOutputStream(OutputStream out) {
+            super(out);
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            bytes++;
+        }
         
-        String response;
-        // Get recipients of list expression from this GET request
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            bytes += len;
+        }
+        
+        @Override
+        public void close() throws IOException {
+            super.close();
+            if (!closed) {
+                closed = true;
+                Metrics.RESPONSE_WRITE_NANOS.record(System.nanoTime() - start);
+                Metrics.RESPONSE_BYTES.record(bytes);
+            }
+        }
+    }
+    
+    /**
+     * Configures admission control of requests that evaluate list expressions. Requests
+     * that find maxQueued requests already waiting, or that wait longer than maxWaitMillis,
+     * are rejected with status 503.
+     * @param maxConcurrent maximum number of evaluating requests at a time, must be positive
+     * @param maxQueued maximum number of requests waiting to evaluate, must be non-negative
+     * @param maxWaitMillis maximum time a request waits to evaluate, must be non-negative
+     */
+    public void setAdmission(int maxConcurrent, int maxQueued, long maxWaitMillis) {
+        evalEndpoint.setAdmission(maxConcurrent, maxQueued, maxWaitMillis);
+    }
+    
+    /**
+     * Configures how definitions in the requests of an endpoint affect the environment:
+     * whether they are evaluated in the shared environment under its lock, or in a private
+     * overlay whose definitions are discarded or committed afterwards.
+     * @param endpoint the endpoint to configure, "/eval/" or "/api/eval/"
+     * @param mode the evaluation mode of the endpoint's requests
+     * @throws IllegalArgumentException if endpoint is not an endpoint that evaluates expressions
+     */
+    public void setEvaluationMode(String endpoint, EvalEndpoint.Mode mode) {
+        if (endpoint.equals(EVAL_CONTEXT)) {
+            evalEndpoint.setMode(mode);
+        } else if (endpoint.equals(API_EVAL_CONTEXT)) {
+            apiMode = mode;
+        } else {
+            throw new IllegalArgumentException("endpoint does not evaluate list expressions: " + endpoint);
+        }
+    }
+    
+    /**
+     * Configures the cache of rendered /eval/ responses, as in EvalEndpoint.setResultCache().
+     * @param maxEntries maximum number of cached responses, or 0 to disable the cache
+     * @param maxBytes maximum total size of the cached responses in bytes, must be non-negative
+     */
+    public void setResultCache(int maxEntries, long maxBytes) {
+        evalEndpoint.setResultCache(maxEntries, maxBytes);
+    }
+    
+    /**
+     * Configures the log of slow evaluations of /eval/ and /api/eval/ requests, as in
+     * EvalEndpoint.setSlowQueryLog().
+     * @param log the log to record evaluations in, or null to log nothing
+     */
+    public void setSlowQueryLog(SlowQueryLog log) {
+        evalEndpoint.setSlowQueryLog(log);
+    }
+    
+    /**
+     * Configures the budget of each evaluation of a list expression. Evaluations that exceed
+     * it are stopped and answered with status 422.
+     * @param maxNodeVisits maximum number of expression nodes visited, must be positive
+     * @param maxRecipients maximum number of recipients produced by all nodes, must be positive
+     * @param maxMillis maximum wall time of an evaluation in milliseconds, must be positive
+     */
+    public void setEvaluationBudget(long maxNodeVisits, long maxRecipients, long maxMillis) {
+        evalEndpoint.setEvaluationBudget(maxNodeVisits, maxRecipients, maxMillis);
+    }
+    
+    /**
+     * @param acceptEncoding the values of the Accept-Encoding request headers, or null if there are none
+     * @return true if acceptEncoding allows a gzip-encoded response: gzip (or x-gzip) is listed
+     *  with a nonzero quality, or it is not listed and * is listed with a nonzero quality
+     */
+    static boolean acceptsGzip(List<String> acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        boolean gzipListed = false;
+        boolean gzipAcceptable = false;
+        boolean wildcardAcceptable = false;
+        for (String header : acceptEncoding) {
+            for (String coding : header.split(",")) {
+                final String[] parts = coding.trim().split(";");
+                final String name = parts[0].trim().toLowerCase();
+                if (name.equals("gzip") || name.equals("x-gzip")) {
+                    gzipListed = true;
+                    gzipAcceptable |= hasNonzeroQuality(parts);
+                } else if (name.equals("*")) {
+                    wildcardAcceptable |= hasNonzeroQuality(parts);
+                }
+            }
+        }
+        return gzipListed ? gzipAcceptable : wildcardAcceptable;
+    }
+    
+    /**
+     * @param parts a content coding of an Accept-Encoding header followed by its parameters
+     * @return false if the parameters give the coding a quality of 0 or an invalid quality,
+     *  otherwise true
+     */
+    private static boolean hasNonzeroQuality(String[] parts) {
+        boolean acceptable = true;
+        for (int i = 1; i < parts.length; i++) {
+            final String parameter = parts[i].trim().toLowerCase();
+            if (parameter.startsWith("q=")) {
+                try {
+                    acceptable = Double.parseDouble(parameter.substring(2)) > 0;
+                } catch (NumberFormatException e) {
+                    acceptable = false;
+                }
+            }
+        }
+        return acceptable;
+    }
+    
+    /**
+     * Configures compression of responses. Bodies of at least threshold characters are
+     * gzip-compressed for clients that accept gzip.
+     * @param threshold the minimum uncompressed body length to compress, or a negative
+     *  number to never compress
+     * @param level the gzip compression level, from 0 (no compression) to 9 (best
+     *  compression), or -1 for the default level
+     * @throws IllegalArgumentException if level is not a valid compression level
+     */
+    public void setCompression(int threshold, int level) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("invalid compression level: " + level);
+        }
+        compressionThreshold = threshold;
+        compressionLevel = level;
+    }
+    
+    /**
+     * Writes a page of the recipients of a list expression to exchange as JSON or NDJSON.
+     * The request path is /api/eval/ followed by the list expression, and the optional query
+     * parameters are format (json or ndjson, default json), limit (page size, default 1000)
+     * and cursor (the cursor of a previous page of the same expression). Recipients are
+     * returned in ascending address order. The cursor of the following page, if there is one,
+     * is sent in the X-Next-Cursor header and, for json, as the "next" field of the body.
+     * Later pages are read from the stored result and do not evaluate the expression again.
+     * @param exchange the HttpExchange to write the response to
+     * @throws IOException
+     */
+    private void createApiResponse(HttpExchange exchange) throws IOException {
+        final String path = exchange.getRequestURI().getPath();
+        final String expression = path.substring(exchange.getHttpContext().getPath().length());
+
+        final String format;
+        final PagedResults.Page page;
         try {
-            Set<Recipient> recipients = parseInput(expression);
-            // Create mailto and recipient lists for output
-            String mailToList = "";
-            String recipientList;
-            if (recipients.size() == 0) {
-                recipientList = "{}";
+            final Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            final String cursor = query.get("cursor");
+            format = query.getOrDefault("format", FORMAT_JSON);
+            if (!format.equals(FORMAT_JSON) && !format.equals(FORMAT_NDJSON)) {
+                throw new IllegalArgumentException("unknown format: " + format);
+            }
+            final int limit = query.containsKey("limit") ? Integer.parseInt(query.get("limit")) : DEFAULT_PAGE_SIZE;
+            if (limit <= 0 || limit > MAX_PAGE_SIZE) {
+                throw new IllegalArgumentException("limit must be between 1 and " + MAX_PAGE_SIZE);
+            }
+            if (cursor == null) {
+                final AdmissionControl admitted = evalEndpoint.admission();
+                if (!admitted.tryAcquire()) {
+                    Metrics.SHED_REQUESTS.increment();
+                    exchange.getResponseHeaders().add("Retry-After", EvalEndpoint.RETRY_AFTER_SECONDS);
+                    sendJsonError(exchange, 503, "server busy, try again later");
+                    return;
+                }
+                try {
+                    page = pagedResults.first(expression, parseInput(expression), limit);
+                } finally {
+                    admitted.release();
+                }
+            } else {
+                page = pagedResults.next(cursor, expression, limit);
+            }
+        } catch (NoSuchElementException e) {
+            sendJsonError(exchange, 410, e.getMessage());
+            return;
+        } catch (EvaluationBudget.BudgetExceededException e) {
+            sendJsonError(exchange, 422, "expression too expensive: " + e.getMessage());
+            return;
+        } catch (IllegalArgumentException e) {
+            sendJsonError(exchange, 400, e.getMessage());
+            return;
+        } catch (AssertionError e) {
+            Metrics.MAIL_LOOPS.increment();
+            sendJsonError(exchange, 400, "mail loop: mutually recursive definitions are not allowed");
+            return;
+        }
+
+        if (page.next() != null) {
+            exchange.getResponseHeaders().add(NEXT_CURSOR_HEADER, page.next());
+        }
+        long expectedLength = 0;
+        for (Recipient r : page.recipients()) {
+            expectedLength += r.toString().length() + JSON_RECIPIENT_OVERHEAD;
+        }
+        final Writer out;
+        if (format.equals(FORMAT_NDJSON)) {
+            exchange.getResponseHeaders().add("Content-Type", "application/x-ndjson; charset=utf-8");
+            out = new OutputStreamWriter(responseBody(exchange, 200, expectedLength), StandardCharsets.UTF_8);
+            for (Recipient r : page.recipients()) {
+                out.write("{\"address\":" + jsonString(r.toString()) + "}\n");
+            }
+        } else {
+            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+            out = new OutputStreamWriter(responseBody(exchange, 200, expectedLength), StandardCharsets.UTF_8);
+            out.write("{\"total\":" + page.total() + ",\"recipients\":[");
+            String separator = "";
+            for (Recipient r : page.recipients()) {
+                out.write(separator + jsonString(r.toString()));
+                separator = ",";
+            }
+            out.write("],\"next\":" + (page.next() == null ? "null" : jsonString(page.next())) + "}\n");
+        }
+        out.close();
+    }
+    
+    /**
+     * Applies a batch of list definitions sent as the body of a POST request and writes the
+     * status of each definition to exchange as JSON. The body contains one definition
+     * (listname = expression) per line; blank lines are ignored. The body is parsed line by
+     * line as it is read, and the definitions are then applied to the environment as one
+     * atomic batch: if any line is invalid, or the definitions together would create a mail
+     * loop, no definition is applied and the response status is 422.
+     * Definitions whose expression contains further definitions or sequences are rejected,
+     * since storing them without evaluating them would not define the nested names.
+     * @param exchange the HttpExchange to read the request from and write the response to
+     * @throws IOException
+     */
+    private void createDefineResponse(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            exchange.getResponseHeaders().add("Allow", "POST");
+            sendJsonError(exchange, 405, "definitions must be sent with POST");
+            return;
+        }
+        final Map<Name, ListExpression> batch = new LinkedHashMap<>();
+        final List<DefinitionStatus> statuses = new ArrayList<>();
+        boolean valid = true;
+        final BufferedReader in = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8));
+        int lineNumber = 0;
+        for (String line = in.readLine(); line != null; line = in.readLine()) {
+            lineNumber++;
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            try {
+                final ListExpression parsed = ListExpression.parse(line);
+                if (!(parsed instanceof Definition)) {
+                    throw new IllegalArgumentException("not a list definition");
+                }
+                final Definition definition = (Definition) parsed;
+                if (EvalEndpoint.containsDefinition(definition.getExpression())) {
+                    throw new IllegalArgumentException("nested definitions are not supported in a batch");
+                }
+                batch.put(definition.getName(), definition.getExpression());
+                statuses.add(new DefinitionStatus(lineNumber, definition.getName(), null));
+            } catch (IllegalArgumentException e) {
+                valid = false;
+                statuses.add(new DefinitionStatus(lineNumber, null, e.getMessage()));
+            }
+        }
+        in.close();
+
+        String error = null;
+        if (valid) {
+            try {
+                environment.reassignAll(batch);
+            } catch (AssertionError e) {
+                Metrics.MAIL_LOOPS.increment();
+                error = "mail loop: mutually recursive definitions are not allowed";
+            }
+        } else {
+            error = "batch contains invalid definitions";
+        }
+        final boolean applied = error == null;
+
+        exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(applied ? 200 : 422, 0);
+        final Writer out = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8));
+        out.write("{\"applied\":" + applied + ",\"defined\":" + (applied ? batch.size() : 0));
+        if (!applied) {
+            out.write(",\"error\":" + jsonString(error));
+        }
+        out.write(",\"results\":[");
+        String separator = "";
+        for (DefinitionStatus status : statuses) {
+            out.write(separator + "{\"line\":" + status.line);
+            if (status.name == null) {
+                out.write(",\"status\":\"invalid\",\"error\":" + jsonString(status.error) + "}");
             } else {
-                recipientList = "";
-                for (Recipient r : recipients) {
-                    mailToList += r + MAIL_TO_DELIMITER;
-                    recipientList += r + RECIPIENT_LIST_DELIMITER;
+                out.write(",\"name\":" + jsonString(status.name.toString())
+                        + ",\"status\":\"" + (applied ? "defined" : "valid") + "\"}");
+            }
+            separator = ",";
+        }
+        out.write("]}\n");
+        out.close();
+    }
+    
+    /**
+     * Immutable outcome of parsing one line of a batch of definitions.
+     */
+    private static class DefinitionStatus {
+        private final int line;
+        private final Name name;
+        private final String error;
+
+        // AF(line, name, error) = line number line of a batch, which defines name if it is
+        //                         valid, or is invalid for the reason error otherwise
+        // RI: exactly one of name and error is null
+
+        private DefinitionStatus(int line, Name name, String error) {
+            this.line = line;
+            this.name = name;
+            this.error = error;
+        }
+    }
+    
+    /**
+     * Streams changes in the membership of a list to exchange as Server-Sent Events. The
+     * request path is /watch/ followed by a list name. The first event adds all current
+     * members; each following event lists the recipients added to and removed from the
+     * list by a redefinition of the list or of a list it depends on. The stream stays open
+     * until the client disconnects or the server stops. A list that is not watched yet is
+     * evaluated under the same admission control and budget as /eval/ before the stream is
+     * opened: a list that exceeds the budget is answered with status 422, and a mail loop
+     * left by a failed redefinition with status 400.
+     * @param exchange the HttpExchange to write the event stream to
+     * @throws IOException
+     */
+    private void createWatchResponse(HttpExchange exchange) throws IOException {
+        final String path = exchange.getRequestURI().getPath();
+        final Name name;
+        try {
+            final ListExpression parsed = ListExpression.parse(path.substring(exchange.getHttpContext().getPath().length()));
+            if (!(parsed instanceof Name)) {
+                throw new IllegalArgumentException("not a list name");
+            }
+            name = (Name) parsed;
+        } catch (IllegalArgumentException e) {
+            sendJsonError(exchange, 400, e.getMessage());
+            return;
+        }
+        final AdmissionControl admitted = evalEndpoint.admission();
+        if (!admitted.tryAcquire()) {
+            Metrics.SHED_REQUESTS.increment();
+            exchange.getResponseHeaders().add("Retry-After", EvalEndpoint.RETRY_AFTER_SECONDS);
+            sendJsonError(exchange, 503, "server busy, try again later");
+            return;
+        }
+        final BlockingQueue<String> events;
+        try {
+            events = evalEndpoint.subscribe(watcher, name);
+        } catch (EvaluationBudget.BudgetExceededException e) {
+            sendJsonError(exchange, 422, "list too expensive: " + e.getMessage());
+            return;
+        } catch (AssertionError e) {
+            Metrics.MAIL_LOOPS.increment();
+            sendJsonError(exchange, 400, "mail loop: mutually recursive definitions are not allowed");
+            return;
+        } finally {
+            admitted.release();
+        }
+        try {
+            exchange.getResponseHeaders().add("Content-Type", "text/event-stream; charset=utf-8");
+            exchange.getResponseHeaders().add("Cache-Control", "no-cache");
+            exchange.sendResponseHeaders(200, 0);
+            final OutputStream out = exchange.getResponseBody();
+            while (true) {
+                String event = events.poll(KEEPALIVE_SECONDS, TimeUnit.SECONDS);
+                if (event == null) {
+                    // comment line, so that a client that went away is noticed
+                    event = ": keepalive\n\n";
+                } else if (event.equals(ListWatcher.CLOSED)) {
+                    break;
                 }
-                // Remove trailing commas
-                mailToList = mailToList.substring(0, mailToList.length() - MAIL_TO_DELIMITER.length());
-                recipientList = recipientList.substring(0, recipientList.length() - RECIPIENT_LIST_DELIMITER.length());
-                
-            }
-            // Create mailto message
-            String mailToMessage = "<a href=\"mailto:" + mailToList + "\">email these recipients</a>";
-            // Create full response message
-            response = mailToMessage + LINE_BREAK + recipientList;
+                out.write(event.getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // the client disconnected
+        } finally {
+            watcher.unsubscribe(name, events);
+            exchange.close();
+        }
+    }
+    
+    /**
+     * Evaluates the list expression in the request path (after /explain/) with
+     * instrumentation and writes the expression tree annotated with the time and set sizes
+     * of every node to exchange as plain text, in the format of Explain.toString(). The
+     * expression must not contain definitions; it is evaluated like an /eval/ request, under
+     * the same admission control and budget.
+     * @param exchange the HttpExchange to write the response to
+     * @throws IOException
+     */
+    private void createExplainResponse(HttpExchange exchange) throws IOException {
+        final String path = exchange.getRequestURI().getPath();
+        final String expression = path.substring(exchange.getHttpContext().getPath().length());
+        final Explain explain;
+        final AdmissionControl admitted = evalEndpoint.admission();
+        if (!admitted.tryAcquire()) {
+            Metrics.SHED_REQUESTS.increment();
+            exchange.getResponseHeaders().add("Retry-After", EvalEndpoint.RETRY_AFTER_SECONDS);
+            sendJsonError(exchange, 503, "server busy, try again later");
+            return;
+        }
+        try {
+            explain = evalEndpoint.explain(expression);
+        } catch (EvaluationBudget.BudgetExceededException e) {
+            sendJsonError(exchange, 422, "expression too expensive: " + e.getMessage());
+            return;
         } catch (IllegalArgumentException e) {
-            response = "<p>Invalid list expression (after http://localhost ... eval/). Please change to a valid list expression."
-                + " For valid list expressions, see specifications for Norn1 and Norn2.</p>";
+            sendJsonError(exchange, 400, e.getMessage());
+            return;
+        } finally {
+            admitted.release();
+        }
+        final byte[] body = (explain + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=utf-8");
+        final OutputStream out = responseBody(exchange, 200, body.length);
+        out.write(body);
+        out.close();
+    }
+    
+    /**
+     * Writes the statistics of the lists in the environment to exchange as JSON, in the
+     * format of EnvironmentStats.toJson(). The optional query parameter limit (default
+     * 1000, at most 10000) is the number of lists reported individually, those with the
+     * largest estimated retained bytes first. Every list is evaluated within the budget of an
+     * /eval/ request, and the request goes through the same admission control.
+     * @param exchange the HttpExchange to write the response to
+     * @throws IOException
+     */
+    private void createStatsResponse(HttpExchange exchange) throws IOException {
+        final Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        final int limit;
+        try {
+            limit = query.containsKey("limit") ? Integer.parseInt(query.get("limit"))
+                    : EnvironmentStats.MAX_PRINTED_LISTS;
+        } catch (NumberFormatException e) {
+            sendJsonError(exchange, 400, "limit must be a number");
+            return;
+        }
+        if (limit < 0 || limit > MAX_PAGE_SIZE) {
+            sendJsonError(exchange, 400, "limit must be between 0 and " + MAX_PAGE_SIZE);
+            return;
+        }
+        final AdmissionControl admitted = evalEndpoint.admission();
+        if (!admitted.tryAcquire()) {
+            Metrics.SHED_REQUESTS.increment();
+            exchange.getResponseHeaders().add("Retry-After", EvalEndpoint.RETRY_AFTER_SECONDS);
+            sendJsonError(exchange, 503, "server busy, try again later");
+            return;
+        }
+        final EnvironmentStats stats;
+        try {
+            stats = evalEndpoint.stats();
+        } finally {
+            admitted.release();
+        }
+        final byte[] body = (stats.toJson(limit) + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+        final OutputStream out = responseBody(exchange, 200, body.length);
+        out.write(body);
+        out.close();
+    }
+    
+    /**
+     * Answers whether an address is a recipient of a list, for a request path of /contains/
+     * followed by a list name, a slash and an email address, with the JSON object
+     * {"list":name,"address":address,"member":true or false}. Lists that are not defined
+     * have no members. The list is not evaluated as a whole; see Environment.contains().
+     * Requests go through the same admission control and evaluation budget as /eval/; a
+     * query that exceeds the budget is answered with status 422, and one that reaches a
+     * mail loop left by a failed redefinition with status 400.
+     * @param exchange the HttpExchange to write the response to
+     * @throws IOException
+     */
+    private void createContainsResponse(HttpExchange exchange) throws IOException {
+        final String path = exchange.getRequestURI().getPath();
+        final Matcher matcher = MEMBERSHIP_PATH.matcher(path.substring(exchange.getHttpContext().getPath().length()));
+        if (!matcher.matches()) {
+            sendJsonError(exchange, 400, "expected /contains/<list>/<address>");
+            return;
+        }
+        // names are case-insensitive, as the parser lowercases them
+        final Name list = new Name(matcher.group(1).toLowerCase(Locale.ROOT));
+        final Recipient recipient = new Recipient(matcher.group(2));
+        final AdmissionControl admitted = evalEndpoint.admission();
+        if (!admitted.tryAcquire()) {
+            Metrics.SHED_REQUESTS.increment();
+            exchange.getResponseHeaders().add("Retry-After", EvalEndpoint.RETRY_AFTER_SECONDS);
+            sendJsonError(exchange, 503, "server busy, try again later");
+            return;
+        }
+        final boolean member;
+        try {
+            member = evalEndpoint.contains(list, recipient);
+        } catch (EvaluationBudget.BudgetExceededException e) {
+            sendJsonError(exchange, 422, "list too expensive: " + e.getMessage());
+            return;
         } catch (AssertionError e) {
-            response = "<p>Oops! You created a mail loop. Mutually recursive definitions are not allowed."
-                    + " For valid list expressions, see specifications for Norn1 and Norn2.</p>";
+            Metrics.MAIL_LOOPS.increment();
+            sendJsonError(exchange, 400, "mail loop: mutually recursive definitions are not allowed");
+            return;
+        } finally {
+            admitted.release();
         }
-        // Set exchange headers
-        exchange.getResponseHeaders().add("Content-Type", "text/html; charset=utf-8");
-        exchange.sendResponseHeaders(200, 0);
-        // Write the message
-        PrintWriter out = new PrintWriter(exchange.getResponseBody(), true);
-        out.println(response);
+        final byte[] body = ("{\"list\":" + jsonString(list.toString()) + ",\"address\":" + jsonString(recipient.toString())
+                + ",\"member\":" + member + "}\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+        final OutputStream out = responseBody(exchange, 200, body.length);
+        out.write(body);
+        out.close();
+    }
+    
+    /**
+     * Writes the process-wide Metrics to exchange in the Prometheus text exposition format.
+     * @param exchange the HttpExchange to write the response to
+     * @throws IOException
+     */
+    private void createMetricsResponse(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        final Writer out = new OutputStreamWriter(responseBody(exchange, 200, 0), StandardCharsets.UTF_8);
+        Metrics.writePrometheus(out);
         out.close();
     }
     
     /**
-     * Parses input stream into valid list expression
-     * @param in InputStream from http request where
-     *  in contains list-expression is a list expression as defined in Norn2, 
-     *  but with all whitespace omitted.
+     * Writes a JSON error object to exchange.
+     * @param exchange the HttpExchange to write the response to
+     * @param status the HTTP status code of the response
+     * @param message human readable description of the error
+     * @throws IOException
+     */
+    private static void sendJsonError(HttpExchange exchange, int status, String message) throws IOException {
+        final byte[] body = ("{\"error\":" + jsonString(message) + "}\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+        exchange.close();
+    }
+    
+    /**
+     * @param value any string
+     * @return value as a quoted JSON string literal
+     */
+    static String jsonString(String value) {
+        final StringBuilder quoted = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+    
+    /**
+     * @param rawQuery the raw (still URL-encoded) query of a request URI, or null if there is none
+     * @return map from each parameter name in rawQuery to its decoded value
+     */
+    static Map<String, String> parseQuery(String rawQuery) {
+        final Map<String, String> parameters = new HashMap<>();
+        if (rawQuery == null) {
+            return parameters;
+        }
+        for (String pair : rawQuery.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            final int equals = pair.indexOf('=');
+            final String name = equals < 0 ? pair : pair.substring(0, equals);
+            final String value = equals < 0 ? "" : pair.substring(equals + 1);
+            try {
+                parameters.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError("UTF-8 is always supported", e);
+            }
+        }
+        return parameters;
+    }
+    
+    /**
+     * Parses and evaluates a list expression from a request, in the environment or an
+     * overlay of it as configured for /api/eval/ by setEvaluationMode(), within the
+     * evaluation budget.
+     * @param expression a list expression as defined in Norn2, from the path of an http request
      * @return Set<Recipient> representing recipients specified by evaluated list expression
-     * @throws IllegalArgumentException 
+     * @throws IllegalArgumentException if expression is not a valid list expression
+     * @throws EvaluationBudget.BudgetExceededException if the evaluation visits more nodes,
+     *  produces more recipients or takes longer than allowed by setEvaluationBudget()
      */
     private Set<Recipient> parseInput(String expression) {
-        ListExpression parsed = ListExpression.parse(expression);
-        Set<Recipient> recipients;
-        synchronized (environment) {
-            recipients = parsed.recipients(environment);
-        }
-        return recipients;
+        return evalEndpoint.evaluate(expression, apiMode);
     }
     
     /**
@@ -132,7 +881,9 @@ public class WebServer {
      * Closes WebServer service.
      */
     public void stop() {
+        watcher.close();
         server.stop(0);
+        executor.shutdownNow();
     }   
     
     /**
@@ -0,0 +1,63 @@
+package norn;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+/**
+ * Tests for AddressExporter
+ */
+public class AddressExporterTest {
+    /*
+     * Testing strategy:
+     *
+     *  write()
+     *      recipients: 0, 1, more than fit into the buffer
+     *      file: new, existing and longer than the output
+     *      output read back by AddressImporter
+     */
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    // covers 0 and 1 recipients, existing file longer than the output
+    @Test
+    public void testSmall() throws IOException {
+        final File file = File.createTempFile("export", ".txt");
+        file.deleteOnExit();
+        Files.write(file.toPath(), "previous contents that are longer\n".getBytes(StandardCharsets.US_ASCII));
+        assertEquals("count", 1, AddressExporter.write(Collections.singleton(new Recipient("a@b")), file));
+        assertEquals("contents", Arrays.asList("a@b"), Files.readAllLines(file.toPath(), StandardCharsets.US_ASCII));
+        assertEquals("count", 0, AddressExporter.write(Collections.emptySet(), file));
+        assertEquals("length", 0, file.length());
+    }
+
+    // covers more recipients than fit into the buffer, new file, read back by AddressImporter
+    @Test
+    public void testRoundTrip() throws IOException {
+        final File file = File.createTempFile("export", ".txt");
+        file.delete();
+        file.deleteOnExit();
+        final List<Recipient> recipients = new ArrayList<>();
+        for (int i = 0; i < AddressExporter.BUFFER_BYTES / 4; i++) {
+            recipients.add(new Recipient("user" + i + "@example.com"));
+        }
+        assertEquals("count", recipients.size(), AddressExporter.write(recipients, file));
+        assertEquals("lines", recipients, Files.readAllLines(file.toPath(), StandardCharsets.US_ASCII).stream()
+                .map(Recipient::new).collect(Collectors.toList()));
+        assertEquals("imported", new HashSet<>(recipients), AddressImporter.read(file).recipients(new Environment()));
+    }
+}
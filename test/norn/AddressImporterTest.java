@@ -0,0 +1,132 @@
+package norn;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Tests for AddressImporter
+ */
+public class AddressImporterTest {
+    /*
+     * Testing strategy:
+     *
+     *  read()
+     *      file: empty, one chunk, several chunks with lines across chunk boundaries
+     *      last line: with/without line terminator
+     *      lines: blank, surrounding whitespace, CRLF, uppercase, duplicates
+     *      invalid lines: none, one, more than are reported, line too long
+     */
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    /**
+     * @param contents the contents of the file
+     * @return a temporary file with contents, deleted on exit
+     * @throws IOException if the file cannot be written
+     */
+    private static File file(String contents) throws IOException {
+        final File file = File.createTempFile("addresses", ".txt");
+        file.deleteOnExit();
+        Files.write(file.toPath(), contents.getBytes(StandardCharsets.ISO_8859_1));
+        return file;
+    }
+
+    /**
+     * @param addresses email addresses
+     * @return the set of Recipients of the addresses
+     */
+    private static Set<Recipient> recipients(String... addresses) {
+        final Set<Recipient> recipients = new HashSet<>();
+        for (String address : addresses) {
+            recipients.add(new Recipient(address));
+        }
+        return recipients;
+    }
+
+    // covers empty file
+    @Test
+    public void testEmpty() throws IOException {
+        assertEquals("size", 0, AddressImporter.read(file("")).size());
+        assertEquals("size", 0, AddressImporter.read(file("\n  \n\r\n")).size());
+    }
+
+    // covers one chunk, last line without terminator, blank lines, whitespace, CRLF,
+    // uppercase, duplicates
+    @Test
+    public void testNormalize() throws IOException {
+        final RecipientSet set = AddressImporter.read(file("a@b\r\n  C@D.com\t\n\nc@d.COM\nx_1-2.3@y"));
+        assertEquals("recipients", recipients("a@b", "c@d.com", "x_1-2.3@y"), set.recipients(new Environment()));
+    }
+
+    // covers invalid lines: one, more than are reported, line too long
+    @Test
+    public void testInvalid() throws IOException {
+        try {
+            AddressImporter.read(file("a@b\nnot an address\n"));
+            fail("expected an invalid address");
+        } catch (IllegalArgumentException e) {
+            assertTrue("line number in " + e.getMessage(), e.getMessage().contains("line 2: \"not an address\""));
+        }
+        try {
+            AddressImporter.read(file("@b\na@\na@b@c\na@b\nx\n"));
+            fail("expected invalid addresses");
+        } catch (IllegalArgumentException e) {
+            assertTrue("count in " + e.getMessage(), e.getMessage().startsWith("4 invalid addresses"));
+            assertTrue("first lines in " + e.getMessage(), e.getMessage().contains("line 3: \"a@b@c\""));
+            assertFalse("only the first lines in " + e.getMessage(), e.getMessage().contains("line 5"));
+        }
+        final char[] local = new char[AddressImporter.MAX_LINE_BYTES];
+        Arrays.fill(local, 'a');
+        try {
+            AddressImporter.read(file("a@b\n" + new String(local) + "@b\n"));
+            fail("expected a line that is too long");
+        } catch (IllegalArgumentException e) {
+            assertTrue("line number in " + e.getMessage(), e.getMessage().contains("line 2:"));
+        }
+    }
+
+    // covers several chunks, lines across chunk boundaries, line numbers in later chunks
+    @Test
+    public void testChunks() throws IOException {
+        final File file = File.createTempFile("addresses", ".txt");
+        file.deleteOnExit();
+        int lines = 0;
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.ISO_8859_1)) {
+            for (long written = 0; written < 2L * AddressImporter.CHUNK_BYTES + 100; lines++) {
+                final String line = "user" + lines + "@example" + (lines % 7) + ".com\n";
+                writer.write(line);
+                written += line.length();
+            }
+        }
+        final RecipientSet set = AddressImporter.read(file);
+        assertEquals("size", lines, set.size());
+        final Set<Recipient> recipients = set.recipients(new Environment());
+        assertTrue("first", recipients.contains(new Recipient("user0@example0.com")));
+        assertTrue("last", recipients.contains(new Recipient("user" + (lines - 1) + "@example" + ((lines - 1) % 7) + ".com")));
+
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.ISO_8859_1,
+                StandardOpenOption.APPEND)) {
+            writer.write("bad line\n");
+        }
+        try {
+            AddressImporter.read(file);
+            fail("expected an invalid address");
+        } catch (IllegalArgumentException e) {
+            assertTrue("line number in " + e.getMessage(), e.getMessage().contains("line " + (lines + 1) + ":"));
+        }
+    }
+}
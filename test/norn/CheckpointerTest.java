@@ -0,0 +1,151 @@
+package norn;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests for Checkpointer
+ */
+public class CheckpointerTest {
+    /*
+     * Testing strategy:
+     *
+     *  checkpoint()
+     *      environment: unchanged --> nothing written, changed --> checkpoint written
+     *      definitions: Recipient, Union with Names, Empty, RecipientSet
+     *      checkpoints: fewer than keep, more than keep --> oldest deleted
+     *
+     *  background checkpoints
+     *      after changes, at the interval
+     *      stop(): environment changed --> last checkpoint written
+     *
+     *  loadNewest()
+     *      directory: no checkpoints, one checkpoint, several checkpoints
+     *      newest checkpoint: valid, incomplete --> older checkpoint loaded
+     */
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    /**
+     * @return a new empty temporary directory
+     * @throws IOException if it cannot be created
+     */
+    private static File directory() throws IOException {
+        final File directory = Files.createTempDirectory("checkpoints").toFile();
+        directory.deleteOnExit();
+        return directory;
+    }
+
+    /**
+     * Deletes the checkpoints in a directory, and the directory.
+     * @param directory a checkpoint directory
+     */
+    private static void delete(File directory) {
+        for (File file : Checkpointer.checkpoints(directory)) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    // covers unchanged, changed, all kinds of definitions, more than keep, loadNewest of
+    // valid checkpoint, no checkpoints
+    @Test
+    public void testCheckpointAndLoad() throws Exception {
+        final File directory = directory();
+        final Environment empty = new Environment();
+        assertNull("no checkpoints", Checkpointer.loadNewest(empty, directory));
+
+        final Environment environment = new Environment();
+        final Checkpointer checkpointer = new Checkpointer(environment, directory, 0, 0, 2);
+        assertNull("unchanged", checkpointer.checkpoint());
+
+        environment.reassign(new Name("a"), new Recipient("x@y"));
+        environment.reassign(new Name("b"), new Union(new Name("a"), new Recipient("z@y")));
+        environment.reassign(new Name("c"), new Empty());
+        environment.reassign(new Name("d"), new RecipientSet(Arrays.asList(new Recipient("p@q"), new Recipient("r@q"))));
+        final File first = checkpointer.checkpoint();
+        assertNotNull("changed", first);
+        assertNull("unchanged since", checkpointer.checkpoint());
+
+        environment.reassign(new Name("a"), new Recipient("w@y"));
+        final File second = checkpointer.checkpoint();
+        environment.reassign(new Name("e"), new Recipient("e@y"));
+        final File third = checkpointer.checkpoint();
+        assertEquals("oldest deleted", Arrays.asList(third, second), Checkpointer.checkpoints(directory));
+        checkpointer.stop();
+
+        final Environment loaded = new Environment();
+        assertEquals("newest", third, Checkpointer.loadNewest(loaded, directory));
+        assertEquals("definitions", environment.definitions(), loaded.definitions());
+        assertEquals("recipients", new Union(new Name("b"), new Name("d")).recipients(environment),
+                new Union(new Name("b"), new Name("d")).recipients(loaded));
+        delete(directory);
+    }
+
+    // covers incomplete newest checkpoint
+    @Test
+    public void testIncompleteCheckpoint() throws Exception {
+        final File directory = directory();
+        final Environment environment = new Environment();
+        final Checkpointer checkpointer = new Checkpointer(environment, directory, 0, 0, 3);
+        environment.reassign(new Name("a"), new Recipient("x@y"));
+        final File valid = checkpointer.checkpoint();
+        environment.reassign(new Name("a"), new Recipient("z@y"));
+        final File newest = checkpointer.checkpoint();
+        final List<String> lines = Files.readAllLines(newest.toPath(), StandardCharsets.UTF_8);
+        Files.write(newest.toPath(), lines.subList(0, lines.size() - 1), StandardCharsets.UTF_8);
+
+        final Environment loaded = new Environment();
+        assertEquals("older checkpoint", valid, Checkpointer.loadNewest(loaded, directory));
+        assertEquals("older definition", new Recipient("x@y"), loaded.getExpression(new Name("a")));
+        checkpointer.stop();
+        delete(directory);
+    }
+
+    // covers checkpoints after changes, at the interval, on stop()
+    @Test
+    public void testBackground() throws Exception {
+        final File directory = directory();
+        final Environment environment = new Environment();
+        final Checkpointer afterChanges = new Checkpointer(environment, directory, 0, 2, 5);
+        environment.reassign(new Name("a"), new Recipient("x@y"));
+        environment.reassign(new Name("b"), new Recipient("x@y"));
+        waitForCheckpoints(directory, 1);
+        environment.reassign(new Name("c"), new Recipient("x@y"));
+        afterChanges.stop();
+        assertEquals("checkpoint on stop", 2, Checkpointer.checkpoints(directory).size());
+        delete(directory);
+
+        final File other = directory();
+        final Checkpointer atInterval = new Checkpointer(environment, other, 10, 0, 5);
+        environment.reassign(new Name("d"), new Recipient("x@y"));
+        waitForCheckpoints(other, 1);
+        atInterval.stop();
+        assertEquals("no changes since", 1, Checkpointer.checkpoints(other).size());
+        delete(other);
+    }
+
+    /**
+     * Waits until a directory contains a number of checkpoints.
+     * @param directory a checkpoint directory
+     * @param count the number of checkpoints to wait for
+     * @throws InterruptedException if interrupted
+     */
+    private static void waitForCheckpoints(File directory, int count) throws InterruptedException {
+        for (int i = 0; i < 500 && Checkpointer.checkpoints(directory).size() < count; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals("checkpoints", count, Checkpointer.checkpoints(directory).size());
+    }
+}
@@ -0,0 +1,134 @@
+package norn;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Tests for EnvironmentGenerator
+ */
+public class EnvironmentGeneratorTest {
+    /*
+     * Testing strategy:
+     *
+     *  generate()
+     *      seed: same --> same output, different --> different output
+     *      output: parses, loads every list, top list has recipients
+     *      shape: depth 1, depth > 1; level sizes add up to the number of lists
+     *      operator mix: unions only, all operators
+     *      domain skew: 0, high --> most addresses in the first domain
+     *  setters
+     *      out-of-range values --> IllegalArgumentException
+     */
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    /**
+     * @param generated a generated !load line
+     * @return an environment with the definitions of generated loaded
+     */
+    private static Environment load(String generated) {
+        final Environment environment = new Environment();
+        ListExpression.parse(generated).recipients(environment);
+        return environment;
+    }
+
+    // covers same and different seed, output loads, depth > 1, all operators
+    @Test
+    public void testDeterministic() {
+        final EnvironmentGenerator generator = new EnvironmentGenerator();
+        generator.setSeed(42);
+        final String first = generator.generate();
+        assertEquals("same seed", first, generator.generate());
+        generator.setSeed(43);
+        assertNotEquals("different seed", first, generator.generate());
+
+        final Environment environment = load(first);
+        assertEquals("lists", 100, environment.getNames().size());
+        assertTrue("operators", first.contains(" * ") && first.contains(" ! "));
+        assertFalse("top list has recipients",
+                new Name(EnvironmentGenerator.listName(0, 0)).recipients(environment).isEmpty());
+    }
+
+    // covers level sizes, depth 1, unions only, fan-in > 1
+    @Test
+    public void testShape() {
+        final EnvironmentGenerator generator = new EnvironmentGenerator();
+        generator.setShape(50, 4);
+        generator.setFan(3, 1.5);
+        int sum = 0;
+        for (int size : generator.levelSizes()) {
+            assertTrue("at least 1 list per level", size >= 1);
+            sum += size;
+        }
+        assertEquals("level sizes", 50, sum);
+
+        generator.setOperatorMix(1, 0, 0);
+        final String unions = generator.generate();
+        assertFalse("unions only", unions.contains(" * ") || unions.contains(" ! "));
+        assertEquals("lists", 50, load(unions).getNames().size());
+
+        generator.setShape(5, 1);
+        assertEquals("one level", 5, load(generator.generate()).getNames().size());
+    }
+
+    // covers skew 0 and high skew
+    @Test
+    public void testDomainSkew() {
+        final EnvironmentGenerator generator = new EnvironmentGenerator();
+        generator.setShape(20, 1);
+        generator.setDomains(10, 4);
+        assertTrue("skewed", firstDomainShare(generator) > 0.8);
+        generator.setDomains(10, 0);
+        assertTrue("uniform", firstDomainShare(generator) < 0.3);
+    }
+
+    /**
+     * @param generator a generator
+     * @return the fraction of the generated addresses in the first domain
+     */
+    private static double firstDomainShare(EnvironmentGenerator generator) {
+        final Environment environment = load(generator.generate());
+        final Map<String, Integer> counts = new HashMap<>();
+        int total = 0;
+        for (Name name : environment.getNames()) {
+            final Set<Recipient> recipients = name.recipients(environment);
+            for (Recipient recipient : recipients) {
+                counts.merge(recipient.toString().split("@")[1], 1, Integer::sum);
+                total++;
+            }
+        }
+        return counts.getOrDefault("domain0.example.com", 0) / (double) total;
+    }
+
+    // covers out-of-range values
+    @Test
+    public void testInvalidParameters() {
+        final EnvironmentGenerator generator = new EnvironmentGenerator();
+        try {
+            generator.setShape(2, 3);
+            fail("expected fewer lists than levels to fail");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            generator.setOperatorMix(0, 0, 0);
+            fail("expected an empty operator mix to fail");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            generator.setFan(2, 0.5);
+            fail("expected a fan-in below 1 to fail");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package norn;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Test;
+
+/**
+ * Tests for EnvironmentSaver
+ */
+public class EnvironmentSaverTest {
+    /*
+     * Testing strategy:
+     *
+     *  save()
+     *      definitions: 0, >1
+     *      environment changed after save() --> change not saved
+     *      saved file loads back to the same definitions
+     *      file cannot be written --> future fails, no temporary file left behind
+     *
+     *  write()
+     *      file exists --> replaced
+     *      directory does not exist --> IOException
+     */
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    /**
+     * @return a new empty temporary directory, deleted on exit if it is empty by then
+     * @throws IOException if it cannot be created
+     */
+    private static File directory() throws IOException {
+        final File directory = Files.createTempDirectory("saver").toFile();
+        directory.deleteOnExit();
+        return directory;
+    }
+
+    // covers 0 and >1 definitions, environment changed after save(), loads back, file replaced
+    @Test
+    public void testSave() throws Exception {
+        final File directory = directory();
+        final File file = new File(directory, "saved");
+        file.deleteOnExit();
+        final EnvironmentSaver saver = new EnvironmentSaver();
+
+        final Environment environment = new Environment();
+        assertEquals("no definitions", Integer.valueOf(0), saver.save(environment, file).get());
+        assertEquals("empty file", 0, file.length());
+
+        environment.reassign(new Name("a"), new Union(new Recipient("x@y"), new Name("b")));
+        environment.reassign(new Name("b"), new Recipient("z@y"));
+        final CompletableFuture<Integer> saved = saver.save(environment, file);
+        environment.reassign(new Name("c"), new Recipient("late@y"));
+        assertEquals("two definitions", Integer.valueOf(2), saved.get());
+
+        final Environment loaded = new Environment();
+        ListExpression.parse(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8)).recipients(loaded);
+        assertEquals("a", environment.getExpression(new Name("a")), loaded.getExpression(new Name("a")));
+        assertEquals("b", environment.getExpression(new Name("b")), loaded.getExpression(new Name("b")));
+        assertFalse("c was defined after the save", loaded.isDefined(new Name("c")));
+        assertArrayEquals("no temporary files", new String[] {"saved"}, directory.list());
+        saver.shutdown();
+    }
+
+    // covers file cannot be written
+    @Test
+    public void testSaveFails() throws IOException, InterruptedException {
+        final File missing = new File(directory(), "missing");
+        final EnvironmentSaver saver = new EnvironmentSaver();
+        try {
+            saver.save(new Environment(), new File(missing, "saved")).get();
+            fail("expected the save to fail");
+        } catch (ExecutionException e) {
+            assertTrue("cause", e.getCause() instanceof UncheckedIOException);
+        }
+        saver.awaitPending();
+        assertFalse("nothing written", missing.exists());
+        saver.shutdown();
+    }
+}
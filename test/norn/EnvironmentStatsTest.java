@@ -0,0 +1,139 @@
+package norn;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests for EnvironmentStats
+ */
+public class EnvironmentStatsTest {
+    /*
+     * Testing strategy:
+     *
+     *  compute()
+     *      environment: no lists, chain of lists, list shared by several lists
+     *      definition: single address, operators, undefined names, RecipientSet
+     *      budget: none, exceeded by some list --> recipients -1
+     *      environment locked by another thread --> still computed
+     *
+     *  lists(): sorted by bytes, largest first
+     *  toString(), toJson(): totals, limit
+     */
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    /**
+     * @param stats statistics of an environment
+     * @return map from the name of every list in stats to its statistics
+     */
+    private static Map<String, EnvironmentStats.ListStats> byName(EnvironmentStats stats) {
+        final Map<String, EnvironmentStats.ListStats> byName = new HashMap<>();
+        for (EnvironmentStats.ListStats list : stats.lists()) {
+            byName.put(list.name().toString(), list);
+        }
+        return byName;
+    }
+
+    @Test
+    public void testEmpty() {
+        final EnvironmentStats stats = EnvironmentStats.compute(new Environment(), null);
+        assertEquals(0, stats.lists().size());
+        assertEquals(0, stats.totalBytes());
+        assertEquals(0, stats.maxDepth());
+        assertTrue(stats.toString().contains("total 0 lists"));
+        assertTrue(stats.toJson(10).startsWith("{\"lists\":0,\"nodes\":0,\"bytes\":0,"));
+    }
+
+    @Test
+    public void testDependencies() {
+        final Environment environment = new Environment();
+        environment.reassign(new Name("a"), ListExpression.parse("x@y, z@w"));
+        environment.reassign(new Name("b"), ListExpression.parse("a ! z@w"));
+        environment.reassign(new Name("c"), ListExpression.parse("(a, b) * x@y, undefined"));
+        environment.reassign(new Name("d"), ListExpression.parse("c"));
+        final Map<String, EnvironmentStats.ListStats> lists = byName(EnvironmentStats.compute(environment, null));
+        assertEquals(4, lists.size());
+
+        final EnvironmentStats.ListStats a = lists.get("a");
+        assertEquals(3, a.nodes());
+        assertEquals(2, a.depth());
+        assertEquals(0, a.dependencies());
+        assertEquals(0, a.transitiveDependencies());
+        assertEquals(2, a.dependents());
+        assertEquals(3, a.transitiveDependents());
+        assertEquals(2, a.recipients());
+
+        final EnvironmentStats.ListStats c = lists.get("c");
+        assertEquals(7, c.nodes());
+        // union, intersect, union, list b, difference, list a, union, address
+        assertEquals(8, c.depth());
+        assertEquals(3, c.dependencies());
+        assertEquals(3, c.transitiveDependencies());
+        assertEquals(1, c.dependents());
+        assertEquals(1, c.transitiveDependents());
+        assertEquals(1, c.recipients());
+
+        final EnvironmentStats.ListStats d = lists.get("d");
+        assertEquals(1, d.nodes());
+        assertEquals(9, d.depth());
+        assertEquals(1, d.dependencies());
+        assertEquals(4, d.transitiveDependencies());
+        assertEquals(0, d.dependents());
+        assertTrue(d.bytes() < c.bytes());
+    }
+
+    @Test
+    public void testRecipientSetSorted() {
+        final Environment environment = new Environment();
+        final Recipient[] addresses = new Recipient[100];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = new Recipient("user" + i + "@example.com");
+        }
+        environment.reassign(new Name("big"), new RecipientSet(Arrays.asList(addresses)));
+        environment.reassign(new Name("small"), ListExpression.parse("x@y"));
+        final EnvironmentStats stats = EnvironmentStats.compute(environment, null);
+        final List<EnvironmentStats.ListStats> lists = stats.lists();
+        assertEquals("big", lists.get(0).name().toString());
+        assertEquals(100, lists.get(0).recipients());
+        assertTrue(lists.get(0).bytes() > 100 * "user0@example.com".length());
+        assertEquals(lists.get(0).bytes() + lists.get(1).bytes(), stats.totalBytes());
+        final String json = stats.toJson(1);
+        assertTrue(json, json.contains("\"name\":\"big\""));
+        assertFalse(json, json.contains("\"name\":\"small\""));
+    }
+
+    @Test
+    public void testOverBudget() {
+        final Environment environment = new Environment();
+        environment.reassign(new Name("a"), ListExpression.parse("x@y, z@w, v@u"));
+        environment.reassign(new Name("b"), ListExpression.parse("x@y"));
+        final EnvironmentStats stats = EnvironmentStats.compute(environment, () -> new EvaluationBudget(3, 1000, 10000));
+        assertEquals(-1, byName(stats).get("a").recipients());
+        assertEquals(1, byName(stats).get("b").recipients());
+        assertEquals(1, stats.overBudget());
+        assertTrue(stats.toString().contains("over budget"));
+    }
+
+    @Test(timeout=10000)
+    public void testWithoutLock() throws InterruptedException {
+        final Environment environment = new Environment();
+        environment.reassign(new Name("a"), ListExpression.parse("x@y"));
+        environment.definitions(); // snapshot taken before the lock is held
+        final EnvironmentStats[] stats = new EnvironmentStats[1];
+        synchronized (environment) {
+            final Thread thread = new Thread(() -> stats[0] = EnvironmentStats.compute(environment, null));
+            thread.start();
+            thread.join();
+        }
+        assertEquals(1, stats[0].lists().size());
+    }
+}
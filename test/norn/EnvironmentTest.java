@@ -30,6 +30,40 @@ public class EnvironmentTest {
      *  getNames()
      *      number of Names: 0, 1, >1
      *     
+     *  reassign() mail loops
+     *      loop of 2, >2 names; loop through union, intersection, difference
+     *      lists and recipients shared by several lists (no loop)
+     *      self-reference (no loop), self-reference and a loop with another name
+     *      loop closed below lists shared by several lists
+     *  
+     *  reassignAll()
+     *      batch: new names, replaced names
+     *      batch creates mail loop --> environment unchanged
+     *  
+     *  version(), version(name)
+     *      no changes, reassign, reassignAll, undefined name
+     *  
+     *  referencedNames()
+     *      no names, direct names, names through definitions, self-referencing definition
+     *  
+     *  overlay(), commit()
+     *      overlay reads definitions and versions of its environment
+     *      definitions in the overlay: not visible in the environment until commit()
+     *      environment changed after overlay() --> not visible in the overlay
+     *      commit(): applies definitions, creates mail loop --> environment unchanged,
+     *                not an overlay --> IllegalStateException
+     *  
+     *  definitions()
+     *      empty, several definitions, environment changed afterwards, overlay
+     *  
+     *  recipientsAt()
+     *      domain: no addresses, addresses in one list, address shared by several lists
+     *      addresses: single, in a RecipientSet, behind list names (not expanded)
+     *      after reassign(), reassignAll(), reassignAll() creating a mail loop
+     *      overlay: unchanged, environment changed afterwards, own definitions
+     *  
+     *  referencesDomain()
+     *      no domain, domain in the expression, domain through a definition
      *  
      */
     
@@ -130,6 +164,57 @@ public class EnvironmentTest {
         testEnv.reassign(new Name("b"), new Name("a"));
     }
     
+    // Covers loop through union, intersection, difference
+    @Test(expected=AssertionError.class)
+    public void testMailLoopThroughOperators() {
+        final Environment testEnv = new Environment();
+        testEnv.reassign(new Name("a"), new Difference(new Name("b"), AB));
+        testEnv.reassign(new Name("b"), new Intersect(new Name("c"), CD));
+        testEnv.reassign(new Name("c"), new Union(AB, new Name("a")));
+    }
+    
+    // Covers self-reference and a loop with another name
+    @Test(expected=AssertionError.class)
+    public void testSelfReferenceAndMailLoop() {
+        final Environment testEnv = new Environment();
+        testEnv.reassign(new Name("a"), new Union(new Name("a"), new Name("b")));
+        testEnv.reassign(new Name("b"), new Name("a"));
+    }
+    
+    // Covers lists shared by several lists; not a loop
+    @Test
+    public void testSharedListsNoMailLoop() {
+        final Environment testEnv = new Environment();
+        testEnv.reassign(new Name("a"), new Union(AB, CD));
+        testEnv.reassign(new Name("b"), new Union(new Name("a"), CD));
+        testEnv.reassign(new Name("c"), new Intersect(new Name("a"), AB));
+        testEnv.reassign(new Name("d"), new Union(new Name("b"), new Name("c")));
+        assertEquals("expected shared list to be evaluated", new HashSet<>(Arrays.asList(AB, CD)),
+                new Name("d").recipients(testEnv));
+    }
+    
+    // Covers recipients shared by several lists; not a loop
+    @Test
+    public void testSharedRecipientsNoMailLoop() {
+        final Environment testEnv = new Environment();
+        testEnv.reassign(new Name("a"), new Union(AB, CD));
+        testEnv.reassign(new Name("b"), AB);
+        testEnv.reassign(new Name("c"), new Union(new Name("a"), new Union(new Name("b"), AB)));
+        assertEquals("expected shared recipients to be evaluated", new HashSet<>(Arrays.asList(AB, CD)),
+                new Name("c").recipients(testEnv));
+    }
+    
+    // Covers loop closed below lists shared by several lists
+    @Test(expected=AssertionError.class)
+    public void testMailLoopBelowSharedLists() {
+        final Environment testEnv = new Environment();
+        testEnv.reassign(new Name("a"), AB);
+        testEnv.reassign(new Name("b"), new Union(new Name("a"), CD));
+        testEnv.reassign(new Name("c"), new Union(new Name("a"), AB));
+        testEnv.reassign(new Name("d"), new Union(new Name("b"), new Name("c")));
+        testEnv.reassign(new Name("a"), new Union(AB, new Name("d")));
+    }
+    
     // Covers definition in terms of self; should be allowed
     public void testSelfLoop() {
         final Environment testEnv = new Environment();
@@ -139,6 +224,220 @@ public class EnvironmentTest {
         assertEquals("Expected a to have 2 recipients", expectedRecipients, testEnv.getExpression(new Name("a")).recipients(testEnv));
     }
     
+///////////////////////////////////////////////////////////////////////////
+    // Testing reassignAll()
+    
+    // new and replaced names, names defined in terms of each other within the batch
+    @Test
+    public void testReassignAll() {
+        final Environment testEnv = new Environment();
+        testEnv.reassign(new Name("a"), AB);
+        final Map<Name, ListExpression> batch = new HashMap<>();
+        batch.put(new Name("a"), CD);
+        batch.put(new Name("b"), new Union(new Name("a"), SPECIAL));
+        testEnv.reassignAll(batch);
+        assertEquals("expected replaced definition", CD, testEnv.getExpression(new Name("a")));
+        assertEquals("expected new definition", new Union(new Name("a"), SPECIAL), testEnv.getExpression(new Name("b")));
+    }
+    
+    // batch creates a mail loop; nothing is applied
+    @Test
+    public void testReassignAllMailLoop() {
+        final Environment testEnv = new Environment();
+        testEnv.reassign(new Name("a"), AB);
+        final Map<Name, ListExpression> batch = new HashMap<>();
+        batch.put(new Name("a"), new Name("b"));
+        batch.put(new Name("b"), new Name("a"));
+        try {
+            testEnv.reassignAll(batch);
+            fail("expected mail loop");
+        } catch (AssertionError e) {
+            // expected
+        }
+        assertEquals("expected original definition", AB, testEnv.getExpression(new Name("a")));
+        assertEquals("expected no new names", new HashSet<>(Arrays.asList(new Name("a"))), testEnv.getNames());
+    }
+    
+///////////////////////////////////////////////////////////////////////////
+    // Testing versions
+    
+    // covers no changes, reassign, reassignAll, undefined name
+    @Test
+    public void testVersions() {
+        final Environment testEnv = new Environment();
+        assertEquals("expected initial version", 0, testEnv.version());
+        assertEquals("expected undefined name version", 0, testEnv.version(new Name("a")));
+        testEnv.reassign(new Name("a"), AB);
+        final long aVersion = testEnv.version(new Name("a"));
+        assertTrue("expected version to increase", aVersion > 0);
+        final Map<Name, ListExpression> batch = new HashMap<>();
+        batch.put(new Name("b"), CD);
+        batch.put(new Name("c"), CD);
+        testEnv.reassignAll(batch);
+        assertTrue("expected version to increase", testEnv.version(new Name("b")) > aVersion);
+        assertEquals("expected unchanged version", aVersion, testEnv.version(new Name("a")));
+        assertEquals("expected batch to share a version", testEnv.version(new Name("b")), testEnv.version(new Name("c")));
+        assertEquals("expected global version", testEnv.version(new Name("c")), testEnv.version());
+    }
+    
+    // covers no names, direct names, names through definitions, self-referencing definition
+    @Test
+    public void testReferencedNames() {
+        final Environment testEnv = new Environment();
+        testEnv.reassign(new Name("a"), new Union(new Name("b"), AB));
+        testEnv.reassign(new Name("b"), new Union(new Name("b"), CD));
+        assertEquals("expected no names", Collections.emptySet(), testEnv.referencedNames(new Union(AB, CD)));
+        assertEquals("expected direct and transitive names", new HashSet<>(Arrays.asList(new Name("a"), new Name("b"), new Name("c"))),
+                testEnv.referencedNames(new Intersect(new Name("a"), new Name("c"))));
+    }
+    
+///////////////////////////////////////////////////////////////////////////
+    // Testing overlay() and commit()
+    
+    // covers reads through the overlay, overlay definitions not visible, later changes not visible, commit
+    @Test
+    public void testOverlay() {
+        final Environment testEnv = new Environment();
+        testEnv.reassign(new Name("a"), AB);
+        final Environment overlay = testEnv.overlay();
+        assertEquals("expected inherited definition", AB, overlay.getExpression(new Name("a")));
+        assertEquals("expected inherited version", testEnv.version(new Name("a")), overlay.version(new Name("a")));
+        assertTrue("expected inherited name", overlay.isDefined(new Name("a")));
+        
+        overlay.reassign(new Name("b"), new Union(new Name("a"), CD));
+        assertEquals("expected overlay recipients", new HashSet<>(Arrays.asList(AB, CD)),
+                new Name("b").recipients(overlay));
+        assertFalse("expected definition to stay in the overlay", testEnv.isDefined(new Name("b")));
+        assertEquals("expected both names", new HashSet<>(Arrays.asList(new Name("a"), new Name("b"))), overlay.getNames());
+        
+        testEnv.reassign(new Name("a"), SPECIAL);
+        assertEquals("expected snapshot of the environment", AB, overlay.getExpression(new Name("a")));
+        
+        overlay.commit();
+        assertEquals("expected committed definition", new Union(new Name("a"), CD), testEnv.getExpression(new Name("b")));
+        assertEquals("expected committed recipients", new HashSet<>(Arrays.asList(SPECIAL, CD)),
+                new Name("b").recipients(testEnv));
+    }
+    
+    // covers commit creates mail loop
+    @Test
+    public void testOverlayCommitMailLoop() {
+        final Environment testEnv = new Environment();
+        testEnv.reassign(new Name("a"), AB);
+        final Environment overlay = testEnv.overlay();
+        overlay.reassign(new Name("b"), new Name("c"));
+        testEnv.reassign(new Name("c"), new Name("b"));
+        try {
+            overlay.commit();
+            fail("expected mail loop");
+        } catch (AssertionError e) {
+            // expected
+        }
+        assertFalse("expected environment unchanged", testEnv.isDefined(new Name("b")));
+    }
+    
+    // covers commit on an environment that is not an overlay
+    @Test(expected=IllegalStateException.class)
+    public void testCommitNotOverlay() {
+        new Environment().commit();
+    }
+    
+    // covers definitions(): empty, several definitions, changed afterwards, overlay
+    @Test
+    public void testDefinitions() {
+        final Environment environment = new Environment();
+        assertEquals("no definitions", Collections.emptyMap(), environment.definitions());
+        environment.reassign(new Name("a"), new Recipient("x@y"));
+        environment.reassign(new Name("b"), new Name("a"));
+        final Map<Name, ListExpression> definitions = environment.definitions();
+        final Map<Name, ListExpression> expected = new HashMap<>();
+        expected.put(new Name("a"), new Recipient("x@y"));
+        expected.put(new Name("b"), new Name("a"));
+        assertEquals("definitions", expected, definitions);
+        assertSame("unchanged environment reuses the snapshot", definitions, environment.definitions());
+
+        environment.reassign(new Name("a"), new Empty());
+        assertEquals("snapshot unaffected by later changes", new Recipient("x@y"), definitions.get(new Name("a")));
+        assertEquals("new snapshot", new Empty(), environment.definitions().get(new Name("a")));
+
+        final Environment overlay = environment.overlay();
+        overlay.reassign(new Name("c"), new Recipient("z@y"));
+        assertEquals("overlay definitions", new HashSet<>(Arrays.asList(new Name("a"), new Name("b"), new Name("c"))),
+                overlay.definitions().keySet());
+    }
+    
+    // covers recipientsAt(): no addresses, one list, shared addresses, RecipientSet,
+    // reassign(), reassignAll(), mail loop
+    @Test
+    public void testRecipientsAt() {
+        final Environment environment = new Environment();
+        final Recipient x = new Recipient("x@mit.edu");
+        final Recipient y = new Recipient("y@mit.edu");
+        final Recipient z = new Recipient("z@mit.edu");
+        assertEquals("no addresses", Collections.emptySet(), environment.recipientsAt("mit.edu"));
+
+        environment.reassign(new Name("a"), ListExpression.parse("x@mit.edu, a@b, x@mit.edu"));
+        environment.reassign(new Name("b"), ListExpression.parse("a ! x@mit.edu, y@mit.edu"));
+        environment.reassign(new Name("c"), new RecipientSet(Arrays.asList(z, AB)));
+        assertEquals("addresses in lists", new HashSet<>(Arrays.asList(x, y, z)), environment.recipientsAt("mit.edu"));
+        assertEquals("other domain", Collections.singleton(AB), environment.recipientsAt("b"));
+
+        environment.reassign(new Name("a"), new Empty());
+        assertEquals("address still in another list", new HashSet<>(Arrays.asList(x, y, z)),
+                environment.recipientsAt("mit.edu"));
+        environment.reassign(new Name("b"), new Name("a"));
+        assertEquals("addresses removed", Collections.singleton(z), environment.recipientsAt("mit.edu"));
+
+        final Map<Name, ListExpression> batch = new HashMap<>();
+        batch.put(new Name("c"), new Empty());
+        batch.put(new Name("d"), y);
+        environment.reassignAll(batch);
+        assertEquals("after reassignAll", Collections.singleton(y), environment.recipientsAt("mit.edu"));
+        assertEquals("domain without addresses", Collections.emptySet(), environment.recipientsAt("b"));
+
+        batch.clear();
+        batch.put(new Name("d"), ListExpression.parse("e, x@mit.edu"));
+        batch.put(new Name("e"), new Name("d"));
+        try {
+            environment.reassignAll(batch);
+            fail("expected mail loop");
+        } catch (AssertionError e) {
+            // expected
+        }
+        assertEquals("mail loop leaves the index unchanged", Collections.singleton(y), environment.recipientsAt("mit.edu"));
+    }
+    
+    // covers recipientsAt() on overlays: unchanged, environment changed, own definitions
+    @Test
+    public void testRecipientsAtOverlay() {
+        final Environment environment = new Environment();
+        environment.reassign(new Name("a"), ListExpression.parse("x@mit.edu, y@mit.edu"));
+        final Environment overlay = environment.overlay();
+        assertEquals("unchanged overlay", 2, overlay.recipientsAt("mit.edu").size());
+
+        environment.reassign(new Name("b"), ListExpression.parse("z@mit.edu"));
+        assertEquals("environment changed afterwards", 2, overlay.recipientsAt("mit.edu").size());
+        assertEquals("environment", 3, environment.recipientsAt("mit.edu").size());
+
+        overlay.reassign(new Name("a"), ListExpression.parse("w@mit.edu"));
+        assertEquals("own definitions", Collections.singleton(new Recipient("w@mit.edu")),
+                overlay.recipientsAt("mit.edu"));
+        assertEquals("environment unaffected", 3, environment.recipientsAt("mit.edu").size());
+        assertEquals("evaluated in overlay", Collections.singleton(new Recipient("w@mit.edu")),
+                ListExpression.parse("*@mit.edu").recipients(overlay));
+    }
+    
+    // covers referencesDomain(): no domain, direct, through a definition
+    @Test
+    public void testReferencesDomain() {
+        final Environment environment = new Environment();
+        environment.reassign(new Name("a"), ListExpression.parse("x@y, b"));
+        environment.reassign(new Name("b"), ListExpression.parse("*@y"));
+        environment.reassign(new Name("c"), ListExpression.parse("x@y"));
+        assertFalse("no domain", environment.referencesDomain(ListExpression.parse("c, z@w")));
+        assertTrue("direct", environment.referencesDomain(ListExpression.parse("c * *@w")));
+        assertTrue("through a definition", environment.referencesDomain(new Name("a")));
+    }
 }
 
 
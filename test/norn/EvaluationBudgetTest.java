@@ -0,0 +1,96 @@
+package norn;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+/**
+ * Tests for the EvaluationBudget and AdmissionControl classes
+ */
+public class EvaluationBudgetTest {
+    /*
+     * Testing strategy:
+     *
+     *  EvaluationBudget.evaluate()
+     *      within budget --> recipients
+     *      node visits exceeded, recipients exceeded, cancelled
+     *      evaluateUnlimited() inside a budgeted evaluation
+     *      no budget after evaluate() returns or throws
+     *
+     *  AdmissionControl.tryAcquire(), release()
+     *      free slot, full with room in queue (times out), full with full queue
+     *      slot released --> admitted again
+     */
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    private static final ListExpression THREE = new Union(new Union(new Recipient("a@b"), new Recipient("c@d")),
+            new Recipient("e@f"));
+
+    // covers within budget, no budget after evaluate() returns
+    @Test
+    public void testWithinBudget() {
+        final Environment environment = new Environment();
+        assertEquals("expected recipients", new HashSet<>(Arrays.asList(new Recipient("a@b"), new Recipient("c@d"),
+                new Recipient("e@f"))), new EvaluationBudget(5, 100, 10000).evaluate(THREE, environment));
+        EvaluationBudget.visit(); // no budget installed any more
+    }
+
+    // covers node visits exceeded, no budget after evaluate() throws
+    @Test
+    public void testVisitsExceeded() {
+        try {
+            new EvaluationBudget(4, 100, 10000).evaluate(THREE, new Environment());
+            fail("expected budget to be exceeded");
+        } catch (EvaluationBudget.BudgetExceededException e) {
+            assertTrue("expected visits message", e.getMessage().contains("4 nodes"));
+        }
+        EvaluationBudget.produced(Integer.MAX_VALUE); // no budget installed any more
+    }
+
+    // covers recipients exceeded
+    @Test(expected=EvaluationBudget.BudgetExceededException.class)
+    public void testRecipientsExceeded() {
+        new EvaluationBudget(100, 6, 10000).evaluate(THREE, new Environment());
+    }
+
+    // covers cancelled
+    @Test(expected=EvaluationBudget.BudgetExceededException.class)
+    public void testCancelled() {
+        final EvaluationBudget budget = new EvaluationBudget(100, 100, 10000);
+        budget.cancel();
+        budget.evaluate(THREE, new Environment());
+    }
+
+    // covers evaluateUnlimited() inside a budgeted evaluation
+    @Test
+    public void testUnlimitedInside() {
+        final Environment environment = new Environment();
+        environment.reassign(new Name("a"), THREE);
+        final ListWatcher watcher = new ListWatcher(environment);
+        watcher.subscribe(new Name("a"), null);
+        // the watcher re-evaluates a (5 nodes) outside the budget of the definition
+        new EvaluationBudget(3, 100, 10000).evaluate(new Definition(new Name("a"), new Recipient("x@y")), environment);
+        watcher.close();
+    }
+
+    // covers free slot, full with room in queue, full with full queue, slot released
+    @Test
+    public void testAdmission() {
+        final AdmissionControl queueing = new AdmissionControl(1, 1, 10);
+        assertTrue("expected free slot", queueing.tryAcquire());
+        assertFalse("expected wait to time out", queueing.tryAcquire());
+        queueing.release();
+        assertTrue("expected released slot", queueing.tryAcquire());
+
+        final AdmissionControl shedding = new AdmissionControl(1, 0, 10000);
+        assertTrue("expected free slot", shedding.tryAcquire());
+        assertFalse("expected immediate rejection", shedding.tryAcquire());
+    }
+}
@@ -0,0 +1,97 @@
+package norn;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+/**
+ * Tests for Explain, the instrumented evaluation of list expressions.
+ */
+public class ExplainTest {
+    /*
+     * Testing strategy:
+     *
+     *  analyze()
+     *      expression: leaf (recipient, empty), operator (union, intersect, difference),
+     *                  defined name, undefined name, name referenced more than once,
+     *                  contains a definition or sequence
+     *      budget: null, exceeded
+     *
+     *  toString()
+     *      operand and result sizes of every node, repeated lists not expanded again,
+     *      more nodes than MAX_PRINTED_NODES
+     */
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    // covers recipient, union, difference, defined name, budget null
+    @Test
+    public void testAnalyze() {
+        final Environment environment = new Environment();
+        environment.reassign(new Name("a"), ListExpression.parse("x@y, z@w"));
+        final Explain explain = Explain.analyze(ListExpression.parse("a ! z@w, u@v"), environment, null);
+        assertEquals("expected recipients", new HashSet<>(Arrays.asList(new Recipient("x@y"), new Recipient("u@v"))),
+                explain.recipients());
+        assertEquals("expected resolutions", 1, explain.resolutions());
+        assertEquals("expected no repeats", 0, explain.repeats());
+        // union, difference, list a, its union and two recipients, z@w, u@v
+        assertEquals("expected nodes", 8, explain.nodes());
+        final String[] lines = explain.toString().split("\n");
+        assertEquals("expected one line per node and a total", 9, lines.length);
+        assertTrue("expected union of 1 and 1", lines[0].startsWith("union  time ") && lines[0].contains("in 1, 1  out 2  lists 1"));
+        assertTrue("expected difference of 2 and 1", lines[1].startsWith("  difference  time ") && lines[1].contains("in 2, 1  out 1"));
+        assertTrue("expected list a", lines[2].startsWith("    list a  time ") && lines[2].contains("in 2  out 2  lists 1"));
+        assertTrue("expected recipient", lines[4].startsWith("        recipient x@y  time ") && lines[4].endsWith("out 1"));
+        assertTrue("expected total", lines[8].startsWith("total ") && lines[8].endsWith("8 nodes, 1 list resolutions (0 repeated), 2 recipients"));
+    }
+
+    // covers intersect, empty, undefined name, name referenced more than once
+    @Test
+    public void testRepeatedName() {
+        final Environment environment = new Environment();
+        environment.reassign(new Name("a"), ListExpression.parse("x@y, z@w"));
+        final Explain explain = Explain.analyze(ListExpression.parse("a * (a, b)"), environment, null);
+        assertEquals("expected recipients", 2, explain.recipients().size());
+        assertEquals("expected resolutions", 3, explain.resolutions());
+        assertEquals("expected repeats", 1, explain.repeats());
+        final String text = explain.toString();
+        assertTrue("expected repeated list", text.contains("list a  time ") && text.contains("repeated, see above"));
+        assertTrue("expected undefined list", text.contains("list b  time ") && text.contains("out 0"));
+
+        final Explain empty = Explain.analyze(ListExpression.parse(""), environment, null);
+        assertTrue("expected empty", empty.toString().startsWith("empty  time "));
+        assertEquals("expected no recipients", 0, empty.recipients().size());
+    }
+
+    // covers contains a definition or sequence
+    @Test(expected=IllegalArgumentException.class)
+    public void testDefinition() {
+        Explain.analyze(ListExpression.parse("a = x@y"), new Environment(), null);
+    }
+
+    // covers budget exceeded
+    @Test(expected=EvaluationBudget.BudgetExceededException.class)
+    public void testBudgetExceeded() {
+        Explain.analyze(ListExpression.parse("a@b, c@d, e@f"), new Environment(), new EvaluationBudget(2, 1000, 10000));
+    }
+
+    // covers more nodes than MAX_PRINTED_NODES
+    @Test
+    public void testTruncated() {
+        ListExpression expression = new Recipient("r0@x");
+        for (int i = 1; i < Explain.MAX_PRINTED_NODES; i++) {
+            expression = new Union(new Recipient("r" + i + "@x"), expression);
+        }
+        final Explain explain = Explain.analyze(expression, new Environment(), null);
+        final String[] lines = explain.toString().split("\n");
+        assertEquals("expected truncated lines and a total", Explain.MAX_PRINTED_NODES + 2, lines.length);
+        assertEquals("expected remaining nodes", "... " + (explain.nodes() - Explain.MAX_PRINTED_NODES) + " more nodes",
+                lines[Explain.MAX_PRINTED_NODES]);
+    }
+}
@@ -31,9 +31,11 @@ public class ExpressionParserTest {
      *          difference
      *          intersection
      *          sequencing
+     *          domain: alone, as an operand, case
      *      invalid inputs:
      *          no comma separation
      *          email is invalid
+     *          domain is missing
      *      types of inputs:
      *          email
      *          union of emails
@@ -187,4 +189,19 @@ public class ExpressionParserTest {
         }
     }
 
+    // domain alone, as an operand, uppercase
+    @Test
+    public void testParserDomain() {
+        assertEquals(new Domain("example.com"), ListExpression.parse("*@Example.COM"));
+        assertEquals("*@example.com", ListExpression.parse("*@example.com").toString());
+        assertEquals(new Intersect(new Name("staff"), new Domain("mit.edu")), ListExpression.parse("staff * *@mit.edu"));
+        assertEquals(new Difference(new Domain("a.b"), new Recipient("x@a.b")), ListExpression.parse("*@a.b ! x@a.b"));
+    }
+    
+    // domain is missing
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidDomain() {
+        ListExpression.parse("*@");
+    }
+
 }
@@ -27,6 +27,7 @@ public class ExpressionTest {
      *      Sequence
      *      Empty
      *      Recipient
+     *      RecipientSet
      *
      *  recipients(environment)/environment constructor/environment.reassign():
      *      each concrete variant class
@@ -639,4 +640,31 @@ public class ExpressionTest {
         ListExpression e2 = ListExpression.parse("(A@mit.edu, B@mit.edu) * b@mit.edu; B");
         assertEquals("Same hashcode for intersection of email lists", e2.hashCode(), e1.hashCode());
     }
+    
+    // RecipientSet: recipients, duplicates, inside other variants, getChildren, toString,
+    // equals, hashCode
+    @Test
+    public void testRecipientSet() {
+        final RecipientSet set = new RecipientSet(Arrays.asList(CD, AB, SPECIAL, AB));
+        final Environment environment = new Environment();
+        assertEquals("recipients", new HashSet<>(Arrays.asList(AB, CD, SPECIAL)), set.recipients(environment));
+        assertTrue("contains", set.recipients(environment).contains(CD));
+        assertFalse("does not contain", set.recipients(environment).contains(new Recipient("x@y")));
+        assertEquals("intersect", Collections.singleton(AB),
+                new Intersect(set, new Union(AB, new Recipient("x@y"))).recipients(environment));
+        assertEquals("difference", Collections.singleton(SPECIAL),
+                new Difference(set, new Union(AB, CD)).recipients(environment));
+        assertEquals("no children", Collections.emptySet(), set.getChildren());
+        assertEquals("no dependents", Collections.emptySet(), set.getDependents(environment));
+
+        assertEquals("sorted toString", "-_@b, a@b, c@d", set.toString());
+        assertEquals("parsed toString has the same recipients", set.recipients(environment),
+                ListExpression.parse(set.toString()).recipients(environment));
+        assertEquals("empty toString", "", new RecipientSet(Collections.emptySet()).toString());
+
+        final RecipientSet same = new RecipientSet(Arrays.asList(SPECIAL, CD, AB));
+        assertEquals("equal sets", same, set);
+        assertEquals("equal hashcodes", same.hashCode(), set.hashCode());
+        assertNotEquals("different sets", new RecipientSet(Arrays.asList(AB)), set);
+    }
 }
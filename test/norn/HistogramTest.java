@@ -0,0 +1,104 @@
+package norn;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Tests for the Histogram data type
+ */
+public class HistogramTest {
+    /*
+     * Testing strategy:
+     *
+     *  record(), count(), sum()
+     *      number of values: 0, 1, >1
+     *      value: negative, 0, small (< 8), large, Long.MAX_VALUE
+     *
+     *  recordCorrected()
+     *      expected interval: not positive, greater than value, divides value, does not divide value
+     *
+     *  countBelow()
+     *      bound: 0, power of two, above all values
+     *
+     *  valueAtQuantile()
+     *      empty histogram
+     *      quantile: 0, 0.5, 1
+     *      precision: result within 12.5% of the exact value
+     *
+     *  bucket(), lowerBound(), upperBound()
+     *      bucket boundaries are contiguous and contain their values
+     */
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    // covers 0 values, empty histogram
+    @Test
+    public void testEmpty() {
+        final Histogram histogram = new Histogram();
+        assertEquals("expected no values", 0, histogram.count());
+        assertEquals("expected zero sum", 0, histogram.sum());
+        assertEquals("expected zero quantile", 0, histogram.valueAtQuantile(0.5));
+    }
+
+    // covers >1 values, negative, 0, small, large values, countBelow
+    @Test
+    public void testRecord() {
+        final Histogram histogram = new Histogram();
+        histogram.record(-5);
+        histogram.record(0);
+        histogram.record(3);
+        histogram.record(1000);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals("expected count", 5, histogram.count());
+        assertEquals("expected count below 0", 0, histogram.countBelow(0));
+        assertEquals("expected count below 4", 3, histogram.countBelow(4));
+        assertEquals("expected count below 1024", 4, histogram.countBelow(1024));
+        assertEquals("expected count below max", 5, histogram.countBelow(Long.MAX_VALUE));
+    }
+
+    // covers quantiles 0, 0.5, 1, precision
+    @Test
+    public void testQuantiles() {
+        final Histogram histogram = new Histogram();
+        for (long v = 1; v <= 1000; v++) {
+            histogram.record(v * 1000);
+        }
+        assertEquals("expected sum", 500500000L, histogram.sum());
+        assertEquals("expected minimum within precision", 1000, histogram.valueAtQuantile(0), 125);
+        assertEquals("expected median within precision", 500000, histogram.valueAtQuantile(0.5), 62500);
+        assertEquals("expected maximum within precision", 1000000, histogram.valueAtQuantile(1), 125000);
+    }
+
+    // covers recordCorrected() with expected interval not positive, greater than value,
+    // dividing value and not dividing value
+    @Test
+    public void testRecordCorrected() {
+        final Histogram histogram = new Histogram();
+        histogram.recordCorrected(1000, 0);
+        assertEquals("expected no correction without interval", 1, histogram.count());
+        histogram.recordCorrected(1000, 5000);
+        assertEquals("expected no correction below interval", 2, histogram.count());
+        histogram.recordCorrected(4000, 1000);
+        assertEquals("expected 4000, 3000, 2000, 1000", 6, histogram.count());
+        assertEquals("expected sum", 12000, histogram.sum());
+        histogram.recordCorrected(2500, 1000);
+        assertEquals("expected 2500, 1500", 8, histogram.count());
+        assertEquals("expected sum", 16000, histogram.sum());
+    }
+
+    // covers bucket boundaries
+    @Test
+    public void testBuckets() {
+        for (int i = 0; Histogram.upperBound(i) != Long.MAX_VALUE; i++) {
+            assertEquals("expected contiguous buckets", Histogram.upperBound(i), Histogram.lowerBound(i + 1));
+            assertEquals("expected lower bound in bucket", i, Histogram.bucket(Histogram.lowerBound(i)));
+            assertEquals("expected last value in bucket", i, Histogram.bucket(Histogram.upperBound(i) - 1));
+        }
+        assertEquals("expected max value in last bucket", Long.MAX_VALUE,
+                Histogram.upperBound(Histogram.bucket(Long.MAX_VALUE)));
+    }
+}
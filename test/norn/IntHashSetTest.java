@@ -0,0 +1,267 @@
+package norn;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Tests for IntHashSet and RecipientIds
+ */
+public class IntHashSetTest {
+    /*
+     * Testing strategy:
+     *
+     *  add(), contains(), remove()
+     *      value: new, already present, removed before (slot reused), not positive
+     *      set: empty, below capacity, growing past its capacity
+     *      remove: present, absent, last value --> empty
+     *
+     *  addAll(), retainAll(), removeAll()
+     *      other set: empty, overlapping, disjoint, equal, smaller, larger
+     *
+     *  equals(), hashCode(), toString()
+     *      same values in different insertion orders and capacities
+     *
+     *  RecipientIds
+     *      intern(): same address twice --> same id, different addresses --> different ids
+     *      id(): interned, not interned --> 0
+     *      idsOf(), recipientsOf(): round trip
+     *      current(): outside an evaluation --> IllegalStateException
+     *
+     *  recipientIds() of Union, Intersect, Difference, Name
+     *      same recipients as evaluating with HashSets
+     *      environment: root, overlay without definitions --> ids of the root, overlay with
+     *                   definitions --> HashSets
+     *      addresses: all in definitions, some only in the request --> table unchanged
+     *      definitions in a list, in the request
+     *      addresses removed from definitions: few, most --> table compacted
+     */
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    /**
+     * @param values positive values
+     * @return a new set of values
+     */
+    private static IntHashSet set(int... values) {
+        final IntHashSet set = new IntHashSet();
+        for (int value : values) {
+            set.add(value);
+        }
+        return set;
+    }
+
+    // covers new, present and removed values, empty set, remove present/absent/last
+    @Test
+    public void testAddContainsRemove() {
+        final IntHashSet set = new IntHashSet();
+        assertTrue(set.isEmpty());
+        assertFalse(set.contains(1));
+        assertTrue(set.add(1));
+        assertFalse(set.add(1));
+        assertTrue(set.add(9));
+        assertEquals(2, set.size());
+        assertTrue(set.contains(9));
+        assertFalse(set.contains(0));
+        assertFalse(set.contains(-1));
+
+        assertTrue(set.remove(1));
+        assertFalse(set.remove(1));
+        assertFalse(set.contains(1));
+        assertTrue(set.contains(9));
+        assertTrue(set.add(1));
+        assertEquals(2, set.size());
+        assertTrue(set.remove(1));
+        assertTrue(set.remove(9));
+        assertTrue(set.isEmpty());
+        assertEquals("[]", set.toString());
+    }
+
+    // covers value not positive
+    @Test(expected=IllegalArgumentException.class)
+    public void testAddNotPositive() {
+        new IntHashSet().add(0);
+    }
+
+    // covers growing past capacity, with removed slots in between
+    @Test
+    public void testGrowth() {
+        final IntHashSet set = new IntHashSet();
+        for (int i = 1; i <= 10000; i++) {
+            set.add(i);
+            if (i % 3 == 0) {
+                set.remove(i - 1);
+            }
+        }
+        assertEquals(10000 - 3333, set.size());
+        for (int i = 1; i <= 10000; i++) {
+            assertEquals("value " + i, i % 3 != 2, set.contains(i));
+        }
+    }
+
+    // covers addAll, retainAll and removeAll with empty, overlapping, disjoint, equal,
+    // smaller and larger sets
+    @Test
+    public void testBulkOperations() {
+        final IntHashSet union = set(1, 2, 3);
+        union.addAll(set());
+        assertEquals(set(1, 2, 3), union);
+        union.addAll(set(3, 4, 5, 6, 7, 8, 9, 10, 11, 12));
+        assertEquals("[1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12]", union.toString());
+
+        final IntHashSet intersection = set(1, 2, 3, 4);
+        intersection.retainAll(set(3, 4, 5));
+        assertEquals(set(3, 4), intersection);
+        intersection.retainAll(set(3, 4));
+        assertEquals(set(3, 4), intersection);
+        intersection.retainAll(set(7));
+        assertTrue(intersection.isEmpty());
+
+        final IntHashSet smaller = set(1, 2, 3, 4, 5);
+        smaller.removeAll(set(2, 9));
+        assertEquals(set(1, 3, 4, 5), smaller);
+        final IntHashSet larger = set(1, 3);
+        larger.removeAll(set(3, 4, 5, 6, 7));
+        assertEquals(set(1), larger);
+        larger.removeAll(set(1));
+        assertTrue(larger.isEmpty());
+    }
+
+    // covers equals, hashCode and toString for different insertion orders and capacities
+    @Test
+    public void testEquality() {
+        final IntHashSet first = set(5, 1, 3);
+        final IntHashSet second = new IntHashSet(1000);
+        second.add(3);
+        second.add(5);
+        second.add(1);
+        assertEquals(first, second);
+        assertEquals(first.hashCode(), second.hashCode());
+        assertEquals("[1, 3, 5]", second.toString());
+        assertNotEquals(first, set(1, 3));
+    }
+
+    // covers RecipientIds intern(), id(), idsOf(), recipientsOf(), current() outside an evaluation
+    @Test
+    public void testRecipientIds() {
+        final RecipientIds table = new RecipientIds();
+        final Recipient a = new Recipient("intern-a@example.com");
+        final int id = table.intern(a);
+        assertEquals(id, table.intern(new Recipient("INTERN-A@example.com")));
+        assertEquals(id, table.id(a));
+        assertNotEquals(id, table.intern(new Recipient("intern-b@example.com")));
+        assertEquals(0, table.id(new Recipient("intern-c@example.com")));
+        assertEquals(a, table.recipient(id));
+        assertEquals(2, table.size());
+
+        final Set<Recipient> recipients = new HashSet<>(Arrays.asList(a, new Recipient("intern-b@example.com")));
+        assertEquals(recipients, table.recipientsOf(table.idsOf(recipients)));
+        try {
+            RecipientIds.current();
+            fail("expected IllegalStateException outside an evaluation");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    // covers recipientIds() of the operators and of list names, root environment, overlays,
+    // addresses all in definitions
+    @Test
+    public void testOperators() {
+        final Environment environment = new Environment();
+        environment.reassign(new Name("a"), ListExpression.parse("x@y, z@w, v@u"));
+        environment.reassign(new Name("b"), ListExpression.parse("z@w, t@s"));
+        final Environment overlay = environment.overlay();
+        final Environment hashSets = environment.overlay();
+        hashSets.reassign(new Name("unused"), new Empty());
+        synchronized (environment) {
+            assertNotNull(environment.recipientIdTable());
+        }
+        synchronized (overlay) {
+            assertSame(environment.recipientIdTable(), overlay.recipientIdTable());
+        }
+        synchronized (hashSets) {
+            assertNull(hashSets.recipientIdTable());
+        }
+        for (String input : Arrays.asList("a, b", "a * b", "a ! b", "b ! a", "(a ! b) * a, c", "a * *@w")) {
+            final ListExpression expression = ListExpression.parse(input);
+            final Set<Recipient> expected = expression.recipients(hashSets);
+            assertEquals(input, expected, expression.recipients(environment));
+            assertEquals(input, expected, expression.recipients(overlay));
+        }
+        assertEquals(new HashSet<>(Arrays.asList(new Recipient("x@y"), new Recipient("v@u"))),
+                ListExpression.parse("a ! b").recipients(environment));
+    }
+
+    // covers addresses only in the request, definitions in the request and in a list
+    @Test
+    public void testRequestAddresses() {
+        final Environment environment = new Environment();
+        environment.reassign(new Name("a"), ListExpression.parse("x@y, z@w"));
+        environment.reassign(new Name("c"), ListExpression.parse("(d = m@n), x@y"));
+        final int size;
+        synchronized (environment) {
+            size = environment.recipientIdTable().size();
+        }
+        assertEquals(recipients("x@y", "z@w", "q@r"), ListExpression.parse("a, q@r").recipients(environment));
+        assertEquals(recipients("x@y"), ListExpression.parse("a * (x@y, n@o)").recipients(environment));
+        assertEquals(recipients("z@w"), ListExpression.parse("(a ! x@y) ! (p@q ! a)").recipients(environment));
+        assertEquals(recipients("m@n"), ListExpression.parse("c * m@n").recipients(environment));
+        synchronized (environment) {
+            assertEquals("addresses in requests are not interned", size, environment.recipientIdTable().size());
+        }
+        assertEquals(recipients("n@m"), ListExpression.parse("n@m * ((b = n@m), b)").recipients(environment));
+        synchronized (environment) {
+            assertEquals("addresses in new definitions are interned", size + 1, environment.recipientIdTable().size());
+        }
+    }
+
+    // covers addresses removed from definitions, few and most
+    @Test
+    public void testCompaction() {
+        final Environment environment = new Environment();
+        final List<Recipient> many = new ArrayList<>();
+        for (int i = 0; i < 2 * DomainIndex.MIN_COMPACTED_IDS; i++) {
+            many.add(new Recipient("user" + i + "@example.com"));
+        }
+        environment.reassign(new Name("many"), new RecipientSet(many));
+        environment.reassign(new Name("few"), ListExpression.parse("user1@example.com, x@y"));
+        final RecipientIds table;
+        synchronized (environment) {
+            table = environment.recipientIdTable();
+        }
+        assertEquals(many.size() + 1, table.size());
+        environment.reassign(new Name("many"), new RecipientSet(many.subList(0, many.size() - 10)));
+        synchronized (environment) {
+            assertSame("few addresses removed", table, environment.recipientIdTable());
+        }
+        environment.reassign(new Name("many"), new Recipient("user2@example.com"));
+        synchronized (environment) {
+            assertNotSame("most addresses removed", table, environment.recipientIdTable());
+            assertEquals(3, environment.recipientIdTable().size());
+        }
+        assertEquals(recipients("user1@example.com", "user2@example.com", "x@y"),
+                ListExpression.parse("many, few").recipients(environment));
+    }
+
+    /**
+     * @param addresses email addresses
+     * @return a new set of the recipients with those addresses
+     */
+    private static Set<Recipient> recipients(String... addresses) {
+        final Set<Recipient> recipients = new HashSet<>();
+        for (String address : addresses) {
+            recipients.add(new Recipient(address));
+        }
+        return recipients;
+    }
+}
@@ -0,0 +1,217 @@
+package norn;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+
+import org.junit.Test;
+
+/**
+ * Tests for the ListWatcher class
+ */
+public class ListWatcherTest {
+    /*
+     * Testing strategy:
+     *
+     *  subscribe()
+     *      list undefined, defined --> first event adds current members
+     *      budget: none, exceeded by a list not watched yet --> not watched
+     *
+     *  definitionsChanged()
+     *      redefined name: the watched list, a dependency, unrelated, any name when the
+     *                      watched list contains a domain
+     *      membership: changed, unchanged
+     *      number of subscribers: 1, >1
+     *
+     *      watched list contains a definition --> evaluated in an overlay, environment
+     *                                             unchanged
+     *      environment left with a mail loop by a failed redefinition --> no event, lists
+     *          redefined meanwhile are evaluated again with the next redefinition
+     *      one watched list fails to evaluate --> counted, other lists redefined with it
+     *          still get their events, failed list evaluated again with the next redefinition
+     *
+     *  unsubscribe(), close()
+     *      no events after unsubscribe; CLOSED after close
+     */
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    // covers list defined, redefined dependency, changed membership, >1 subscribers
+    @Test
+    public void testDependencyChange() throws InterruptedException {
+        final Environment environment = new Environment();
+        environment.reassign(new Name("b"), new Recipient("x@y"));
+        environment.reassign(new Name("a"), new Union(new Name("b"), new Recipient("a@b")));
+        final ListWatcher watcher = new ListWatcher(environment);
+        final BlockingQueue<String> first = watcher.subscribe(new Name("a"), null);
+        final BlockingQueue<String> second = watcher.subscribe(new Name("a"), null);
+        assertTrue("expected initial members", first.poll().contains("data: {\"added\":[\"a@b\",\"x@y\"],\"removed\":[]}"));
+        second.poll();
+
+        environment.reassign(new Name("b"), new Recipient("z@w"));
+        watcher.awaitUpdates();
+        final String event = first.poll();
+        assertTrue("expected change event", event.contains("event: change\n"));
+        assertTrue("expected delta", event.contains("data: {\"added\":[\"z@w\"],\"removed\":[\"x@y\"]}\n\n"));
+        assertEquals("expected same event for every subscriber", event, second.poll());
+        watcher.close();
+    }
+
+    // covers budget exceeded by a list not watched yet
+    @Test
+    public void testBudget() {
+        final Environment environment = new Environment();
+        environment.reassign(new Name("a"), ListExpression.parse("a@b, c@d, e@f"));
+        final ListWatcher watcher = new ListWatcher(environment);
+        try {
+            watcher.subscribe(new Name("a"), new EvaluationBudget(2, 1000, 10000));
+            fail("expected the budget to be exceeded");
+        } catch (EvaluationBudget.BudgetExceededException e) {
+            // expected
+        }
+        final BlockingQueue<String> events = watcher.subscribe(new Name("a"), new EvaluationBudget(100, 1000, 10000));
+        assertTrue("expected initial members", events.poll().contains("data: {\"added\":[\"a@b\",\"c@d\",\"e@f\"],\"removed\":[]}"));
+        watcher.close();
+    }
+
+    // covers list undefined, redefined watched list, unrelated name, unchanged membership
+    @Test
+    public void testUnrelatedAndUnchanged() throws InterruptedException {
+        final Environment environment = new Environment();
+        final ListWatcher watcher = new ListWatcher(environment);
+        final BlockingQueue<String> events = watcher.subscribe(new Name("a"), null);
+        assertTrue("expected empty initial members", events.poll().contains("data: {\"added\":[],\"removed\":[]}"));
+
+        environment.reassign(new Name("c"), new Recipient("x@y"));
+        watcher.awaitUpdates();
+        assertNull("expected no event for unrelated name", events.poll());
+        environment.reassign(new Name("a"), new Empty());
+        watcher.awaitUpdates();
+        assertNull("expected no event for unchanged membership", events.poll());
+        environment.reassign(new Name("a"), new Name("c"));
+        watcher.awaitUpdates();
+        assertTrue("expected delta", events.poll().contains("data: {\"added\":[\"x@y\"],\"removed\":[]}"));
+        watcher.close();
+    }
+
+    // covers domain in the watched list, unrelated name changes its membership
+    @Test
+    public void testDomain() throws InterruptedException {
+        final Environment environment = new Environment();
+        environment.reassign(new Name("a"), ListExpression.parse("*@mit.edu"));
+        final ListWatcher watcher = new ListWatcher(environment);
+        final BlockingQueue<String> events = watcher.subscribe(new Name("a"), null);
+        events.clear();
+        environment.reassign(new Name("c"), ListExpression.parse("x@mit.edu, y@y"));
+        watcher.awaitUpdates();
+        assertTrue("expected delta", events.poll().contains("data: {\"added\":[\"x@mit.edu\"],\"removed\":[]}"));
+        environment.reassign(new Name("d"), new Recipient("z@w"));
+        watcher.awaitUpdates();
+        assertNull("expected no event for unchanged membership", events.poll());
+        watcher.close();
+    }
+
+    // covers watched list contains a definition
+    @Test
+    public void testDefinitionInWatchedList() throws InterruptedException {
+        final Environment environment = new Environment();
+        environment.reassign(new Name("a"), ListExpression.parse("(b = x@y), c"));
+        final ListWatcher watcher = new ListWatcher(environment);
+        final BlockingQueue<String> events = watcher.subscribe(new Name("a"), null);
+        assertTrue("expected initial members", events.poll().contains("data: {\"added\":[\"x@y\"],\"removed\":[]}"));
+        environment.reassign(new Name("c"), new Recipient("z@w"));
+        final long version = environment.version();
+        watcher.awaitUpdates();
+        assertTrue("expected delta", events.poll().contains("data: {\"added\":[\"z@w\"],\"removed\":[]}"));
+        assertFalse("expected b to be defined only in an overlay", environment.isDefined(new Name("b")));
+        assertEquals("expected environment unchanged by the watcher", version, environment.version());
+        watcher.close();
+    }
+
+    // covers environment left with a mail loop by a failed redefinition
+    @Test
+    public void testMailLoopInEnvironment() throws InterruptedException {
+        final Environment environment = new Environment();
+        environment.reassign(new Name("a"), new Name("b"));
+        environment.reassign(new Name("w"), new Name("c"));
+        final ListWatcher watcher = new ListWatcher(environment);
+        final BlockingQueue<String> events = watcher.subscribe(new Name("a"), null);
+        final BlockingQueue<String> other = watcher.subscribe(new Name("w"), null);
+        events.poll();
+        other.poll();
+        final long failures = Metrics.WATCH_UPDATE_FAILURES.sum();
+        synchronized (environment) {
+            // the watcher takes the redefinition of c after the mail loop is left in place
+            environment.reassign(new Name("c"), new Recipient("x@y"));
+            try {
+                environment.reassign(new Name("b"), new Name("a"));
+                fail("expected a mail loop");
+            } catch (AssertionError e) {
+                // expected
+            }
+        }
+        watcher.awaitUpdates();
+        assertNull("expected no event while the environment has a mail loop", events.poll());
+        assertNull("expected no event while the environment has a mail loop", other.poll());
+        assertTrue("expected a failure", Metrics.WATCH_UPDATE_FAILURES.sum() > failures);
+
+        environment.reassign(new Name("b"), new Recipient("x@y"));
+        watcher.awaitUpdates();
+        assertTrue("expected delta", events.poll().contains("data: {\"added\":[\"x@y\"],\"removed\":[]}"));
+        assertTrue("expected delta of the list redefined during the loop",
+                other.poll().contains("data: {\"added\":[\"x@y\"],\"removed\":[]}"));
+        watcher.close();
+    }
+
+    // covers one watched list failing to evaluate
+    @Test
+    public void testFailedList() throws InterruptedException {
+        final Environment environment = new Environment();
+        environment.reassign(new Name("a"), new Name("b"));
+        environment.reassign(new Name("v"), new Name("c"));
+        environment.reassign(new Name("w"), new Name("c"));
+        final ListWatcher watcher = new ListWatcher(environment);
+        final BlockingQueue<String> good = watcher.subscribe(new Name("v"), null);
+        final BlockingQueue<String> bad = watcher.subscribe(new Name("w"), null);
+        good.poll();
+        bad.poll();
+        final long failures = Metrics.WATCH_UPDATE_FAILURES.sum();
+        final Map<Name, ListExpression> batch = new HashMap<>();
+        // evaluating w defines b as a, which is defined as b
+        batch.put(new Name("w"), ListExpression.parse("(b = a), c"));
+        batch.put(new Name("c"), new Recipient("x@y"));
+        environment.reassignAll(batch);
+        watcher.awaitUpdates();
+        assertEquals("expected one failed list", failures + 1, Metrics.WATCH_UPDATE_FAILURES.sum());
+        assertTrue("expected delta", good.poll().contains("data: {\"added\":[\"x@y\"],\"removed\":[]}"));
+        assertNull("expected no event for the failed list", bad.poll());
+
+        environment.reassign(new Name("w"), ListExpression.parse("c, z@w"));
+        watcher.awaitUpdates();
+        assertTrue("expected delta", bad.poll().contains("data: {\"added\":[\"x@y\",\"z@w\"],\"removed\":[]}"));
+        watcher.close();
+    }
+
+    // covers unsubscribe, close
+    @Test
+    public void testUnsubscribeAndClose() throws InterruptedException {
+        final Environment environment = new Environment();
+        final ListWatcher watcher = new ListWatcher(environment);
+        final BlockingQueue<String> gone = watcher.subscribe(new Name("a"), null);
+        final BlockingQueue<String> staying = watcher.subscribe(new Name("a"), null);
+        gone.clear();
+        staying.clear();
+        watcher.unsubscribe(new Name("a"), gone);
+        environment.reassign(new Name("a"), new Recipient("x@y"));
+        watcher.awaitUpdates();
+        assertNull("expected no event after unsubscribe", gone.poll());
+        assertNotNull("expected event", staying.poll());
+        watcher.close();
+        assertEquals("expected closed", ListWatcher.CLOSED, staying.poll());
+    }
+}
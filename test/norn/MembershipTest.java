@@ -0,0 +1,181 @@
+package norn;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Tests for Environment.contains(), Membership and BloomFilter
+ */
+public class MembershipTest {
+    /*
+     * Testing strategy:
+     *
+     *  BloomFilter
+     *      recipients: none, many --> no false negatives, few false positives
+     *
+     *  Environment.contains()
+     *      list: undefined, address, RecipientSet, names of other lists, domain, self-reference
+     *      operator: union (hit in left, right, neither), intersection, difference
+     *                (in left and right, left only, right only)
+     *      recipient not in the list --> rejected by a Bloom filter once it is built
+     *      budget: walk within it without producing recipients, walk exceeds node visits
+     *      list or a list it depends on redefined, unrelated list redefined, list with a
+     *      domain and any list redefined --> answer reflects the new definitions
+     *      same answer as recipients() for every operator
+     *      mail loop left by a failed redefinition --> AssertionError, filter not built;
+     *      loop removed --> answered and filter built again
+     */
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    // covers no recipients, many recipients
+    @Test
+    public void testBloomFilter() {
+        assertFalse(new BloomFilter(new HashSet<Recipient>()).mightContain(new Recipient("a@b")));
+        final Set<Recipient> recipients = new HashSet<>();
+        for (int i = 0; i < 10000; i++) {
+            recipients.add(new Recipient("member" + i + "@example.com"));
+        }
+        final BloomFilter filter = new BloomFilter(recipients);
+        assertTrue(filter.size() >= BloomFilter.BITS_PER_RECIPIENT * recipients.size());
+        for (Recipient recipient : recipients) {
+            assertTrue(recipient.toString(), filter.mightContain(recipient));
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (filter.mightContain(new Recipient("other" + i + "@example.com"))) {
+                falsePositives++;
+            }
+        }
+        assertTrue("false positives: " + falsePositives, falsePositives < 300);
+    }
+
+    // covers undefined list, address, RecipientSet, union, intersection, difference,
+    // self-reference, agreement with recipients()
+    @Test
+    public void testOperators() {
+        final Environment environment = new Environment();
+        final List<Recipient> big = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            big.add(new Recipient("user" + i + "@mit.edu"));
+        }
+        environment.reassign(new Name("big"), new RecipientSet(big));
+        environment.reassign(new Name("staff"), ListExpression.parse("a@b, c@d, user1@mit.edu"));
+        environment.reassign(new Name("union"), ListExpression.parse("staff, big"));
+        environment.reassign(new Name("both"), ListExpression.parse("staff * big"));
+        environment.reassign(new Name("left"), ListExpression.parse("big ! staff"));
+        environment.reassign(new Name("self"), ListExpression.parse("self"));
+        final List<Recipient> candidates = new ArrayList<>(big.subList(0, 3));
+        candidates.add(new Recipient("a@b"));
+        candidates.add(new Recipient("x@y"));
+        for (String list : new String[] { "big", "staff", "union", "both", "left", "self", "undefined" }) {
+            final Set<Recipient> members = EvaluationBudget.evaluateUnlimited(new Name(list), environment);
+            for (Recipient candidate : candidates) {
+                assertEquals(list + " contains " + candidate, members.contains(candidate),
+                        environment.contains(new Name(list), candidate));
+            }
+        }
+        assertTrue(environment.contains(new Name("union"), new Recipient("User5@MIT.edu")));
+        assertFalse(environment.contains(new Name("left"), new Recipient("user1@mit.edu")));
+    }
+
+    // covers recipient not in the list, rejected by a Bloom filter once it is built
+    @Test
+    public void testRejected() throws InterruptedException {
+        final Environment environment = new Environment();
+        environment.reassign(new Name("staff"), ListExpression.parse("a@b, c@d"));
+        environment.reassign(new Name("all"), ListExpression.parse("staff, e@f"));
+        final long queries = Metrics.MEMBERSHIP_QUERIES.sum();
+        assertFalse(environment.contains(new Name("all"), new Recipient("nobody@nowhere.org")));
+        assertEquals(queries + 1, Metrics.MEMBERSHIP_QUERIES.sum());
+        Membership.awaitBuilds();
+        final long rejections = Metrics.MEMBERSHIP_REJECTIONS.sum();
+        assertFalse(environment.contains(new Name("all"), new Recipient("nobody@nowhere.org")));
+        assertTrue("expected a rejection", Metrics.MEMBERSHIP_REJECTIONS.sum() > rejections);
+        assertTrue(environment.contains(new Name("all"), new Recipient("c@d")));
+    }
+
+    // covers walk within the budget without producing recipients, walk exceeding node visits
+    @Test
+    public void testBudget() {
+        final Environment environment = new Environment();
+        final List<Recipient> big = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            big.add(new Recipient("user" + i + "@mit.edu"));
+        }
+        environment.reassign(new Name("big"), new RecipientSet(big));
+        environment.reassign(new Name("all"), ListExpression.parse("big, (a@b * big), c@d"));
+        assertTrue("expected a walk without producing recipients",
+                new EvaluationBudget(100, 1, 10000).contains(new Name("all"), new Recipient("user5@mit.edu"), environment));
+        try {
+            new EvaluationBudget(3, 1, 10000).contains(new Name("all"), new Recipient("c@d"), environment);
+            fail("expected the budget to be exceeded");
+        } catch (EvaluationBudget.BudgetExceededException e) {
+            // expected
+        }
+    }
+
+    // covers list and dependency redefined, unrelated list redefined, domain
+    @Test
+    public void testRedefined() throws InterruptedException {
+        final Environment environment = new Environment();
+        environment.reassign(new Name("staff"), ListExpression.parse("a@b"));
+        environment.reassign(new Name("all"), ListExpression.parse("staff, e@f"));
+        environment.reassign(new Name("domain"), ListExpression.parse("*@mit.edu"));
+        final Recipient x = new Recipient("x@mit.edu");
+        assertFalse(environment.contains(new Name("all"), x));
+        assertFalse(environment.contains(new Name("domain"), x));
+        Membership.awaitBuilds();
+
+        environment.reassign(new Name("staff"), x);
+        Membership.awaitBuilds();
+        assertTrue("dependency redefined", environment.contains(new Name("all"), x));
+        assertTrue("domain after any redefinition", environment.contains(new Name("domain"), x));
+        environment.reassign(new Name("other"), new Recipient("y@mit.edu"));
+        Membership.awaitBuilds();
+        assertTrue("unrelated list redefined", environment.contains(new Name("all"), x));
+        assertTrue(environment.contains(new Name("domain"), new Recipient("y@mit.edu")));
+        environment.reassign(new Name("all"), new Recipient("e@f"));
+        Membership.awaitBuilds();
+        assertFalse("list redefined", environment.contains(new Name("all"), x));
+    }
+
+    // covers mail loop left by a failed redefinition, then removed
+    @Test
+    public void testMailLoop() throws InterruptedException {
+        final Environment environment = new Environment();
+        environment.reassign(new Name("a"), new Recipient("x@y.com"));
+        environment.reassign(new Name("b"), new Name("a"));
+        try {
+            environment.reassign(new Name("a"), new Name("b"));
+            fail("expected a mail loop");
+        } catch (AssertionError e) {
+            // expected
+        }
+        final long failures = Metrics.MEMBERSHIP_FILTER_FAILURES.sum();
+        try {
+            environment.contains(new Name("a"), new Recipient("x@y.com"));
+            fail("expected the walk to stop at the mail loop");
+        } catch (AssertionError e) {
+            // expected
+        }
+        Membership.awaitBuilds();
+        assertTrue("expected a failed filter", Metrics.MEMBERSHIP_FILTER_FAILURES.sum() > failures);
+
+        environment.reassign(new Name("a"), new Recipient("x@y.com"));
+        assertTrue(environment.contains(new Name("b"), new Recipient("x@y.com")));
+        Membership.awaitBuilds();
+        final long rejections = Metrics.MEMBERSHIP_REJECTIONS.sum();
+        assertFalse(environment.contains(new Name("a"), new Recipient("nobody@y.com")));
+        assertTrue("expected the filter of a to be built again", Metrics.MEMBERSHIP_REJECTIONS.sum() > rejections);
+    }
+}
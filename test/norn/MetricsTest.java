@@ -0,0 +1,86 @@
+package norn;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests for the export of Metrics
+ */
+public class MetricsTest {
+    /*
+     * Testing strategy:
+     *
+     *  writeHistogram()
+     *      value: just below, at, just above a power of two
+     *      unit: 1, seconds per nanosecond
+     *      every bucket counts exactly the values at most its le bound
+     */
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    // covers values just below, at and just above a power of two, unit 1
+    @Test
+    public void testHistogramBucketBoundsInclusive() throws IOException {
+        final long[] values = { 1023, 1024, 1025, 2047, 2048 };
+        final Histogram histogram = new Histogram();
+        for (long value : values) {
+            histogram.record(value);
+        }
+        final Map<String, Long> buckets = buckets(histogram, 1);
+        assertEquals("le=1023", Long.valueOf(1), buckets.get("1023.0"));
+        assertEquals("le=2047", Long.valueOf(4), buckets.get("2047.0"));
+        assertEquals("le=4095", Long.valueOf(5), buckets.get("4095.0"));
+        assertEquals("le=+Inf", Long.valueOf(5), buckets.get("+Inf"));
+        for (Map.Entry<String, Long> bucket : buckets.entrySet()) {
+            if (bucket.getKey().equals("+Inf")) {
+                continue;
+            }
+            final double bound = Double.parseDouble(bucket.getKey());
+            long atMost = 0;
+            for (long value : values) {
+                if (value <= bound) {
+                    atMost++;
+                }
+            }
+            assertEquals("le=" + bucket.getKey(), Long.valueOf(atMost), bucket.getValue());
+        }
+    }
+
+    // covers unit seconds per nanosecond
+    @Test
+    public void testHistogramUnit() throws IOException {
+        final Histogram histogram = new Histogram();
+        histogram.record(1L << 20);
+        final Map<String, Long> buckets = buckets(histogram, 1e9);
+        assertEquals("below 2^20 ns", Long.valueOf(0), buckets.get(String.valueOf(((1L << 20) - 1) / 1e9)));
+        assertEquals("at most 2^21 - 1 ns", Long.valueOf(1), buckets.get(String.valueOf(((1L << 21) - 1) / 1e9)));
+    }
+
+    /**
+     * @param histogram recorded values
+     * @param unit the number of recorded units per exported unit
+     * @return map from the le label of every bucket written by Metrics.writeHistogram() to its count
+     * @throws IOException never, since the histogram is written to a string
+     */
+    private static Map<String, Long> buckets(Histogram histogram, double unit) throws IOException {
+        final StringWriter out = new StringWriter();
+        Metrics.writeHistogram(out, "test", "Test histogram.", histogram, unit);
+        final Map<String, Long> buckets = new HashMap<>();
+        for (String line : out.toString().split("\n")) {
+            if (line.startsWith("test_bucket{le=\"")) {
+                final String le = line.substring("test_bucket{le=\"".length(), line.indexOf("\"}"));
+                buckets.put(le, Long.parseLong(line.substring(line.lastIndexOf(' ') + 1)));
+            }
+        }
+        return buckets;
+    }
+}
@@ -0,0 +1,228 @@
+package norn;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/*
+ * Tests the NIO web front end.
+ */
+public class NioWebServerTest {
+    /*
+     * Testing strategy:
+     *  /eval/:
+     *      valid expression, invalid expression --> same body as WebServer
+     *      If-None-Match matches --> 304
+     *  Connections:
+     *      HTTP/1.1 keep-alive, several requests in sequence on one connection
+     *      pipelined requests sent at once --> responses in request order
+     *      Connection: close, HTTP/1.0 --> connection closed after the response
+     *  Errors:
+     *      unknown path --> 404, method other than GET/HEAD --> 405
+     *      malformed request line --> 400, headers too large --> 431
+     *      evaluation throws an Error --> 500, responses pipelined after it still sent
+     */
+
+    private static final int PORT = WebServer.PORT;
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    /**
+     * An HTTP response read from a socket.
+     */
+    private static class Response {
+        private final int status;
+        private final Map<String, String> headers;
+        private final String body;
+
+        private Response(int status, Map<String, String> headers, String body) {
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Reads one response with a Content-Length (or none, for 304) from in.
+     * @param in the input stream of a connection
+     * @return the response
+     * @throws IOException if the connection fails
+     */
+    private static Response readResponse(InputStream in) throws IOException {
+        final String statusLine = readLine(in);
+        assertNotNull("expected a response", statusLine);
+        final int status = Integer.parseInt(statusLine.split(" ")[1]);
+        final Map<String, String> headers = new HashMap<>();
+        for (String line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+            final int colon = line.indexOf(':');
+            headers.put(line.substring(0, colon).toLowerCase(), line.substring(colon + 1).trim());
+        }
+        final int length = headers.containsKey("content-length") ? Integer.parseInt(headers.get("content-length")) : 0;
+        final byte[] body = new byte[length];
+        for (int read = 0; read < length;) {
+            final int n = in.read(body, read, length - read);
+            assertTrue("unexpected end of stream", n > 0);
+            read += n;
+        }
+        return new Response(status, headers, new String(body, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param in the input stream of a connection
+     * @return the next CRLF-terminated line, without the CRLF, or null at the end of the stream
+     * @throws IOException if the connection fails
+     */
+    private static String readLine(InputStream in) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for (int b = in.read(); b != '\n'; b = in.read()) {
+            if (b < 0) {
+                return line.size() == 0 ? null : line.toString("ISO-8859-1");
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return line.toString("ISO-8859-1");
+    }
+
+    /**
+     * @param path the request target
+     * @param extraHeaders further header lines, each terminated by CRLF
+     * @return an HTTP/1.1 GET request for path
+     */
+    private static String get(String path, String extraHeaders) {
+        return "GET " + path + " HTTP/1.1\r\nHost: localhost\r\n" + extraHeaders + "\r\n";
+    }
+
+    // covers valid and invalid expression, same body as WebServer
+    @Test
+    public void testEval() throws IOException {
+        final NioWebServer server = new NioWebServer(new Environment(), PORT);
+        final HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + PORT + "/eval/tlin15@mit.edu").openConnection();
+        assertEquals("response code", 200, connection.getResponseCode());
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
+        assertEquals("<a href=\"mailto:tlin15@mit.edu\">email these recipients</a><br>tlin15@mit.edu", reader.readLine());
+        assertEquals("end of stream", null, reader.readLine());
+
+        final HttpURLConnection invalid = (HttpURLConnection) new URL("http://localhost:" + PORT + "/eval/tlin15@").openConnection();
+        assertEquals("response code", 200, invalid.getResponseCode());
+        final BufferedReader invalidReader = new BufferedReader(new InputStreamReader(invalid.getInputStream()));
+        assertTrue("expected an error message", invalidReader.readLine().startsWith("<p>Invalid list expression"));
+        server.stop();
+    }
+
+    // covers keep-alive, pipelining, If-None-Match
+    @Test
+    public void testPipelining() throws IOException {
+        final Environment environment = new Environment();
+        environment.reassign(new Name("a"), new Recipient("x@y"));
+        final NioWebServer server = new NioWebServer(environment, PORT);
+        try (Socket socket = new Socket("localhost", PORT)) {
+            final OutputStream out = socket.getOutputStream();
+            final InputStream in = socket.getInputStream();
+            out.write((get("/eval/a", "") + get("/eval/b@c", "") + get("/eval/a*b@c", "")).getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            final Response first = readResponse(in);
+            assertEquals("status", 200, first.status);
+            assertEquals("first body", "<a href=\"mailto:x@y\">email these recipients</a><br>x@y" + System.lineSeparator(), first.body);
+            assertNotNull("expected an ETag", first.headers.get("etag"));
+            assertTrue("second body", readResponse(in).body.endsWith("b@c" + System.lineSeparator()));
+            assertTrue("third body", readResponse(in).body.endsWith(Main.EMPTY_LIST + System.lineSeparator()));
+
+            out.write(get("/eval/a", "If-None-Match: " + first.headers.get("etag") + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            final Response unchanged = readResponse(in);
+            assertEquals("status", 304, unchanged.status);
+            assertEquals("body", "", unchanged.body);
+
+            out.write(get("/eval/a", "Connection: close\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            final Response last = readResponse(in);
+            assertEquals("status", 200, last.status);
+            assertEquals("connection", "close", last.headers.get("connection"));
+            assertEquals("end of stream", -1, in.read());
+        }
+        server.stop();
+    }
+
+    // covers HTTP/1.0 without keep-alive
+    @Test
+    public void testHttp10() throws IOException {
+        final NioWebServer server = new NioWebServer(new Environment(), PORT);
+        try (Socket socket = new Socket("localhost", PORT)) {
+            socket.getOutputStream().write("GET /eval/a@b HTTP/1.0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            final Response response = readResponse(socket.getInputStream());
+            assertEquals("status", 200, response.status);
+            assertEquals("end of stream", -1, socket.getInputStream().read());
+        }
+        server.stop();
+    }
+
+    // covers evaluation throwing an Error, pipelined requests
+    @Test
+    public void testErrorInEvaluation() throws IOException {
+        final NioWebServer server = new NioWebServer(new Environment(), PORT);
+        final StringBuilder deep = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            deep.append('(');
+        }
+        deep.append("a@b");
+        for (int i = 0; i < 3000; i++) {
+            deep.append(')');
+        }
+        try (Socket socket = new Socket("localhost", PORT)) {
+            socket.setSoTimeout(10000);
+            final OutputStream out = socket.getOutputStream();
+            final InputStream in = socket.getInputStream();
+            out.write((get("/eval/a@b", "") + get("/eval/" + deep, "") + get("/eval/c@d", ""))
+                    .getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            assertEquals("status", 200, readResponse(in).status);
+            assertEquals("status", 500, readResponse(in).status);
+            final Response last = readResponse(in);
+            assertEquals("status", 200, last.status);
+            assertTrue("last body", last.body.endsWith("c@d" + System.lineSeparator()));
+        }
+        server.stop();
+    }
+
+    // covers 404, 405, 400, 431
+    @Test
+    public void testErrors() throws IOException {
+        final NioWebServer server = new NioWebServer(new Environment(), PORT);
+        try (Socket socket = new Socket("localhost", PORT)) {
+            final OutputStream out = socket.getOutputStream();
+            out.write((get("/metrics", "") + "POST /eval/a@b HTTP/1.1\r\nContent-Length: 3\r\n\r\nabc" + "nonsense\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            assertEquals("status", 404, readResponse(socket.getInputStream()).status);
+            assertEquals("status", 405, readResponse(socket.getInputStream()).status);
+            assertEquals("status", 400, readResponse(socket.getInputStream()).status);
+            assertEquals("end of stream", -1, socket.getInputStream().read());
+        }
+        try (Socket socket = new Socket("localhost", PORT)) {
+            final StringBuilder headers = new StringBuilder();
+            while (headers.length() <= NioWebServer.MAX_HEADER_BYTES) {
+                headers.append("X-Padding: 0123456789012345678901234567890123456789\r\n");
+            }
+            socket.getOutputStream().write(get("/eval/a@b", headers.toString()).getBytes(StandardCharsets.US_ASCII));
+            assertEquals("status", 431, readResponse(socket.getInputStream()).status);
+        }
+        server.stop();
+    }
+}
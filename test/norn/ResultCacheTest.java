@@ -0,0 +1,100 @@
+package norn;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests for the ResultCache data type
+ */
+public class ResultCacheTest {
+    /*
+     * Testing strategy:
+     *
+     *  get()
+     *      expression: not cached, cached
+     *      environment: unchanged, unrelated list redefined, referenced list redefined,
+     *                   list defined that was undefined when cached
+     *
+     *  put()
+     *      cache: below limits, at entry limit, at byte limit, disabled (0 entries)
+     *      body: larger than the whole cache
+     */
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    /**
+     * Caches a response to expression, computed from the current state of environment.
+     */
+    private static void put(ResultCache cache, Environment environment, String expression, String body) {
+        synchronized (environment) {
+            final Map<Name, Long> versions = ResultCache.versions(environment,
+                    environment.referencedNames(ListExpression.parse(expression)));
+            cache.put(expression, versions, environment.version(), body.getBytes(StandardCharsets.UTF_8), "\"" + body + "\"");
+        }
+    }
+
+    // covers not cached, cached and unchanged, unrelated list redefined, referenced list redefined
+    @Test
+    public void testStaleAfterRedefinition() {
+        final Environment environment = new Environment();
+        environment.reassign(new Name("a"), new Recipient("x@y"));
+        final ResultCache cache = new ResultCache(10, 1000);
+        assertNull("expected a miss", cache.get("a", environment));
+
+        put(cache, environment, "a", "x@y");
+        final ResultCache.Entry entry = cache.get("a", environment);
+        assertNotNull("expected a hit", entry);
+        assertEquals("body", "x@y", new String(entry.body(), StandardCharsets.UTF_8));
+        assertEquals("entity tag", "\"x@y\"", entry.entityTag());
+
+        environment.reassign(new Name("other"), new Recipient("o@p"));
+        assertNotNull("expected a hit after unrelated change", cache.get("a", environment));
+
+        environment.reassign(new Name("a"), new Recipient("z@y"));
+        assertNull("expected a stale entry", cache.get("a", environment));
+        assertEquals("expected the stale entry to be dropped", 0, cache.size());
+    }
+
+    // covers list defined that was undefined when cached, dependency through another list
+    @Test
+    public void testStaleAfterDefiningReferencedName() {
+        final Environment environment = new Environment();
+        environment.reassign(new Name("a"), new Name("b"));
+        final ResultCache cache = new ResultCache(10, 1000);
+        put(cache, environment, "a", "{}");
+        assertNotNull("expected a hit", cache.get("a", environment));
+        environment.reassign(new Name("b"), new Recipient("x@y"));
+        assertNull("expected a stale entry", cache.get("a", environment));
+    }
+
+    // covers entry limit, byte limit, body larger than the cache, disabled cache
+    @Test
+    public void testEviction() {
+        final Environment environment = new Environment();
+        final ResultCache cache = new ResultCache(2, 10);
+        put(cache, environment, "a@b", "1234");
+        put(cache, environment, "c@d", "1234");
+        cache.get("a@b", environment);
+        put(cache, environment, "e@f", "1234");
+        assertEquals("size", 2, cache.size());
+        assertNotNull("expected the recently used entry", cache.get("a@b", environment));
+        assertNull("expected the least recently used entry to be evicted", cache.get("c@d", environment));
+
+        put(cache, environment, "g@h", "12345678");
+        assertEquals("expected entries to be evicted by size", 1, cache.size());
+        put(cache, environment, "i@j", "12345678901");
+        assertNull("expected a body larger than the cache not to be cached", cache.get("i@j", environment));
+
+        final ResultCache disabled = new ResultCache(0, 10);
+        put(disabled, environment, "a@b", "1");
+        assertNull("expected a disabled cache", disabled.get("a@b", environment));
+        assertEquals("size", 0, disabled.size());
+    }
+}
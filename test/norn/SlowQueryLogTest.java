@@ -0,0 +1,179 @@
+package norn;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests for SlowQueryLog
+ */
+public class SlowQueryLogTest {
+    /*
+     * Testing strategy:
+     *
+     *  record()
+     *      total time: below threshold --> not logged, at or above threshold --> logged
+     *      expression: parsed with list names, not parsed, longer than MAX_EXPRESSION_CHARS
+     *      queue: has room, full --> dropped and counted
+     *      log: open, closed --> not logged
+     *
+     *  rotation
+     *      file below maxFileBytes, beyond it --> rotated, more rotations than keep
+     *
+     *  EvalEndpoint
+     *      respond(): evaluated --> logged, served from the result cache --> not logged
+     *      evaluate(): valid, invalid --> logged with its outcome
+     */
+
+    private static final long MILLI = 1000000;
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    /**
+     * @return a new temporary log file that does not exist yet
+     * @throws IOException if it cannot be created
+     */
+    private static File logFile() throws IOException {
+        final File directory = Files.createTempDirectory("slowlog").toFile();
+        directory.deleteOnExit();
+        final File file = new File(directory, "slow.log");
+        file.deleteOnExit();
+        return file;
+    }
+
+    /**
+     * @param file a log file
+     * @return the lines of file, or no lines if it does not exist
+     * @throws IOException if file cannot be read
+     */
+    private static List<String> lines(File file) throws IOException {
+        return file.exists() ? Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)
+                : Collections.<String>emptyList();
+    }
+
+    @Test
+    public void testThreshold() throws IOException, InterruptedException {
+        final File file = logFile();
+        final SlowQueryLog log = new SlowQueryLog(file, 10, SlowQueryLog.DEFAULT_MAX_FILE_BYTES, 1, 16);
+        assertFalse(log.record("console", SlowQueryLog.OK, "a@b", ListExpression.parse("a@b"), 1,
+                MILLI, 2 * MILLI, 3 * MILLI));
+        assertTrue(log.record("console", SlowQueryLog.OK, "a@b", ListExpression.parse("a@b"), 1,
+                MILLI, 2 * MILLI, 7 * MILLI));
+        log.close();
+        assertEquals(1, lines(file).size());
+    }
+
+    @Test
+    public void testEntry() throws IOException, InterruptedException {
+        final File file = logFile();
+        final SlowQueryLog log = new SlowQueryLog(file, 0, SlowQueryLog.DEFAULT_MAX_FILE_BYTES, 1, 16);
+        final String input = "(staff ! Alumni) * x@y, staff";
+        assertTrue(log.record("eval", SlowQueryLog.BUDGET_EXCEEDED, input, ListExpression.parse(input), -1,
+                MILLI, 2 * MILLI, 3 * MILLI));
+        log.close();
+        final List<String> lines = lines(file);
+        assertEquals(1, lines.size());
+        final String line = lines.get(0);
+        assertTrue(line, line.startsWith("{\"time\":\""));
+        assertTrue(line, line.contains("\"source\":\"eval\",\"outcome\":\"budget exceeded\""));
+        assertTrue(line, line.contains("\"totalMillis\":6.000,\"parseMillis\":1.000,\"lockWaitMillis\":2.000,"
+                + "\"evaluationMillis\":3.000"));
+        assertTrue(line, line.contains("\"recipients\":-1"));
+        assertTrue(line, line.contains("\"lists\":[\"alumni\",\"staff\"]"));
+        assertTrue(line, line.endsWith("\"expression\":\"(staff ! Alumni) * x@y, staff\"}"));
+    }
+
+    @Test
+    public void testUnparsedAndTruncated() throws IOException, InterruptedException {
+        final File file = logFile();
+        final SlowQueryLog log = new SlowQueryLog(file, 0, SlowQueryLog.DEFAULT_MAX_FILE_BYTES, 1, 16);
+        final StringBuilder input = new StringBuilder("\"");
+        while (input.length() <= 2 * SlowQueryLog.MAX_EXPRESSION_CHARS) {
+            input.append("a b ");
+        }
+        log.record("api", SlowQueryLog.INVALID, input.toString(), null, -1, MILLI, 0, 0);
+        log.close();
+        final String line = lines(file).get(0);
+        assertTrue(line, line.contains("\"outcome\":\"invalid\""));
+        assertTrue(line, line.contains("\"lists\":[]"));
+        assertTrue(line, line.contains("\"expression\":\"\\\"a b "));
+        assertTrue(line, line.contains("\"length\":" + input.length()));
+        assertTrue(line, line.endsWith("...\"}"));
+        assertTrue(line, line.length() < input.length());
+    }
+
+    @Test
+    public void testRotation() throws IOException, InterruptedException {
+        final File file = logFile();
+        final SlowQueryLog log = new SlowQueryLog(file, 0, 1, 2, 16);
+        for (int i = 0; i < 5; i++) {
+            log.record("console", SlowQueryLog.OK, "list" + i, ListExpression.parse("list" + i), 0, MILLI, 0, 0);
+            log.flush();
+        }
+        log.close();
+        assertTrue(lines(file).get(0).contains("list4"));
+        assertTrue(lines(log.rotated(1)).get(0).contains("list3"));
+        assertTrue(lines(log.rotated(2)).get(0).contains("list2"));
+        assertFalse(log.rotated(3).exists());
+        log.rotated(1).delete();
+        log.rotated(2).delete();
+    }
+
+    @Test
+    public void testQueueFull() throws IOException, InterruptedException {
+        // the writer stops at the first entry, since the file's directory does not exist
+        final File file = new File(logFile().getParentFile(), "missing/slow.log");
+        final SlowQueryLog log = new SlowQueryLog(file, 0, SlowQueryLog.DEFAULT_MAX_FILE_BYTES, 1, 1);
+        log.record("console", SlowQueryLog.OK, "a", null, 0, MILLI, 0, 0);
+        log.flush();
+        final long dropped = Metrics.SLOW_QUERIES_DROPPED.sum();
+        final boolean queued = log.record("console", SlowQueryLog.OK, "b", null, 0, MILLI, 0, 0);
+        assertFalse(log.record("console", SlowQueryLog.OK, "c", null, 0, MILLI, 0, 0));
+        assertEquals(queued ? dropped + 1 : dropped, Metrics.SLOW_QUERIES_DROPPED.sum());
+        log.close();
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void testClosed() throws IOException, InterruptedException {
+        final File file = logFile();
+        final SlowQueryLog log = new SlowQueryLog(file, 0, SlowQueryLog.DEFAULT_MAX_FILE_BYTES, 1, 16);
+        log.close();
+        assertFalse(log.record("console", SlowQueryLog.OK, "a@b", ListExpression.parse("a@b"), 1, MILLI, 0, 0));
+        assertEquals(0, lines(file).size());
+    }
+
+    @Test
+    public void testEvalEndpoint() throws IOException, InterruptedException {
+        final File file = logFile();
+        final SlowQueryLog log = new SlowQueryLog(file, 0, SlowQueryLog.DEFAULT_MAX_FILE_BYTES, 1, 16);
+        final EvalEndpoint endpoint = new EvalEndpoint(new Environment());
+        endpoint.setSlowQueryLog(log);
+        endpoint.evaluate("team = a@b, c@d", EvalEndpoint.Mode.LOCKED);
+        assertEquals(200, endpoint.respond("team", null).status());
+        assertEquals(200, endpoint.respond("team", null).status());
+        try {
+            endpoint.evaluate("a b", EvalEndpoint.Mode.LOCKED);
+            fail("expected invalid expression");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        log.close();
+        final List<String> lines = lines(file);
+        assertEquals(3, lines.size());
+        assertTrue(lines.get(0), lines.get(0).contains("\"source\":\"api\",\"outcome\":\"ok\""));
+        assertTrue(lines.get(0), lines.get(0).contains("\"recipients\":2,\"lists\":[\"team\"]"));
+        assertTrue(lines.get(1), lines.get(1).contains("\"source\":\"eval\",\"outcome\":\"ok\""));
+        assertTrue(lines.get(2), lines.get(2).contains("\"source\":\"api\",\"outcome\":\"invalid\""));
+    }
+}
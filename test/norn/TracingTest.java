@@ -0,0 +1,177 @@
+package norn;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that the operations traced by Tracing emit their events, using a recorder that
+ * remembers the events instead of the flight recorder.
+ */
+public class TracingTest {
+    /*
+     * Testing strategy:
+     *
+     *  parse: valid, invalid expression
+     *  evaluation: web request
+     *  reassign, reassignAll: definition applied, mail loop
+     *  mail loop check: no loop, loop
+     *  lock wait: web request
+     *  request: /eval/ through WebServer
+     *  save, load: checkpoint written and loaded
+     *  tracing off: begin() returns null and end methods accept it
+     */
+
+    private Tracing.Recorder previous;
+    private final List<String> events = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * Recorder that adds a description of every ended event to events.
+     */
+    private class ListRecorder implements Tracing.Recorder {
+        @Override
+        public Object begin(Tracing.Kind kind) {
+            return kind;
+        }
+
+        @Override
+        public void endParse(Object event, String input, boolean valid) {
+            events.add(event + " " + input + " " + valid);
+        }
+
+        @Override
+        public void endEvaluation(Object event, ListExpression expression, int recipients) {
+            events.add(event + " " + expression + " " + recipients);
+        }
+
+        @Override
+        public void endReassign(Object event, Collection<Name> names, boolean mailLoop) {
+            events.add(event + " " + names + " " + mailLoop);
+        }
+
+        @Override
+        public void endMailLoopCheck(Object event, int lists, boolean mailLoop) {
+            events.add(event + " " + mailLoop);
+        }
+
+        @Override
+        public void endLockWait(Object event, String operation) {
+            events.add(event + " " + operation);
+        }
+
+        @Override
+        public void endRequest(Object event, String method, String path, int status) {
+            events.add(event + " " + method + " " + path + " " + status);
+        }
+
+        @Override
+        public void endPersist(Object event, String file, int lists, boolean succeeded) {
+            events.add(event + " " + lists + " " + succeeded);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        previous = Tracing.setRecorder(new ListRecorder());
+    }
+
+    @After
+    public void tearDown() {
+        Tracing.setRecorder(previous);
+    }
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    // covers parse valid and invalid
+    @Test
+    public void testParse() {
+        ListExpression.parse("a, b@c");
+        try {
+            ListExpression.parse("a b");
+            fail("expected invalid expression");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals("expected parse events", "[PARSE a, b@c true, PARSE a b false]", events.toString());
+    }
+
+    // covers reassign, reassignAll, mail loop check with and without loop
+    @Test
+    public void testReassign() {
+        final Environment environment = new Environment();
+        events.clear();
+        environment.reassign(new Name("a"), new Recipient("x@y"));
+        assertTrue("expected mail loop check", events.contains("MAIL_LOOP_CHECK false"));
+        assertTrue("expected reassign", events.contains("REASSIGN [a] false"));
+        environment.reassign(new Name("b"), new Name("a"));
+        events.clear();
+        try {
+            environment.reassignAll(Collections.singletonMap(new Name("a"), new Name("b")));
+            fail("expected mail loop");
+        } catch (AssertionError e) {
+            // expected
+        }
+        assertTrue("expected mail loop found", events.contains("MAIL_LOOP_CHECK true"));
+        assertTrue("expected reassign rejected", events.contains("REASSIGN [a] true"));
+    }
+
+    // covers evaluation, lock wait and request of a web request
+    @Test
+    public void testRequest() throws IOException, InterruptedException {
+        final WebServer server = new WebServer(new Environment());
+        final HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + server.port() + "/eval/a@b,c@d").openConnection();
+        assertEquals("response code", 200, connection.getResponseCode());
+        connection.getInputStream().close();
+        // the request event ends after the response has been sent
+        for (int i = 0; i < 100 && !events.contains("REQUEST GET /eval/a@b,c@d 200"); i++) {
+            Thread.sleep(10);
+        }
+        server.stop();
+        assertTrue("expected lock wait", events.contains("LOCK_WAIT eval"));
+        assertTrue("expected evaluation", events.contains("EVALUATION (a@b, c@d) 2"));
+        assertTrue("expected request", events.contains("REQUEST GET /eval/a@b,c@d 200"));
+    }
+
+    // covers save and load of checkpoints
+    @Test
+    public void testCheckpoint() throws IOException, InterruptedException {
+        final File directory = File.createTempFile("tracing", "");
+        directory.delete();
+        final Environment environment = new Environment();
+        final Checkpointer checkpointer = new Checkpointer(environment, directory, 0, 0, 1);
+        environment.reassign(new Name("a"), new Recipient("x@y"));
+        final File checkpoint = checkpointer.checkpoint();
+        checkpointer.stop();
+        assertTrue("expected save", events.contains("SAVE 1 true"));
+        assertEquals("expected checkpoint loaded", checkpoint, Checkpointer.loadNewest(new Environment(), directory));
+        assertTrue("expected load", events.contains("LOAD 1 true"));
+        checkpoint.delete();
+        directory.delete();
+    }
+
+    // covers tracing off
+    @Test
+    public void testOff() {
+        Tracing.setRecorder(null);
+        assertFalse("expected tracing off", Tracing.isAvailable());
+        final Object event = Tracing.begin(Tracing.Kind.PARSE);
+        assertNull("expected no event", event);
+        Tracing.endParse(event, "a", true);
+        ListExpression.parse("a");
+        assertTrue("expected no events", events.isEmpty());
+    }
+}
@@ -6,6 +6,10 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
 import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -42,6 +46,49 @@ public class WebServerTest {
      *          Nested definition
      *          Nested sequence
      *          Nested grouping
+     *  API (/api/eval/):
+     *      format: json, ndjson, unknown
+     *      pages: 1, >1 (follow cursor to the end)
+     *      cursor: valid, malformed
+     *      invalid list expression --> 400
+     *  Bulk definitions (/api/define):
+     *      all definitions valid --> applied
+     *      some line invalid --> nothing applied
+     *      method other than POST --> 405
+     *  Conditional GET (/eval/):
+     *      If-None-Match matches --> 304
+     *      dependency redefined --> 200 with new ETag
+     *      expression with definition --> no ETag
+     *      expression with domain --> no ETag, not cached
+     *  Compression:
+     *      Accept-Encoding: none, gzip, gzip;q=0, *, gzip;q=0 with *
+     *      body below, above threshold
+     *  Metrics (/metrics):
+     *      counters and histograms present after a request
+     *  Watch (/watch/):
+     *      initial members, change through a dependency
+     *      not a list name --> 400; list exceeds the evaluation budget --> 422; mail loop
+     *      left by a failed redefinition --> 400
+     *  Result cache (/eval/):
+     *      repeated expression --> served from cache, same body
+     *      dependency redefined --> evaluated again
+     *  Evaluation modes:
+     *      /eval/ read-only --> definitions discarded
+     *      /api/eval/ commit --> definitions applied
+     *      unknown endpoint --> IllegalArgumentException
+     *  Explain (/explain/):
+     *      expression without definitions --> annotated tree
+     *      expression with a definition --> 400
+     *  Stats (/stats):
+     *      lists with dependencies, limit smaller than the number of lists
+     *      invalid limit --> 400
+     *  Membership (/contains/):
+     *      member, not a member, undefined list, uppercase list name and address
+     *      missing address, invalid address --> 400; walk exceeds the evaluation budget --> 422
+     *      mail loop left by a failed redefinition --> 400
+     *  Limits:
+     *      evaluation budget exceeded --> 422
+     *      admission queue full --> 503
      *      
      */
 
@@ -234,4 +281,462 @@ public class WebServerTest {
 
         server.stop();
     }
+
+    // covers json format, 1 page, ascending order
+    @Test
+    public void testApiJsonSinglePage() throws IOException {
+        final WebServer server = new WebServer(new Environment());
+        final URL url = new URL("http://localhost:" + server.port() + "/api/eval/c@d,a@b");
+
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        assertEquals("response code", 200, connection.getResponseCode());
+        assertEquals("no next cursor", null, connection.getHeaderField("X-Next-Cursor"));
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
+        assertEquals("{\"total\":2,\"recipients\":[\"a@b\",\"c@d\"],\"next\":null}", reader.readLine());
+        assertEquals("end of stream", null, reader.readLine());
+        server.stop();
+    }
+
+    // covers ndjson format, >1 page, following the cursor to the end
+    @Test
+    public void testApiNdjsonPaging() throws IOException {
+        final WebServer server = new WebServer(new Environment());
+        final String base = "http://localhost:" + server.port() + "/api/eval/e@f,c@d,a@b?format=ndjson&limit=2";
+
+        final HttpURLConnection first = (HttpURLConnection) new URL(base).openConnection();
+        assertEquals("response code", 200, first.getResponseCode());
+        final String cursor = first.getHeaderField("X-Next-Cursor");
+        assertNotNull("expected a next cursor", cursor);
+        final BufferedReader reader1 = new BufferedReader(new InputStreamReader(first.getInputStream()));
+        assertEquals("{\"address\":\"a@b\"}", reader1.readLine());
+        assertEquals("{\"address\":\"c@d\"}", reader1.readLine());
+        assertEquals("end of stream", null, reader1.readLine());
+
+        final HttpURLConnection second = (HttpURLConnection) new URL(base + "&cursor=" + cursor).openConnection();
+        assertEquals("response code", 200, second.getResponseCode());
+        assertEquals("no next cursor", null, second.getHeaderField("X-Next-Cursor"));
+        final BufferedReader reader2 = new BufferedReader(new InputStreamReader(second.getInputStream()));
+        assertEquals("{\"address\":\"e@f\"}", reader2.readLine());
+        assertEquals("end of stream", null, reader2.readLine());
+        server.stop();
+    }
+
+    // covers malformed cursor, unknown format, invalid list expression
+    @Test
+    public void testApiErrors() throws IOException {
+        final WebServer server = new WebServer(new Environment());
+        final String base = "http://localhost:" + server.port() + "/api/eval/";
+
+        final HttpURLConnection badCursor = (HttpURLConnection) new URL(base + "a@b?cursor=nonsense").openConnection();
+        assertEquals("response code", 400, badCursor.getResponseCode());
+        final HttpURLConnection badFormat = (HttpURLConnection) new URL(base + "a@b?format=xml").openConnection();
+        assertEquals("response code", 400, badFormat.getResponseCode());
+        final HttpURLConnection badExpression = (HttpURLConnection) new URL(base + "a@").openConnection();
+        assertEquals("response code", 400, badExpression.getResponseCode());
+        server.stop();
+    }
+
+    /**
+     * POSTs body to the bulk definition endpoint of server.
+     * @param server the running server
+     * @param body the definitions to send
+     * @return the open connection, with the request sent
+     */
+    private static HttpURLConnection postDefinitions(WebServer server, String body) throws IOException {
+        final URL url = new URL("http://localhost:" + server.port() + "/api/define");
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        final OutputStream out = connection.getOutputStream();
+        out.write(body.getBytes(StandardCharsets.UTF_8));
+        out.close();
+        return connection;
+    }
+
+    // covers all definitions valid, blank lines ignored
+    @Test
+    public void testDefineBatch() throws IOException {
+        final Environment environment = new Environment();
+        final WebServer server = new WebServer(environment);
+
+        final HttpURLConnection connection = postDefinitions(server, "a = x@y, b\n\nb = z@w\n");
+        assertEquals("response code", 200, connection.getResponseCode());
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
+        assertEquals("{\"applied\":true,\"defined\":2,\"results\":["
+                + "{\"line\":1,\"name\":\"a\",\"status\":\"defined\"},"
+                + "{\"line\":3,\"name\":\"b\",\"status\":\"defined\"}]}", reader.readLine());
+        assertEquals("expected definition of b", new Recipient("z@w"), environment.getExpression(new Name("b")));
+        server.stop();
+    }
+
+    // covers some line invalid, method other than POST
+    @Test
+    public void testDefineBatchInvalid() throws IOException {
+        final Environment environment = new Environment();
+        final WebServer server = new WebServer(environment);
+
+        final HttpURLConnection connection = postDefinitions(server, "a = x@y\nb = z@\n");
+        assertEquals("response code", 422, connection.getResponseCode());
+        assertEquals("expected nothing applied", new Empty(), environment.getExpression(new Name("a")));
+
+        final URL url = new URL("http://localhost:" + server.port() + "/api/define");
+        final HttpURLConnection get = (HttpURLConnection) url.openConnection();
+        assertEquals("response code", 405, get.getResponseCode());
+        server.stop();
+    }
+
+    // covers If-None-Match matches, dependency redefined, expression with definition, domain
+    @Test
+    public void testConditionalGet() throws IOException {
+        final Environment environment = new Environment();
+        final WebServer server = new WebServer(environment);
+        final URL url = new URL("http://localhost:" + server.port() + "/eval/a,x@y");
+        environment.reassign(new Name("a"), new Recipient("a@b"));
+
+        final HttpURLConnection first = (HttpURLConnection) url.openConnection();
+        assertEquals("response code", 200, first.getResponseCode());
+        final String entityTag = first.getHeaderField("ETag");
+        assertNotNull("expected an ETag", entityTag);
+        first.getInputStream().close();
+
+        final HttpURLConnection unchanged = (HttpURLConnection) url.openConnection();
+        unchanged.setRequestProperty("If-None-Match", entityTag);
+        assertEquals("response code", 304, unchanged.getResponseCode());
+
+        environment.reassign(new Name("a"), new Recipient("c@d"));
+        final HttpURLConnection changed = (HttpURLConnection) url.openConnection();
+        changed.setRequestProperty("If-None-Match", entityTag);
+        assertEquals("response code", 200, changed.getResponseCode());
+        assertNotEquals("expected a new ETag", entityTag, changed.getHeaderField("ETag"));
+        changed.getInputStream().close();
+
+        final HttpURLConnection definition = (HttpURLConnection) new URL("http://localhost:" + server.port() + "/eval/b=a").openConnection();
+        assertEquals("response code", 200, definition.getResponseCode());
+        assertNull("expected no ETag", definition.getHeaderField("ETag"));
+        definition.getInputStream().close();
+
+        final URL domain = new URL("http://localhost:" + server.port() + "/eval/*@d");
+        final HttpURLConnection before = (HttpURLConnection) domain.openConnection();
+        assertNull("expected no ETag", before.getHeaderField("ETag"));
+        before.getInputStream().close();
+        environment.reassign(new Name("c"), new Recipient("e@d"));
+        final BufferedReader after = new BufferedReader(new InputStreamReader(domain.openStream()));
+        assertTrue("expected the new address", after.readLine().contains("e@d"));
+        after.close();
+        server.stop();
+    }
+
+    // covers repeated expression, dependency redefined
+    @Test
+    public void testResultCache() throws IOException {
+        final Environment environment = new Environment();
+        environment.reassign(new Name("cached"), new Recipient("a@b"));
+        final WebServer server = new WebServer(environment);
+        final URL url = new URL("http://localhost:" + server.port() + "/eval/CACHED*a@b");
+        final long hits = Metrics.RESULT_CACHE_HITS.sum();
+        final BufferedReader first = new BufferedReader(new InputStreamReader(url.openStream()));
+        assertEquals("<a href=\"mailto:a@b\">email these recipients</a><br>a@b", first.readLine());
+        first.close();
+        final BufferedReader second = new BufferedReader(new InputStreamReader(url.openStream()));
+        assertEquals("<a href=\"mailto:a@b\">email these recipients</a><br>a@b", second.readLine());
+        second.close();
+        assertEquals("cache hits", hits + 1, Metrics.RESULT_CACHE_HITS.sum());
+
+        environment.reassign(new Name("cached"), new Recipient("c@d"));
+        final BufferedReader changed = new BufferedReader(new InputStreamReader(url.openStream()));
+        assertEquals("<a href=\"mailto:\">email these recipients</a><br>{}", changed.readLine());
+        changed.close();
+        server.stop();
+    }
+
+    // covers /eval/ read-only, /api/eval/ commit, unknown endpoint
+    @Test
+    public void testEvaluationModes() throws IOException {
+        final Environment environment = new Environment();
+        final WebServer server = new WebServer(environment);
+        server.setEvaluationMode("/eval/", EvalEndpoint.Mode.READ_ONLY);
+        server.setEvaluationMode("/api/eval/", EvalEndpoint.Mode.COMMIT);
+        final BufferedReader readOnly = new BufferedReader(new InputStreamReader(
+                new URL("http://localhost:" + server.port() + "/eval/x=a@b;x,c@d").openStream()));
+        assertTrue("expected the definition within the request", readOnly.readLine().contains("a@b"));
+        readOnly.close();
+        assertFalse("expected the definition to be discarded", environment.isDefined(new Name("x")));
+
+        final HttpURLConnection commit = (HttpURLConnection) new URL("http://localhost:" + server.port() + "/api/eval/y=a@b").openConnection();
+        assertEquals("response code", 200, commit.getResponseCode());
+        commit.getInputStream().close();
+        assertEquals("expected the definition to be committed", new Recipient("a@b"), environment.getExpression(new Name("y")));
+        try {
+            server.setEvaluationMode("/metrics", EvalEndpoint.Mode.COMMIT);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        } finally {
+            server.stop();
+        }
+    }
+
+    // covers Accept-Encoding gzip, body above threshold; Accept-Encoding gzip;q=0; no Accept-Encoding
+    @Test
+    public void testGzipResponse() throws IOException {
+        final WebServer server = new WebServer(new Environment());
+        server.setCompression(0, 9);
+        final URL url = new URL("http://localhost:" + server.port() + "/eval/a@b");
+
+        final HttpURLConnection gzip = (HttpURLConnection) url.openConnection();
+        gzip.setRequestProperty("Accept-Encoding", "deflate, gzip");
+        assertEquals("response code", 200, gzip.getResponseCode());
+        assertEquals("content encoding", "gzip", gzip.getContentEncoding());
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(gzip.getInputStream())));
+        assertEquals("<a href=\"mailto:a@b\">email these recipients</a><br>a@b", reader.readLine());
+        assertEquals("end of stream", null, reader.readLine());
+
+        final HttpURLConnection refused = (HttpURLConnection) url.openConnection();
+        refused.setRequestProperty("Accept-Encoding", "gzip;q=0");
+        assertEquals("response code", 200, refused.getResponseCode());
+        assertNull("content encoding", refused.getContentEncoding());
+        refused.getInputStream().close();
+
+        final HttpURLConnection identity = (HttpURLConnection) url.openConnection();
+        assertEquals("response code", 200, identity.getResponseCode());
+        assertNull("content encoding", identity.getContentEncoding());
+        identity.getInputStream().close();
+        server.stop();
+    }
+
+    // covers body below threshold
+    @Test
+    public void testGzipBelowThreshold() throws IOException {
+        final WebServer server = new WebServer(new Environment());
+        server.setCompression(1 << 20, 1);
+        final HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + server.port() + "/eval/a@b").openConnection();
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        assertEquals("response code", 200, connection.getResponseCode());
+        assertNull("content encoding", connection.getContentEncoding());
+        connection.getInputStream().close();
+        server.stop();
+    }
+
+    // covers Accept-Encoding gzip, gzip;q=0, *, gzip;q=0 with *
+    @Test
+    public void testAcceptsGzip() {
+        assertTrue("expected gzip to be accepted", WebServer.acceptsGzip(Arrays.asList("br;q=1.0, GZIP;q=0.5")));
+        assertFalse("expected gzip to be refused", WebServer.acceptsGzip(Arrays.asList("identity")));
+        assertFalse("expected gzip to be refused", WebServer.acceptsGzip(Arrays.asList("x-gzip;q=0")));
+        assertTrue("expected gzip to be accepted by *", WebServer.acceptsGzip(Arrays.asList("br, *;q=0.1")));
+        assertFalse("expected explicit gzip;q=0 to override *", WebServer.acceptsGzip(Arrays.asList("gzip;q=0, *")));
+        assertFalse("expected explicit gzip;q=0 to override *",
+                WebServer.acceptsGzip(Arrays.asList("*", "deflate, gzip;q=0")));
+    }
+
+    // covers counters and histograms present after a request
+    @Test
+    public void testMetrics() throws IOException {
+        final WebServer server = new WebServer(new Environment());
+        new URL("http://localhost:" + server.port() + "/eval/a@b").openStream().close();
+
+        final HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + server.port() + "/metrics").openConnection();
+        assertEquals("response code", 200, connection.getResponseCode());
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
+        boolean sawRequests = false;
+        boolean sawEvaluations = false;
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            if (line.startsWith("norn_requests_total ")) {
+                sawRequests = Long.parseLong(line.split(" ")[1]) > 0;
+            } else if (line.startsWith("norn_evaluation_seconds_count ")) {
+                sawEvaluations = Long.parseLong(line.split(" ")[1]) > 0;
+            }
+        }
+        assertTrue("expected request counter", sawRequests);
+        assertTrue("expected evaluation histogram", sawEvaluations);
+        server.stop();
+    }
+
+    // covers initial members, change through a dependency, not a list name
+    @Test
+    public void testWatch() throws IOException {
+        final Environment environment = new Environment();
+        environment.reassign(new Name("b"), new Recipient("x@y"));
+        environment.reassign(new Name("a"), new Name("b"));
+        final WebServer server = new WebServer(environment);
+
+        final HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + server.port() + "/watch/a").openConnection();
+        connection.setReadTimeout(5000);
+        assertEquals("response code", 200, connection.getResponseCode());
+        assertEquals("content type", "text/event-stream; charset=utf-8", connection.getContentType());
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
+        assertTrue("expected event id", reader.readLine().startsWith("id: "));
+        assertEquals("event: change", reader.readLine());
+        assertEquals("data: {\"added\":[\"x@y\"],\"removed\":[]}", reader.readLine());
+        assertEquals("", reader.readLine());
+
+        environment.reassign(new Name("b"), new Recipient("z@w"));
+        assertTrue("expected event id", reader.readLine().startsWith("id: "));
+        assertEquals("event: change", reader.readLine());
+        assertEquals("data: {\"added\":[\"z@w\"],\"removed\":[\"x@y\"]}", reader.readLine());
+        reader.close();
+
+        final HttpURLConnection invalid = (HttpURLConnection) new URL("http://localhost:" + server.port() + "/watch/a,b").openConnection();
+        assertEquals("response code", 400, invalid.getResponseCode());
+
+        environment.reassign(new Name("c"), ListExpression.parse("a@b, c@d, e@f"));
+        server.setEvaluationBudget(2, 1000, 10000);
+        final HttpURLConnection expensive = (HttpURLConnection) new URL("http://localhost:" + server.port() + "/watch/c").openConnection();
+        assertEquals("response code", 422, expensive.getResponseCode());
+        server.stop();
+    }
+
+    // covers mail loop left by a failed redefinition
+    @Test
+    public void testWatchMailLoop() throws IOException {
+        final Environment environment = new Environment();
+        environment.reassign(new Name("a"), new Recipient("x@y"));
+        environment.reassign(new Name("b"), new Name("a"));
+        try {
+            environment.reassign(new Name("a"), new Name("b"));
+            fail("expected a mail loop");
+        } catch (AssertionError e) {
+            // expected
+        }
+        final WebServer server = new WebServer(environment);
+        final HttpURLConnection loop = (HttpURLConnection) new URL("http://localhost:" + server.port() + "/watch/a").openConnection();
+        assertEquals("response code", 400, loop.getResponseCode());
+        server.stop();
+    }
+
+    // covers explain of an expression without and with definitions
+    @Test
+    public void testExplain() throws IOException {
+        final Environment environment = new Environment();
+        environment.reassign(new Name("a"), ListExpression.parse("x@y, z@w"));
+        final WebServer server = new WebServer(environment);
+        final HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + server.port() + "/explain/a*z@w").openConnection();
+        assertEquals("response code", 200, connection.getResponseCode());
+        assertEquals("content type", "text/plain; charset=utf-8", connection.getContentType());
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
+        assertTrue("expected intersect", reader.readLine().startsWith("intersect  time "));
+        assertTrue("expected list a", reader.readLine().startsWith("  list a  time "));
+        String last = null;
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            last = line;
+        }
+        assertTrue("expected total", last.startsWith("total ") && last.endsWith("1 recipients"));
+
+        final HttpURLConnection definition = (HttpURLConnection) new URL("http://localhost:" + server.port() + "/explain/b=a").openConnection();
+        assertEquals("response code", 400, definition.getResponseCode());
+        assertFalse("expected no definition", environment.isDefined(new Name("b")));
+        server.stop();
+    }
+
+    // covers stats with a limit and an invalid limit
+    @Test
+    public void testStats() throws IOException {
+        final Environment environment = new Environment();
+        environment.reassign(new Name("a"), ListExpression.parse("x@y, z@w"));
+        environment.reassign(new Name("b"), ListExpression.parse("a ! z@w"));
+        final WebServer server = new WebServer(environment);
+        final HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + server.port() + "/stats?limit=1").openConnection();
+        assertEquals("response code", 200, connection.getResponseCode());
+        assertEquals("content type", "application/json; charset=utf-8", connection.getContentType());
+        final String body = new BufferedReader(new InputStreamReader(connection.getInputStream())).readLine();
+        assertTrue(body, body.startsWith("{\"lists\":2,\"nodes\":6,"));
+        assertTrue(body, body.contains("\"top\":[{\"name\":\"a\","));
+        assertFalse(body, body.contains("\"name\":\"b\""));
+
+        final HttpURLConnection invalid = (HttpURLConnection) new URL("http://localhost:" + server.port() + "/stats?limit=x").openConnection();
+        assertEquals("response code", 400, invalid.getResponseCode());
+        server.stop();
+    }
+
+    // covers member, not a member, undefined list, missing and invalid address
+    @Test
+    public void testContains() throws IOException {
+        final Environment environment = new Environment();
+        environment.reassign(new Name("staff"), ListExpression.parse("a@b, c@d"));
+        environment.reassign(new Name("all"), ListExpression.parse("staff ! c@d, e@f"));
+        final WebServer server = new WebServer(environment);
+        final String base = "http://localhost:" + server.port() + "/contains/";
+        final HttpURLConnection member = (HttpURLConnection) new URL(base + "ALL/A@b").openConnection();
+        assertEquals("response code", 200, member.getResponseCode());
+        assertEquals("content type", "application/json; charset=utf-8", member.getContentType());
+        assertEquals("{\"list\":\"all\",\"address\":\"a@b\",\"member\":true}",
+                new BufferedReader(new InputStreamReader(member.getInputStream())).readLine());
+        final BufferedReader notMember = new BufferedReader(new InputStreamReader(new URL(base + "all/c@d").openStream()));
+        assertTrue(notMember.readLine().endsWith("\"member\":false}"));
+        notMember.close();
+        final BufferedReader undefined = new BufferedReader(new InputStreamReader(new URL(base + "nobody/a@b").openStream()));
+        assertTrue(undefined.readLine().endsWith("\"member\":false}"));
+        undefined.close();
+
+        final HttpURLConnection missing = (HttpURLConnection) new URL(base + "all").openConnection();
+        assertEquals("response code", 400, missing.getResponseCode());
+        final HttpURLConnection invalid = (HttpURLConnection) new URL(base + "all/a@b,c@d").openConnection();
+        assertEquals("response code", 400, invalid.getResponseCode());
+
+        server.setEvaluationBudget(2, 1000, 10000);
+        final HttpURLConnection expensive = (HttpURLConnection) new URL(base + "all/e@f").openConnection();
+        assertEquals("response code", 422, expensive.getResponseCode());
+        server.stop();
+    }
+
+    // covers mail loop left by a failed redefinition
+    @Test
+    public void testContainsMailLoop() throws IOException {
+        final Environment environment = new Environment();
+        environment.reassign(new Name("a"), new Recipient("x@y.com"));
+        environment.reassign(new Name("b"), new Name("a"));
+        try {
+            environment.reassign(new Name("a"), new Name("b"));
+            fail("expected a mail loop");
+        } catch (AssertionError e) {
+            // expected
+        }
+        final WebServer server = new WebServer(environment);
+        final HttpURLConnection loop = (HttpURLConnection) new URL(
+                "http://localhost:" + server.port() + "/contains/a/x@y.com").openConnection();
+        assertEquals("response code", 400, loop.getResponseCode());
+        server.stop();
+    }
+
+    // covers evaluation budget exceeded
+    @Test
+    public void testBudgetExceeded() throws IOException {
+        final WebServer server = new WebServer(new Environment());
+        server.setEvaluationBudget(2, 1000, 10000);
+        final HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + server.port() + "/eval/a@b,c@d,e@f").openConnection();
+        assertEquals("response code", 422, connection.getResponseCode());
+        final HttpURLConnection api = (HttpURLConnection) new URL("http://localhost:" + server.port() + "/api/eval/a@b,c@d,e@f").openConnection();
+        assertEquals("response code", 422, api.getResponseCode());
+        server.stop();
+    }
+
+    // covers admission queue full
+    @Test
+    public void testLoadShedding() throws Exception {
+        final Environment environment = new Environment();
+        final WebServer server = new WebServer(environment);
+        server.setAdmission(1, 0, 0);
+        final URL url = new URL("http://localhost:" + server.port() + "/eval/a@b");
+        final HttpURLConnection blocked = (HttpURLConnection) url.openConnection();
+        final int[] blockedStatus = new int[1];
+        final Thread first;
+        synchronized (environment) {
+            // the first request is admitted and then waits for the environment lock
+            first = new Thread(() -> {
+                try {
+                    blockedStatus[0] = blocked.getResponseCode();
+                } catch (IOException e) {
+                    blockedStatus[0] = -1;
+                }
+            });
+            first.start();
+            Thread.sleep(500);
+            final HttpURLConnection shed = (HttpURLConnection) url.openConnection();
+            assertEquals("response code", 503, shed.getResponseCode());
+            assertEquals("retry after", "1", shed.getHeaderField("Retry-After"));
+        }
+        first.join();
+        assertEquals("response code", 200, blockedStatus[0]);
+        server.stop();
+    }
 }